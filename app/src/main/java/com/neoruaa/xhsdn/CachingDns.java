@@ -0,0 +1,191 @@
+package com.neoruaa.xhsdn;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import okhttp3.Dns;
+
+/**
+ * Name resolution for the shared client, cached in memory. Addresses are served from the cache while
+ * fresh; for a while after that they are still served (stale-while-revalidate) and refreshed in the
+ * background, and when a lookup fails the last known addresses are used. Concurrent lookups of one host
+ * share a single query. The answer alternates IPv6 and IPv4 addresses, so with OkHttp's fast fallback a
+ * broken first address of one family is raced against the other family instead of using up the connect
+ * timeout.
+ */
+final class CachingDns implements Dns {
+    // The platform resolver does not expose record TTLs, so these stand in for them
+    static final long FRESH_MS = 5 * 60 * 1000;
+    static final long STALE_MS = 60 * 60 * 1000;
+
+    private static CachingDns instance;
+
+    private final Dns upstream;
+    private final Executor refreshExecutor;
+    private final LongSupplier clock;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, FutureTask<List<InetAddress>>> inFlight = new ConcurrentHashMap<>();
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    private static final class Entry {
+        final List<InetAddress> addresses;
+        final long resolvedAt;
+        final long lookupMs;
+
+        Entry(List<InetAddress> addresses, long resolvedAt, long lookupMs) {
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+            this.lookupMs = lookupMs;
+        }
+    }
+
+    CachingDns(Dns upstream, Executor refreshExecutor, LongSupplier clock) {
+        this.upstream = upstream;
+        this.refreshExecutor = refreshExecutor;
+        this.clock = clock;
+    }
+
+    static synchronized CachingDns get() {
+        if (instance == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "dns-refresh");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            instance = new CachingDns(Dns.SYSTEM, executor, System::currentTimeMillis);
+        }
+        return instance;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        Entry entry = cache.get(hostname);
+        if (entry != null) {
+            long age = clock.getAsLong() - entry.resolvedAt;
+            if (age < FRESH_MS) {
+                return entry.addresses;
+            }
+            if (age < STALE_MS) {
+                refreshInBackground(hostname);
+                return entry.addresses;
+            }
+        }
+        try {
+            return resolve(hostname);
+        } catch (UnknownHostException e) {
+            // Last known addresses beat no connection at all
+            if (entry != null) {
+                return entry.addresses;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return How long the last lookup of {@code hostname} took, or -1 if it has not been resolved
+     */
+    long resolutionTimeMs(String hostname) {
+        Entry entry = cache.get(hostname);
+        return entry != null ? entry.lookupMs : -1;
+    }
+
+    /**
+     * @return Duration of the last lookup of every resolved host, e.g. for diagnostics
+     */
+    Map<String, Long> resolutionTimes() {
+        Map<String, Long> times = new HashMap<>();
+        for (Map.Entry<String, Entry> entry : cache.entrySet()) {
+            times.put(entry.getKey(), entry.getValue().lookupMs);
+        }
+        return times;
+    }
+
+    private void refreshInBackground(String hostname) {
+        if (!refreshing.add(hostname)) {
+            return;
+        }
+        refreshExecutor.execute(() -> {
+            try {
+                resolve(hostname);
+            } catch (UnknownHostException ignored) {
+                // Keep serving the stale addresses
+            } finally {
+                refreshing.remove(hostname);
+            }
+        });
+    }
+
+    private List<InetAddress> resolve(String hostname) throws UnknownHostException {
+        FutureTask<List<InetAddress>> task = new FutureTask<>(() -> {
+            long start = clock.getAsLong();
+            List<InetAddress> addresses = interleaveFamilies(upstream.lookup(hostname));
+            long end = clock.getAsLong();
+            cache.put(hostname, new Entry(addresses, end, end - start));
+            return addresses;
+        });
+        FutureTask<List<InetAddress>> running = inFlight.putIfAbsent(hostname, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(hostname, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnknownHostException) {
+                throw (UnknownHostException) cause;
+            }
+            UnknownHostException wrapped = new UnknownHostException("Lookup of " + hostname + " failed");
+            wrapped.initCause(cause);
+            throw wrapped;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted while resolving " + hostname);
+        }
+    }
+
+    /**
+     * Alternate address families, starting with the family of the first address (RFC 8305).
+     */
+    static List<InetAddress> interleaveFamilies(List<InetAddress> addresses) {
+        if (addresses.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = addresses.get(0) instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == firstIsV6 ? first : second).add(address);
+        }
+        List<InetAddress> result = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                result.add(first.get(i));
+            }
+            if (i < second.size()) {
+                result.add(second.get(i));
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+}
@@ -0,0 +1,167 @@
+package com.neoruaa.xhsdn;
+
+import android.util.Log;
+
+import okhttp3.Dispatcher;
+
+/**
+ * Adjusts how many media transfers run at once (AIMD). Every {@link #INTERVAL_MS} the aggregate throughput
+ * and the average time to first byte of the transfers that finished are compared with the previous
+ * interval: while the scheduler has more work than slots and throughput keeps up, the window grows by one;
+ * when latency climbs well above the best seen, or transfers time out or get throttled, it shrinks by a
+ * quarter. The window drives the scheduler's limits and the shared OkHttp dispatcher's.
+ */
+final class ConcurrencyController {
+    private static final String TAG = "ConcurrencyController";
+    static final int MIN_WINDOW = 2;
+    static final int MAX_WINDOW = 12;
+    static final int INITIAL_WINDOW = 6;
+    static final long INTERVAL_MS = 2000;
+    // Fewer samples than this in an interval is noise
+    private static final int MIN_SAMPLES = 2;
+    // Latency this many times the baseline means queues are building up somewhere
+    private static final double LATENCY_FACTOR = 2.5;
+    private static final double DECREASE_FACTOR = 0.75;
+    // Share of failed transfers in an interval that counts as congestion
+    private static final double FAILURE_RATIO = 0.2;
+
+    private static ConcurrencyController instance;
+
+    private final Target target;
+    private int window = INITIAL_WINDOW;
+    private long intervalStart = -1;
+    private long intervalBytes = 0;
+    private long intervalLatencyMs = 0;
+    private int intervalLatencySamples = 0;
+    private int intervalSuccesses = 0;
+    private int intervalFailures = 0;
+    private double lastThroughput = 0;
+    // Lowest interval latency seen; slowly forgotten so a move to a slower network is not punished forever
+    private double baselineLatencyMs = -1;
+
+    /**
+     * What the window is applied to.
+     */
+    interface Target {
+        void applyWindow(int window);
+
+        /**
+         * @return Whether transfers are waiting for a slot, i.e. a larger window would be used
+         */
+        boolean isSaturated();
+    }
+
+    ConcurrencyController(Target target) {
+        this.target = target;
+    }
+
+    static synchronized ConcurrencyController get() {
+        if (instance == null) {
+            MediaDownloadScheduler scheduler = MediaDownloadScheduler.get();
+            Dispatcher dispatcher = FileDownloader.getSharedHttpClient().dispatcher();
+            instance = new ConcurrencyController(new Target() {
+                @Override
+                public void applyWindow(int window) {
+                    scheduler.setLimits(window, perHostLimit(window));
+                    configureDispatcher(dispatcher, window);
+                    Log.d(TAG, "Concurrency window: " + window);
+                }
+
+                @Override
+                public boolean isSaturated() {
+                    return scheduler.isSaturated();
+                }
+            });
+        }
+        return instance;
+    }
+
+    static void configureDispatcher(Dispatcher dispatcher, int window) {
+        // Hedged candidates and video segments need requests beyond one per transfer
+        dispatcher.setMaxRequests(window * 2);
+        dispatcher.setMaxRequestsPerHost(window + 2);
+    }
+
+    static int perHostLimit(int window) {
+        return Math.max(MIN_WINDOW, Math.round(window * 2 / 3f));
+    }
+
+    /**
+     * The current number of transfer slots, e.g. for diagnostics.
+     */
+    synchronized int currentWindow() {
+        return window;
+    }
+
+    /**
+     * @param ttfbMs Time to the response headers, or -1 if unknown
+     */
+    void onTransferComplete(long bytes, long ttfbMs) {
+        onTransferComplete(bytes, ttfbMs, System.currentTimeMillis());
+    }
+
+    synchronized void onTransferComplete(long bytes, long ttfbMs, long now) {
+        startIntervalIfNeeded(now);
+        intervalSuccesses++;
+        intervalBytes += Math.max(0, bytes);
+        if (ttfbMs >= 0) {
+            intervalLatencyMs += ttfbMs;
+            intervalLatencySamples++;
+        }
+        maybeAdjust(now);
+    }
+
+    /**
+     * A transfer timed out, was reset or was throttled; not for failures that say nothing about load, like 404.
+     */
+    void onTransferFailed() {
+        onTransferFailed(System.currentTimeMillis());
+    }
+
+    synchronized void onTransferFailed(long now) {
+        startIntervalIfNeeded(now);
+        intervalFailures++;
+        maybeAdjust(now);
+    }
+
+    private void startIntervalIfNeeded(long now) {
+        if (intervalStart < 0) {
+            intervalStart = now;
+        }
+    }
+
+    private void maybeAdjust(long now) {
+        long elapsed = now - intervalStart;
+        if (elapsed < INTERVAL_MS || intervalSuccesses + intervalFailures < MIN_SAMPLES) {
+            return;
+        }
+
+        double throughput = (double) intervalBytes / elapsed;
+        double latency = intervalLatencySamples > 0 ? (double) intervalLatencyMs / intervalLatencySamples : -1;
+        if (latency >= 0) {
+            baselineLatencyMs = baselineLatencyMs < 0 ? latency : Math.min(baselineLatencyMs * 1.05, latency);
+        }
+        boolean congested = intervalFailures > (intervalSuccesses + intervalFailures) * FAILURE_RATIO
+                || (latency >= 0 && latency > baselineLatencyMs * LATENCY_FACTOR);
+
+        int newWindow = window;
+        if (congested) {
+            newWindow = Math.max(MIN_WINDOW, (int) (window * DECREASE_FACTOR));
+        } else if (target.isSaturated() && throughput >= lastThroughput * 0.95) {
+            newWindow = Math.min(MAX_WINDOW, window + 1);
+        }
+        lastThroughput = throughput;
+
+        intervalStart = now;
+        intervalBytes = 0;
+        intervalLatencyMs = 0;
+        intervalLatencySamples = 0;
+        intervalSuccesses = 0;
+        intervalFailures = 0;
+
+        if (newWindow != window) {
+            window = newWindow;
+            target.applyWindow(newWindow);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.neoruaa.xhsdn;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Speculative warm-up while a note link sits on the clipboard, before the user taps download. A HEAD
+ * request to each host the download will talk to resolves its name and leaves an (HTTP/2) connection in
+ * the shared pool; the note itself can be fetched and parsed into {@link ParsedNoteCache}, so the
+ * download starts with the page parsed and the handshakes done.
+ */
+final class ConnectionPrewarmer {
+    private static final String TAG = "ConnectionPrewarmer";
+    // checkClipboard runs on every resume; the same text is warmed again only after this long
+    private static final long REPEAT_INTERVAL_MS = 60_000;
+    private static final String[] HOSTS = {
+            "www.xiaohongshu.com",
+            "xhslink.com",
+            "ci.xiaohongshu.com",
+            "sns-webpic-qc.xhscdn.com",
+            "sns-img-qc.xhscdn.com",
+            "sns-video-bd.xhscdn.com"
+    };
+    private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36";
+
+    // One note at a time; a newer clipboard text does not need the older one parsed any more
+    private static final ThreadPoolExecutor NOTE_EXECUTOR = new ThreadPoolExecutor(
+            0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(1),
+            new ThreadPoolExecutor.DiscardOldestPolicy());
+
+    private static String lastText;
+    private static long lastWarmedAt;
+
+    private ConnectionPrewarmer() {
+    }
+
+    /**
+     * @param text         Clipboard text that contains a note link
+     * @param prefetchNote Whether to also fetch and parse the note; not wanted when a download of it
+     *                     starts right away anyway
+     */
+    static void onLinkDetected(Context context, String text, boolean prefetchNote) {
+        synchronized (ConnectionPrewarmer.class) {
+            long now = SystemClock.elapsedRealtime();
+            if (text.equals(lastText) && now - lastWarmedAt < REPEAT_INTERVAL_MS) {
+                return;
+            }
+            lastText = text;
+            lastWarmedAt = now;
+        }
+
+        warmConnections(FileDownloader.getSharedHttpClient());
+        if (prefetchNote) {
+            Context appContext = context.getApplicationContext();
+            NOTE_EXECUTOR.execute(() -> {
+                int count = new XHSDownloader(appContext).getMediaCount(text);
+                Log.d(TAG, "Prefetched note with " + count + " media items");
+            });
+        }
+    }
+
+    private static void warmConnections(OkHttpClient client) {
+        for (String host : HOSTS) {
+            Request request = new Request.Builder()
+                    .url("https://" + host + "/")
+                    .head()
+                    .header("User-Agent", USER_AGENT)
+                    .build();
+            client.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    Log.d(TAG, "Warm-up of " + host + " failed: " + e.getMessage());
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    // Any status will do; closing hands the connection back to the pool
+                    response.close();
+                }
+            });
+        }
+    }
+}
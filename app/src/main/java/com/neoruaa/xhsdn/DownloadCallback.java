@@ -3,9 +3,24 @@ package com.neoruaa.xhsdn;
 public interface DownloadCallback {
     void onFileDownloaded(String filePath);
     void onDownloadProgress(String status);
+
+    /**
+     * Progress of the file being transferred, called from the download threads after every chunk.
+     * Implementations should only record the values (see {@code TransferProgress}) and publish them at
+     * display rate, not dispatch work per call.
+     */
     void onDownloadProgressUpdate(long downloaded, long total);
+
     void onDownloadError(String status, String originalUrl);
     void onVideoDetected();
+
+    /**
+     * Progress of all files of the note being downloaded, in bytes. Sizes are probed before the transfers
+     * start, so {@code totalBytes} is known up front (estimated for files whose size could not be probed).
+     * Called as often as {@link #onDownloadProgressUpdate}, so the same applies.
+     */
+    default void onBatchProgress(long downloadedBytes, long totalBytes) {
+    }
     
     /**
      * Check if the download should be cancelled
@@ -14,14 +14,29 @@ import android.util.Log;
 import androidx.annotation.RequiresApi;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.ConnectionPool;
 import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
@@ -33,15 +48,68 @@ import okhttp3.ResponseBody;
 public class FileDownloader {
     private static final String TAG = "FileDownloader";
     private static final OkHttpClient SHARED_HTTP_CLIENT = createSharedHttpClient();
+    // A hedged download starts the next candidate URL when the current ones have not answered within this time
+    static final long HEDGE_DELAY_MS = 1500;
+    private static final long HEDGE_POLL_MS = 200;
+    // How long the size probes before a note's transfers may take; sizes not known by then are estimated
+    static final long SIZE_PROBE_TIMEOUT_MS = 2500;
     private OkHttpClient httpClient;
     private Context context;
     private DownloadCallback callback;
-    private volatile okhttp3.Call activeCall;
+    // Large videos downloading over several connections (see SegmentedDownloader)
+    private final Set<SegmentedDownloader> activeSegmented;
+    private final PartialDownloadStore partialStore;
+    private final HostScoreboard scoreboard;
+    private final MediaBlobStore blobStore;
+    private final ConcurrencyController concurrency = ConcurrencyController.get();
+    // Queue the extra connections of segmented downloads go through (see setSchedulerTask)
+    private volatile MediaDownloadScheduler.Task schedulerTask = MediaDownloadScheduler.get()
+            .newTask(TAG + "@" + Integer.toHexString(System.identityHashCode(this)), false);
+    // Every call in flight on any thread, including the racing candidates of hedged downloads, so cancel()
+    // stops all of them at once
+    private final Set<Call> activeCalls;
+    // Why the last download on this thread failed, for the caller's retry policy
+    private final ThreadLocal<RetryPolicy.Failure> lastFailure;
+    // The note's MediaStore entries this view publishes into (see inMediaStoreBatch), or null
+    private final MediaStoreBatch mediaStoreBatch;
+
+    /**
+     * The candidate URL a hedged download was served from, and the file it saved.
+     */
+    static final class HedgedResult {
+        final String url;
+        final File file;
+
+        HedgedResult(String url, File file) {
+            this.url = url;
+            this.file = file;
+        }
+    }
+
+    /**
+     * How one call of a hedged race ended: a response, or the error it failed with.
+     */
+    private static final class RaceOutcome {
+        final String url;
+        final Call call;
+        final Response response;
+        final IOException error;
+        final long startedAt;
+        final long finishedAt = System.currentTimeMillis();
+
+        RaceOutcome(String url, Call call, Response response, IOException error, long startedAt) {
+            this.url = url;
+            this.call = call;
+            this.response = response;
+            this.error = error;
+            this.startedAt = startedAt;
+        }
+    }
 
     private static OkHttpClient createSharedHttpClient() {
         Dispatcher dispatcher = new Dispatcher();
-        dispatcher.setMaxRequests(12);
-        dispatcher.setMaxRequestsPerHost(8);
+        // Raised or lowered at runtime with the transfer window
+        ConcurrencyController.configureDispatcher(dispatcher, ConcurrencyController.INITIAL_WINDOW);
 
         return new OkHttpClient.Builder()
                 .connectTimeout(20, TimeUnit.SECONDS)
@@ -51,6 +119,9 @@ public class FileDownloader {
                 .followRedirects(true)
                 .followSslRedirects(true)
                 .connectionPool(new ConnectionPool(12, 10, TimeUnit.MINUTES))
+                .dns(CachingDns.get())
+                // Race the next address after 250ms instead of waiting out the connect timeout
+                .fastFallback(true)
                 .dispatcher(dispatcher)
                 .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
                 .build();
@@ -59,17 +130,97 @@ public class FileDownloader {
     public static OkHttpClient getSharedHttpClient() {
         return SHARED_HTTP_CLIENT;
     }
+
+    /**
+     * The state of the shared transfer machinery as "key: value" lines, for diagnostic logs.
+     */
+    public static String describeNetworkState() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("concurrencyWindow: ").append(ConcurrencyController.get().currentWindow()).append('\n');
+        for (Map.Entry<String, Long> entry : new TreeMap<>(CachingDns.get().resolutionTimes()).entrySet()) {
+            builder.append("dnsLookupMs ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
     
     public FileDownloader(Context context) {
-        this.context = context.getApplicationContext();
-        this.httpClient = SHARED_HTTP_CLIENT;
-        this.callback = null;
+        this(context, null);
     }
     
     public FileDownloader(Context context, DownloadCallback callback) {
         this.context = context.getApplicationContext();
         this.httpClient = SHARED_HTTP_CLIENT;
         this.callback = callback;
+        this.partialStore = PartialDownloadStore.get(this.context);
+        this.scoreboard = HostScoreboard.get(this.context);
+        this.blobStore = MediaBlobStore.get(this.context);
+        this.activeSegmented = ConcurrentHashMap.newKeySet();
+        this.activeCalls = ConcurrentHashMap.newKeySet();
+        this.lastFailure = new ThreadLocal<>();
+        this.mediaStoreBatch = null;
+    }
+
+    private FileDownloader(FileDownloader shared, DownloadCallback callback, MediaStoreBatch mediaStoreBatch) {
+        this.context = shared.context;
+        this.httpClient = shared.httpClient;
+        this.callback = callback;
+        this.partialStore = shared.partialStore;
+        this.scoreboard = shared.scoreboard;
+        this.blobStore = shared.blobStore;
+        this.schedulerTask = shared.schedulerTask;
+        this.activeSegmented = shared.activeSegmented;
+        this.activeCalls = shared.activeCalls;
+        this.lastFailure = shared.lastFailure;
+        this.mediaStoreBatch = mediaStoreBatch;
+    }
+
+    /**
+     * A downloader that reports to {@code callback} instead, e.g. to tell which file a progress report is
+     * about when it comes from a segment's thread. It shares this one's calls, so {@link #cancel()} on
+     * either stops both, and its failures are read with {@link #takeLastFailure()} on either.
+     */
+    FileDownloader withCallback(DownloadCallback callback) {
+        return new FileDownloader(this, callback, mediaStoreBatch);
+    }
+
+    /**
+     * A downloader that saves files to the gallery through {@code batch}, see {@link #reserveInMediaStore}.
+     */
+    FileDownloader inMediaStoreBatch(MediaStoreBatch batch) {
+        return new FileDownloader(this, callback, batch);
+    }
+
+    /**
+     * Reserve gallery entries for the files of a note in one batch; the downloads go through
+     * {@link #inMediaStoreBatch} and publish their entries as they finish, and
+     * {@link MediaStoreBatch#finish()} deletes the unused ones once the note is done.
+     * @param fileNames The names the files are downloaded under, as passed to {@link #downloadFile}
+     * @return The batch, or null if MediaStore is not used or refused the entries
+     */
+    MediaStoreBatch reserveInMediaStore(List<String> fileNames) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || fileNames.isEmpty()) {
+            return null;
+        }
+        List<MediaStorePublisher.Item> items = new ArrayList<>(fileNames.size());
+        for (String fileName : fileNames) {
+            String fullFileName = "xhs_" + stripExtension(fileName) + "." + getFileExtensionFromName(fileName);
+            items.add(newMediaStoreItem(fullFileName, getFileExtensionFromName(fileName)));
+        }
+        MediaStoreBatch batch = new MediaStoreBatch(new MediaStorePublisher(context.getContentResolver()),
+                item -> buildMediaStoreFile(item.relativePath, item.displayName));
+        if (!batch.reserve(items)) {
+            Log.w(TAG, "Could not reserve " + items.size() + " MediaStore entries, publishing one by one");
+            return null;
+        }
+        return batch;
+    }
+
+    /**
+     * Queue the range requests of segmented downloads under the task of the download they belong to, so
+     * they share its priority and are dropped with its queued jobs.
+     */
+    void setSchedulerTask(MediaDownloadScheduler.Task schedulerTask) {
+        this.schedulerTask = schedulerTask;
     }
 
     private void checkCancellation() throws java.util.concurrent.CancellationException {
@@ -78,32 +229,47 @@ public class FileDownloader {
         }
     }
 
-    private void writeStreamWithCancellation(InputStream inputStream, OutputStream outputStream, long contentLength) throws IOException {
-        byte[] buffer = new byte[65536]; // 64KB buffer
-        int bytesRead;
-        long totalBytesRead = 0;
-        long lastProgressUpdate = 0;
+    private MediaIo.ChunkListener progressListener(long contentLength) {
+        return progressListener(contentLength, 0);
+    }
 
-        while ((bytesRead = inputStream.read(buffer)) != -1) {
+    /**
+     * Cancellation check and progress reports for a copy, run by {@link MediaIo} after each chunk.
+     * @param alreadyWritten Bytes of the file written before this copy (when resuming), for progress
+     */
+    private MediaIo.ChunkListener progressListener(long contentLength, long alreadyWritten) {
+        long[] lastProgressUpdate = {alreadyWritten};
+        return written -> {
             checkCancellation();
-            outputStream.write(buffer, 0, bytesRead);
-            totalBytesRead += bytesRead;
-
+            long totalBytesWritten = alreadyWritten + written;
             if (callback != null && contentLength > 0) {
-                if (totalBytesRead - lastProgressUpdate >= 65536 || totalBytesRead == contentLength) {
-                    callback.onDownloadProgressUpdate(totalBytesRead, contentLength);
-                    lastProgressUpdate = totalBytesRead;
+                if (totalBytesWritten - lastProgressUpdate[0] >= MediaIo.CHUNK_SIZE || totalBytesWritten == contentLength) {
+                    callback.onDownloadProgressUpdate(totalBytesWritten, contentLength);
+                    lastProgressUpdate[0] = totalBytesWritten;
                 }
             }
-        }
+        };
     }
     
     public void cancel() {
-        if (activeCall != null) {
-            activeCall.cancel();
+        for (Call call : activeCalls) {
+            call.cancel();
+        }
+        for (SegmentedDownloader segmented : activeSegmented) {
+            segmented.cancel();
         }
     }
 
+    /**
+     * Wait for the response headers of a call through {@link HttpCalls#awaitResponse}, which suspends on
+     * {@code Call.await()} and cancels the call if this thread is interrupted. The call stays registered
+     * for {@link #cancel()} until the caller removes it from {@link #activeCalls} after reading the body.
+     */
+    private Response await(Call call) throws IOException {
+        activeCalls.add(call);
+        return HttpCalls.awaitResponse(call);
+    }
+
     public boolean downloadFile(String url, String fileName) {
         // Use current date timestamp when no timestamp is provided
         String timestamp = getTimestampForFilename(); // 日期格式时间戳，如 251114
@@ -115,6 +281,9 @@ public class FileDownloader {
     }
 
     public File downloadFileToDirectory(String url, String fileName, String timestamp, File destinationDir) {
+        lastFailure.remove();
+        Call call = null;
+        PartialDownloadStore.Entry partial = null;
         try {
             if (destinationDir == null) {
                 return null;
@@ -125,172 +294,965 @@ public class FileDownloader {
             }
 
             Log.d(TAG, "on downloadFileToDirectory: " + fileName);
-            Request request = new Request.Builder()
-                    .url(url)
-                    .addHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36")
-                    .addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=1.0,image/avif,image/webp,image/apng,*/*;q=1.0")
-                    .addHeader("Referer", "https://www.xiaohongshu.com/")
-                    .build();
+            File storedFile = publishFromBlobStore(url, fileName, destinationDir);
+            if (storedFile != null) {
+                return storedFile;
+            }
+            Request request = buildMediaRequest(url);
+
+            partial = partialStore.acquire(url);
+            File segmentedFile = null;
+            if (partial == null || partial.isRanged()) {
+                // downloadSegmented finishes or drops a ranged entry itself
+                segmentedFile = downloadSegmentedToDirectory(request, url, fileName, destinationDir, null, partial);
+                partial = null;
+            }
+            if (segmentedFile != null) {
+                Log.d(TAG, "Downloaded cache file: " + segmentedFile.getAbsolutePath());
+                if (callback != null) {
+                    callback.onFileDownloaded(segmentedFile.getAbsolutePath());
+                }
+                return segmentedFile;
+            }
 
-            activeCall = httpClient.newCall(request);
-            try (Response response = activeCall.execute()) {
-                ResponseBody responseBody = response.body();
-                if (!response.isSuccessful() || responseBody == null) {
-                    Log.e(TAG, "Cache download failed. Response code: " + response.code());
-                    return null;
+            long startedAt = System.currentTimeMillis();
+            call = httpClient.newCall(partial != null ? resumeRequest(request, partial) : request);
+            try (Response response = await(call)) {
+                long headersAt = System.currentTimeMillis();
+                File file = saveResponseToDirectory(url, fileName, response, partial, destinationDir);
+                recordResponse(url, response, file, headersAt - startedAt, headersAt);
+                return file;
+            }
+        } catch (IOException e) {
+            recordFailure(url, call, e);
+            Log.e(TAG, "Error caching file: " + e.getMessage());
+            e.printStackTrace();
+        } catch (SecurityException e) {
+            Log.e(TAG, "Security exception while caching file: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (call != null) {
+                activeCalls.remove(call);
+            }
+            if (partial != null) {
+                partialStore.release(partial);
+            }
+        }
+
+        return null;
+    }
+
+    public File copyCachedFileToMediaStore(File sourceFile) {
+        if (sourceFile == null) {
+            return null;
+        }
+        return copyCachedFileToMediaStore(sourceFile, sourceFile.getName());
+    }
+
+    private File copyCachedFileToMediaStore(File sourceFile, String fileName) {
+        if (sourceFile == null || !sourceFile.exists()) {
+            return null;
+        }
+
+        String fileExtension = getFileExtensionFromName(fileName);
+        File destinationFile = null;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            destinationFile = saveExistingFileToMediaStore(sourceFile, fileName, fileExtension);
+        }
+
+        if (destinationFile == null) {
+            destinationFile = copyCachedFileToFileSystem(sourceFile, fileName, fileExtension);
+        }
+
+        if (destinationFile != null && destinationFile.exists()) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || isFileInPrivateDirectory(destinationFile)) {
+                notifyMediaStore(destinationFile);
+            }
+            return destinationFile;
+        }
+        return null;
+    }
+
+    public boolean downloadFile(String url, String fileName, String timestamp, boolean notifyErrors) {
+        lastFailure.remove();
+        Call call = null;
+        PartialDownloadStore.Entry partial = null;
+        try {
+            Log.d(TAG, "on downloadFile: " + fileName);
+            if (publishFromBlobStore(url, fileName, null) != null) {
+                return true;
+            }
+            Request request = buildMediaRequest(url);
+
+            // A partial body from an earlier attempt is resumed rather than refetched in segments; a segmented
+            // one by fetching the ranges it missed
+            partial = partialStore.acquire(url);
+            File segmentedFile = null;
+            if (partial == null || partial.isRanged()) {
+                // downloadSegmented finishes or drops a ranged entry itself
+                segmentedFile = downloadSegmentedToGallery(request, url, fileName, null, partial);
+                partial = null;
+            }
+            if (segmentedFile != null) {
+                if (callback != null) {
+                    callback.onFileDownloaded(segmentedFile.getAbsolutePath());
+                }
+                return true;
+            }
+
+            long startedAt = System.currentTimeMillis();
+            call = httpClient.newCall(partial != null ? resumeRequest(request, partial) : request);
+            try (Response response = await(call)) {
+                long headersAt = System.currentTimeMillis();
+                File file = saveResponseToGallery(url, fileName, response, partial, notifyErrors);
+                recordResponse(url, response, file, headersAt - startedAt, headersAt);
+                return file != null;
+            }
+        } catch (IOException e) {
+            recordFailure(url, call, e);
+            Log.e(TAG, "Error downloading file: " + e.getMessage());
+            e.printStackTrace();
+
+            if (notifyErrors && callback != null) {
+                callback.onDownloadError("IO Error downloading file: " + e.getMessage(), url);
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "Security exception while downloading file: " + e.getMessage());
+            e.printStackTrace();
+
+            if (notifyErrors && callback != null) {
+                callback.onDownloadError("Security exception while downloading file: " + e.getMessage(), url);
+            }
+        } finally {
+            if (call != null) {
+                activeCalls.remove(call);
+            }
+            if (partial != null) {
+                partialStore.release(partial);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Download one file from whichever candidate URL answers first. The first candidate starts alone; when no
+     * response headers have arrived after {@link #HEDGE_DELAY_MS}, or a candidate fails, the next one starts
+     * alongside. The first successful media response is saved and the other calls are cancelled.
+     * Partial downloads are not resumed here; callers should use {@link #downloadFile} for such a URL.
+     * @param destinationDir Directory to save into, or null to save to the gallery
+     * @return The winning URL and the saved file, or null if no candidate produced the file
+     * @throws java.util.concurrent.CancellationException If the download was cancelled or the thread interrupted,
+     *                                                    as with {@link #downloadFile}
+     */
+    HedgedResult downloadFileHedged(List<String> urls, String fileName, File destinationDir) {
+        Log.d(TAG, "on downloadFileHedged: " + fileName + ", " + urls.size() + " candidates");
+        lastFailure.remove();
+        for (String url : urls) {
+            File storedFile = publishFromBlobStore(url, fileName, destinationDir);
+            if (storedFile != null) {
+                return new HedgedResult(url, storedFile);
+            }
+        }
+        RaceOutcome winner;
+        try {
+            winner = raceCandidates(urls);
+        } catch (InterruptedException e) {
+            // Not a failed attempt: the download is being stopped
+            Thread.currentThread().interrupt();
+            throw new java.util.concurrent.CancellationException("Download cancelled by user");
+        }
+        if (winner == null) {
+            return null;
+        }
+
+        String url = winner.url;
+        Response response = winner.response;
+        Call call = winner.call;
+        long ttfbMs = winner.finishedAt - winner.startedAt;
+        long headersAt = winner.finishedAt;
+        try {
+            if (isWorthSegmenting(url, response)) {
+                // The race only picked the host; large videos still go over several connections, the first
+                // range read from the winning response
+                Request request = buildMediaRequest(url);
+                File segmentedFile = destinationDir != null
+                        ? downloadSegmentedToDirectory(request, url, fileName, destinationDir, response, null)
+                        : downloadSegmentedToGallery(request, url, fileName, response, null);
+                if (segmentedFile != null) {
+                    if (callback != null) {
+                        callback.onFileDownloaded(segmentedFile.getAbsolutePath());
+                    }
+                    return new HedgedResult(url, segmentedFile);
+                }
+                // Ranges were not honoured, so the winning response may be used up: start over with one stream
+                response.close();
+                long startedAt = System.currentTimeMillis();
+                activeCalls.remove(call);
+                call = httpClient.newCall(request);
+                response = await(call);
+                headersAt = System.currentTimeMillis();
+                ttfbMs = headersAt - startedAt;
+            }
+
+            File file = destinationDir != null
+                    ? saveResponseToDirectory(url, fileName, response, null, destinationDir)
+                    : saveResponseToGallery(url, fileName, response, null, false);
+            recordResponse(url, response, file, ttfbMs, headersAt);
+            return file != null ? new HedgedResult(url, file) : null;
+        } catch (java.util.concurrent.CancellationException e) {
+            Log.w(TAG, "Download cancelled: " + url);
+            throw e; // Re-throw to propagate cancellation
+        } catch (IOException e) {
+            recordFailure(url, call, e);
+            Log.e(TAG, "Error downloading file from " + url + ": " + e.getMessage());
+        } catch (SecurityException e) {
+            Log.e(TAG, "Security exception while downloading file: " + e.getMessage());
+        } finally {
+            response.close();
+            activeCalls.remove(call);
+        }
+        return null;
+    }
+
+    /**
+     * Find out how large each file is without downloading it: every URL is asked for its first byte, all at
+     * once. Files already in the blob store are measured on disk.
+     * @return The size of each file, -1 where it is not known within {@code timeoutMs}
+     */
+    long[] probeSizes(List<String> urls, long timeoutMs) {
+        long[] sizes = new long[urls.size()];
+        Arrays.fill(sizes, -1);
+        CountDownLatch pending = new CountDownLatch(urls.size());
+        List<Call> calls = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            String url = urls.get(i);
+            String key = MediaBlobStore.assetKey(url);
+            File blob = key != null ? blobStore.find(key) : null;
+            if (blob != null) {
+                sizes[i] = blob.length();
+                pending.countDown();
+                continue;
+            }
+
+            int index = i;
+            Call call = httpClient.newCall(buildMediaRequest(url).newBuilder().header("Range", "bytes=0-0").build());
+            calls.add(call);
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    pending.countDown();
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (Response ignored = response) {
+                        long size = TransferPlan.sizeFromRangeProbe(response.code(),
+                                response.header("Content-Range"), response.body().contentLength());
+                        synchronized (sizes) {
+                            sizes[index] = size;
+                        }
+                    } finally {
+                        pending.countDown();
+                    }
                 }
+            });
+        }
+
+        try {
+            if (!pending.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                Log.d(TAG, "Size probes timed out, " + pending.getCount() + " of " + urls.size() + " unanswered");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Call call : calls) {
+            call.cancel();
+        }
+        synchronized (sizes) {
+            return sizes.clone();
+        }
+    }
+
+    /**
+     * Run the header phase of a hedged download.
+     * @return The first usable response, which the caller must close; null if every candidate failed
+     */
+    private RaceOutcome raceCandidates(List<String> urls) throws InterruptedException {
+        LinkedBlockingQueue<RaceOutcome> outcomes = new LinkedBlockingQueue<>();
+        boolean[] done = new boolean[1];
+        List<Call> calls = new ArrayList<>();
+        List<Long> startTimes = new ArrayList<>();
+        Set<Call> answered = new HashSet<>();
+        RaceOutcome winner = null;
+        int started = 0;
+        int finished = 0;
+        long nextStartAt = 0;
+        try {
+            while (true) {
+                checkCancellation();
+                long now = System.currentTimeMillis();
+                if (started < urls.size() && now >= nextStartAt) {
+                    String url = urls.get(started++);
+                    if (started > 1) {
+                        Log.d(TAG, "Hedging with candidate " + started + "/" + urls.size() + ": " + url);
+                    }
+                    Call call = httpClient.newCall(buildMediaRequest(url));
+                    calls.add(call);
+                    startTimes.add(now);
+                    activeCalls.add(call);
+                    call.enqueue(new Callback() {
+                        @Override
+                        public void onFailure(Call call, IOException e) {
+                            offer(new RaceOutcome(url, call, null, e, now));
+                        }
+
+                        @Override
+                        public void onResponse(Call call, Response response) {
+                            if (!offer(new RaceOutcome(url, call, response, null, now))) {
+                                response.close();
+                            }
+                        }
 
-                String contentType = response.header("Content-Type", "");
-                if (isNonMediaContentType(contentType)) {
-                    Log.e(TAG, "Rejecting non-media cache response. Content-Type: " + contentType + ", url: " + url);
+                        private boolean offer(RaceOutcome outcome) {
+                            synchronized (done) {
+                                return !done[0] && outcomes.add(outcome);
+                            }
+                        }
+                    });
+                    nextStartAt = now + HEDGE_DELAY_MS;
+                }
+                if (finished == urls.size()) {
                     return null;
                 }
 
-                String fileExtension = getFileExtension(response, url);
-                String baseFileName = fileName;
-                int lastDotIndex = fileName.lastIndexOf('.');
-                if (lastDotIndex > 0 && lastDotIndex < fileName.length() - 1) {
-                    baseFileName = fileName.substring(0, lastDotIndex);
+                long wait = started < urls.size() ? Math.min(HEDGE_POLL_MS, nextStartAt - now) : HEDGE_POLL_MS;
+                RaceOutcome outcome = outcomes.poll(Math.max(1, wait), TimeUnit.MILLISECONDS);
+                if (outcome == null) {
+                    continue;
+                }
+                finished++;
+                answered.add(outcome.call);
+                if (outcome.response != null && isUsableMediaResponse(outcome.response)) {
+                    winner = outcome;
+                    return winner;
+                }
+                if (outcome.response != null) {
+                    recordFailedResponse(outcome.url, outcome.response);
+                    Log.w(TAG, "Candidate failed with code " + outcome.response.code() + ": " + outcome.url);
+                    outcome.response.close();
+                } else if (!outcome.call.isCanceled()) {
+                    recordFailure(outcome.url, outcome.call, outcome.error);
+                    Log.w(TAG, "Candidate failed: " + outcome.url + ", " + outcome.error.getMessage());
+                }
+                // No need to wait out the delay once a candidate has failed
+                nextStartAt = 0;
+            }
+        } finally {
+            synchronized (done) {
+                done[0] = true;
+            }
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < calls.size(); i++) {
+                Call call = calls.get(i);
+                // The winner stays registered while its body is read
+                if (winner == null || call != winner.call) {
+                    activeCalls.remove(call);
+                    call.cancel();
+                }
+                if (!answered.contains(call) && winner != null) {
+                    // Lost the race without answering: slow, though not necessarily broken
+                    scoreboard.recordSlow(urls.get(i), now - startTimes.get(i));
                 }
+            }
+            RaceOutcome late;
+            while ((late = outcomes.poll()) != null) {
+                if (late.response != null) {
+                    late.response.close();
+                }
+            }
+        }
+    }
+
+    private boolean isUsableMediaResponse(Response response) {
+        return response.isSuccessful() && response.body() != null
+                && !isNonMediaContentType(response.header("Content-Type", ""));
+    }
+
+    /**
+     * Report a finished request to the host scoreboard and the concurrency controller. A usable response
+     * that could not be saved (e.g. MediaStore refused it) says nothing about the host and is not counted.
+     */
+    private void recordResponse(String url, Response response, File file, long ttfbMs, long headersAt) {
+        if (file != null) {
+            long bytes = response.body() != null ? response.body().contentLength() : -1;
+            if (bytes < 0) {
+                bytes = file.length();
+            }
+            scoreboard.recordSuccess(url, ttfbMs, bytes, System.currentTimeMillis() - headersAt);
+            concurrency.onTransferComplete(bytes, ttfbMs);
+        } else if (!isUsableMediaResponse(response)) {
+            recordFailedResponse(url, response);
+        } else {
+            noteFailure(new RetryPolicy.Failure(RetryPolicy.Kind.TRANSIENT, -1, "could not save"));
+        }
+    }
+
+    private void recordFailedResponse(String url, Response response) {
+        RetryPolicy.Failure failure = response.isSuccessful()
+                ? RetryPolicy.Failure.nonMedia(response.header("Content-Type", ""))
+                : RetryPolicy.Failure.ofResponse(response.code(), response.header("Retry-After"),
+                System.currentTimeMillis());
+        // A 4xx or a non-media body is about this URL; only 5xx and throttling count against the host
+        if (failure.kind == RetryPolicy.Kind.PERMANENT) {
+            scoreboard.recordUrlFailure(url);
+        } else {
+            scoreboard.recordFailure(url);
+        }
+        if (failure.kind == RetryPolicy.Kind.THROTTLED) {
+            concurrency.onTransferFailed();
+        }
+        noteFailure(failure);
+    }
+
+    private void recordFailure(String url, Call call, IOException e) {
+        // Calls we cancelled ourselves (stop, or losing a race) are not the host's fault
+        if ((call != null && call.isCanceled()) || (callback != null && callback.isCancelled())) {
+            return;
+        }
+        scoreboard.recordFailure(url);
+        concurrency.onTransferFailed();
+        noteFailure(RetryPolicy.Failure.ofException(e));
+    }
+
+    private void noteFailure(RetryPolicy.Failure failure) {
+        // Several candidates can fail in one hedged download; keep the one that is worth retrying soonest
+        lastFailure.set(RetryPolicy.Failure.mostRetryable(lastFailure.get(), failure));
+    }
+
+    /**
+     * Why the last download on the calling thread failed, or null if it did not say.
+     */
+    RetryPolicy.Failure takeLastFailure() {
+        RetryPolicy.Failure failure = lastFailure.get();
+        lastFailure.remove();
+        return failure;
+    }
+
+    private boolean isWorthSegmenting(String url, Response response) {
+        if (!SegmentedDownloader.isCandidate(url) || !"bytes".equalsIgnoreCase(response.header("Accept-Ranges", ""))) {
+            return false;
+        }
+        long threshold = getSegmentedThresholdBytes();
+        return threshold > 0 && response.body().contentLength() >= threshold;
+    }
+
+    private Request buildMediaRequest(String url) {
+        return new Request.Builder()
+                .url(url)
+                .addHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36")
+                .addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=1.0,image/avif,image/webp,image/apng,*/*;q=1.0")
+                .addHeader("Referer", "https://www.xiaohongshu.com/")
+                .build();
+    }
+
+    /**
+     * Write a successful media response into {@code destinationDir}.
+     * @return The file written, or null if the response was not usable
+     */
+    private File saveResponseToDirectory(String url, String fileName, Response response,
+                                         PartialDownloadStore.Entry partial, File destinationDir) throws IOException {
+        ResponseBody responseBody = response.body();
+        if (!response.isSuccessful() || responseBody == null) {
+            Log.e(TAG, "Cache download failed. Response code: " + response.code());
+            discardUnsatisfiablePartial(response, partial);
+            return null;
+        }
+
+        String contentType = response.header("Content-Type", "");
+        if (isNonMediaContentType(contentType)) {
+            Log.e(TAG, "Rejecting non-media cache response. Content-Type: " + contentType + ", url: " + url);
+            return null;
+        }
+
+        String fileExtension = getFileExtension(response, url);
+        String baseFileName = fileName;
+        int lastDotIndex = fileName.lastIndexOf('.');
+        if (lastDotIndex > 0 && lastDotIndex < fileName.length() - 1) {
+            baseFileName = fileName.substring(0, lastDotIndex);
+        }
+
+        String fullFileName = "xhs_" + baseFileName + "." + fileExtension;
+        String uniqueFileName = getUniqueFileName(destinationDir, fullFileName);
+        File destinationFile = new File(destinationDir, uniqueFileName);
+
+        File stagedFile = stageBody(url, response, partial);
+        byte[] digest = null;
+        if (stagedFile != null) {
+            moveFile(stagedFile, destinationFile);
+        } else {
+            MessageDigest md = MediaBlobStore.newDigest();
+            try (OutputStream outputStream = new DigestOutputStream(new FileOutputStream(destinationFile), md)) {
+                MediaIo.copy(responseBody.source(), outputStream, progressListener(responseBody.contentLength()));
+            }
+            digest = md.digest();
+        }
 
-                String fullFileName = "xhs_" + baseFileName + "." + fileExtension;
-                String uniqueFileName = getUniqueFileName(destinationDir, fullFileName);
-                File destinationFile = new File(destinationDir, uniqueFileName);
+        if (destinationFile.exists() && destinationFile.length() > 0) {
+            storeBlob(url, destinationFile, digest, fileExtension, true);
+            Log.d(TAG, "Downloaded cache file: " + destinationFile.getAbsolutePath());
+            if (callback != null) {
+                callback.onFileDownloaded(destinationFile.getAbsolutePath());
+            }
+            return destinationFile;
+        }
+        return null;
+    }
 
-                try (InputStream inputStream = responseBody.byteStream();
-                     OutputStream outputStream = new FileOutputStream(destinationFile)) {
-                    writeStreamWithCancellation(inputStream, outputStream, responseBody.contentLength());
+    /**
+     * Save a media response to the gallery (MediaStore, or the file system before Android 10).
+     * @return The saved file, or null if the response was not usable
+     */
+    private File saveResponseToGallery(String url, String fileName, Response response,
+                                       PartialDownloadStore.Entry partial, boolean notifyErrors) throws IOException {
+        ResponseBody responseBody = response.body();
+
+        if (response.isSuccessful() && responseBody != null) {
+            String contentType = response.header("Content-Type", "");
+            if (isNonMediaContentType(contentType)) {
+                Log.e(TAG, "Rejecting non-media response. Content-Type: " + contentType + ", url: " + url);
+                if (notifyErrors && callback != null) {
+                    callback.onDownloadError("Download failed. Non-media response received", url);
                 }
+                return null;
+            }
+
+            String fileExtension = getFileExtension(response, url);
+
+            String baseFileName = fileName;
+            int lastDotIndex = fileName.lastIndexOf('.');
+            if (lastDotIndex > 0 && lastDotIndex < fileName.length() - 1) {
+                baseFileName = fileName.substring(0, lastDotIndex);
+                Log.d(TAG, "Original filename has extension: " + fileName.substring(lastDotIndex + 1).toLowerCase() +
+                        ", but using Content-Type based extension: " + fileExtension);
+            }
 
-                if (destinationFile.exists() && destinationFile.length() > 0) {
-                    Log.d(TAG, "Downloaded cache file: " + destinationFile.getAbsolutePath());
+            String fullFileName = "xhs_" + baseFileName + "." + fileExtension;
+
+            // Large bodies go through the partial-download store first, so a broken transfer can resume; being
+            // on disk already, they are kept in the blob store too. Other CDN assets stream straight into the
+            // gallery, and through the blob store (an extra write) only once the same asset comes again.
+            File stagedFile = stageBody(url, response, partial);
+            String assetKey = stagedFile == null ? MediaBlobStore.assetKey(url) : null;
+            if (stagedFile != null || (assetKey != null && blobStore.noteSeen(assetKey))) {
+                File publishedFile = stagedFile != null
+                        ? publishThroughBlobStore(url, stagedFile, null, fullFileName, fileExtension)
+                        : saveThroughBlobStore(url, responseBody, fullFileName, fileExtension);
+                if (publishedFile != null) {
+                    Log.d(TAG, "Downloaded file: " + publishedFile.getAbsolutePath());
                     if (callback != null) {
-                        callback.onFileDownloaded(destinationFile.getAbsolutePath());
+                        callback.onFileDownloaded(publishedFile.getAbsolutePath());
                     }
-                    return destinationFile;
+                    return publishedFile;
+                }
+                return null;
+            }
+
+            File destinationFile = null;
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                destinationFile = saveToMediaStore(fullFileName, responseBody, fileExtension);
+            }
+
+            if (destinationFile == null) {
+                destinationFile = saveToFileSystem(url, fullFileName, responseBody);
+            }
+
+            if (destinationFile != null && destinationFile.exists()) {
+                Log.d(TAG, "Downloaded file: " + destinationFile.getAbsolutePath());
+                Log.d(TAG, "Total bytes: " + responseBody.contentLength());
+                Log.d(TAG, "File exists: " + destinationFile.exists());
+                Log.d(TAG, "File size: " + destinationFile.length());
+
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || isFileInPrivateDirectory(destinationFile)) {
+                    notifyMediaStore(destinationFile);
+                }
+
+                if (callback != null) {
+                    callback.onFileDownloaded(destinationFile.getAbsolutePath());
                 }
+
+                return destinationFile;
+            }
+        } else {
+            Log.e(TAG, "Download failed. Response code: " + response.code());
+            discardUnsatisfiablePartial(response, partial);
+            if (notifyErrors && callback != null) {
+                callback.onDownloadError("Download failed. Response code: " + response.code(), url);
             }
+        }
+        return null;
+    }
+
+    /**
+     * Publish the stored copy of {@code url}, if the blob store has one, instead of downloading it.
+     * @param destinationDir Directory to save into (as a hard link where possible), or null for the gallery
+     * @return The published file, or null if the URL has to be downloaded
+     */
+    private File publishFromBlobStore(String url, String fileName, File destinationDir) {
+        String key = MediaBlobStore.assetKey(url);
+        File blob = key != null ? blobStore.find(key) : null;
+        if (blob == null) {
+            return null;
+        }
+
+        String fullFileName = "xhs_" + stripExtension(fileName) + "." + getFileExtensionFromName(blob.getName());
+        File file;
+        if (destinationDir != null) {
+            file = new File(destinationDir, getUniqueFileName(destinationDir, fullFileName));
+            try {
+                MediaBlobStore.linkOrCopy(blob, file, progressListener(blob.length()));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to copy stored blob, downloading instead: " + e.getMessage());
+                file.delete();
+                return null;
+            }
+        } else {
+            file = copyCachedFileToMediaStore(blob, fullFileName);
+            if (file == null) {
+                return null;
+            }
+        }
+        Log.d(TAG, "Served " + url + " from the blob store: " + file.getAbsolutePath());
+        if (callback != null) {
+            callback.onFileDownloaded(file.getAbsolutePath());
+        }
+        return file;
+    }
+
+    /**
+     * Keep a downloaded file in the blob store, if its URL is a known CDN asset.
+     * @param digest SHA-256 of the file if computed while writing it, otherwise null
+     * @param keepSource Whether {@code file} stays where it is; otherwise it is moved into the store
+     * @return The stored blob, or null if the file was not stored
+     */
+    private File storeBlob(String url, File file, byte[] digest, String fileExtension, boolean keepSource) {
+        String key = MediaBlobStore.assetKey(url);
+        if (key == null) {
+            return null;
+        }
+        try {
+            return blobStore.put(key, file, digest, fileExtension, keepSource);
         } catch (IOException e) {
-            Log.e(TAG, "Error caching file: " + e.getMessage());
-            e.printStackTrace();
-        } catch (SecurityException e) {
-            Log.e(TAG, "Security exception while caching file: " + e.getMessage());
-            e.printStackTrace();
+            Log.e(TAG, "Failed to keep " + url + " in the blob store: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Write a response body into the blob store, hashing it on the way, and publish it from there.
+     */
+    private File saveThroughBlobStore(String url, ResponseBody body, String fullFileName,
+                                      String fileExtension) throws IOException {
+        File tempFile = blobStore.newTempFile();
+        MessageDigest digest = MediaBlobStore.newDigest();
+        try {
+            try (OutputStream outputStream = new DigestOutputStream(new FileOutputStream(tempFile), digest)) {
+                MediaIo.copy(body.source(), outputStream, progressListener(body.contentLength()));
+            }
+        } catch (IOException | RuntimeException e) {
+            tempFile.delete();
+            throw e;
         }
-
-        return null;
+        return publishThroughBlobStore(url, tempFile, digest.digest(), fullFileName, fileExtension);
     }
 
-    public File copyCachedFileToMediaStore(File sourceFile) {
-        if (sourceFile == null || !sourceFile.exists()) {
-            return null;
+    /**
+     * Move a complete download into the blob store and publish it to the gallery from there; if it cannot
+     * be stored it is published directly. Either way {@code file} is gone afterwards.
+     */
+    private File publishThroughBlobStore(String url, File file, byte[] digest, String fullFileName,
+                                         String fileExtension) {
+        File blob = storeBlob(url, file, digest, fileExtension, false);
+        try {
+            return copyCachedFileToMediaStore(blob != null ? blob : file, fullFileName);
+        } finally {
+            file.delete();
         }
+    }
 
-        String fileExtension = getFileExtensionFromName(sourceFile.getName());
-        File destinationFile = null;
+    /**
+     * Whether a usable partial body exists for this URL, e.g. to try that candidate URL first.
+     */
+    public boolean hasPartialDownload(String url) {
+        return partialStore.find(url) != null;
+    }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            destinationFile = saveExistingFileToMediaStore(sourceFile, sourceFile.getName(), fileExtension);
+    private Request resumeRequest(Request request, PartialDownloadStore.Entry partial) {
+        Log.d(TAG, "Requesting " + partial.url + " from byte " + partial.bytesWritten());
+        return request.newBuilder()
+                .header("Range", "bytes=" + partial.bytesWritten() + "-")
+                .header("If-Range", partial.ifRangeValidator())
+                .build();
+    }
+
+    private void discardUnsatisfiablePartial(Response response, PartialDownloadStore.Entry partial) {
+        // 416: the staged bytes no longer fit the file on the server
+        if (partial != null && response.code() == 416) {
+            partialStore.discard(partial);
         }
+    }
 
-        if (destinationFile == null) {
-            destinationFile = copyCachedFileToFileSystem(sourceFile, fileExtension);
+    /**
+     * Write a response body into the partial-download store so an interrupted transfer can be resumed.
+     * @param partial The entry the request asked to resume, or null
+     * @return The complete body, or null if it is not worth staging and should be streamed to its destination
+     * @throws IOException If the transfer broke off; the bytes received so far stay staged for the next attempt
+     */
+    private File stageBody(String url, Response response, PartialDownloadStore.Entry partial) throws IOException {
+        ResponseBody body = response.body();
+        PartialDownloadStore.Entry entry;
+        if (partial != null && response.code() == 206) {
+            long offset = partial.bytesWritten();
+            String contentRange = response.header("Content-Range", "");
+            if (!contentRange.startsWith("bytes " + offset + "-")) {
+                partialStore.discard(partial);
+                throw new IOException("Unexpected Content-Range when resuming: " + contentRange);
+            }
+            Log.d(TAG, "Resuming " + url + " at " + offset + "/" + partial.contentLength);
+            entry = partial;
+        } else {
+            if (partial != null) {
+                // If-Range did not match, so the server sent the whole (changed) file
+                partialStore.discard(partial);
+            }
+            String etag = response.header("ETag");
+            String lastModified = response.header("Last-Modified");
+            if (!PartialDownloadStore.isResumable(body.contentLength(), etag, lastModified)) {
+                return null;
+            }
+            entry = partialStore.begin(url, etag, lastModified, body.contentLength());
+            if (entry == null) {
+                // Another transfer is staging the same URL; this one goes straight to its destination
+                return null;
+            }
         }
 
-        if (destinationFile != null && destinationFile.exists()) {
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || isFileInPrivateDirectory(destinationFile)) {
-                notifyMediaStore(destinationFile);
+        try {
+            try (OutputStream outputStream = new FileOutputStream(entry.dataFile, true)) {
+                MediaIo.copy(body.source(), outputStream, progressListener(entry.contentLength, entry.bytesWritten()));
             }
-            return destinationFile;
+            if (entry.bytesWritten() != entry.contentLength) {
+                throw new IOException("Body ended at " + entry.bytesWritten() + " of " + entry.contentLength + " bytes");
+            }
+            return partialStore.complete(entry);
+        } finally {
+            partialStore.release(entry);
         }
-        return null;
     }
 
-    public boolean downloadFile(String url, String fileName, String timestamp, boolean notifyErrors) {
+    private void moveFile(File source, File target) throws IOException {
+        if (source.renameTo(target)) {
+            return;
+        }
         try {
-            Log.d(TAG, "on downloadFile: " + fileName);
-            Request request = new Request.Builder()
-                    .url(url)
-                    .addHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36")
-                    .addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=1.0,image/avif,image/webp,image/apng,*/*;q=1.0")
-                    .addHeader("Referer", "https://www.xiaohongshu.com/")
-                    .build();
-
-            activeCall = httpClient.newCall(request);
-            try (Response response = activeCall.execute()) {
-                ResponseBody responseBody = response.body();
-
-                if (response.isSuccessful() && responseBody != null) {
-                    String contentType = response.header("Content-Type", "");
-                    if (isNonMediaContentType(contentType)) {
-                        Log.e(TAG, "Rejecting non-media response. Content-Type: " + contentType + ", url: " + url);
-                        if (notifyErrors && callback != null) {
-                            callback.onDownloadError("Download failed. Non-media response received", url);
-                        }
-                        return false;
-                    }
-
-                    String fileExtension = getFileExtension(response, url);
-
-                    String baseFileName = fileName;
-                    int lastDotIndex = fileName.lastIndexOf('.');
-                    if (lastDotIndex > 0 && lastDotIndex < fileName.length() - 1) {
-                        baseFileName = fileName.substring(0, lastDotIndex);
-                        Log.d(TAG, "Original filename has extension: " + fileName.substring(lastDotIndex + 1).toLowerCase() +
-                                ", but using Content-Type based extension: " + fileExtension);
-                    }
+            MediaIo.copy(source, target, progressListener(source.length()));
+        } finally {
+            source.delete();
+        }
+    }
 
-                    String fullFileName = "xhs_" + baseFileName + "." + fileExtension;
-                    File destinationFile = null;
+    /**
+     * Segmented download into a temporary file that is then published like a cached file.
+     * @return The published file, or null if the single stream should be used instead
+     * @throws IOException See {@link #downloadSegmented}
+     */
+    private File downloadSegmentedToGallery(Request request, String url, String fileName, Response first,
+                                            PartialDownloadStore.Entry resume) throws IOException {
+        File tempDir = new File(new File(context.getCacheDir(), "segmented"), UUID.randomUUID().toString());
+        try {
+            File tempFile = downloadSegmented(request, url, first, resume, extension -> tempDir.mkdirs()
+                    ? new File(tempDir, "xhs_" + stripExtension(fileName) + "." + extension) : null);
+            if (tempFile == null) {
+                return null;
+            }
+            File destinationFile = publishThroughBlobStore(url, tempFile, null, tempFile.getName(),
+                    getFileExtensionFromName(tempFile.getName()));
+            if (destinationFile != null) {
+                Log.d(TAG, "Downloaded file: " + destinationFile.getAbsolutePath());
+            }
+            return destinationFile;
+        } finally {
+            File[] leftovers = tempDir.listFiles();
+            if (leftovers != null) {
+                for (File leftover : leftovers) {
+                    leftover.delete();
+                }
+            }
+            tempDir.delete();
+        }
+    }
 
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                        destinationFile = saveToMediaStore(fullFileName, responseBody, fileExtension);
-                    }
+    private File downloadSegmentedToDirectory(Request request, String url, String fileName, File destinationDir,
+                                              Response first, PartialDownloadStore.Entry resume) throws IOException {
+        File file = downloadSegmented(request, url, first, resume, extension -> new File(destinationDir,
+                getUniqueFileName(destinationDir, "xhs_" + stripExtension(fileName) + "." + extension)));
+        if (file != null) {
+            storeBlob(url, file, null, getFileExtensionFromName(file.getName()), true);
+        }
+        return file;
+    }
 
-                    if (destinationFile == null) {
-                        destinationFile = saveToFileSystem(url, fullFileName, responseBody);
+    /**
+     * Download a large video over several connections when the server serves byte ranges. When the server
+     * gives a validator, the body is staged as a ranged entry of the partial-download store: a download that
+     * breaks off keeps the ranges it finished, and the next attempt (passing that entry) fetches only the rest.
+     * Images, small files and servers without range support return null without downloading anything.
+     * @param first The response to a plain GET of the URL, read for the first range instead of a HEAD probe and
+     *              a range request, or null
+     * @param resume A ranged entry to finish, or null; it is completed, discarded or released here
+     * @param targetForExtension Picks the file to write, given the extension from the probe
+     * @return The downloaded file, or null if the single stream should be used instead
+     * @throws IOException If the download broke off after some ranges arrived; they stay staged for the next attempt
+     */
+    private File downloadSegmented(Request request, String url, Response first, PartialDownloadStore.Entry resume,
+                                   Function<String, File> targetForExtension) throws IOException {
+        SegmentedDownloader segmented = new SegmentedDownloader(httpClient, MediaDownloadScheduler.get(), schedulerTask);
+        activeSegmented.add(segmented);
+        PartialDownloadStore.Entry entry = resume;
+        // The file written directly when there is no entry; deleted unless the download completes
+        File unstaged = null;
+        try {
+            long contentLength;
+            String extension;
+            List<long[]> ranges;
+            if (resume != null) {
+                Log.d(TAG, "Resuming " + url + " with " + resume.missingRanges.size() + " ranges missing");
+                contentLength = resume.contentLength;
+                extension = resume.extension;
+                ranges = resume.missingRanges;
+            } else {
+                if (!SegmentedDownloader.isCandidate(url)) {
+                    return null;
+                }
+                long threshold = getSegmentedThresholdBytes();
+                if (threshold <= 0) {
+                    return null;
+                }
+                SegmentedDownloader.Probe probe;
+                if (first != null) {
+                    probe = SegmentedDownloader.Probe.of(first);
+                } else {
+                    try {
+                        probe = segmented.probe(request);
+                    } catch (IOException e) {
+                        Log.d(TAG, "Range probe failed, using a single stream: " + e.getMessage());
+                        return null;
                     }
+                }
+                if (probe == null || !probe.acceptsRanges || probe.contentLength < threshold
+                        || isNonMediaContentType(probe.contentType)) {
+                    return null;
+                }
+                contentLength = probe.contentLength;
+                extension = getFileExtension(probe.contentType, url);
+                ranges = SegmentedDownloader.planSegments(contentLength);
+                if (PartialDownloadStore.isResumable(contentLength, probe.etag, probe.lastModified)) {
+                    entry = partialStore.beginRanged(url, probe.etag, probe.lastModified, contentLength, extension, ranges);
+                }
+            }
 
-                    if (destinationFile != null && destinationFile.exists()) {
-                        Log.d(TAG, "Downloaded file: " + destinationFile.getAbsolutePath());
-                        Log.d(TAG, "Total bytes: " + responseBody.contentLength());
-                        Log.d(TAG, "File exists: " + destinationFile.exists());
-                        Log.d(TAG, "File size: " + destinationFile.length());
-
-                        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || isFileInPrivateDirectory(destinationFile)) {
-                            notifyMediaStore(destinationFile);
+            File file;
+            if (entry != null) {
+                file = entry.dataFile;
+            } else {
+                file = targetForExtension.apply(extension);
+                if (file == null) {
+                    return null;
+                }
+                unstaged = file;
+            }
+            // If-Range keeps the ranges of a staged body from mixing two versions of the file
+            Request rangeRequest = entry != null
+                    ? request.newBuilder().header("If-Range", entry.ifRangeValidator()).build() : request;
+            PartialDownloadStore.Entry staged = entry;
+            Thread caller = Thread.currentThread();
+            long startedAt = System.currentTimeMillis();
+            List<long[]> missing = segmented.download(rangeRequest, contentLength, ranges, first, file,
+                    new SegmentedDownloader.Listener() {
+                        @Override
+                        public void onProgress(long downloaded, long total) {
+                            if (callback != null) {
+                                callback.onDownloadProgressUpdate(downloaded, total);
+                            }
                         }
 
-                        if (callback != null) {
-                            callback.onFileDownloaded(destinationFile.getAbsolutePath());
+                        @Override
+                        public boolean isCancelled() {
+                            return caller.isInterrupted() || (callback != null && callback.isCancelled());
                         }
 
-                        return true;
-                    }
-                } else {
-                    Log.e(TAG, "Download failed. Response code: " + response.code());
-                    if (notifyErrors && callback != null) {
-                        callback.onDownloadError("Download failed. Response code: " + response.code(), url);
+                        @Override
+                        public void onCheckpoint(List<long[]> missingRanges) {
+                            if (staged == null || missingRanges.isEmpty()) {
+                                return;
+                            }
+                            try {
+                                partialStore.saveRanges(staged, missingRanges);
+                            } catch (IOException e) {
+                                Log.w(TAG, "Could not record the missing ranges of " + url + ": " + e.getMessage());
+                            }
+                        }
+                    });
+
+            if (missing.isEmpty()) {
+                File target = file;
+                if (entry != null) {
+                    target = targetForExtension.apply(extension);
+                    if (target == null) {
+                        return null;
                     }
+                    moveFile(partialStore.complete(entry), target);
                 }
+                unstaged = null;
+                scoreboard.recordSuccess(url, -1, contentLength, System.currentTimeMillis() - startedAt);
+                concurrency.onTransferComplete(SegmentedDownloader.bytesIn(ranges), -1);
+                return target;
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Error downloading file: " + e.getMessage());
-            e.printStackTrace();
-
-            if (notifyErrors && callback != null) {
-                callback.onDownloadError("IO Error downloading file: " + e.getMessage(), url);
+            if (entry == null || SegmentedDownloader.bytesIn(missing) == SegmentedDownloader.bytesIn(ranges)) {
+                // Nothing to keep; most likely the server did not honour the ranges
+                Log.w(TAG, "Segmented download failed, retrying as a single stream: " + url);
+                if (entry != null) {
+                    partialStore.discard(entry);
+                }
+                return null;
             }
-        } catch (SecurityException e) {
-            Log.e(TAG, "Security exception while downloading file: " + e.getMessage());
-            e.printStackTrace();
-
-            if (notifyErrors && callback != null) {
-                callback.onDownloadError("Security exception while downloading file: " + e.getMessage(), url);
+            throw new IOException("Segmented download stopped with " + SegmentedDownloader.bytesIn(missing)
+                    + " of " + contentLength + " bytes missing");
+        } finally {
+            if (entry != null) {
+                partialStore.release(entry);
+            }
+            if (unstaged != null) {
+                unstaged.delete();
             }
+            activeSegmented.remove(segmented);
         }
+    }
 
-        return false;
+    private long getSegmentedThresholdBytes() {
+        int thresholdMb = context.getSharedPreferences("XHSDownloaderPrefs", Context.MODE_PRIVATE)
+                .getInt(SegmentedDownloader.PREF_THRESHOLD_MB, SegmentedDownloader.DEFAULT_THRESHOLD_MB);
+        return thresholdMb * 1024L * 1024L;
+    }
+
+    private static String stripExtension(String fileName) {
+        int lastDotIndex = fileName.lastIndexOf('.');
+        if (lastDotIndex > 0 && lastDotIndex < fileName.length() - 1) {
+            return fileName.substring(0, lastDotIndex);
+        }
+        return fileName;
     }
 
     private boolean isNonMediaContentType(String contentType) {
@@ -315,164 +1277,207 @@ public class FileDownloader {
      */
     @RequiresApi(api = Build.VERSION_CODES.Q)
     private File saveToMediaStore(String fileName, ResponseBody body, String fileExtension) {
-        try {
-            ContentResolver contentResolver = context.getContentResolver();
-            
-            // Determine the collection based on file type and use MediaStore directory + xhs subfolder
-            Uri collectionUri;
-            String relativePath;
-            if (isImageFile(fileExtension)) {
-                collectionUri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
-                relativePath = Environment.DIRECTORY_PICTURES + File.separator + "xhsdn";
-            } else if (isVideoFile(fileExtension)) {
-                collectionUri = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
-                relativePath = Environment.DIRECTORY_MOVIES + File.separator + "xhsdn";
-            } else {
-                collectionUri = MediaStore.Downloads.EXTERNAL_CONTENT_URI;
-                relativePath = Environment.DIRECTORY_DOWNLOADS + File.separator + "xhsdn";
+        return publishToMediaStore(fileName, fileExtension, outputStream -> {
+            if (body != null) {
+                MediaIo.copy(body.source(), outputStream, progressListener(body.contentLength()));
             }
-            
-            // 删除已存在的同名文件，以避免重复文件
-            deleteExistingFilesInMediaStore(contentResolver, collectionUri, fileName, relativePath);
-            
-            // 准备插入新文件 (we can now use the original filename since duplicates have been removed)
-            ContentValues values = new ContentValues();
-            String mimeType = getMimeTypeForFileExtension(fileExtension);
-            values.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName);
-            values.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
-            values.put(MediaStore.MediaColumns.RELATIVE_PATH, relativePath);
-            values.put(MediaStore.MediaColumns.IS_PENDING, 1);
-            
-            Uri uri = contentResolver.insert(collectionUri, values);
-            
-            if (uri != null) {
-                try {
-                    try (OutputStream outputStream = contentResolver.openOutputStream(uri);
-                         InputStream inputStream = body.byteStream()) {
-                        if (outputStream != null && body != null) {
-                            writeStreamWithCancellation(inputStream, outputStream, body.contentLength());
-                        }
-                    }
-
-                    ContentValues finalizeValues = new ContentValues();
-                    finalizeValues.put(MediaStore.MediaColumns.IS_PENDING, 0);
-                    contentResolver.update(uri, finalizeValues, null, null);
-
-                    File mediaStoreFile = buildMediaStoreFile(relativePath, fileName);
-                    if (mediaStoreFile.exists()) {
-                        return mediaStoreFile;
-                    }
+        });
+    }
 
-                    File fileFromUri = getFileFromUri(uri);
-                    if (fileFromUri != null && fileFromUri.exists()) {
-                        return fileFromUri;
-                    }
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private File saveExistingFileToMediaStore(File sourceFile, String fileName, String fileExtension) {
+        return publishToMediaStore(fileName, fileExtension,
+                outputStream -> MediaIo.copy(sourceFile, outputStream, progressListener(sourceFile.length())));
+    }
 
-                    return mediaStoreFile;
-                } catch (java.util.concurrent.CancellationException e) {
-                    Log.w(TAG, "Download cancelled, cleaning up MediaStore entry: " + uri);
-                    try {
-                        contentResolver.delete(uri, null, null);
-                    } catch (Exception deleteEx) {
-                        Log.e(TAG, "Error deleting MediaStore entry after cancellation: " + deleteEx.getMessage());
-                    }
-                    throw e; // Re-throw to propagate cancellation
-                } catch (IOException e) {
-                    Log.e(TAG, "Error writing to MediaStore URI: " + e.getMessage());
-                    // Try to delete the partially created entry
-                    try {
-                        contentResolver.delete(uri, null, null);
-                    } catch (Exception deleteEx) {
-                        Log.e(TAG, "Error deleting partial MediaStore entry: " + deleteEx.getMessage());
-                    }
-                }
-            }
-        } catch (java.util.concurrent.CancellationException e) {
-            // Rethrow cancellation to propagate it correctly to the caller
-            throw e;
-        } catch (Exception e) {
-            Log.e(TAG, "Error saving to MediaStore: " + e.getMessage());
-            e.printStackTrace();
-        }
-        
-        return null; // Return null if MediaStore save failed
+    private interface MediaWriter {
+        void write(OutputStream outputStream) throws IOException;
     }
 
+    /**
+     * Publish one file: replacing a same-named entry and inserting the pending one is a single batch,
+     * then the contents are streamed in and the pending flag is cleared.
+     * @return The saved file, or null if MediaStore refused it
+     */
     @RequiresApi(api = Build.VERSION_CODES.Q)
-    private File saveExistingFileToMediaStore(File sourceFile, String fileName, String fileExtension) {
+    private File publishToMediaStore(String fileName, String fileExtension, MediaWriter writer) {
+        MediaStorePublisher.Item item = newMediaStoreItem(fileName, fileExtension);
+        MediaStorePublisher.Item reserved = mediaStoreBatch != null
+                ? mediaStoreBatch.claim(item.relativePath, item.displayName) : null;
+        if (reserved != null) {
+            return writeToMediaStoreBatch(reserved, writer);
+        }
+
+        MediaStorePublisher publisher = new MediaStorePublisher(context.getContentResolver());
+        List<MediaStorePublisher.Item> items = Collections.singletonList(item);
         try {
-            ContentResolver contentResolver = context.getContentResolver();
-
-            Uri collectionUri;
-            String relativePath;
-            if (isImageFile(fileExtension)) {
-                collectionUri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
-                relativePath = Environment.DIRECTORY_PICTURES + File.separator + "xhsdn";
-            } else if (isVideoFile(fileExtension)) {
-                collectionUri = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
-                relativePath = Environment.DIRECTORY_MOVIES + File.separator + "xhsdn";
-            } else {
-                collectionUri = MediaStore.Downloads.EXTERNAL_CONTENT_URI;
-                relativePath = Environment.DIRECTORY_DOWNLOADS + File.separator + "xhsdn";
-            }
+            publisher.reserve(items);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving to MediaStore: " + e.getMessage());
+            return null;
+        }
 
-            deleteExistingFilesInMediaStore(contentResolver, collectionUri, fileName, relativePath);
+        try (OutputStream outputStream = publisher.openOutputStream(item)) {
+            writer.write(outputStream);
+        } catch (java.util.concurrent.CancellationException e) {
+            Log.w(TAG, "Download cancelled, cleaning up MediaStore entry: " + item.uri);
+            publisher.discard(items);
+            throw e; // Re-throw to propagate cancellation
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error writing to MediaStore URI: " + e.getMessage());
+            publisher.discard(items);
+            return null;
+        }
 
-            ContentValues values = new ContentValues();
-            values.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName);
-            values.put(MediaStore.MediaColumns.MIME_TYPE, getMimeTypeForFileExtension(fileExtension));
-            values.put(MediaStore.MediaColumns.RELATIVE_PATH, relativePath);
-            values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+        if (!publisher.finish(items, Collections.emptyList())) {
+            publisher.discard(items);
+            return null;
+        }
+        return publishedMediaStoreFile(item);
+    }
 
-            Uri uri = contentResolver.insert(collectionUri, values);
-            if (uri != null) {
-                try {
-                    try (InputStream inputStream = new FileInputStream(sourceFile);
-                         OutputStream outputStream = contentResolver.openOutputStream(uri)) {
-                        if (outputStream != null) {
-                            writeStreamWithCancellation(inputStream, outputStream, sourceFile.length());
-                        }
-                    }
+    /**
+     * Write a file into the entry its note's batch reserved for it and publish it.
+     * @return The file the entry is published at, or null if it could not be written or published
+     */
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private File writeToMediaStoreBatch(MediaStorePublisher.Item item, MediaWriter writer) {
+        try (OutputStream outputStream = mediaStoreBatch.openOutputStream(item)) {
+            writer.write(outputStream);
+        } catch (java.util.concurrent.CancellationException e) {
+            Log.w(TAG, "Download cancelled, cleaning up MediaStore entry: " + item.uri);
+            mediaStoreBatch.failed(item);
+            throw e; // Re-throw to propagate cancellation
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error writing to MediaStore URI: " + e.getMessage());
+            mediaStoreBatch.failed(item);
+            return null;
+        }
+        return mediaStoreBatch.written(item);
+    }
 
-                    ContentValues finalizeValues = new ContentValues();
-                    finalizeValues.put(MediaStore.MediaColumns.IS_PENDING, 0);
-                    contentResolver.update(uri, finalizeValues, null, null);
+    /**
+     * Save cached files to the gallery. On Android 10+ the files are published to MediaStore together,
+     * with one batch before and one after streaming their contents; a file that cannot be published that
+     * way is saved on its own like {@link #copyCachedFileToMediaStore(File)}.
+     * @param onFileDone Called with the index of each source once it has been copied or has failed, while the
+     *                   copies go on (before the batch publishing them); may be null
+     * @return The saved file for each source, null where saving failed
+     */
+    public List<File> copyCachedFilesToMediaStore(List<File> sourceFiles, IntConsumer onFileDone) {
+        List<File> savedFiles = new ArrayList<>(Collections.nCopies(sourceFiles.size(), null));
+        boolean[] reported = new boolean[sourceFiles.size()];
+        IntConsumer report = index -> {
+            // A file is retried on its own if its batch failed, but reported once
+            if (onFileDone != null && !reported[index]) {
+                reported[index] = true;
+                onFileDone.accept(index);
+            }
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            publishCachedFilesToMediaStore(sourceFiles, savedFiles, report);
+        }
+        for (int i = 0; i < sourceFiles.size(); i++) {
+            if (savedFiles.get(i) == null) {
+                savedFiles.set(i, copyCachedFileToMediaStore(sourceFiles.get(i)));
+            }
+            report.accept(i);
+        }
+        return savedFiles;
+    }
 
-                    File mediaStoreFile = buildMediaStoreFile(relativePath, fileName);
-                    if (mediaStoreFile.exists()) {
-                        return mediaStoreFile;
-                    }
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void publishCachedFilesToMediaStore(List<File> sourceFiles, List<File> savedFiles,
+                                                IntConsumer onFileDone) {
+        List<Integer> indices = new ArrayList<>();
+        List<MediaStorePublisher.Item> items = new ArrayList<>();
+        for (int i = 0; i < sourceFiles.size(); i++) {
+            File sourceFile = sourceFiles.get(i);
+            if (sourceFile != null && sourceFile.exists()) {
+                String fileName = sourceFile.getName();
+                items.add(newMediaStoreItem(fileName, getFileExtensionFromName(fileName)));
+                indices.add(i);
+            }
+        }
+        if (items.isEmpty()) {
+            return;
+        }
 
-                    File fileFromUri = getFileFromUri(uri);
-                    if (fileFromUri != null && fileFromUri.exists()) {
-                        return fileFromUri;
-                    }
+        MediaStorePublisher publisher = new MediaStorePublisher(context.getContentResolver());
+        try {
+            publisher.reserve(items);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving cached files to MediaStore: " + e.getMessage());
+            return;
+        }
 
-                    return mediaStoreFile;
-                } catch (java.util.concurrent.CancellationException e) {
-                    try {
-                        contentResolver.delete(uri, null, null);
-                    } catch (Exception deleteEx) {
-                        Log.e(TAG, "Error deleting MediaStore entry after cancellation: " + deleteEx.getMessage());
-                    }
-                    throw e;
+        List<Integer> writtenIndices = new ArrayList<>();
+        List<MediaStorePublisher.Item> written = new ArrayList<>();
+        List<MediaStorePublisher.Item> failed = new ArrayList<>();
+        try {
+            for (int k = 0; k < items.size(); k++) {
+                MediaStorePublisher.Item item = items.get(k);
+                File sourceFile = sourceFiles.get(indices.get(k));
+                try (OutputStream outputStream = publisher.openOutputStream(item)) {
+                    MediaIo.copy(sourceFile, outputStream, progressListener(sourceFile.length()));
+                    written.add(item);
+                    writtenIndices.add(indices.get(k));
                 } catch (IOException e) {
                     Log.e(TAG, "Error copying cached file to MediaStore: " + e.getMessage());
-                    try {
-                        contentResolver.delete(uri, null, null);
-                    } catch (Exception deleteEx) {
-                        Log.e(TAG, "Error deleting partial MediaStore entry: " + deleteEx.getMessage());
-                    }
+                    failed.add(item);
                 }
+                onFileDone.accept(indices.get(k));
             }
         } catch (java.util.concurrent.CancellationException e) {
+            publisher.discard(items);
             throw e;
-        } catch (Exception e) {
-            Log.e(TAG, "Error saving cached file to MediaStore: " + e.getMessage());
-            e.printStackTrace();
         }
 
-        return null;
+        if (!publisher.finish(written, failed)) {
+            publisher.discard(items);
+            return;
+        }
+        for (int k = 0; k < written.size(); k++) {
+            savedFiles.set(writtenIndices.get(k), publishedMediaStoreFile(written.get(k)));
+        }
+    }
+
+    /**
+     * Where a file goes in MediaStore: the collection for its type, in an xhsdn subfolder.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private MediaStorePublisher.Item newMediaStoreItem(String fileName, String fileExtension) {
+        Uri collectionUri;
+        String relativePath;
+        if (isImageFile(fileExtension)) {
+            collectionUri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+            relativePath = Environment.DIRECTORY_PICTURES + File.separator + "xhsdn";
+        } else if (isVideoFile(fileExtension)) {
+            collectionUri = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
+            relativePath = Environment.DIRECTORY_MOVIES + File.separator + "xhsdn";
+        } else {
+            collectionUri = MediaStore.Downloads.EXTERNAL_CONTENT_URI;
+            relativePath = Environment.DIRECTORY_DOWNLOADS + File.separator + "xhsdn";
+        }
+        return new MediaStorePublisher.Item(collectionUri, relativePath, fileName,
+                getMimeTypeForFileExtension(fileExtension));
+    }
+
+    /**
+     * The file behind a published MediaStore entry
+     */
+    private File publishedMediaStoreFile(MediaStorePublisher.Item item) {
+        File mediaStoreFile = buildMediaStoreFile(item.relativePath, item.displayName);
+        if (mediaStoreFile.exists()) {
+            return mediaStoreFile;
+        }
+
+        File fileFromUri = getFileFromUri(item.uri);
+        if (fileFromUri != null && fileFromUri.exists()) {
+            return fileFromUri;
+        }
+
+        return mediaStoreFile;
     }
     
     /**
@@ -539,9 +1544,8 @@ public class FileDownloader {
         // Write the response body to the file
         try {
             if (body != null) {
-                try (InputStream inputStream = body.byteStream();
-                     OutputStream outputStream = new FileOutputStream(destinationFile)) {
-                    writeStreamWithCancellation(inputStream, outputStream, body.contentLength());
+                try (OutputStream outputStream = new FileOutputStream(destinationFile)) {
+                    MediaIo.copy(body.source(), outputStream, progressListener(body.contentLength()));
                 }
             }
             return destinationFile;
@@ -554,7 +1558,7 @@ public class FileDownloader {
         }
     }
 
-    private File copyCachedFileToFileSystem(File sourceFile, String fileExtension) {
+    private File copyCachedFileToFileSystem(File sourceFile, String fileName, String fileExtension) {
         try {
             File destinationDir;
             if (isVideoFile(fileExtension)) {
@@ -572,15 +1576,12 @@ public class FileDownloader {
                 }
             }
 
-            File destinationFile = new File(destinationDir, sourceFile.getName());
+            File destinationFile = new File(destinationDir, fileName);
             if (destinationFile.exists()) {
                 destinationFile.delete();
             }
 
-            try (InputStream inputStream = new FileInputStream(sourceFile);
-                 OutputStream outputStream = new FileOutputStream(destinationFile)) {
-                writeStreamWithCancellation(inputStream, outputStream, sourceFile.length());
-            }
+            MediaIo.copy(sourceFile, destinationFile, progressListener(sourceFile.length()));
             return destinationFile;
         } catch (IOException e) {
             Log.e(TAG, "Error copying cached file to filesystem: " + e.getMessage());
@@ -712,6 +1713,7 @@ public class FileDownloader {
      * @return true if download was successful, false otherwise
      */
     public boolean downloadFileToInternalStorage(String url, String fileName, String timestamp) {
+        Call call = null;
         try {
             // Create the request
             Request request = new Request.Builder()
@@ -722,8 +1724,8 @@ public class FileDownloader {
                     .build();
 
             // Execute the request
-            activeCall = httpClient.newCall(request);
-            Response response = activeCall.execute();
+            call = httpClient.newCall(request);
+            Response response = await(call);
 
             if (response.isSuccessful() && response.body() != null) {
                 // Get the file extension from the URL or Content-Type header
@@ -740,9 +1742,8 @@ public class FileDownloader {
                 // Write the response body to the file
                 ResponseBody body = response.body();
                 if (body != null) {
-                    try (InputStream inputStream = body.byteStream();
-                         OutputStream outputStream = new FileOutputStream(destinationFile)) {
-                        writeStreamWithCancellation(inputStream, outputStream, body.contentLength());
+                    try (OutputStream outputStream = new FileOutputStream(destinationFile)) {
+                        MediaIo.copy(body.source(), outputStream, progressListener(body.contentLength()));
                     }
 
                     Log.d(TAG, "Downloaded file to internal storage: " + destinationFile.getAbsolutePath());
@@ -764,14 +1765,21 @@ public class FileDownloader {
         } catch (SecurityException e) {
             Log.e(TAG, "Security exception while downloading file: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            if (call != null) {
+                activeCalls.remove(call);
+            }
         }
 
         return false;
     }
     
     private String getFileExtension(Response response, String url) {
+        return getFileExtension(response.header("Content-Type"), url);
+    }
+
+    private String getFileExtension(String contentType, String url) {
         // First try to get extension from Content-Type header
-        String contentType = response.header("Content-Type");
         if (contentType != null) {
             if (contentType.contains("video")) {
                 if (contentType.contains("mp4")) return "mp4";
@@ -1040,62 +2048,6 @@ public class FileDownloader {
         return false;
     }
     
-    /**
-     * Delete existing files in MediaStore with the same name
-     * @param contentResolver ContentResolver instance
-     * @param collectionUri The MediaStore collection URI
-     * @param fileName The file name to check
-     * @param relativePath The relative path where the file is located
-     * @return Number of files deleted
-     */
-    @RequiresApi(api = Build.VERSION_CODES.Q)
-    private int deleteExistingFilesInMediaStore(ContentResolver contentResolver, Uri collectionUri, 
-                                                String fileName, String relativePath) {
-        try {
-            Log.d(TAG, "Deleting existing files in MediaStore with name: " + fileName);
-            String selection = MediaStore.MediaColumns.DISPLAY_NAME + "=? AND " + 
-                              MediaStore.MediaColumns.RELATIVE_PATH + "=?";
-            String[] selectionArgs = new String[]{fileName, relativePath + File.separator};
-            
-            // Query for existing files to get their IDs
-            String[] projection = {MediaStore.MediaColumns._ID};
-            
-            android.database.Cursor cursor = contentResolver.query(
-                collectionUri,
-                projection,
-                selection,
-                selectionArgs,
-                null
-            );
-            
-            int deletedCount = 0;
-            if (cursor != null) {
-                try {
-                    while (cursor.moveToNext()) {
-                        int idColumn = cursor.getColumnIndex(MediaStore.MediaColumns._ID);
-                        if (idColumn != -1) {
-                            long id = cursor.getLong(idColumn);
-                            Uri fileUri = Uri.withAppendedPath(collectionUri, String.valueOf(id));
-                            
-                            // Delete the existing file
-                            int deleted = contentResolver.delete(fileUri, null, null);
-                            if (deleted > 0) {
-                                deletedCount++;
-                                Log.d(TAG, "Deleted existing file with ID: " + id);
-                            }
-                        }
-                    }
-                } finally {
-                    cursor.close();
-                }
-            }
-            return deletedCount;
-        } catch (Exception e) {
-            Log.e(TAG, "Error deleting existing files: " + e.getMessage());
-            return 0;
-        }
-    }
-    
     /**
      * Get a unique file name in file system to avoid duplicate file names
      * If file exists, generate name like: xxx_(1).jpg, xxx_(2).jpg, etc.
@@ -0,0 +1,313 @@
+package com.neoruaa.xhsdn;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide record of how each media host has been doing: success rate, time to first byte and
+ * throughput, as moving averages. Candidate URLs are ordered by the expected cost of fetching from their
+ * host, and hosts that failed several times in a row are skipped for a while (circuit breaker). Only
+ * failures that say something about the host count towards the breaker: a 404 or a non-media body is held
+ * against that URL alone.
+ * Statistics fade back to neutral with a half-life of {@link #HALF_LIFE_MS}, so an edge that was down
+ * yesterday is tried again; they are persisted in SharedPreferences.
+ */
+final class HostScoreboard {
+    private static final String TAG = "HostScoreboard";
+    private static final String PREFS_NAME = "host_scoreboard";
+    private static final String KEY_HOSTS = "hosts";
+    // Weight of the newest sample in the moving averages
+    private static final double ALPHA = 0.25;
+    static final long HALF_LIFE_MS = 6 * 60 * 60 * 1000L;
+    // What a host without samples is assumed to do
+    private static final double PRIOR_SUCCESS_RATE = 0.8;
+    private static final double PRIOR_TTFB_MS = 600;
+    private static final double PRIOR_BYTES_PER_MS = 1024; // about 1 MB/s
+    // Hosts are compared by the expected time to fetch a file of this size
+    private static final long NOMINAL_BYTES = 1024 * 1024;
+    private static final double COST_BUCKET_RATIO = 1.25;
+    static final int FAILURES_TO_OPEN = 3;
+    private static final long BASE_COOLDOWN_MS = 30 * 1000L;
+    private static final long MAX_COOLDOWN_MS = 15 * 60 * 1000L;
+    private static final long SAVE_INTERVAL_MS = 10 * 1000L;
+    private static final int MAX_HOSTS = 64;
+    private static final int MAX_FAILED_URLS = 256;
+
+    private static HostScoreboard instance;
+
+    private final SharedPreferences prefs;
+    private final Map<String, HostStats> hosts = new HashMap<>();
+    // URLs that got a permanent answer, with when; in memory only, oldest first
+    private final LinkedHashMap<String, Long> failedUrls = new LinkedHashMap<>();
+    private long lastSavedAt = 0;
+
+    private static final class HostStats {
+        double successRate = PRIOR_SUCCESS_RATE;
+        double ttfbMs = PRIOR_TTFB_MS;
+        double bytesPerMs = PRIOR_BYTES_PER_MS;
+        int consecutiveFailures;
+        int trips;
+        long openUntil;
+        long updatedAt;
+
+        HostStats(long now) {
+            updatedAt = now;
+        }
+
+        /**
+         * Move the averages back towards the prior for the time since the last update.
+         */
+        void decay(long now) {
+            if (now <= updatedAt) {
+                return;
+            }
+            double weight = Math.pow(0.5, (double) (now - updatedAt) / HALF_LIFE_MS);
+            successRate = PRIOR_SUCCESS_RATE + (successRate - PRIOR_SUCCESS_RATE) * weight;
+            ttfbMs = PRIOR_TTFB_MS + (ttfbMs - PRIOR_TTFB_MS) * weight;
+            bytesPerMs = PRIOR_BYTES_PER_MS + (bytesPerMs - PRIOR_BYTES_PER_MS) * weight;
+            updatedAt = now;
+        }
+
+        double expectedCostMs() {
+            return (ttfbMs + NOMINAL_BYTES / bytesPerMs) / Math.max(successRate, 0.05);
+        }
+    }
+
+    /**
+     * @param prefs Where the statistics persist; null keeps them in memory only
+     */
+    HostScoreboard(SharedPreferences prefs) {
+        this.prefs = prefs;
+        if (prefs != null) {
+            String raw = prefs.getString(KEY_HOSTS, null);
+            if (raw != null) {
+                fromJson(raw);
+            }
+        }
+    }
+
+    static synchronized HostScoreboard get(Context context) {
+        if (instance == null) {
+            instance = new HostScoreboard(context.getApplicationContext()
+                    .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        }
+        return instance;
+    }
+
+    /**
+     * Order candidate URLs by their host's expected cost, best first. Hosts within about 25% of each other
+     * keep their order; hosts behind an open circuit breaker are left out unless that would leave nothing to try.
+     * URLs that recently got a permanent answer go last.
+     */
+    List<String> rank(List<String> urls) {
+        return rank(urls, System.currentTimeMillis());
+    }
+
+    synchronized List<String> rank(List<String> urls, long now) {
+        List<String> usable = new ArrayList<>(urls.size());
+        Map<String, Long> costBuckets = new HashMap<>();
+        for (String url : urls) {
+            HostStats stats = hosts.get(MediaDownloadScheduler.hostOf(url));
+            if (stats != null && stats.openUntil > now) {
+                continue;
+            }
+            if (stats != null) {
+                stats.decay(now);
+            }
+            double cost = stats != null ? stats.expectedCostMs() : new HostStats(now).expectedCostMs();
+            // Compare on a log scale so small differences do not shuffle the built-in order
+            costBuckets.put(url, Math.round(Math.log(cost) / Math.log(COST_BUCKET_RATIO)));
+            usable.add(url);
+        }
+        if (usable.isEmpty()) {
+            return new ArrayList<>(urls);
+        }
+        usable.sort(Comparator.comparing((String url) -> hasFailedRecently(url, now))
+                .thenComparingLong(costBuckets::get));
+        return usable;
+    }
+
+    boolean isOpen(String url) {
+        return isOpen(url, System.currentTimeMillis());
+    }
+
+    synchronized boolean isOpen(String url, long now) {
+        HostStats stats = hosts.get(MediaDownloadScheduler.hostOf(url));
+        return stats != null && stats.openUntil > now;
+    }
+
+    /**
+     * A media response arrived and was saved.
+     * @param ttfbMs     Time to the response headers, or -1 if unknown
+     * @param bytes      Body bytes received, or -1 if unknown
+     * @param transferMs Time spent reading the body
+     */
+    void recordSuccess(String url, long ttfbMs, long bytes, long transferMs) {
+        recordSuccess(url, ttfbMs, bytes, transferMs, System.currentTimeMillis());
+    }
+
+    synchronized void recordSuccess(String url, long ttfbMs, long bytes, long transferMs, long now) {
+        HostStats stats = statsFor(url, now);
+        stats.successRate += ALPHA * (1 - stats.successRate);
+        if (ttfbMs >= 0) {
+            stats.ttfbMs += ALPHA * (ttfbMs - stats.ttfbMs);
+        }
+        // Tiny bodies say more about latency than about bandwidth
+        if (bytes >= 64 * 1024 && transferMs > 0) {
+            stats.bytesPerMs += ALPHA * ((double) bytes / transferMs - stats.bytesPerMs);
+        }
+        stats.consecutiveFailures = 0;
+        stats.trips = 0;
+        stats.openUntil = 0;
+        maybeSave(now);
+    }
+
+    void recordFailure(String url) {
+        recordFailure(url, System.currentTimeMillis());
+    }
+
+    /**
+     * A request to the host failed: no connection, a 5xx or throttling. After {@link #FAILURES_TO_OPEN} failures in a row the breaker opens;
+     * once it closes again the next request is a probe, and another failure reopens it for twice as long.
+     */
+    synchronized void recordFailure(String url, long now) {
+        HostStats stats = statsFor(url, now);
+        stats.successRate -= ALPHA * stats.successRate;
+        stats.consecutiveFailures++;
+        if (stats.consecutiveFailures >= FAILURES_TO_OPEN && stats.openUntil <= now) {
+            stats.trips++;
+            long cooldown = Math.min(MAX_COOLDOWN_MS, BASE_COOLDOWN_MS << Math.min(stats.trips - 1, 10));
+            stats.openUntil = now + cooldown;
+        }
+        maybeSave(now);
+    }
+
+    void recordUrlFailure(String url) {
+        recordUrlFailure(url, System.currentTimeMillis());
+    }
+
+    /**
+     * The host answered, but not with the file: a 4xx or a non-media body. That is a problem with this URL
+     * (a missing asset, an expired signature), so the host's statistics and breaker are left alone.
+     */
+    synchronized void recordUrlFailure(String url, long now) {
+        failedUrls.remove(url);
+        failedUrls.put(url, now);
+        if (failedUrls.size() > MAX_FAILED_URLS) {
+            Iterator<String> oldest = failedUrls.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private boolean hasFailedRecently(String url, long now) {
+        Long failedAt = failedUrls.get(url);
+        return failedAt != null && now - failedAt < HALF_LIFE_MS;
+    }
+
+    /**
+     * A request was abandoned before its headers arrived, e.g. it lost a hedged race. Counts towards the
+     * host's latency but not as a failure.
+     */
+    synchronized void recordSlow(String url, long waitedMs) {
+        long now = System.currentTimeMillis();
+        HostStats stats = statsFor(url, now);
+        if (waitedMs > stats.ttfbMs) {
+            stats.ttfbMs += ALPHA * (waitedMs - stats.ttfbMs);
+        }
+        maybeSave(now);
+    }
+
+    private HostStats statsFor(String url, long now) {
+        String host = MediaDownloadScheduler.hostOf(url);
+        HostStats stats = hosts.get(host);
+        if (stats == null) {
+            stats = new HostStats(now);
+            hosts.put(host, stats);
+            trim();
+        } else {
+            stats.decay(now);
+        }
+        return stats;
+    }
+
+    private void trim() {
+        while (hosts.size() > MAX_HOSTS) {
+            String stalest = null;
+            long stalestAt = Long.MAX_VALUE;
+            for (Map.Entry<String, HostStats> e : hosts.entrySet()) {
+                if (e.getValue().updatedAt < stalestAt) {
+                    stalest = e.getKey();
+                    stalestAt = e.getValue().updatedAt;
+                }
+            }
+            hosts.remove(stalest);
+        }
+    }
+
+    private void maybeSave(long now) {
+        if (prefs == null || now - lastSavedAt < SAVE_INTERVAL_MS) {
+            return;
+        }
+        lastSavedAt = now;
+        try {
+            prefs.edit().putString(KEY_HOSTS, toJson()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to save host scoreboard: " + e.getMessage());
+        }
+    }
+
+    synchronized String toJson() throws JSONException {
+        JSONObject root = new JSONObject();
+        for (Map.Entry<String, HostStats> e : hosts.entrySet()) {
+            HostStats stats = e.getValue();
+            JSONObject item = new JSONObject();
+            item.put("success", stats.successRate);
+            item.put("ttfb", stats.ttfbMs);
+            item.put("bpms", stats.bytesPerMs);
+            item.put("failures", stats.consecutiveFailures);
+            item.put("trips", stats.trips);
+            item.put("openUntil", stats.openUntil);
+            item.put("at", stats.updatedAt);
+            root.put(e.getKey(), item);
+        }
+        return root.toString();
+    }
+
+    synchronized void fromJson(String raw) {
+        try {
+            JSONObject root = new JSONObject(raw);
+            Iterator<String> keys = root.keys();
+            while (keys.hasNext()) {
+                String host = keys.next();
+                JSONObject item = root.optJSONObject(host);
+                if (item == null) {
+                    continue;
+                }
+                HostStats stats = new HostStats(item.optLong("at", 0L));
+                stats.successRate = item.optDouble("success", PRIOR_SUCCESS_RATE);
+                stats.ttfbMs = item.optDouble("ttfb", PRIOR_TTFB_MS);
+                stats.bytesPerMs = Math.max(1, item.optDouble("bpms", PRIOR_BYTES_PER_MS));
+                stats.consecutiveFailures = item.optInt("failures", 0);
+                stats.trips = item.optInt("trips", 0);
+                stats.openUntil = item.optLong("openUntil", 0L);
+                hosts.put(host, stats);
+            }
+            trim();
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to load host scoreboard: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.neoruaa.xhsdn
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.asExecutor
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.suspendCancellableCoroutine
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.Response
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.concurrent.Executor
+import kotlin.coroutines.resumeWithException
+
+/**
+ * 在 OkHttp 的 dispatcher 上发起请求，挂起等待响应头，等待期间不占用线程。
+ * 协程被取消时立即取消请求；取消后才到达的响应会被关闭
+ */
+suspend fun Call.await(): Response = suspendCancellableCoroutine { continuation ->
+    continuation.invokeOnCancellation { cancel() }
+    enqueue(object : Callback {
+        override fun onFailure(call: Call, e: IOException) {
+            continuation.resumeWithException(e)
+        }
+
+        override fun onResponse(call: Call, response: Response) {
+            continuation.resume(response) { _, value, _ -> value.close() }
+        }
+    })
+}
+
+/**
+ * 下载引擎的协程部分：请求通过 [await] 等待响应头，响应体在 [bodyReads] 上读取
+ */
+object HttpCalls {
+    /**
+     * 读取响应体的调度器。共用 Dispatchers.IO 的线程，但同时最多运行 MAX_WINDOW 个传输；
+     * MediaDownloadScheduler 的所有传输都在这里执行，不再各自占用独立线程池
+     */
+    @JvmStatic
+    val bodyReads: CoroutineDispatcher = Dispatchers.IO.limitedParallelism(ConcurrencyController.MAX_WINDOW)
+
+    /**
+     * [bodyReads] 的 Executor 形式，供 Java 代码提交传输
+     */
+    @JvmStatic
+    val bodyReadExecutor: Executor = bodyReads.asExecutor()
+
+    /**
+     * 供 Java 下载代码使用的 [await]：阻塞调用线程直到收到响应头。
+     * 线程被中断时协程随之取消，请求立即被取消，并抛出 InterruptedIOException
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun awaitResponse(call: Call): Response = try {
+        runBlocking { call.await() }
+    } catch (e: InterruptedException) {
+        // runBlocking 清除了中断标记，恢复它让调用方也能看到
+        Thread.currentThread().interrupt()
+        throw InterruptedIOException("Interrupted while waiting for ${call.request().url}")
+    }
+}
@@ -0,0 +1,193 @@
+package com.neoruaa.xhsdn;
+
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+/**
+ * Pulls the {@code window.__INITIAL_STATE__} object out of a note page while it is being downloaded.
+ * The page is scanned once at the byte level: braces are balanced outside of string literals and bare
+ * {@code undefined} tokens are rewritten to {@code null}, so the result is JSON that org.json accepts.
+ * Reading stops as soon as the object closes; the rest of the page is never pulled from the network.
+ */
+final class InitialStateExtractor {
+    private static final ByteString MARKER = ByteString.encodeUtf8("window.__INITIAL_STATE__");
+    // 'u' has already been consumed when this is matched
+    private static final ByteString UNDEFINED_TAIL = ByteString.encodeUtf8("ndefined");
+    private static final ByteString NULL_LITERAL = ByteString.encodeUtf8("null");
+
+    // Bytes that need attention outside / inside a string literal; everything else is copied in bulk
+    private static final ByteString CODE_SPECIALS = ByteString.encodeUtf8("\"'{}u");
+    private static final ByteString DOUBLE_QUOTED_SPECIALS = ByteString.encodeUtf8("\"\\");
+    private static final ByteString SINGLE_QUOTED_SPECIALS = ByteString.encodeUtf8("'\\");
+
+    // Note pages are a few hundred KB; anything far beyond that is not a note state
+    static final long MAX_STATE_BYTES = 16L * 1024 * 1024;
+
+    static final class Result {
+        // Strict JSON text of the state object, null if the page has no usable state
+        final String stateJson;
+        // The page as read, only kept when there was no state marker at all
+        final String html;
+
+        Result(String stateJson, String html) {
+            this.stateJson = stateJson;
+            this.html = html;
+        }
+    }
+
+    private InitialStateExtractor() {
+    }
+
+    /**
+     * Read from the source until the state object has been extracted.
+     * If the page has no state marker the whole page is returned as {@link Result#html}
+     * so callers can still scan it for media URLs.
+     */
+    static Result read(BufferedSource source) throws IOException {
+        long markerIndex = source.indexOf(MARKER);
+        if (markerIndex == -1L) {
+            return new Result(null, source.readUtf8());
+        }
+        source.skip(markerIndex + MARKER.size());
+        return new Result(readStateObject(source), null);
+    }
+
+    /**
+     * Convenience for pages that are already in memory.
+     */
+    static String extractStateJson(String html) {
+        if (html == null) {
+            return null;
+        }
+        try {
+            return read(new Buffer().writeUtf8(html)).stateJson;
+        } catch (IOException e) {
+            // Buffer reads do not throw
+            return null;
+        }
+    }
+
+    /**
+     * Read the first balanced object literal after the assignment that follows the marker.
+     * @return The object as JSON text, or null if it is missing, unterminated or too large
+     */
+    private static String readStateObject(BufferedSource source) throws IOException {
+        if (!skipPast(source, '=') || !skipTo(source, '{')) {
+            return null;
+        }
+
+        Buffer in = source.getBuffer();
+        Buffer out = new Buffer();
+        int depth = 0;
+        byte quote = 0;
+        // Last byte copied outside of a string, used for identifier boundaries
+        byte previous = '=';
+
+        while (true) {
+            ByteString specials = quote == 0
+                    ? CODE_SPECIALS
+                    : (quote == '"' ? DOUBLE_QUOTED_SPECIALS : SINGLE_QUOTED_SPECIALS);
+            long index = source.indexOfElement(specials);
+            if (index == -1L || out.size() + index > MAX_STATE_BYTES) {
+                return null;
+            }
+            if (index > 0) {
+                previous = in.getByte(index - 1);
+                out.write(in, index);
+            }
+
+            byte b = in.readByte();
+            if (quote != 0) {
+                out.writeByte(b);
+                if (b == '\\') {
+                    // Copy the escaped byte as-is, it can never end the string
+                    if (!source.request(1)) {
+                        return null;
+                    }
+                    out.writeByte(in.readByte());
+                } else if (b == quote) {
+                    quote = 0;
+                    previous = b;
+                }
+                continue;
+            }
+
+            switch (b) {
+                case '"':
+                case '\'':
+                    quote = b;
+                    out.writeByte(b);
+                    break;
+                case 'u':
+                    if (!isIdentifierByte(previous) && isUndefinedTail(source)) {
+                        source.skip(UNDEFINED_TAIL.size());
+                        out.write(NULL_LITERAL);
+                        previous = 'l';
+                    } else {
+                        out.writeByte(b);
+                        previous = b;
+                    }
+                    break;
+                case '{':
+                    depth++;
+                    out.writeByte(b);
+                    previous = b;
+                    break;
+                default: // '}'
+                    depth--;
+                    out.writeByte(b);
+                    previous = b;
+                    if (depth == 0) {
+                        return out.readUtf8();
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static boolean isUndefinedTail(BufferedSource source) throws IOException {
+        if (!source.rangeEquals(0, UNDEFINED_TAIL)) {
+            return false;
+        }
+        int tail = UNDEFINED_TAIL.size();
+        return !source.request(tail + 1) || !isIdentifierByte(source.getBuffer().getByte(tail));
+    }
+
+    private static boolean isIdentifierByte(byte b) {
+        // Non-ASCII bytes belong to UTF-8 sequences, treat them like letters
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                || b == '_' || b == '$' || b < 0;
+    }
+
+    /**
+     * Consume bytes up to and including {@code target}, giving up at the end of the script.
+     */
+    private static boolean skipPast(BufferedSource source, char target) throws IOException {
+        if (!skipTo(source, target)) {
+            return false;
+        }
+        source.skip(1);
+        return true;
+    }
+
+    /**
+     * Consume bytes up to (not including) {@code target}, giving up at the end of the script.
+     */
+    private static boolean skipTo(BufferedSource source, char target) throws IOException {
+        Buffer in = source.getBuffer();
+        while (source.request(1)) {
+            byte b = in.getByte(0);
+            if (b == target) {
+                return true;
+            }
+            if (b == '<' || b == ';') {
+                return false;
+            }
+            in.skip(1);
+        }
+        return false;
+    }
+}
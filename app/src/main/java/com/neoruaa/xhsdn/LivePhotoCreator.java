@@ -13,6 +13,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 public class LivePhotoCreator {
     private static final String TAG = "LivePhotoCreator";
@@ -425,29 +426,14 @@ public class LivePhotoCreator {
             outputStream.write(xmpSegment);
             
             // Skip the first 2 bytes of the image (already written) and copy the rest
-            // Copy remaining image data
-            byte[] buffer = new byte[8192]; // 8KB buffer to reduce memory usage
-            int totalImageBytes = (int)(imageFile.length() - 2); // Subtract the 2 bytes already read
-            int copiedBytes = 0;
-            
-            while (copiedBytes < totalImageBytes) {
-                int bytesToRead = Math.min(buffer.length, totalImageBytes - copiedBytes);
-                bytesRead = imageStream.read(buffer, 0, bytesToRead);
-                if (bytesRead == -1) break;
-                
-                outputStream.write(buffer, 0, bytesRead);
-                copiedBytes += bytesRead;
-            }
+            // Both copies go channel to channel, without passing the bytes through the Java heap
+            FileChannel outputChannel = outputStream.getChannel();
+            long copiedBytes = MediaIo.transfer(imageStream.getChannel(), 2, imageFile.length() - 2,
+                    outputChannel, written -> { });
             
             // Copy the entire video file to the end
-            long videoBytesCopied = 0;
-            while (true) {
-                bytesRead = videoStream.read(buffer);
-                if (bytesRead == -1) break;
-                
-                outputStream.write(buffer, 0, bytesRead);
-                videoBytesCopied += bytesRead;
-            }
+            long videoBytesCopied = MediaIo.transfer(videoStream.getChannel(), 0, videoFile.length(),
+                    outputChannel, written -> { });
             
             outputStream.flush();
             
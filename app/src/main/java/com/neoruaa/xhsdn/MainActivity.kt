@@ -44,12 +44,15 @@ import androidx.compose.runtime.Composable
 import com.neoruaa.xhsdn.utils.detectMediaType
 import androidx.compose.ui.platform.LocalContext
 import androidx.compose.runtime.LaunchedEffect
+import androidx.compose.runtime.SideEffect
 import androidx.compose.runtime.DisposableEffect
 import androidx.compose.runtime.getValue
 import androidx.compose.runtime.remember
+import androidx.compose.runtime.rememberCoroutineScope
 import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.setValue
 import androidx.compose.runtime.produceState
+import androidx.compose.runtime.snapshotFlow
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.draw.clip
@@ -132,6 +135,9 @@ import top.yukonga.miuix.kmp.window.WindowBottomSheet
 // 缩略图内存缓存（最多缓存 50 张缩略图）
 private val thumbnailCache = object : LruCache<String, ImageBitmap>(50) {}
 
+// 历史列表每次加载的任务数，滚动到底部附近时再加载一页
+private const val HISTORY_PAGE_SIZE = 50
+
 class MainActivity : ComponentActivity() {
     private val viewModel: MainViewModel by viewModels()
     private val _autoDownloadIntentUrl = mutableStateOf<String?>(null)
@@ -247,6 +253,8 @@ class MainActivity : ComponentActivity() {
                                 
                                 // ... (Auto download logic)
                                 Log.d("XHS_Debug", "Triggering Auto Download")
+                                // The download fetches the note itself; only the media connections are warmed in parallel
+                                ConnectionPrewarmer.onLinkDetected(context, clipText, false)
                                 
                                 // Trigger Download
                                 if (selectiveDownload) {
@@ -274,6 +282,8 @@ class MainActivity : ComponentActivity() {
                                 // B. Show Bubble
                                 Log.d("XHS_Debug", "Showing Bubble")
                                 detectedXhsLink = clipText 
+                                // 用户点击下载之前预热连接并预取笔记
+                                ConnectionPrewarmer.onLinkDetected(context, clipText, true)
                             } else {
                                 Log.d("XHS_Debug", "Bubble disabled in settings")
                             }
@@ -638,31 +648,34 @@ class MainActivity : ComponentActivity() {
                 // Debug: Show how many URLs were received
 //                showToast("收到${urls.size}个URL")
 
-                // Check if a task ID was passed from WebViewActivity (meaning task was already created)
-                val taskToUse = if (taskId != null) {
-                    // Task was already created in WebViewActivity
-                    taskId
-                } else {
-                    // Create a new task when URLs are returned from WebViewActivity
-                    val webViewUrl = data.getStringExtra("url") ?: "Unknown URL"
-                    val newTaskId = com.neoruaa.xhsdn.data.TaskManager.createTask(
-                        noteUrl = webViewUrl,
-                        noteTitle = null,
-                        noteType = com.neoruaa.xhsdn.data.NoteType.UNKNOWN,
-                        totalFiles = urls.size
-                    )
+                // createTask 在历史载入前会挂起，不在主线程上等待
+                lifecycleScope.launch {
+                    // Check if a task ID was passed from WebViewActivity (meaning task was already created)
+                    val taskToUse = if (taskId != null) {
+                        // Task was already created in WebViewActivity
+                        taskId
+                    } else {
+                        // Create a new task when URLs are returned from WebViewActivity
+                        val webViewUrl = data.getStringExtra("url") ?: "Unknown URL"
+                        val newTaskId = com.neoruaa.xhsdn.data.TaskManager.createTask(
+                            noteUrl = webViewUrl,
+                            noteTitle = null,
+                            noteType = com.neoruaa.xhsdn.data.NoteType.UNKNOWN,
+                            totalFiles = urls.size
+                        )
 
-                    // Update the task status to DOWNLOADING immediately since we have the URLs
-                    com.neoruaa.xhsdn.data.TaskManager.updateTaskStatus(newTaskId, com.neoruaa.xhsdn.data.TaskStatus.DOWNLOADING)
+                        // Update the task status to DOWNLOADING immediately since we have the URLs
+                        com.neoruaa.xhsdn.data.TaskManager.updateTaskStatus(newTaskId, com.neoruaa.xhsdn.data.TaskStatus.DOWNLOADING)
 
-                    // Debug: Show that task was created
-//                    showToast("已创建任务ID: $newTaskId")
-                    newTaskId
-                }
+                        // Debug: Show that task was created
+//                        showToast("已创建任务ID: $newTaskId")
+                        newTaskId
+                    }
 
-//                showToast("开始爬取，请等待任务完成")
-//                showToast("准备调用viewModel.onWebCrawlResult，URL数量: ${urls.size}")
-                viewModel.onWebCrawlResult(urls, content, taskToUse)
+//                    showToast("开始爬取，请等待任务完成")
+//                    showToast("准备调用viewModel.onWebCrawlResult，URL数量: ${urls.size}")
+                    viewModel.onWebCrawlResult(urls, content, taskToUse)
+                }
             } else {
                 showToast("未发现可下载的资源")
             }
@@ -999,13 +1012,17 @@ private fun HistoryPage(
     modifier: Modifier = Modifier,
     nestedScrollConnection: androidx.compose.ui.input.nestedscroll.NestedScrollConnection? = null
 ) {
-    val tasks by com.neoruaa.xhsdn.data.TaskManager.getAllTasks().collectAsStateWithLifecycle(initialValue = emptyList())
     val navPadding = WindowInsets.navigationBars.asPaddingValues().calculateBottomPadding()
-    val activeTask = tasks.firstOrNull {
-        it.status == com.neoruaa.xhsdn.data.TaskStatus.DOWNLOADING || it.status == com.neoruaa.xhsdn.data.TaskStatus.QUEUED
-    }
+    val activeTasks by remember {
+        com.neoruaa.xhsdn.data.TaskManager.getTaskPage(
+            setOf(com.neoruaa.xhsdn.data.TaskStatus.DOWNLOADING, com.neoruaa.xhsdn.data.TaskStatus.QUEUED),
+            1
+        )
+    }.collectAsStateWithLifecycle(initialValue = emptyList())
+    val activeTask = activeTasks.firstOrNull()
 
     var taskToDelete by remember { mutableStateOf<com.neoruaa.xhsdn.data.DownloadTask?>(null) }
+    val detailScope = rememberCoroutineScope()
 
     if (taskToDelete != null) {
         WindowDialog(
@@ -1050,8 +1067,12 @@ private fun HistoryPage(
             ) {
                 // 筛选标签栏
                 var selectedFilter by remember { mutableStateOf(0) }
-                val waitingCount = tasks.count { it.status == com.neoruaa.xhsdn.data.TaskStatus.WAITING_FOR_USER }
-                val failedCount = tasks.count { it.status == com.neoruaa.xhsdn.data.TaskStatus.FAILED }
+                val waitingCount by remember {
+                    com.neoruaa.xhsdn.data.TaskManager.getTaskCount(com.neoruaa.xhsdn.data.TaskStatus.WAITING_FOR_USER)
+                }.collectAsStateWithLifecycle(initialValue = 0)
+                val failedCount by remember {
+                    com.neoruaa.xhsdn.data.TaskManager.getTaskCount(com.neoruaa.xhsdn.data.TaskStatus.FAILED)
+                }.collectAsStateWithLifecycle(initialValue = 0)
                 val filterLabels = listOf(stringResource(R.string.tab_all), stringResource(R.string.tab_waiting_for_selection, waitingCount), stringResource(R.string.tab_failed, failedCount))
                 val configuration = LocalConfiguration.current
                 TabRowWithContour(
@@ -1073,12 +1094,21 @@ private fun HistoryPage(
                         .padding(horizontal = 16.dp, vertical = 10.dp)
                 )
 
-                // 根据筛选条件过滤任务
-                val filteredTasks = when (selectedFilter) {
-                    1 -> tasks.filter { it.status == com.neoruaa.xhsdn.data.TaskStatus.WAITING_FOR_USER }
-                    2 -> tasks.filter { it.status == com.neoruaa.xhsdn.data.TaskStatus.FAILED }
-                    else -> tasks
+                // 根据筛选条件分页加载任务
+                val filterStatuses = when (selectedFilter) {
+                    1 -> setOf(com.neoruaa.xhsdn.data.TaskStatus.WAITING_FOR_USER)
+                    2 -> setOf(com.neoruaa.xhsdn.data.TaskStatus.FAILED)
+                    else -> null
                 }
+                var pageSize by remember(selectedFilter) { mutableStateOf(HISTORY_PAGE_SIZE) }
+                // 加载下一页时先显示上一页，直到新的一页在后台查询完；切换筛选时从空列表开始
+                var shownTasks by remember(selectedFilter) {
+                    mutableStateOf(emptyList<com.neoruaa.xhsdn.data.DownloadTask>())
+                }
+                val filteredTasks by remember(selectedFilter, pageSize) {
+                    com.neoruaa.xhsdn.data.TaskManager.getTaskPage(filterStatuses, pageSize)
+                }.collectAsStateWithLifecycle(initialValue = shownTasks)
+                SideEffect { shownTasks = filteredTasks }
                 if (filteredTasks.isEmpty()) {
                     // 空状态
                     Column(
@@ -1111,11 +1141,20 @@ private fun HistoryPage(
                         )
                     }
                 } else {
-                    LaunchedEffect(filteredTasks.size) {
+                    // 新任务出现在顶部时滚动过去；加载下一页不滚动
+                    LaunchedEffect(filteredTasks.firstOrNull()?.id) {
                         if (filteredTasks.isNotEmpty()) {
                             statusListState.animateScrollToItem(0)
                         }
                     }
+                    LaunchedEffect(statusListState, filteredTasks.size, pageSize) {
+                        snapshotFlow { statusListState.layoutInfo.visibleItemsInfo.lastOrNull()?.index ?: 0 }
+                            .collect { lastVisible ->
+                                if (filteredTasks.size >= pageSize && lastVisible >= filteredTasks.size - 10) {
+                                    pageSize += HISTORY_PAGE_SIZE
+                                }
+                            }
+                    }
 
                     LazyColumn(
                         state = statusListState,
@@ -1131,7 +1170,18 @@ private fun HistoryPage(
                             Modifier.fillMaxSize()
                         }
                     ) {
-                        itemsIndexed(filteredTasks, key = { _, task -> task.id }) { _, task ->
+                        itemsIndexed(filteredTasks, key = { _, task -> task.id }) { _, listedTask ->
+                            // 进度变化只通过这个任务自己的 StateFlow 更新这一行
+                            val taskFlow = remember(listedTask.id) {
+                                com.neoruaa.xhsdn.data.TaskManager.observeTask(listedTask.id)
+                            }
+                            val task = taskFlow?.collectAsStateWithLifecycle()?.value ?: listedTask
+                            // 历史只载入了摘要，行可见时再读取文件列表等字段
+                            LaunchedEffect(listedTask.id) {
+                                withContext(Dispatchers.IO) {
+                                    com.neoruaa.xhsdn.data.TaskManager.hydrate(listedTask.id)
+                                }
+                            }
                             val context = LocalContext.current
                             TaskCell(
                                 task = task,
@@ -1153,15 +1203,21 @@ private fun HistoryPage(
                                 onDelete = { taskToDelete = task },
                                 onMediaClick = onMediaClick,
                                 onClick = {
-                                    val detailIntent = DetailActivity.newIntent(
-                                        context,
-                                        task.id.toString(),
-                                        task.noteTitle ?: task.noteUrl,
-                                        task.filePaths,
-                                        task.noteContent,
-                                        task.noteUrl  // Pass the note URL
-                                    )
-                                    context.startActivity(detailIntent)
+                                    // 文件列表和笔记内容可能还没读取，在 IO 线程上补全后再打开详情页
+                                    detailScope.launch {
+                                        val fullTask = withContext(Dispatchers.IO) {
+                                            com.neoruaa.xhsdn.data.TaskManager.getTaskById(task.id)
+                                        } ?: task
+                                        val detailIntent = DetailActivity.newIntent(
+                                            context,
+                                            fullTask.id.toString(),
+                                            fullTask.noteTitle ?: fullTask.noteUrl,
+                                            fullTask.filePaths,
+                                            fullTask.noteContent,
+                                            fullTask.noteUrl  // Pass the note URL
+                                        )
+                                        context.startActivity(detailIntent)
+                                    }
                                 }
                             )
                         }
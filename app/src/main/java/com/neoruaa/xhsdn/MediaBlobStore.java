@@ -0,0 +1,360 @@
+package com.neoruaa.xhsdn;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Local copy of the media downloaded so far, in cacheDir/media_blobs. Blobs are named by the SHA-256 of
+ * their bytes and found through the asset token in the CDN URL (see {@link #assetKey}), so downloading a
+ * note again, the same image in another note, or a save from selective mode is served from disk instead
+ * of the network; identical bytes under different URLs are stored once. The least recently used blobs
+ * are evicted once the store grows past its size limit. Most assets are downloaded once, so a body that
+ * would need an extra copy to get here is only stored from the second time its asset is seen (see
+ * {@link #noteSeen}).
+ */
+final class MediaBlobStore {
+    private static final String DIR_NAME = "media_blobs";
+    static final long MAX_BYTES = 512L * 1024 * 1024;
+    // Assets not seen again within this time are first-time assets again
+    static final long SEEN_MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+    private static final MediaIo.ChunkListener NO_PROGRESS = written -> { };
+
+    private static MediaBlobStore instance;
+
+    private final File blobDir;
+    // One small file per asset key, holding the name of its blob
+    private final File keyDir;
+    // One empty file per asset key downloaded without storing it
+    private final File seenDir;
+    private final File tmpDir;
+    private final long maxBytes;
+
+    MediaBlobStore(File dir, long maxBytes) {
+        this.blobDir = new File(dir, "blobs");
+        this.keyDir = new File(dir, "keys");
+        this.seenDir = new File(dir, "seen");
+        this.tmpDir = new File(dir, "tmp");
+        this.maxBytes = maxBytes;
+        // Nothing is being written yet, so whatever is left in tmp was abandoned by an earlier process
+        File[] leftovers = tmpDir.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                leftover.delete();
+            }
+        }
+        File[] marks = seenDir.listFiles();
+        if (marks != null) {
+            long now = System.currentTimeMillis();
+            for (File mark : marks) {
+                if (now - mark.lastModified() > SEEN_MAX_AGE_MS) {
+                    mark.delete();
+                }
+            }
+        }
+    }
+
+    static synchronized MediaBlobStore get(Context context) {
+        if (instance == null) {
+            instance = new MediaBlobStore(new File(context.getApplicationContext().getCacheDir(), DIR_NAME), MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * The stable identity of a media URL. Image URLs on xhscdn.com carry a signed date/hash prefix that
+     * changes between page loads, followed by the asset token that {@code transformXhsCdnUrl} also uses;
+     * the key is that token plus the requested style ({@code !...} or query), which decides the encoding.
+     * Videos are keyed by their path, which is the same on every video host.
+     * @return The key, or null if the URL is not a known media CDN URL
+     */
+    static String assetKey(String url) {
+        if (url == null) {
+            return null;
+        }
+        int schemeEnd = url.indexOf("://");
+        int pathStart = schemeEnd < 0 ? -1 : url.indexOf('/', schemeEnd + 3);
+        if (pathStart < 0) {
+            return null;
+        }
+        String host = url.substring(schemeEnd + 3, pathStart).toLowerCase(Locale.ROOT);
+        String path = url.substring(pathStart + 1);
+        String query = "";
+        int queryStart = path.indexOf('?');
+        if (queryStart >= 0) {
+            query = path.substring(queryStart);
+            path = path.substring(0, queryStart);
+        }
+        boolean cdn = host.endsWith("xhscdn.com");
+        if (!cdn && !host.equals("ci.xiaohongshu.com")) {
+            return null;
+        }
+
+        if (cdn && (host.contains("video") || path.toLowerCase(Locale.ROOT).contains("video"))) {
+            return path.isEmpty() ? null : "video:" + path;
+        }
+
+        String style = "";
+        int styleStart = path.indexOf('!');
+        if (styleStart >= 0) {
+            style = path.substring(styleStart);
+            path = path.substring(0, styleStart);
+        }
+        if (cdn) {
+            // {date}/{hash}/{token}: drop the signed prefix
+            String[] segments = path.split("/");
+            if (segments.length >= 3) {
+                path = String.join("/", Arrays.asList(segments).subList(2, segments.length));
+            }
+        }
+        return path.isEmpty() ? null : "image:" + path + style + query;
+    }
+
+    /**
+     * @return The blob stored for this key, or null
+     */
+    synchronized File find(String key) {
+        File keyFile = new File(keyDir, nameFor(key));
+        if (!keyFile.isFile()) {
+            return null;
+        }
+        String blobName;
+        try {
+            blobName = readText(keyFile).trim();
+        } catch (IOException e) {
+            blobName = "";
+        }
+        File blob = new File(blobDir, blobName);
+        if (blobName.isEmpty() || !blob.isFile()) {
+            keyFile.delete();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        blob.setLastModified(now);
+        keyFile.setLastModified(now);
+        return blob;
+    }
+
+    /**
+     * Record that the asset with this key is being downloaded.
+     * @return Whether it was seen before, i.e. is worth storing this time
+     */
+    synchronized boolean noteSeen(String key) {
+        File mark = new File(seenDir, nameFor(key));
+        if (mark.isFile()) {
+            return true;
+        }
+        try {
+            if (seenDir.exists() || seenDir.mkdirs()) {
+                mark.createNewFile();
+            }
+        } catch (IOException ignored) {
+            // The asset is then stored one download later than it could have been
+        }
+        return false;
+    }
+
+    /**
+     * A file to write a new blob into before {@link #put}, e.g. through a digest of the body.
+     */
+    File newTempFile() throws IOException {
+        if (!tmpDir.exists() && !tmpDir.mkdirs()) {
+            throw new IOException("Cannot create " + tmpDir.getAbsolutePath());
+        }
+        return new File(tmpDir, UUID.randomUUID().toString());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Store a file's bytes under {@code key}.
+     * @param digest     SHA-256 of the file if it was computed while writing it, otherwise null
+     * @param extension  Extension of the blob, so it can be published with the right type
+     * @param keepSource Whether the caller keeps {@code source}; the store then takes a hard link or a copy,
+     *                   otherwise the file is moved in (or deleted, if the bytes are already stored)
+     * @return The stored blob
+     */
+    File put(String key, File source, byte[] digest, String extension, boolean keepSource) throws IOException {
+        if (digest == null) {
+            digest = digestOf(source);
+        }
+        String blobName = blobName(digest, extension);
+        if (new File(blobDir, blobName).isFile()) {
+            if (!keepSource) {
+                source.delete();
+            }
+            return index(key, blobName);
+        }
+
+        File temp = newTempFile();
+        try {
+            if (keepSource ? !link(source, temp) : !source.renameTo(temp)) {
+                MediaIo.copy(source, temp, NO_PROGRESS);
+                if (!keepSource) {
+                    source.delete();
+                }
+            }
+            return commit(key, temp, blobName);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Make {@code target} hold the bytes of {@code source}: a hard link where the file system allows it,
+     * otherwise a copy.
+     */
+    static void linkOrCopy(File source, File target, MediaIo.ChunkListener listener) throws IOException {
+        if (!link(source, target)) {
+            MediaIo.copy(source, target, listener);
+        }
+    }
+
+    private synchronized File commit(String key, File temp, String blobName) throws IOException {
+        File blob = new File(blobDir, blobName);
+        if (!blob.isFile()) {
+            if (!blobDir.exists() && !blobDir.mkdirs()) {
+                throw new IOException("Cannot create " + blobDir.getAbsolutePath());
+            }
+            if (!temp.renameTo(blob)) {
+                throw new IOException("Cannot store blob " + blobName);
+            }
+        }
+        return index(key, blobName);
+    }
+
+    private synchronized File index(String key, String blobName) throws IOException {
+        if (!keyDir.exists() && !keyDir.mkdirs()) {
+            throw new IOException("Cannot create " + keyDir.getAbsolutePath());
+        }
+        writeText(new File(keyDir, nameFor(key)), blobName);
+        new File(seenDir, nameFor(key)).delete();
+        File blob = new File(blobDir, blobName);
+        blob.setLastModified(System.currentTimeMillis());
+        trim(blob);
+        return blob;
+    }
+
+    /**
+     * Evict least recently used blobs until the store fits its limit, never {@code keep}. Keys that have not
+     * been used since the oldest remaining blob can only point at evicted blobs (or be a miss worth
+     * nothing), so they go too.
+     */
+    private void trim(File keep) {
+        File[] blobs = blobDir.listFiles();
+        if (blobs == null) {
+            return;
+        }
+        long total = 0;
+        for (File blob : blobs) {
+            total += blob.length();
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        Arrays.sort(blobs, Comparator.comparingLong(File::lastModified));
+        long oldestKept = Long.MAX_VALUE;
+        for (File blob : blobs) {
+            if (total > maxBytes && !blob.equals(keep)) {
+                total -= blob.length();
+                blob.delete();
+            } else {
+                oldestKept = Math.min(oldestKept, blob.lastModified());
+            }
+        }
+        File[] keys = keyDir.listFiles();
+        if (keys != null) {
+            for (File keyFile : keys) {
+                if (keyFile.lastModified() < oldestKept) {
+                    keyFile.delete();
+                }
+            }
+        }
+    }
+
+    private static boolean link(File source, File target) {
+        try {
+            Os.link(source.getAbsolutePath(), target.getAbsolutePath());
+            return true;
+        } catch (ErrnoException e) {
+            // EXDEV (another file system) or no hard link support
+            return false;
+        }
+    }
+
+    private static byte[] digestOf(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = MediaIo.acquireBuffer();
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            MediaIo.releaseBuffer(buffer);
+        }
+        return digest.digest();
+    }
+
+    private static String blobName(byte[] digest, String extension) {
+        String name = toHex(digest);
+        return extension == null || extension.isEmpty() ? name : name + "." + extension.toLowerCase(Locale.ROOT);
+    }
+
+    private static String nameFor(String key) {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    private static String readText(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read == -1) {
+                    break;
+                }
+                offset += read;
+            }
+            return new String(bytes, 0, offset, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void writeText(File file, String text) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.neoruaa.xhsdn;
+
+import android.util.Log;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process-wide scheduler for media transfers. Every download task (foreground or background) queues its
+ * files here instead of running its own thread pool, so the number of transfers is bounded for the whole
+ * app and per CDN host. Tasks are served round-robin, foreground tasks before background ones.
+ * The limits start at 6 overall and 4 per host and are tuned at runtime by {@link ConcurrencyController}.
+ * Transfers run on {@link HttpCalls#getBodyReads()}, the bounded dispatcher that reads response bodies.
+ */
+final class MediaDownloadScheduler {
+    private static final String TAG = "MediaDownloadScheduler";
+
+    private static MediaDownloadScheduler instance;
+
+    private final Executor executor = HttpCalls.getBodyReadExecutor();
+    // Tasks with queued jobs, in round-robin order
+    private final ArrayDeque<Task> foregroundTasks = new ArrayDeque<>();
+    private final ArrayDeque<Task> backgroundTasks = new ArrayDeque<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private int running = 0;
+    private int maxConcurrent = ConcurrencyController.INITIAL_WINDOW;
+    private int maxPerHost = ConcurrencyController.perHostLimit(ConcurrencyController.INITIAL_WINDOW);
+
+    /**
+     * The jobs of one download task, e.g. one XHSDownloader. They start in submission order unless their host is full.
+     */
+    static final class Task {
+        private final String name;
+        private final ArrayDeque<Job<?>> queue = new ArrayDeque<>();
+        private volatile boolean foreground;
+
+        private Task(String name, boolean foreground) {
+            this.name = name;
+            this.foreground = foreground;
+        }
+
+        /**
+         * Foreground tasks are dispatched before background ones; applies to jobs not yet started.
+         */
+        void setForeground(boolean foreground) {
+            this.foreground = foreground;
+        }
+    }
+
+    private static final class Job<T> extends FutureTask<T> {
+        final String host;
+
+        Job(String host, Callable<T> callable) {
+            super(callable);
+            this.host = host;
+        }
+    }
+
+    private MediaDownloadScheduler() {
+    }
+
+    static synchronized MediaDownloadScheduler get() {
+        if (instance == null) {
+            instance = new MediaDownloadScheduler();
+        }
+        return instance;
+    }
+
+    Task newTask(String name, boolean foreground) {
+        return new Task(name, foreground);
+    }
+
+    /**
+     * Queue a transfer.
+     * @param url The URL being transferred, for the per-host limit
+     */
+    <T> Future<T> submit(Task task, String url, Callable<T> callable) {
+        Job<T> job = new Job<>(hostOf(url), callable);
+        synchronized (this) {
+            boolean wasIdle = task.queue.isEmpty();
+            task.queue.add(job);
+            if (wasIdle) {
+                (task.foreground ? foregroundTasks : backgroundTasks).add(task);
+            }
+            dispatch();
+        }
+        return job;
+    }
+
+    /**
+     * Queue a transfer and wait for it, for callers that need the result before going on.
+     */
+    <T> T run(Task task, String url, Callable<T> callable) throws Exception {
+        Future<T> future = submit(task, url, callable);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Run the parts of one transfer, e.g. the byte ranges of a segmented download. Every part but the first
+     * is queued like any other job, so the extra connections count against the overall and per-host limits.
+     * The calling thread runs the first part, then every part the scheduler has not started yet, so the
+     * parts finish even when no slot frees up (the caller usually holds a slot itself).
+     * @throws ExecutionException With the failure of the first part that failed; the others are cancelled
+     */
+    void runParts(Task task, String url, List<Callable<Void>> parts) throws InterruptedException, ExecutionException {
+        List<AtomicBoolean> claimed = new ArrayList<>(parts.size());
+        for (int i = 0; i < parts.size(); i++) {
+            claimed.add(new AtomicBoolean(false));
+        }
+        List<Future<Void>> queued = new ArrayList<>(parts.size());
+        try {
+            for (int i = 1; i < parts.size(); i++) {
+                AtomicBoolean flag = claimed.get(i);
+                Callable<Void> part = parts.get(i);
+                queued.add(submit(task, url, () -> flag.compareAndSet(false, true) ? part.call() : null));
+            }
+            List<Future<Void>> started = new ArrayList<>(queued.size());
+            for (int i = 0; i < parts.size(); i++) {
+                if (claimed.get(i).compareAndSet(false, true)) {
+                    if (i > 0) {
+                        // Still queued; it would only wait for a slot and then find the part taken
+                        queued.get(i - 1).cancel(false);
+                    }
+                    try {
+                        parts.get(i).call();
+                    } catch (RuntimeException | InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new ExecutionException(e);
+                    }
+                } else {
+                    started.add(queued.get(i - 1));
+                }
+            }
+            for (Future<Void> future : started) {
+                future.get();
+            }
+            queued.clear();
+        } finally {
+            for (Future<Void> future : queued) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Drop the task's queued jobs. Jobs already running are left to the caller's own cancellation.
+     */
+    synchronized void cancel(Task task) {
+        int dropped = task.queue.size();
+        for (Job<?> job : task.queue) {
+            job.cancel(false);
+        }
+        task.queue.clear();
+        foregroundTasks.remove(task);
+        backgroundTasks.remove(task);
+        if (dropped > 0) {
+            Log.d(TAG, "Dropped " + dropped + " queued downloads of " + task.name);
+        }
+    }
+
+    /**
+     * Change the limits. Running jobs are not stopped when they shrink; fewer start until they fit again.
+     */
+    synchronized void setLimits(int maxConcurrent, int maxPerHost) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerHost = maxPerHost;
+        dispatch();
+    }
+
+    /**
+     * @return Whether jobs are waiting for a slot or every slot is taken
+     */
+    synchronized boolean isSaturated() {
+        return running >= maxConcurrent || !foregroundTasks.isEmpty() || !backgroundTasks.isEmpty();
+    }
+
+    private void dispatch() {
+        while (running < maxConcurrent) {
+            Job<?> job = nextJob(foregroundTasks);
+            if (job == null) {
+                job = nextJob(backgroundTasks);
+            }
+            if (job == null) {
+                return;
+            }
+            start(job);
+        }
+    }
+
+    /**
+     * Take the first job whose host has room from the first task in round-robin order that has one,
+     * then move that task to the back of the line.
+     */
+    private Job<?> nextJob(ArrayDeque<Task> tasks) {
+        int size = tasks.size();
+        for (int i = 0; i < size; i++) {
+            Task task = tasks.poll();
+            Job<?> picked = null;
+            Iterator<Job<?>> iterator = task.queue.iterator();
+            while (iterator.hasNext()) {
+                Job<?> job = iterator.next();
+                if (hostRunning(job.host) < maxPerHost) {
+                    iterator.remove();
+                    picked = job;
+                    break;
+                }
+            }
+            if (!task.queue.isEmpty()) {
+                // The priority may have changed since the task was queued
+                (task.foreground ? foregroundTasks : backgroundTasks).add(task);
+            }
+            if (picked != null) {
+                return picked;
+            }
+        }
+        return null;
+    }
+
+    private void start(Job<?> job) {
+        running++;
+        runningPerHost.put(job.host, hostRunning(job.host) + 1);
+        executor.execute(() -> {
+            try {
+                // A job cancelled while queued returns immediately here
+                job.run();
+            } finally {
+                // cancel(true) may have interrupted this thread; it is shared with other coroutines
+                Thread.interrupted();
+                finished(job);
+            }
+        });
+    }
+
+    private synchronized void finished(Job<?> job) {
+        running--;
+        int remaining = hostRunning(job.host) - 1;
+        if (remaining > 0) {
+            runningPerHost.put(job.host, remaining);
+        } else {
+            runningPerHost.remove(job.host);
+        }
+        dispatch();
+    }
+
+    private int hostRunning(String host) {
+        Integer count = runningPerHost.get(host);
+        return count != null ? count : 0;
+    }
+
+    static String hostOf(String url) {
+        try {
+            String host = URI.create(url).getHost();
+            if (host != null) {
+                return host.toLowerCase(Locale.ROOT);
+            }
+        } catch (IllegalArgumentException ignored) {
+        }
+        return "";
+    }
+}
@@ -0,0 +1,129 @@
+package com.neoruaa.xhsdn;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * The one copy path for media bytes. Response bodies move into their sink as Okio segments, file-to-file
+ * copies use {@link FileChannel#transferTo}, and plain streams borrow a buffer from a small pool, so
+ * concurrent downloads do not each allocate their own 64KB arrays. The listener runs at chunk boundaries.
+ */
+final class MediaIo {
+    static final int CHUNK_SIZE = 64 * 1024;
+    // Channel transfers are done in steps this size, so cancellation is noticed during large files
+    private static final long TRANSFER_STEP = 4L * 1024 * 1024;
+    // Buffers kept for reuse; more can be borrowed at once, they are just not kept afterwards
+    private static final int POOLED_BUFFERS = 8;
+
+    private static final ArrayBlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+
+    interface ChunkListener {
+        /**
+         * @param written Bytes written so far by this copy
+         * @throws java.util.concurrent.CancellationException To stop the copy
+         */
+        void onChunk(long written);
+    }
+
+    private MediaIo() {
+    }
+
+    static byte[] acquireBuffer() {
+        byte[] buffer = BUFFERS.poll();
+        return buffer != null ? buffer : new byte[CHUNK_SIZE];
+    }
+
+    static void releaseBuffer(byte[] buffer) {
+        if (buffer != null && buffer.length == CHUNK_SIZE) {
+            BUFFERS.offer(buffer);
+        }
+    }
+
+    /**
+     * Move a response body into {@code out} segment by segment. Closes neither.
+     * @return Bytes written
+     */
+    static long copy(BufferedSource source, OutputStream out, ChunkListener listener) throws IOException {
+        BufferedSink sink = Okio.buffer(Okio.sink(out));
+        long written = 0;
+        long read;
+        while ((read = source.read(sink.getBuffer(), CHUNK_SIZE)) != -1) {
+            sink.emitCompleteSegments();
+            written += read;
+            listener.onChunk(written);
+        }
+        sink.emit();
+        out.flush();
+        return written;
+    }
+
+    /**
+     * Copy a file into {@code out}; through the channels when {@code out} is a file (MediaStore hands out
+     * file-backed streams). Closes only what it opens.
+     * @return Bytes written
+     */
+    static long copy(File source, OutputStream out, ChunkListener listener) throws IOException {
+        try (FileInputStream in = new FileInputStream(source)) {
+            if (out instanceof FileOutputStream) {
+                FileChannel target = ((FileOutputStream) out).getChannel();
+                return transfer(in.getChannel(), 0, in.getChannel().size(), target, listener);
+            }
+            return copy(in, out, listener);
+        }
+    }
+
+    static long copy(File source, File target, ChunkListener listener) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            return copy(source, out, listener);
+        }
+    }
+
+    /**
+     * Copy a stream through a pooled buffer. Closes neither.
+     * @return Bytes written
+     */
+    static long copy(InputStream in, OutputStream out, ChunkListener listener) throws IOException {
+        byte[] buffer = acquireBuffer();
+        try {
+            long written = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                written += read;
+                listener.onChunk(written);
+            }
+            return written;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Transfer {@code count} bytes from {@code position} in {@code source} to the current position of
+     * {@code target}, which is advanced past them.
+     * @return Bytes transferred; less than {@code count} only if the source is shorter
+     */
+    static long transfer(FileChannel source, long position, long count, FileChannel target,
+                         ChunkListener listener) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long step = source.transferTo(position + transferred, Math.min(TRANSFER_STEP, count - transferred), target);
+            if (step <= 0) {
+                break;
+            }
+            transferred += step;
+            listener.onChunk(transferred);
+        }
+        return transferred;
+    }
+}
@@ -0,0 +1,123 @@
+package com.neoruaa.xhsdn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Saves the files of one note to MediaStore with fewer round trips. The entries for the names the files
+ * are planned under are reserved together in one batch before the transfers start; each transfer claims
+ * its entry, streams into it as its body arrives and clears its pending flag as soon as it is written, so
+ * the file is visible and reported right away; {@link #finish()} then deletes the unclaimed entries in one
+ * more batch. Saving a 20-file note over an earlier copy takes at most 22 MediaStore calls besides the
+ * content writes, where it took 80 one by one. A file saved under a name that was not planned (e.g. its
+ * Content-Type gave another extension) is published on its own.
+ */
+final class MediaStoreBatch {
+    /**
+     * The MediaStore operations the batch is made of, see {@link MediaStorePublisher}.
+     */
+    interface Store {
+        void reserve(List<MediaStorePublisher.Item> items) throws IOException;
+
+        OutputStream openOutputStream(MediaStorePublisher.Item item) throws IOException;
+
+        boolean finish(List<MediaStorePublisher.Item> written, List<MediaStorePublisher.Item> failed);
+
+        void discard(List<MediaStorePublisher.Item> items);
+    }
+
+    private final Store store;
+    private final Function<MediaStorePublisher.Item, File> fileOf;
+    // Reserved entries no transfer has claimed yet, by relative path and name
+    private final Map<String, MediaStorePublisher.Item> unclaimed = new LinkedHashMap<>();
+    private boolean finished;
+
+    /**
+     * @param fileOf The file an entry is published at
+     */
+    MediaStoreBatch(Store store, Function<MediaStorePublisher.Item, File> fileOf) {
+        this.store = store;
+        this.fileOf = fileOf;
+    }
+
+    /**
+     * Reserve an entry for each item, in one batch.
+     * @return Whether the entries were reserved; if not, every file is published on its own
+     */
+    boolean reserve(List<MediaStorePublisher.Item> items) {
+        try {
+            store.reserve(items);
+        } catch (IOException e) {
+            return false;
+        }
+        synchronized (this) {
+            for (MediaStorePublisher.Item item : items) {
+                unclaimed.put(key(item.relativePath, item.displayName), item);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Take the entry reserved for a file, so no other transfer writes into it.
+     * @return The entry, or null if none was reserved under this name or the batch is finished
+     */
+    synchronized MediaStorePublisher.Item claim(String relativePath, String displayName) {
+        return finished ? null : unclaimed.remove(key(relativePath, displayName));
+    }
+
+    OutputStream openOutputStream(MediaStorePublisher.Item item) throws IOException {
+        return store.openOutputStream(item);
+    }
+
+    /**
+     * Publish a claimed entry that has been written by clearing its pending flag.
+     * @return The file the entry is published at, or null if publishing failed; the entry is deleted then
+     */
+    File written(MediaStorePublisher.Item item) {
+        if (!store.finish(Collections.singletonList(item), Collections.emptyList())) {
+            store.discard(Collections.singletonList(item));
+            return null;
+        }
+        return fileOf.apply(item);
+    }
+
+    /**
+     * Delete a claimed entry that could not be written. This is not left to {@link #finish()}: a retry
+     * publishes the file on its own, and the pending entry would make MediaStore rename it.
+     */
+    void failed(MediaStorePublisher.Item item) {
+        store.discard(Collections.singletonList(item));
+    }
+
+    /**
+     * Delete the entries no transfer claimed, in one batch. Entries still being written are published by
+     * their transfers (see {@link #written}); later claims get nothing, so those files are published on
+     * their own.
+     */
+    void finish() {
+        List<MediaStorePublisher.Item> unused;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            unused = new ArrayList<>(unclaimed.values());
+            unclaimed.clear();
+        }
+        if (!unused.isEmpty()) {
+            store.discard(unused);
+        }
+    }
+
+    private static String key(String relativePath, String displayName) {
+        return relativePath + File.separator + displayName;
+    }
+}
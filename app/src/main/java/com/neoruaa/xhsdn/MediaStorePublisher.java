@@ -0,0 +1,165 @@
+package com.neoruaa.xhsdn;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Publishes files to MediaStore in batches. Removing same-named entries and inserting the pending entries
+ * of a whole note is one {@link ContentResolver#applyBatch} call, and clearing pending flags or deleting
+ * entries that could not be written is another; the file contents are streamed in one by one through
+ * {@link #openOutputStream}. Saving a file used to take a query, a delete, an insert and an update of its
+ * own. Network downloads, whose files arrive one by one, share the reservation of their note through
+ * {@link MediaStoreBatch} and are published as each one is written.
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+final class MediaStorePublisher implements MediaStoreBatch.Store {
+    private static final String TAG = "MediaStorePublisher";
+
+    private final ContentResolver resolver;
+
+    /**
+     * A file to publish. {@link #uri} is set once the pending entry is inserted.
+     */
+    static final class Item {
+        final Uri collection;
+        final String relativePath;
+        final String displayName;
+        final String mimeType;
+        Uri uri;
+
+        Item(Uri collection, String relativePath, String displayName, String mimeType) {
+            this.collection = collection;
+            this.relativePath = relativePath;
+            this.displayName = displayName;
+            this.mimeType = mimeType;
+        }
+    }
+
+    MediaStorePublisher(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Delete the entries that have the names of {@code items} and insert a pending entry for each item,
+     * in one batch.
+     * @throws IOException If the batch failed or did not insert every entry; in the latter case the
+     *                     inserted entries are deleted again
+     */
+    @Override
+    public void reserve(List<Item> items) throws IOException {
+        if (items.isEmpty()) {
+            return;
+        }
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(items.size() * 2);
+        for (Item item : items) {
+            // MediaStore stores RELATIVE_PATH with a trailing separator
+            operations.add(ContentProviderOperation.newDelete(item.collection)
+                    .withSelection(MediaStore.MediaColumns.DISPLAY_NAME + "=? AND "
+                                    + MediaStore.MediaColumns.RELATIVE_PATH + "=?",
+                            new String[]{item.displayName, item.relativePath + File.separator})
+                    .build());
+        }
+        // Deletes go first, so an insert never collides with an old entry and gets renamed
+        for (Item item : items) {
+            operations.add(ContentProviderOperation.newInsert(item.collection)
+                    .withValue(MediaStore.MediaColumns.DISPLAY_NAME, item.displayName)
+                    .withValue(MediaStore.MediaColumns.MIME_TYPE, item.mimeType)
+                    .withValue(MediaStore.MediaColumns.RELATIVE_PATH, item.relativePath)
+                    .withValue(MediaStore.MediaColumns.IS_PENDING, 1)
+                    .build());
+        }
+
+        ContentProviderResult[] results = apply(operations);
+        List<Item> inserted = new ArrayList<>(items.size());
+        boolean complete = true;
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            item.uri = results[items.size() + i].uri;
+            if (item.uri != null) {
+                inserted.add(item);
+            } else {
+                complete = false;
+            }
+        }
+        if (!complete) {
+            discard(inserted);
+            throw new IOException("MediaStore did not insert all " + items.size() + " entries");
+        }
+    }
+
+    /**
+     * Open a reserved entry for writing its contents.
+     */
+    @Override
+    public OutputStream openOutputStream(Item item) throws IOException {
+        OutputStream outputStream = item.uri != null ? resolver.openOutputStream(item.uri) : null;
+        if (outputStream == null) {
+            throw new IOException("Cannot open " + item.uri + " for writing");
+        }
+        return outputStream;
+    }
+
+    /**
+     * Clear the pending flag of the written items and delete the failed ones, in one batch.
+     * @return Whether the written items were published
+     */
+    @Override
+    public boolean finish(List<Item> written, List<Item> failed) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(written.size() + failed.size());
+        for (Item item : written) {
+            operations.add(ContentProviderOperation.newUpdate(item.uri)
+                    .withValue(MediaStore.MediaColumns.IS_PENDING, 0)
+                    .build());
+        }
+        for (Item item : failed) {
+            if (item.uri != null) {
+                operations.add(ContentProviderOperation.newDelete(item.uri).build());
+            }
+        }
+        if (operations.isEmpty()) {
+            return true;
+        }
+        try {
+            apply(operations);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error publishing MediaStore entries: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Delete reserved entries, e.g. after cancellation. Failures are only logged; MediaStore expires
+     * pending entries that are left behind.
+     */
+    @Override
+    public void discard(List<Item> items) {
+        if (!finish(Collections.emptyList(), items)) {
+            Log.w(TAG, "Could not delete " + items.size() + " pending MediaStore entries");
+        }
+    }
+
+    private ContentProviderResult[] apply(ArrayList<ContentProviderOperation> operations) throws IOException {
+        try {
+            return resolver.applyBatch(MediaStore.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            throw new IOException("MediaStore batch of " + operations.size() + " operations failed", e);
+        }
+    }
+}
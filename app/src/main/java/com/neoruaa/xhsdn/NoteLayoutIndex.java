@@ -0,0 +1,149 @@
+package com.neoruaa.xhsdn;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remembers which __INITIAL_STATE__ path (e.g. {@code note.noteDetailMap.*.note}) held the note on recent
+ * pages, with hit counts, so {@link NoteStateReader} can try that path first and stop reading early.
+ * A path that misses is not tried again until a full read finds a note there, so a layout change costs
+ * one full read and the next page already uses the new path.
+ */
+final class NoteLayoutIndex {
+    private static final String TAG = "NoteLayoutIndex";
+    private static final String PREFS_NAME = "note_layout_index";
+    private static final String KEY_PATHS = "paths";
+    private static final int MAX_PATHS = 16;
+
+    private static NoteLayoutIndex instance;
+
+    private final SharedPreferences prefs;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private static final class Entry {
+        int hits;
+        // Misses since the last hit
+        int misses;
+    }
+
+    private NoteLayoutIndex(Context context) {
+        prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        load();
+    }
+
+    static synchronized NoteLayoutIndex get(Context context) {
+        if (instance == null) {
+            instance = new NoteLayoutIndex(context);
+        }
+        return instance;
+    }
+
+    /**
+     * @return The path with the most hits that has not missed since, or null if none is known
+     */
+    synchronized String preferredPath() {
+        String best = null;
+        int bestHits = 0;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.misses == 0 && entry.hits > bestHits) {
+                best = e.getKey();
+                bestHits = entry.hits;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Record the outcome of one read.
+     * @param triedPath The learned path the read started with, or null
+     * @param foundPath The path the note was actually found at, or null if there was none
+     */
+    synchronized void record(String triedPath, String foundPath) {
+        boolean changed = false;
+        if (triedPath != null && !triedPath.equals(foundPath)) {
+            Entry tried = entries.get(triedPath);
+            if (tried != null) {
+                tried.misses++;
+                changed = true;
+                Log.d(TAG, "Learned path missed: " + triedPath);
+            }
+        }
+        if (foundPath != null) {
+            Entry found = entries.get(foundPath);
+            if (found == null) {
+                found = new Entry();
+                entries.put(foundPath, found);
+                Log.d(TAG, "Learned new note path: " + foundPath);
+            }
+            found.hits++;
+            found.misses = 0;
+            trim();
+            changed = true;
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    private void trim() {
+        while (entries.size() > MAX_PATHS) {
+            String weakest = null;
+            int weakestHits = Integer.MAX_VALUE;
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (e.getValue().hits < weakestHits) {
+                    weakest = e.getKey();
+                    weakestHits = e.getValue().hits;
+                }
+            }
+            entries.remove(weakest);
+        }
+    }
+
+    private void load() {
+        String raw = prefs.getString(KEY_PATHS, null);
+        if (raw == null) {
+            return;
+        }
+        try {
+            JSONObject json = new JSONObject(raw);
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String path = keys.next();
+                JSONObject item = json.optJSONObject(path);
+                if (item == null) {
+                    continue;
+                }
+                Entry entry = new Entry();
+                entry.hits = item.optInt("hits", 0);
+                entry.misses = item.optInt("misses", 0);
+                entries.put(path, entry);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to load note layout index: " + e.getMessage());
+        }
+    }
+
+    private void save() {
+        try {
+            JSONObject json = new JSONObject();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                JSONObject item = new JSONObject();
+                item.put("hits", e.getValue().hits);
+                item.put("misses", e.getValue().misses);
+                json.put(e.getKey(), item);
+            }
+            prefs.edit().putString(KEY_PATHS, json.toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to save note layout index: " + e.getMessage());
+        }
+    }
+}
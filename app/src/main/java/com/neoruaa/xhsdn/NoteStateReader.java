@@ -0,0 +1,943 @@
+package com.neoruaa.xhsdn;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Locates note objects in a page's __INITIAL_STATE__.
+ * <p>
+ * {@link #readNotes(String)} is a single-pass pull parser over the JSON text. Keys are compared in place
+ * and everything unrelated to notes is skipped without allocating; only the fields that
+ * {@code extractMediaUrlsFromNote}, {@code buildNoteMetadata} and {@code extractNoteDescription} read are
+ * materialized, into one small {@link JSONObject} per note. {@link #findNoteObjects(JSONObject)} walks an
+ * already-built tree with the same layout rules and is kept as the fallback for text the reader rejects.
+ * <p>
+ * Every note found is labelled with a normalized path such as {@code note.noteDetailMap.*.note} or
+ * {@code feed.items[]}. Given the path that worked on earlier pages (see {@link NoteLayoutIndex}), the reader
+ * stops as soon as the collection holding notes at that path is complete instead of reading to the end.
+ */
+final class NoteStateReader {
+    static final int MAX_DEEP_SCAN_NOTES = 5;
+    private static final int MAX_DEPTH = 512;
+    // Deep scan candidates kept while reading; more than enough after de-duplication
+    private static final int MAX_DEEP_CANDIDATES = MAX_DEEP_SCAN_NOTES * 3;
+
+    // Note fields the extractors read; anything else is skipped
+    private static final String[] NOTE_FIELDS = {
+            "imageList", "images", "image", "video", "user", "user_info", "noteId",
+            "title", "desc", "description", "userId", "uid", "user_id", "author", "userName",
+            "time", "timeText", "displayTime", "publishTime", "publish_time", "createTime",
+            "timestamp", "timeStamp"
+    };
+    private static final int FIELD_IMAGE_LIST = 0;
+    private static final int FIELD_IMAGES = 1;
+    private static final int FIELD_VIDEO = 3;
+
+    // Direct string fields with these are kept too (media URL fallback for notes without imageList)
+    private static final String[] MEDIA_HINTS = {"xhscdn.com", ".mp4", ".jpg", ".png"};
+
+    // Layouts in findNoteObjects order
+    private static final int LAYOUT_NOTE_DETAIL_MAP = 0; // note.noteDetailMap.*.note
+    private static final int LAYOUT_NOTE_NOTE = 1;       // note.note
+    private static final int LAYOUT_NOTE_FEED = 2;       // note.feed.items[]
+    private static final int LAYOUT_NOTE = 3;            // note
+    private static final int LAYOUT_FEED = 4;            // feed.items[]
+    private static final int LAYOUT_NOTE_DATA = 5;       // noteData.data.noteData
+    private static final int LAYOUT_NOTE_DATA_NOTE = 6;  // noteData.data.note
+    private static final int LAYOUT_COUNT = 7;
+
+    private final String json;
+    private int pos;
+    private Frame[] stack = new Frame[16];
+    private int depth = -1;
+
+    @SuppressWarnings("unchecked")
+    private final List<Candidate>[] layoutCandidates = new List[LAYOUT_COUNT];
+    private final List<Candidate> deepCandidates = new ArrayList<>();
+    private boolean noteHasDetailMap;
+    private boolean noteHasNote;
+    private boolean noteHasFeed;
+    private boolean dataHasNoteData;
+
+    // Path segments learned from earlier pages, in pathMatches form; null when there is none
+    private final String[] learnedPath;
+    // Depth of the container whose closing completes the notes at the learned path
+    private final int learnedStopDepth;
+    private final List<Candidate> learnedHits = new ArrayList<>();
+
+    static final class Result {
+        final List<JSONObject> notes;
+        // Normalized path of the first note with media, null if there is none
+        final String notePath;
+        // Whether the notes came from the learned path alone (the rest of the text was not read)
+        final boolean usedLearnedPath;
+
+        Result(List<JSONObject> notes, String notePath, boolean usedLearnedPath) {
+            this.notes = notes;
+            this.notePath = notePath;
+            this.usedLearnedPath = usedLearnedPath;
+        }
+    }
+
+    private NoteStateReader(String json, String learnedPath) {
+        this.json = json;
+        for (int i = 0; i < LAYOUT_COUNT; i++) {
+            layoutCandidates[i] = new ArrayList<>();
+        }
+        this.learnedPath = parsePath(learnedPath);
+        int stopDepth = this.learnedPath != null ? this.learnedPath.length : 0;
+        if (this.learnedPath != null) {
+            for (int i = 0; i < this.learnedPath.length; i++) {
+                if (this.learnedPath[i] == null || "*".equals(this.learnedPath[i])) {
+                    // Several notes may sit in this collection, keep reading until it closes
+                    stopDepth = i;
+                    break;
+                }
+            }
+        }
+        this.learnedStopDepth = stopDepth;
+    }
+
+    /**
+     * Find the note objects in the state JSON text, in the same order and with the same fallbacks as
+     * {@link #findNoteObjects(JSONObject)}.
+     * @return Slim note objects holding only the fields the extractors read, or null if the text could
+     *         not be read (callers should then fall back to a full tree parse)
+     */
+    static List<JSONObject> readNotes(String json) {
+        Result result = read(json, null);
+        return result != null ? result.notes : null;
+    }
+
+    /**
+     * Like {@link #readNotes(String)}, but tries {@code learnedPath} first: once notes with media have been
+     * seen there and their collection closes, the rest of the text is skipped. If the learned path has no
+     * such notes the whole text is read and the usual layout rules apply.
+     * @return The notes and the path they were found at, or null if the text could not be read
+     */
+    static Result read(String json, String learnedPath) {
+        if (json == null) {
+            return null;
+        }
+        NoteStateReader reader = new NoteStateReader(json, learnedPath);
+        try {
+            reader.readDocument();
+            return reader.collectNotes();
+        } catch (LearnedPathComplete complete) {
+            try {
+                return reader.collectLearnedNotes();
+            } catch (JSONException e) {
+                return null;
+            }
+        } catch (MalformedStateException | JSONException e) {
+            return null;
+        }
+    }
+
+    private void readDocument() {
+        skipWhitespace();
+        if (pos >= json.length() || json.charAt(pos) != '{') {
+            throw new MalformedStateException();
+        }
+        readObject(-1, -1, null);
+        skipWhitespace();
+        if (pos < json.length()) {
+            throw new MalformedStateException();
+        }
+    }
+
+    private void readValue(int keyStart, int keyEnd, Frame parent) {
+        char c = peek();
+        if (c == '{') {
+            readObject(keyStart, keyEnd, parent);
+        } else if (c == '[') {
+            readArray(keyStart, keyEnd, parent);
+        } else if (c == '"' || c == '\'') {
+            pos = skipString(pos);
+        } else {
+            skipLiteral();
+        }
+    }
+
+    private void readObject(int keyStart, int keyEnd, Frame parent) {
+        Frame frame = push(false, keyStart, keyEnd, parent);
+        pos++; // '{'
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+        } else {
+            while (true) {
+                skipWhitespace();
+                char quote = peek();
+                if (quote != '"' && quote != '\'') {
+                    throw new MalformedStateException();
+                }
+                int nameStart = pos + 1;
+                pos = skipString(pos);
+                int nameEnd = pos - 1;
+                skipWhitespace();
+                if (peek() != ':') {
+                    throw new MalformedStateException();
+                }
+                pos++;
+                skipWhitespace();
+
+                frame.hasKeys = true;
+                markKnownKey(frame, nameStart, nameEnd);
+                int field = noteField(nameStart, nameEnd);
+                int valueStart = pos;
+                char first = peek();
+                readValue(nameStart, nameEnd, frame);
+                if (field >= 0) {
+                    frame.setField(field, valueStart, pos);
+                } else if ((first == '"' || first == '\'') && containsMediaHint(valueStart + 1, pos - 1)) {
+                    frame.addExtra(nameStart, nameEnd, valueStart, pos);
+                }
+
+                skipWhitespace();
+                char next = peek();
+                pos++;
+                if (next == '}') {
+                    break;
+                } else if (next != ',') {
+                    throw new MalformedStateException();
+                }
+            }
+        }
+        onObjectClosed(frame);
+        depth--;
+    }
+
+    private void readArray(int keyStart, int keyEnd, Frame parent) {
+        Frame frame = push(true, keyStart, keyEnd, parent);
+        pos++; // '['
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+        } else {
+            while (true) {
+                skipWhitespace();
+                readValue(-1, -1, frame);
+                frame.elementCount++;
+                skipWhitespace();
+                char next = peek();
+                pos++;
+                if (next == ']') {
+                    break;
+                } else if (next != ',') {
+                    throw new MalformedStateException();
+                }
+            }
+        }
+        onArrayClosed(frame);
+        depth--;
+    }
+
+    private Frame push(boolean array, int keyStart, int keyEnd, Frame parent) {
+        depth++;
+        if (depth >= MAX_DEPTH) {
+            throw new MalformedStateException();
+        }
+        if (depth == stack.length) {
+            Frame[] grown = new Frame[stack.length * 2];
+            System.arraycopy(stack, 0, grown, 0, stack.length);
+            stack = grown;
+        }
+        Frame frame = stack[depth];
+        if (frame == null) {
+            frame = new Frame();
+            stack[depth] = frame;
+        }
+        frame.reset(array, keyStart, keyEnd, parent != null && parent.array ? parent.elementCount : -1);
+        return frame;
+    }
+
+    /**
+     * Keys that feed the isLikelyNoteObject check of an enclosing note.
+     */
+    private void markKnownKey(Frame frame, int start, int end) {
+        if (keyEquals(start, end, "urlDefault") || keyEquals(start, end, "url")
+                || keyEquals(start, end, "traceId") || keyEquals(start, end, "infoList")) {
+            frame.hasImageUrlKey = true;
+        } else if (keyEquals(start, end, "consumer") || keyEquals(start, end, "media")) {
+            frame.hasVideoSourceKey = true;
+        }
+    }
+
+    private void onArrayClosed(Frame frame) {
+        Frame parent = parentOf(frame);
+        if (parent == null || parent.array) {
+            return;
+        }
+        if (frameKeyIs(frame, "imageList")) {
+            parent.imageListState = frame.firstElementState;
+        } else if (frameKeyIs(frame, "images")) {
+            parent.imagesState = frame.firstElementState;
+        }
+        checkLearnedPathComplete();
+    }
+
+    private void onObjectClosed(Frame frame) {
+        Frame parent = parentOf(frame);
+        if (parent != null) {
+            if (parent.array) {
+                if (frame.indexInParent == 0) {
+                    parent.firstElementState = frame.hasImageUrlKey ? STATE_YES : STATE_NO;
+                }
+            } else if (frameKeyIs(frame, "video")) {
+                parent.videoState = frame.hasVideoSourceKey ? STATE_YES : STATE_NO;
+            }
+        }
+
+        recordLayoutFacts(frame);
+        Candidate candidate = null;
+        int layout = matchLayout(frame);
+        if (layout >= 0) {
+            candidate = new Candidate(frame, currentPath());
+            layoutCandidates[layout].add(candidate);
+        }
+        if (frame.isLikelyNote()) {
+            if (candidate == null && (deepCandidates.size() < MAX_DEEP_CANDIDATES || learnedPath != null)) {
+                candidate = new Candidate(frame, currentPath());
+            }
+            if (deepCandidates.size() < MAX_DEEP_CANDIDATES) {
+                deepCandidates.add(candidate);
+            }
+            if (learnedPath != null && pathMatches(learnedPath, learnedPath.length)) {
+                learnedHits.add(candidate);
+            }
+        }
+        checkLearnedPathComplete();
+    }
+
+    private void checkLearnedPathComplete() {
+        if (!learnedHits.isEmpty() && depth == learnedStopDepth && pathMatches(learnedPath, learnedStopDepth)) {
+            throw new LearnedPathComplete();
+        }
+    }
+
+    /**
+     * Normalized path of the current frame: object members joined with '.', array elements as "[]" and
+     * id-like member names (note ids, numeric keys) as "*".
+     */
+    private String currentPath() {
+        StringBuilder path = new StringBuilder();
+        for (int i = 1; i <= depth; i++) {
+            Frame frame = stack[i];
+            if (frame.indexInParent >= 0) {
+                path.append("[]");
+                continue;
+            }
+            if (path.length() > 0) {
+                path.append('.');
+            }
+            if (isIdLikeKey(frame.keyStart, frame.keyEnd)) {
+                path.append('*');
+            } else {
+                path.append(json, frame.keyStart, frame.keyEnd);
+            }
+        }
+        return path.toString();
+    }
+
+    private boolean isIdLikeKey(int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return false;
+        }
+        boolean allDigits = true;
+        boolean allHex = true;
+        for (int i = start; i < end; i++) {
+            char c = json.charAt(i);
+            boolean digit = c >= '0' && c <= '9';
+            allDigits &= digit;
+            allHex &= digit || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+        }
+        return allDigits || (allHex && length == 24);
+    }
+
+    /**
+     * Split a normalized path back into pathMatches segments ("items[]" becomes "items", null).
+     */
+    private static String[] parsePath(String path) {
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        List<String> segments = new ArrayList<>();
+        for (String part : path.split("\\.")) {
+            String name = part;
+            int arrays = 0;
+            while (name.endsWith("[]")) {
+                name = name.substring(0, name.length() - 2);
+                arrays++;
+            }
+            if (!name.isEmpty()) {
+                segments.add(name);
+            } else if (segments.isEmpty()) {
+                return null;
+            }
+            for (int i = 0; i < arrays; i++) {
+                segments.add(null);
+            }
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    private void recordLayoutFacts(Frame frame) {
+        if (depth == 2 && pathIs("note", "noteDetailMap")) {
+            noteHasDetailMap = true;
+        } else if (depth == 2 && pathIs("note", "note")) {
+            noteHasNote = true;
+        } else if (depth == 2 && pathIs("note", "feed")) {
+            noteHasFeed = true;
+        } else if (depth == 3 && pathIs("noteData", "data", "noteData")) {
+            dataHasNoteData = true;
+        }
+    }
+
+    private int matchLayout(Frame frame) {
+        switch (depth) {
+            case 1:
+                return pathIs("note") ? LAYOUT_NOTE : -1;
+            case 2:
+                return pathIs("note", "note") ? LAYOUT_NOTE_NOTE : -1;
+            case 3:
+                if (pathIs("feed", "items", null)) {
+                    return LAYOUT_FEED;
+                }
+                if (pathIs("noteData", "data", "noteData")) {
+                    return LAYOUT_NOTE_DATA;
+                }
+                if (pathIs("noteData", "data", "note")) {
+                    return LAYOUT_NOTE_DATA_NOTE;
+                }
+                return -1;
+            case 4:
+                if (pathIs("note", "noteDetailMap", "*", "note")) {
+                    return LAYOUT_NOTE_DETAIL_MAP;
+                }
+                if (pathIs("note", "feed", "items", null)) {
+                    return LAYOUT_NOTE_FEED;
+                }
+                return -1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Match the keys leading from the root to the current frame.
+     * A name matches an object member with that key, "*" any object member and null any array element.
+     */
+    private boolean pathIs(String... names) {
+        return pathMatches(names, names.length);
+    }
+
+    /**
+     * Match the first {@code count} names against the current frame, which must be at that depth.
+     */
+    private boolean pathMatches(String[] names, int count) {
+        if (count != depth) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            Frame frame = stack[i + 1];
+            String name = names[i];
+            if (name == null) {
+                if (frame.indexInParent < 0) {
+                    return false;
+                }
+            } else {
+                if (frame.indexInParent >= 0) {
+                    return false;
+                }
+                if (!"*".equals(name) && !frameKeyIs(frame, name)) {
+                    return false;
+                }
+            }
+            // Every step except array elements has to be an object, like the optJSONObject calls in the tree walk
+            boolean nextIsElement = i + 1 < names.length && names[i + 1] == null;
+            if (frame.array != nextIsElement) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Result collectLearnedNotes() throws JSONException {
+        List<JSONObject> notes = new ArrayList<>();
+        Set<String> seenNoteIds = new HashSet<>();
+        Set<Candidate> added = new HashSet<>();
+        for (Candidate candidate : learnedHits) {
+            addCandidate(candidate, notes, seenNoteIds, added);
+        }
+        return new Result(notes, learnedHits.get(0).path, true);
+    }
+
+    private Result collectNotes() throws JSONException {
+        List<Candidate> ordered = new ArrayList<>();
+        if (noteHasDetailMap) {
+            ordered.addAll(layoutCandidates[LAYOUT_NOTE_DETAIL_MAP]);
+        } else if (noteHasNote) {
+            ordered.addAll(layoutCandidates[LAYOUT_NOTE_NOTE]);
+        } else if (noteHasFeed) {
+            ordered.addAll(layoutCandidates[LAYOUT_NOTE_FEED]);
+        } else {
+            ordered.addAll(layoutCandidates[LAYOUT_NOTE]);
+        }
+        ordered.addAll(layoutCandidates[LAYOUT_FEED]);
+        ordered.addAll(layoutCandidates[dataHasNoteData ? LAYOUT_NOTE_DATA : LAYOUT_NOTE_DATA_NOTE]);
+
+        List<JSONObject> notes = new ArrayList<>();
+        Set<String> seenNoteIds = new HashSet<>();
+        Set<Candidate> added = new HashSet<>();
+        boolean hasLikely = false;
+        String notePath = null;
+        for (Candidate candidate : ordered) {
+            if (addCandidate(candidate, notes, seenNoteIds, added)) {
+                hasLikely |= candidate.likely || candidate.hasMediaField();
+                if (notePath == null && candidate.likely) {
+                    notePath = candidate.path;
+                }
+            }
+        }
+
+        // Last resort: notes found anywhere in the state
+        if (notes.isEmpty() || !hasLikely) {
+            for (Candidate candidate : deepCandidates) {
+                if (notes.size() >= MAX_DEEP_SCAN_NOTES) {
+                    break;
+                }
+                if (addCandidate(candidate, notes, seenNoteIds, added) && notePath == null) {
+                    notePath = candidate.path;
+                }
+            }
+        }
+        return new Result(notes, notePath, false);
+    }
+
+    private boolean addCandidate(Candidate candidate, List<JSONObject> notes, Set<String> seenNoteIds,
+                                 Set<Candidate> added) throws JSONException {
+        // Avoid empty placeholder objects (these break extraction and block better candidates).
+        if (!candidate.hasKeys || !added.add(candidate)) {
+            return false;
+        }
+        JSONObject note = candidate.materialize(json);
+        String noteId = note.optString("noteId", "");
+        if (!noteId.isEmpty() && !seenNoteIds.add(noteId)) {
+            return false;
+        }
+        notes.add(note);
+        return true;
+    }
+
+    private Frame parentOf(Frame frame) {
+        return frame == stack[0] ? null : stack[depth - 1];
+    }
+
+    private boolean frameKeyIs(Frame frame, String name) {
+        return frame.keyStart >= 0 && keyEquals(frame.keyStart, frame.keyEnd, name);
+    }
+
+    private boolean keyEquals(int start, int end, String name) {
+        return end - start == name.length() && json.regionMatches(start, name, 0, name.length());
+    }
+
+    private int noteField(int start, int end) {
+        for (int i = 0; i < NOTE_FIELDS.length; i++) {
+            if (keyEquals(start, end, NOTE_FIELDS[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean containsMediaHint(int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = json.charAt(i);
+            if (c != 'x' && c != '.') {
+                continue;
+            }
+            for (String hint : MEDIA_HINTS) {
+                if (i + hint.length() <= end && json.regionMatches(i, hint, 0, hint.length())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private char peek() {
+        if (pos >= json.length()) {
+            throw new MalformedStateException();
+        }
+        return json.charAt(pos);
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * @param start Offset of the opening quote
+     * @return Offset just past the closing quote
+     */
+    private int skipString(int start) {
+        char quote = json.charAt(start);
+        int i = start + 1;
+        int length = json.length();
+        while (i < length) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        throw new MalformedStateException();
+    }
+
+    private void skipLiteral() {
+        int start = pos;
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                break;
+            }
+            pos++;
+        }
+        if (pos == start) {
+            throw new MalformedStateException();
+        }
+    }
+
+    private static final byte STATE_ABSENT = 0;
+    private static final byte STATE_YES = 1;
+    private static final byte STATE_NO = 2;
+
+    /**
+     * One open object or array. Frames are reused between siblings, so nothing here outlives the container.
+     */
+    private static final class Frame {
+        boolean array;
+        // Member name in the parent object, -1 for array elements and the root
+        int keyStart;
+        int keyEnd;
+        // Position in the parent array, -1 otherwise
+        int indexInParent;
+        boolean hasKeys;
+        int elementCount;
+
+        // Inputs of isLikelyNoteObject
+        boolean hasImageUrlKey;
+        boolean hasVideoSourceKey;
+        byte firstElementState;
+        byte imageListState;
+        byte imagesState;
+        byte videoState;
+
+        int fieldMask;
+        final int[] fieldSpans = new int[NOTE_FIELDS.length * 2];
+        int[] extras;
+        int extraCount;
+
+        void reset(boolean array, int keyStart, int keyEnd, int indexInParent) {
+            this.array = array;
+            this.keyStart = keyStart;
+            this.keyEnd = keyEnd;
+            this.indexInParent = indexInParent;
+            hasKeys = false;
+            elementCount = 0;
+            hasImageUrlKey = false;
+            hasVideoSourceKey = false;
+            firstElementState = STATE_ABSENT;
+            imageListState = STATE_ABSENT;
+            imagesState = STATE_ABSENT;
+            videoState = STATE_ABSENT;
+            fieldMask = 0;
+            extraCount = 0;
+        }
+
+        void setField(int field, int valueStart, int valueEnd) {
+            fieldMask |= 1 << field;
+            fieldSpans[field * 2] = valueStart;
+            fieldSpans[field * 2 + 1] = valueEnd;
+        }
+
+        void addExtra(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+            if (extras == null) {
+                extras = new int[8];
+            } else if (extras.length < (extraCount + 1) * 4) {
+                int[] grown = new int[extras.length * 2];
+                System.arraycopy(extras, 0, grown, 0, extraCount * 4);
+                extras = grown;
+            }
+            int base = extraCount * 4;
+            extras[base] = keyStart;
+            extras[base + 1] = keyEnd;
+            extras[base + 2] = valueStart;
+            extras[base + 3] = valueEnd;
+            extraCount++;
+        }
+
+        boolean isLikelyNote() {
+            if (imageListState != STATE_ABSENT) {
+                return imageListState == STATE_YES;
+            }
+            if (imagesState != STATE_ABSENT) {
+                return imagesState == STATE_YES;
+            }
+            return videoState == STATE_YES;
+        }
+    }
+
+    /**
+     * Spans of a note-shaped object, copied out of its frame when the object closes.
+     */
+    private static final class Candidate {
+        final String path;
+        final boolean hasKeys;
+        final boolean likely;
+        final int fieldMask;
+        final int[] fieldSpans;
+        final int[] extras;
+
+        Candidate(Frame frame, String path) {
+            this.path = path;
+            hasKeys = frame.hasKeys;
+            likely = frame.isLikelyNote();
+            fieldMask = frame.fieldMask;
+            fieldSpans = frame.fieldSpans.clone();
+            extras = frame.extraCount > 0 ? Arrays.copyOf(frame.extras, frame.extraCount * 4) : null;
+        }
+
+        boolean hasMediaField() {
+            int media = (1 << FIELD_IMAGE_LIST) | (1 << FIELD_IMAGES) | (1 << FIELD_VIDEO);
+            return (fieldMask & media) != 0;
+        }
+
+        JSONObject materialize(String json) throws JSONException {
+            JSONObject note = new JSONObject();
+            for (int field = 0; field < NOTE_FIELDS.length; field++) {
+                if ((fieldMask & (1 << field)) != 0) {
+                    note.put(NOTE_FIELDS[field], valueAt(json, fieldSpans[field * 2], fieldSpans[field * 2 + 1]));
+                }
+            }
+            if (extras != null) {
+                for (int i = 0; i < extras.length; i += 4) {
+                    note.put(json.substring(extras[i], extras[i + 1]), valueAt(json, extras[i + 2], extras[i + 3]));
+                }
+            }
+            return note;
+        }
+
+        private static Object valueAt(String json, int start, int end) throws JSONException {
+            return new JSONTokener(json.substring(start, end)).nextValue();
+        }
+    }
+
+    private static final class MalformedStateException extends RuntimeException {
+        MalformedStateException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Unwinds the reader once the notes at the learned path are complete.
+     */
+    private static final class LearnedPathComplete extends RuntimeException {
+        LearnedPathComplete() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Tree walk over a fully parsed state, for text that {@link #readNotes(String)} cannot handle.
+     */
+    static List<JSONObject> findNoteObjects(JSONObject root) {
+        List<JSONObject> notes = new ArrayList<>();
+        Set<String> seenNoteIds = new HashSet<>();
+
+        try {
+            // 1) Legacy: root.note.noteDetailMap[*].note
+            if (root.has("note") && root.get("note") instanceof JSONObject) {
+                JSONObject noteRoot = root.getJSONObject("note");
+
+                if (noteRoot.has("noteDetailMap") && noteRoot.get("noteDetailMap") instanceof JSONObject) {
+                    JSONObject noteDetailMap = noteRoot.getJSONObject("noteDetailMap");
+                    JSONArray keys = noteDetailMap.names();
+                    if (keys != null) {
+                        for (int i = 0; i < keys.length(); i++) {
+                            String key = keys.getString(i);
+                            JSONObject noteData = noteDetailMap.optJSONObject(key);
+                            if (noteData != null) {
+                                JSONObject note = noteData.optJSONObject("note");
+                                addNoteCandidate(note, notes, seenNoteIds);
+                            }
+                        }
+                    }
+                } else if (noteRoot.has("note") && noteRoot.get("note") instanceof JSONObject) {
+                    addNoteCandidate(noteRoot.getJSONObject("note"), notes, seenNoteIds);
+                } else if (noteRoot.has("feed") && noteRoot.get("feed") instanceof JSONObject) {
+                    JSONObject feed = noteRoot.getJSONObject("feed");
+                    JSONArray items = feed.optJSONArray("items");
+                    if (items != null) {
+                        for (int i = 0; i < items.length(); i++) {
+                            JSONObject note = items.optJSONObject(i);
+                            addNoteCandidate(note, notes, seenNoteIds);
+                        }
+                    }
+                } else {
+                    // Some pages embed the note directly under root.note
+                    addNoteCandidate(noteRoot, notes, seenNoteIds);
+                }
+            }
+
+            // 2) Legacy: root.feed.items[*]
+            if (root.has("feed") && root.get("feed") instanceof JSONObject) {
+                JSONObject feed = root.getJSONObject("feed");
+                JSONArray items = feed.optJSONArray("items");
+                if (items != null) {
+                    for (int i = 0; i < items.length(); i++) {
+                        JSONObject note = items.optJSONObject(i);
+                        addNoteCandidate(note, notes, seenNoteIds);
+                    }
+                }
+            }
+
+            // 3) Newer: root.noteData.data.noteData
+            if (root.has("noteData") && root.get("noteData") instanceof JSONObject) {
+                JSONObject noteDataRoot = root.getJSONObject("noteData");
+                JSONObject data = noteDataRoot.optJSONObject("data");
+                if (data != null) {
+                    JSONObject note = data.optJSONObject("noteData");
+                    if (note == null) {
+                        // Some variants may use a different key under data.
+                        note = data.optJSONObject("note");
+                    }
+                    addNoteCandidate(note, notes, seenNoteIds);
+                }
+            }
+
+            // 4) Last resort: deep scan for a note-like object anywhere.
+            boolean hasLikely = false;
+            for (JSONObject n : notes) {
+                if (isLikelyNoteObject(n) || n.has("imageList") || n.has("images") || n.has("video")) {
+                    hasLikely = true;
+                    break;
+                }
+            }
+
+            if (notes.isEmpty() || !hasLikely) {
+                Deque<Object> stack = new ArrayDeque<>();
+                stack.push(root);
+                int visited = 0;
+                int maxVisited = 50000;
+
+                while (!stack.isEmpty() && visited < maxVisited && notes.size() < MAX_DEEP_SCAN_NOTES) {
+                    Object current = stack.pop();
+                    visited++;
+
+                    if (current instanceof JSONObject) {
+                        JSONObject obj = (JSONObject) current;
+
+                        // Prefer unwrapping { note: {...} } when present.
+                        JSONObject innerNote = obj.optJSONObject("note");
+                        if (innerNote != null) {
+                            stack.push(innerNote);
+                        }
+
+                        if (isLikelyNoteObject(obj)) {
+                            addNoteCandidate(obj, notes, seenNoteIds);
+                            if (notes.size() >= MAX_DEEP_SCAN_NOTES) break;
+                        }
+
+                        JSONArray names = obj.names();
+                        if (names != null) {
+                            for (int i = 0; i < names.length(); i++) {
+                                Object v = obj.opt(names.getString(i));
+                                if (v instanceof JSONObject || v instanceof JSONArray) {
+                                    stack.push(v);
+                                }
+                            }
+                        }
+                    } else if (current instanceof JSONArray) {
+                        JSONArray arr = (JSONArray) current;
+                        for (int i = 0; i < arr.length(); i++) {
+                            Object v = arr.opt(i);
+                            if (v instanceof JSONObject || v instanceof JSONArray) {
+                                stack.push(v);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (Exception ignored) {
+            // Keep whatever was found before the unexpected shape
+        }
+
+        return notes;
+    }
+
+    private static boolean isLikelyNoteObject(JSONObject obj) {
+        if (obj == null) return false;
+
+        try {
+            if (obj.has("imageList") && obj.get("imageList") instanceof JSONArray) {
+                JSONArray list = obj.getJSONArray("imageList");
+                if (list.length() > 0 && list.get(0) instanceof JSONObject) {
+                    JSONObject first = list.getJSONObject(0);
+                    return first.has("urlDefault") || first.has("url") || first.has("traceId") || first.has("infoList");
+                }
+            }
+
+            if (obj.has("images") && obj.get("images") instanceof JSONArray) {
+                JSONArray list = obj.getJSONArray("images");
+                if (list.length() > 0 && list.get(0) instanceof JSONObject) {
+                    JSONObject first = list.getJSONObject(0);
+                    return first.has("urlDefault") || first.has("url") || first.has("traceId") || first.has("infoList");
+                }
+            }
+
+            if (obj.has("video") && obj.get("video") instanceof JSONObject) {
+                JSONObject video = obj.getJSONObject("video");
+                return video.has("consumer") || video.has("media");
+            }
+        } catch (Exception ignored) {
+        }
+
+        return false;
+    }
+
+    private static void addNoteCandidate(JSONObject note, List<JSONObject> notes, Set<String> seenNoteIds) {
+        if (note == null) return;
+
+        // Avoid empty placeholder objects (these break extraction and block better candidates).
+        JSONArray names = note.names();
+        if (names == null || names.length() == 0) return;
+
+        String noteId = note.optString("noteId", "");
+        if (!noteId.isEmpty()) {
+            if (!seenNoteIds.add(noteId)) return;
+        }
+        notes.add(note);
+    }
+}
@@ -0,0 +1,49 @@
+package com.neoruaa.xhsdn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable result of fetching and parsing one note page.
+ * Everything the download, media count and description paths need is captured here,
+ * so a note only has to be fetched once per task (see {@link ParsedNoteCache}).
+ */
+final class ParsedNote {
+    final String postId;
+    final List<String> mediaUrls;
+    final List<XHSDownloader.LivePhotoPair> livePhotoPairs;
+    // Transformed media URL -> original CDN URL, used as download fallback
+    final Map<String, String> urlMapping;
+    final XHSDownloader.NoteMetadata metadata;
+    final String description;
+    // A real video (not only live photo streams) was found in the note
+    final boolean containsVideo;
+    final boolean containsLivePhoto;
+    final long parsedAtMillis;
+
+    ParsedNote(String postId,
+               List<String> mediaUrls,
+               List<XHSDownloader.LivePhotoPair> livePhotoPairs,
+               Map<String, String> urlMapping,
+               XHSDownloader.NoteMetadata metadata,
+               String description,
+               boolean containsVideo,
+               boolean containsLivePhoto) {
+        this.postId = postId;
+        this.mediaUrls = Collections.unmodifiableList(new ArrayList<>(mediaUrls));
+        this.livePhotoPairs = Collections.unmodifiableList(new ArrayList<>(livePhotoPairs));
+        this.urlMapping = Collections.unmodifiableMap(new HashMap<>(urlMapping));
+        this.metadata = metadata;
+        this.description = description;
+        this.containsVideo = containsVideo;
+        this.containsLivePhoto = containsLivePhoto;
+        this.parsedAtMillis = System.currentTimeMillis();
+    }
+
+    boolean hasMedia() {
+        return !mediaUrls.isEmpty();
+    }
+}
@@ -0,0 +1,72 @@
+package com.neoruaa.xhsdn;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide, TTL-bounded cache of parsed notes keyed by canonical post ID.
+ * Media count, download and description lookups for the same note share one page fetch.
+ */
+final class ParsedNoteCache {
+    // Signed CDN URLs in the note stay valid far longer than this
+    static final long TTL_MS = 10 * 60 * 1000L;
+    private static final int MAX_ENTRIES = 32;
+
+    private static final LinkedHashMap<String, ParsedNote> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+
+    private ParsedNoteCache() {
+    }
+
+    static synchronized ParsedNote get(String postId) {
+        if (postId == null) {
+            return null;
+        }
+        ParsedNote note = ENTRIES.get(postId);
+        if (note == null) {
+            return null;
+        }
+        if (isExpired(note, System.currentTimeMillis())) {
+            ENTRIES.remove(postId);
+            return null;
+        }
+        return note;
+    }
+
+    static synchronized void put(ParsedNote note) {
+        if (note == null || note.postId == null || !note.hasMedia()) {
+            return;
+        }
+        ENTRIES.put(note.postId, note);
+        evictExpired();
+        while (ENTRIES.size() > MAX_ENTRIES) {
+            Iterator<String> eldest = ENTRIES.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    static synchronized void invalidate(String postId) {
+        if (postId != null) {
+            ENTRIES.remove(postId);
+        }
+    }
+
+    static synchronized void clear() {
+        ENTRIES.clear();
+    }
+
+    private static void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, ParsedNote>> iterator = ENTRIES.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (isExpired(iterator.next().getValue(), now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static boolean isExpired(ParsedNote note, long now) {
+        return now - note.parsedAtMillis > TTL_MS;
+    }
+}
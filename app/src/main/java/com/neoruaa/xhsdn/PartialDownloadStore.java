@@ -0,0 +1,346 @@
+package com.neoruaa.xhsdn;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Staging area for downloads that can be resumed: each partial body lives in filesDir/partial_downloads
+ * next to a small JSON sidecar with its URL, validators (ETag / Last-Modified) and expected length.
+ * The bytes written so far are the length of the data file, so nothing needs updating while data arrives.
+ * Entries survive cancellation and process death; a later attempt at the same URL resumes with Range/If-Range.
+ * A segmented download (see {@link SegmentedDownloader}) is staged as a ranged entry instead: its data file
+ * has the full length from the start and the sidecar lists the byte ranges that are still missing.
+ * An entry is written by one transfer at a time: {@link #begin} and {@link #acquire} hand it out, and it
+ * stays taken until it is completed, discarded or released, so two downloads of the same asset (the same
+ * link pasted twice) cannot truncate each other's bytes.
+ */
+final class PartialDownloadStore {
+    private static final String TAG = "PartialDownloadStore";
+    private static final String DIR_NAME = "partial_downloads";
+    private static final String DATA_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".json";
+    // Bodies smaller than this are cheaper to refetch than to stage and copy
+    static final long MIN_RESUMABLE_BYTES = 1024 * 1024;
+    private static final long MAX_AGE_MS = 3 * 24 * 60 * 60 * 1000L;
+
+    private static PartialDownloadStore instance;
+
+    private final File dir;
+    // The entries a transfer is writing, by key
+    private final Map<String, Entry> activeEntries = new HashMap<>();
+
+    static final class Entry {
+        final String url;
+        final String etag;
+        final String lastModified;
+        final long contentLength;
+        final File dataFile;
+        final File metaFile;
+        // Only for ranged entries: the extension of the file and the inclusive {start, end} ranges not written yet
+        final String extension;
+        final List<long[]> missingRanges;
+
+        Entry(String url, String etag, String lastModified, long contentLength, File dataFile, File metaFile) {
+            this(url, etag, lastModified, contentLength, dataFile, metaFile, null, null);
+        }
+
+        Entry(String url, String etag, String lastModified, long contentLength, File dataFile, File metaFile,
+              String extension, List<long[]> missingRanges) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentLength = contentLength;
+            this.dataFile = dataFile;
+            this.metaFile = metaFile;
+            this.extension = extension;
+            this.missingRanges = missingRanges;
+        }
+
+        boolean isRanged() {
+            return missingRanges != null;
+        }
+
+        /**
+         * @return The length of the data file; for a ranged entry that is the full length, not the bytes received
+         */
+        long bytesWritten() {
+            return dataFile.length();
+        }
+
+        /**
+         * @return The If-Range value: a strong ETag if there is one, otherwise Last-Modified
+         */
+        String ifRangeValidator() {
+            return isStrongEtag(etag) ? etag : lastModified;
+        }
+    }
+
+    PartialDownloadStore(File dir) {
+        this.dir = dir;
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create " + dir.getAbsolutePath());
+        }
+        purgeStale();
+    }
+
+    static synchronized PartialDownloadStore get(Context context) {
+        if (instance == null) {
+            instance = new PartialDownloadStore(new File(context.getApplicationContext().getFilesDir(), DIR_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * Whether a response can be resumed later: the server must give a validator for If-Range.
+     */
+    static boolean isResumable(long contentLength, String etag, String lastModified) {
+        return contentLength >= MIN_RESUMABLE_BYTES && (isStrongEtag(etag) || lastModified != null);
+    }
+
+    private static boolean isStrongEtag(String etag) {
+        return etag != null && !etag.startsWith("W/");
+    }
+
+    /**
+     * @return The partial download for this URL with at least one byte written, or null; also null while
+     *         a transfer is writing it
+     */
+    synchronized Entry find(String url) {
+        String key = keyFor(url);
+        if (activeEntries.containsKey(key)) {
+            return null;
+        }
+        File metaFile = new File(dir, key + META_SUFFIX);
+        File dataFile = new File(dir, key + DATA_SUFFIX);
+        if (!metaFile.exists()) {
+            return null;
+        }
+        try {
+            JSONObject meta = new JSONObject(readText(metaFile));
+            JSONArray missing = meta.optJSONArray("missing");
+            Entry entry = new Entry(meta.optString("url", ""),
+                    meta.isNull("etag") ? null : meta.optString("etag", null),
+                    meta.isNull("lastModified") ? null : meta.optString("lastModified", null),
+                    meta.optLong("contentLength", -1), dataFile, metaFile,
+                    meta.isNull("extension") ? null : meta.optString("extension", null),
+                    missing != null ? readRanges(missing) : null);
+            long written = entry.bytesWritten();
+            boolean usable = entry.isRanged()
+                    ? written == entry.contentLength && !entry.missingRanges.isEmpty()
+                    : written > 0 && written < entry.contentLength;
+            if (!url.equals(entry.url) || !usable || entry.ifRangeValidator() == null) {
+                delete(entry);
+                return null;
+            }
+            return entry;
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Dropping unreadable partial download: " + e.getMessage());
+            metaFile.delete();
+            dataFile.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Take the partial download for this URL to resume it. The caller must {@link #complete}, {@link #discard}
+     * or {@link #release} it.
+     * @return The entry, or null if there is none or another transfer is writing it
+     */
+    synchronized Entry acquire(String url) {
+        Entry entry = find(url);
+        if (entry != null) {
+            activeEntries.put(keyFor(url), entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Start staging a new body for this URL, replacing any previous partial. The caller must
+     * {@link #complete}, {@link #discard} or {@link #release} the entry.
+     * @return The entry, or null if another transfer is staging this URL
+     */
+    synchronized Entry begin(String url, String etag, String lastModified, long contentLength) throws IOException {
+        return begin(url, etag, lastModified, contentLength, null, null);
+    }
+
+    /**
+     * Start staging a segmented download of this URL, replacing any previous partial.
+     * @param ranges The inclusive {start, end} ranges the download will fetch
+     * @return The entry, or null if another transfer is staging this URL
+     */
+    synchronized Entry beginRanged(String url, String etag, String lastModified, long contentLength,
+                                   String extension, List<long[]> ranges) throws IOException {
+        return begin(url, etag, lastModified, contentLength, extension, new ArrayList<>(ranges));
+    }
+
+    /**
+     * Record which ranges of a ranged entry are still missing, so a later attempt fetches only those.
+     */
+    synchronized void saveRanges(Entry entry, List<long[]> missingRanges) throws IOException {
+        if (activeEntries.get(keyFor(entry.url)) != entry) {
+            return;
+        }
+        writeMeta(new Entry(entry.url, entry.etag, entry.lastModified, entry.contentLength, entry.dataFile,
+                entry.metaFile, entry.extension, missingRanges));
+    }
+
+    private Entry begin(String url, String etag, String lastModified, long contentLength,
+                        String extension, List<long[]> ranges) throws IOException {
+        String key = keyFor(url);
+        if (activeEntries.containsKey(key)) {
+            return null;
+        }
+        Entry entry = new Entry(url, etag, lastModified, contentLength,
+                new File(dir, key + DATA_SUFFIX), new File(dir, key + META_SUFFIX), extension, ranges);
+        delete(entry);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir.getAbsolutePath());
+        }
+        writeMeta(entry);
+        if (!entry.dataFile.createNewFile()) {
+            throw new IOException("Cannot create " + entry.dataFile.getAbsolutePath());
+        }
+        activeEntries.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Hand over a fully written body. The sidecar is removed; the caller moves or deletes the data file.
+     */
+    synchronized File complete(Entry entry) {
+        entry.metaFile.delete();
+        release(entry);
+        return entry.dataFile;
+    }
+
+    synchronized void discard(Entry entry) {
+        Log.d(TAG, "Discarding partial download of " + entry.url);
+        delete(entry);
+        release(entry);
+    }
+
+    /**
+     * Stop writing an entry and keep it for a later attempt. Does nothing if it was completed or discarded.
+     */
+    synchronized void release(Entry entry) {
+        activeEntries.remove(keyFor(entry.url), entry);
+    }
+
+    /**
+     * Remove entries that have not been written to recently, and data files without a sidecar.
+     */
+    synchronized void purgeStale() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String name = file.getName();
+            if (activeEntries.containsKey(name.substring(0, Math.max(0, name.lastIndexOf('.'))))) {
+                continue;
+            }
+            if (name.endsWith(DATA_SUFFIX)) {
+                File metaFile = new File(dir, name.substring(0, name.length() - DATA_SUFFIX.length()) + META_SUFFIX);
+                // The data file is touched by every write, so it tells when the entry was last used
+                if (!metaFile.exists() || now - file.lastModified() > MAX_AGE_MS) {
+                    file.delete();
+                    metaFile.delete();
+                }
+            } else if (name.endsWith(META_SUFFIX)) {
+                File dataFile = new File(dir, name.substring(0, name.length() - META_SUFFIX.length()) + DATA_SUFFIX);
+                if (!dataFile.exists() && now - file.lastModified() > MAX_AGE_MS) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static void writeMeta(Entry entry) throws IOException {
+        try {
+            JSONObject meta = new JSONObject();
+            meta.put("url", entry.url);
+            meta.put("etag", entry.etag != null ? entry.etag : JSONObject.NULL);
+            meta.put("lastModified", entry.lastModified != null ? entry.lastModified : JSONObject.NULL);
+            meta.put("contentLength", entry.contentLength);
+            if (entry.isRanged()) {
+                meta.put("extension", entry.extension != null ? entry.extension : JSONObject.NULL);
+                JSONArray missing = new JSONArray();
+                for (long[] range : entry.missingRanges) {
+                    missing.put(new JSONArray().put(range[0]).put(range[1]));
+                }
+                meta.put("missing", missing);
+            }
+            writeText(entry.metaFile, meta.toString());
+        } catch (JSONException e) {
+            throw new IOException("Cannot write sidecar: " + e.getMessage());
+        }
+    }
+
+    private static List<long[]> readRanges(JSONArray array) throws JSONException {
+        List<long[]> ranges = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONArray range = array.getJSONArray(i);
+            ranges.add(new long[]{range.getLong(0), range.getLong(1)});
+        }
+        return Collections.unmodifiableList(ranges);
+    }
+
+    private static void delete(Entry entry) {
+        entry.dataFile.delete();
+        entry.metaFile.delete();
+    }
+
+    private static String keyFor(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private static String readText(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read == -1) {
+                    break;
+                }
+                offset += read;
+            }
+            return new String(bytes, 0, offset, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void writeText(File file, String text) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
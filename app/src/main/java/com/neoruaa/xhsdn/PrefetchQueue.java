@@ -0,0 +1,88 @@
+package com.neoruaa.xhsdn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the items of a list ahead of the consumer on a shared executor, at most {@code window} items past
+ * the one being consumed. Items must be taken in order; taking one lets the next item past the window
+ * start, so a slow consumer holds the loaders back instead of piling up results.
+ */
+final class PrefetchQueue<T> implements AutoCloseable {
+    interface Loader<T> {
+        T load(int index) throws Exception;
+    }
+
+    private final int count;
+    private final int window;
+    private final Loader<T> loader;
+    private final ExecutorService executor;
+    private final List<Future<T>> futures;
+    private int nextToTake = 0;
+
+    /**
+     * @param count    Number of items
+     * @param window   How many items may be loaded ahead of the one being taken
+     * @param executor Runs the loaders; shared with other queues, it bounds how many load at once
+     */
+    PrefetchQueue(int count, int window, ExecutorService executor, Loader<T> loader) {
+        this.count = count;
+        this.window = Math.max(0, window);
+        this.loader = loader;
+        this.executor = executor;
+        this.futures = new ArrayList<>(count);
+        for (int i = 0; i < count && i <= this.window; i++) {
+            submit(i);
+        }
+    }
+
+    private void submit(int index) {
+        futures.add(executor.submit(() -> loader.load(index)));
+    }
+
+    /**
+     * Wait for the next item in order.
+     * @throws ExecutionException If the loader threw; the following items are still available
+     */
+    T take() throws InterruptedException, ExecutionException {
+        if (nextToTake >= count) {
+            throw new IllegalStateException("No more items");
+        }
+        int index = nextToTake;
+        if (index == futures.size()) {
+            // Only with a window of 0: nothing is loaded ahead
+            submit(index);
+        }
+        T item;
+        try {
+            item = futures.get(index).get();
+        } catch (ExecutionException e) {
+            advance(index);
+            throw e;
+        }
+        advance(index);
+        return item;
+    }
+
+    private void advance(int index) {
+        nextToTake = index + 1;
+        // The consumer moved on, so one more item may start loading
+        int ahead = index + window;
+        if (ahead < count && ahead == futures.size()) {
+            submit(ahead);
+        }
+    }
+
+    /**
+     * Stop loading. Loaders still running are interrupted; the executor itself is left running.
+     */
+    @Override
+    public void close() {
+        for (int i = nextToTake; i < futures.size(); i++) {
+            futures.get(i).cancel(true);
+        }
+    }
+}
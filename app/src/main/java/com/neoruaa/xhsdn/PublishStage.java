@@ -0,0 +1,67 @@
+package com.neoruaa.xhsdn;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The finishing work of one download's notes (muxing live photos, publishing to the gallery), run on a
+ * shared executor so the note loop can start the next note's transfers in the meantime. At most
+ * {@code backlog} pieces of work of one download are queued or running; queueing another waits for the
+ * oldest, so downloaded files do not pile up behind a slow muxer. Not thread-safe: meant for the note loop.
+ */
+final class PublishStage {
+    private static final String TAG = "PublishStage";
+
+    private final ExecutorService executor;
+    private final int backlog;
+    private final ArrayDeque<Future<Boolean>> pending = new ArrayDeque<>();
+    private boolean hasErrors;
+
+    /**
+     * @param executor Runs the work; shared with other downloads, it bounds how much runs at once
+     * @param backlog  How many pieces of work of this download may be queued or running
+     */
+    PublishStage(ExecutorService executor, int backlog) {
+        this.executor = executor;
+        this.backlog = Math.max(1, backlog);
+    }
+
+    /**
+     * Queue a piece of work, first waiting for the oldest one if the backlog is full.
+     * @param work Returns whether it had errors
+     */
+    void submit(Callable<Boolean> work) throws InterruptedException {
+        while (pending.size() >= backlog) {
+            collectOldest();
+        }
+        pending.add(executor.submit(work));
+    }
+
+    /**
+     * Wait for all queued work.
+     * @return Whether any work of this stage had errors
+     */
+    boolean await() throws InterruptedException {
+        while (!pending.isEmpty()) {
+            collectOldest();
+        }
+        return hasErrors;
+    }
+
+    private void collectOldest() throws InterruptedException {
+        Future<Boolean> oldest = pending.peek();
+        try {
+            hasErrors |= oldest.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error finishing a note: " + e.getCause());
+            hasErrors = true;
+        }
+        // Only once it is done: if the wait was interrupted the work is still pending
+        pending.poll();
+    }
+}
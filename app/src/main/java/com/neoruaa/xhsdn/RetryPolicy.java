@@ -0,0 +1,140 @@
+package com.neoruaa.xhsdn;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed media download is tried again from the same URL, and after how long.
+ * Returning -1 moves on to the next candidate URL.
+ */
+interface RetryPolicy {
+    /**
+     * @param failure What went wrong; null if the downloader could not tell
+     * @param attempt The attempt that just failed, starting at 1
+     * @return Milliseconds to wait before the next attempt at the same URL, or -1 to give up on it
+     */
+    long retryDelayMs(Failure failure, int attempt);
+
+    enum Kind {
+        // Retrying the same URL will not help: 404, 403, a non-media body...
+        PERMANENT,
+        // The server asked us to slow down: 429, or 503 with Retry-After
+        THROTTLED,
+        // Timeouts, resets, 5xx
+        TRANSIENT
+    }
+
+    final class Failure {
+        final Kind kind;
+        // From Retry-After, or -1
+        final long retryAfterMs;
+        final String detail;
+
+        Failure(Kind kind, long retryAfterMs, String detail) {
+            this.kind = kind;
+            this.retryAfterMs = retryAfterMs;
+            this.detail = detail;
+        }
+
+        static Failure ofResponse(int code, String retryAfter, long now) {
+            long retryAfterMs = parseRetryAfter(retryAfter, now);
+            Kind kind;
+            if (code == 429 || (code == 503 && retryAfterMs >= 0)) {
+                kind = Kind.THROTTLED;
+            } else if (code >= 500 || code == 408 || code == 416) {
+                // A 416 drops the stale partial body, so the next attempt starts over
+                kind = Kind.TRANSIENT;
+            } else if (code >= 400) {
+                kind = Kind.PERMANENT;
+            } else {
+                kind = Kind.TRANSIENT;
+            }
+            return new Failure(kind, retryAfterMs, "HTTP " + code);
+        }
+
+        static Failure nonMedia(String contentType) {
+            return new Failure(Kind.PERMANENT, -1, "non-media " + contentType);
+        }
+
+        static Failure ofException(IOException e) {
+            return new Failure(Kind.TRANSIENT, -1, e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+
+        /**
+         * Of two failures (e.g. of candidates raced together), the one that allows the soonest retry.
+         */
+        static Failure mostRetryable(Failure a, Failure b) {
+            if (a == null || b == null) {
+                return a != null ? a : b;
+            }
+            return b.kind.ordinal() > a.kind.ordinal() ? b : a;
+        }
+
+        /**
+         * @return The delay in Retry-After (delta-seconds or an HTTP date), or -1 if absent or unreadable
+         */
+        static long parseRetryAfter(String value, long now) {
+            if (value == null || value.trim().isEmpty()) {
+                return -1;
+            }
+            String trimmed = value.trim();
+            try {
+                return Math.max(0, Long.parseLong(trimmed) * 1000L);
+            } catch (NumberFormatException ignored) {
+            }
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                Date date = format.parse(trimmed);
+                return Math.max(0, date.getTime() - now);
+            } catch (ParseException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return kind + " (" + detail + ")";
+        }
+    }
+
+    /**
+     * Exponential backoff with full jitter: the n-th retry waits a random time up to base * 2^(n-1),
+     * capped. Throttled responses wait at least what Retry-After asks, unless that is longer than
+     * {@code maxRetryAfterMs}, in which case another candidate is a better bet.
+     */
+    final class ExponentialBackoff implements RetryPolicy {
+        private final int maxAttempts;
+        private final long baseDelayMs;
+        private final long maxDelayMs;
+        private final long maxRetryAfterMs;
+
+        ExponentialBackoff(int maxAttempts, long baseDelayMs, long maxDelayMs, long maxRetryAfterMs) {
+            this.maxAttempts = maxAttempts;
+            this.baseDelayMs = baseDelayMs;
+            this.maxDelayMs = maxDelayMs;
+            this.maxRetryAfterMs = maxRetryAfterMs;
+        }
+
+        @Override
+        public long retryDelayMs(Failure failure, int attempt) {
+            if (attempt >= maxAttempts || (failure != null && failure.kind == Kind.PERMANENT)) {
+                return -1;
+            }
+            long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 1, 20));
+            long jittered = ThreadLocalRandom.current().nextLong(ceiling + 1);
+            if (failure != null && failure.kind == Kind.THROTTLED && failure.retryAfterMs >= 0) {
+                if (failure.retryAfterMs > maxRetryAfterMs) {
+                    return -1;
+                }
+                return Math.max(failure.retryAfterMs, jittered);
+            }
+            return jittered;
+        }
+    }
+}
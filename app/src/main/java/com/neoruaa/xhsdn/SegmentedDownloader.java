@@ -0,0 +1,319 @@
+package com.neoruaa.xhsdn;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+/**
+ * Downloads one large file over several connections: the body is split into byte ranges that are fetched
+ * in parallel and written at their offsets into a preallocated file. Meant for the video originals, which
+ * are slow over a single connection; a server that does not honour a range makes the download fail so the
+ * caller can fall back to a single stream. The ranges are queued on {@link MediaDownloadScheduler} with
+ * the task's other transfers, so they stay within its overall and per-host limits. A download that breaks
+ * off reports the ranges it did not finish, so only those need fetching again.
+ */
+final class SegmentedDownloader {
+    private static final String TAG = "SegmentedDownloader";
+    static final String PREF_THRESHOLD_MB = "segmented_download_threshold_mb";
+    // Files at least this large are segmented; 0 turns segmenting off
+    static final int DEFAULT_THRESHOLD_MB = 16;
+    private static final long MIN_SEGMENT_BYTES = 4L * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 4;
+    private static final long PROGRESS_STEP_BYTES = 256 * 1024;
+    // How often the missing ranges are handed to Listener.onCheckpoint while data arrives
+    private static final long CHECKPOINT_STEP_BYTES = 4L * 1024 * 1024;
+
+    private final OkHttpClient client;
+    private final MediaDownloadScheduler scheduler;
+    private final MediaDownloadScheduler.Task task;
+    private final Set<Call> calls = ConcurrentHashMap.newKeySet();
+
+    interface Listener {
+        void onProgress(long downloaded, long total);
+
+        boolean isCancelled();
+
+        /**
+         * Called every few MB and once more when the download stops, from any thread.
+         * @param missingRanges The inclusive {start, end} ranges not written yet
+         */
+        void onCheckpoint(List<long[]> missingRanges);
+    }
+
+    /**
+     * What a HEAD request says about a URL.
+     */
+    static final class Probe {
+        final long contentLength;
+        final boolean acceptsRanges;
+        final String contentType;
+        final String etag;
+        final String lastModified;
+
+        Probe(long contentLength, boolean acceptsRanges, String contentType, String etag, String lastModified) {
+            this.contentLength = contentLength;
+            this.acceptsRanges = acceptsRanges;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Read the same facts from the headers of a response to a full GET.
+         */
+        static Probe of(Response response) {
+            return new Probe(parseLength(response.header("Content-Length")),
+                    "bytes".equalsIgnoreCase(response.header("Accept-Ranges", "")),
+                    response.header("Content-Type", ""), response.header("ETag"), response.header("Last-Modified"));
+        }
+    }
+
+    /**
+     * @param task The scheduler task the ranges are queued under, i.e. that of the whole download
+     */
+    SegmentedDownloader(OkHttpClient client, MediaDownloadScheduler scheduler, MediaDownloadScheduler.Task task) {
+        this.client = client;
+        this.scheduler = scheduler;
+        this.task = task;
+    }
+
+    /**
+     * Only videos are worth the extra HEAD request; images are a few hundred KB at most.
+     */
+    static boolean isCandidate(String url) {
+        return url != null && (url.contains("sns-video") || url.contains(".mp4") || url.contains(".mov"));
+    }
+
+    /**
+     * Split a body into ranges of at least {@link #MIN_SEGMENT_BYTES}, at most {@link #MAX_SEGMENTS} of them.
+     * @return Inclusive {start, end} pairs covering the whole body
+     */
+    static List<long[]> planSegments(long contentLength) {
+        int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, contentLength / MIN_SEGMENT_BYTES));
+        long size = (contentLength + count - 1) / count;
+        List<long[]> segments = new ArrayList<>(count);
+        for (long start = 0; start < contentLength; start += size) {
+            segments.add(new long[]{start, Math.min(contentLength, start + size) - 1});
+        }
+        return segments;
+    }
+
+    /**
+     * @return The total number of bytes in inclusive {start, end} ranges
+     */
+    static long bytesIn(List<long[]> ranges) {
+        long bytes = 0;
+        for (long[] range : ranges) {
+            bytes += range[1] - range[0] + 1;
+        }
+        return bytes;
+    }
+
+    private static long parseLength(String lengthHeader) {
+        if (lengthHeader != null) {
+            try {
+                return Long.parseLong(lengthHeader.trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The probe result, or null if the server did not answer the HEAD request successfully
+     */
+    Probe probe(Request request) throws IOException {
+        Call call = client.newCall(request.newBuilder().head().build());
+        calls.add(call);
+        try (Response response = HttpCalls.awaitResponse(call)) {
+            return response.isSuccessful() ? Probe.of(response) : null;
+        } finally {
+            calls.remove(call);
+        }
+    }
+
+    /**
+     * Download the given ranges of the body of {@code request} into {@code target}, which is extended to
+     * {@code contentLength}. Bytes outside the ranges are left as they are, so a download that broke off is
+     * finished by passing the ranges it missed.
+     * @param ranges Inclusive {start, end} ranges, e.g. from {@link #planSegments}
+     * @param first A response to the plain GET of {@code request} whose body is read for the range starting at
+     *              0 instead of requesting that range, or null; it is closed either way
+     * @return The ranges still missing: empty once every byte arrived
+     * @throws CancellationException If the listener reports cancellation or the calling thread is interrupted
+     */
+    List<long[]> download(Request request, long contentLength, List<long[]> ranges, Response first, File target,
+                          Listener listener) {
+        // reached[i] is the first byte of range i not written yet
+        AtomicLongArray reached = new AtomicLongArray(ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            reached.set(i, ranges.get(i)[0]);
+        }
+        AtomicLong downloaded = new AtomicLong(contentLength - bytesIn(ranges));
+        Log.d(TAG, "Downloading " + bytesIn(ranges) + " of " + contentLength + " bytes in " + ranges.size()
+                + " segments: " + request.url());
+
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            if (file.length() != contentLength) {
+                file.setLength(contentLength);
+            }
+            FileChannel channel = file.getChannel();
+            List<Callable<Void>> parts = new ArrayList<>(ranges.size());
+            for (int i = 0; i < ranges.size(); i++) {
+                int index = i;
+                Response given = ranges.get(i)[0] == 0 ? first : null;
+                parts.add(() -> {
+                    fetchRange(request, given, ranges, index, reached, channel, downloaded, contentLength, listener);
+                    return null;
+                });
+            }
+            scheduler.runParts(task, request.url().toString(), parts);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Segmented download interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            Log.e(TAG, "Segment failed: " + e.getCause());
+        } catch (IOException e) {
+            Log.e(TAG, "Error preparing segmented download: " + e.getMessage());
+        } finally {
+            // Also covers a part that never ran; closing twice is harmless
+            if (first != null) {
+                first.close();
+            }
+            List<long[]> missing = missingRanges(ranges, reached);
+            if (!missing.isEmpty()) {
+                cancel();
+            }
+            listener.onCheckpoint(missing);
+        }
+        return missingRanges(ranges, reached);
+    }
+
+    /**
+     * Stop every segment of this download.
+     */
+    void cancel() {
+        for (Call call : calls) {
+            call.cancel();
+        }
+    }
+
+    private static List<long[]> missingRanges(List<long[]> ranges, AtomicLongArray reached) {
+        List<long[]> missing = new ArrayList<>(ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            long from = reached.get(i);
+            long end = ranges.get(i)[1];
+            if (from <= end) {
+                missing.add(new long[]{from, end});
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Fetch range {@code index}, or read it from {@code given}, whose body starts at byte 0.
+     */
+    private void fetchRange(Request request, Response given, List<long[]> ranges, int index, AtomicLongArray reached,
+                            FileChannel channel, AtomicLong downloaded, long total, Listener listener)
+            throws IOException {
+        long start = ranges.get(index)[0];
+        long end = ranges.get(index)[1];
+        Call call = null;
+        Response response = given;
+        if (response == null) {
+            Request ranged = request.newBuilder()
+                    .header("Range", "bytes=" + start + "-" + end)
+                    .build();
+            call = client.newCall(ranged);
+            calls.add(call);
+        }
+        try {
+            if (call != null) {
+                response = HttpCalls.awaitResponse(call);
+            }
+            ResponseBody body = response.body();
+            if (given == null) {
+                String contentRange = response.header("Content-Range", "");
+                // A 200 would be the whole file again (or a changed one, when If-Range did not match): treat it
+                // as "ranges not supported"
+                if (response.code() != 206 || body == null || !contentRange.startsWith("bytes " + start + "-")) {
+                    throw new IOException("Range " + start + "-" + end + " not honoured, code " + response.code());
+                }
+            }
+
+            BufferedSource source = body.source();
+            byte[] buffer = MediaIo.acquireBuffer();
+            try {
+                readRange(source, buffer, ranges, index, reached, channel, downloaded, total, listener);
+            } finally {
+                MediaIo.releaseBuffer(buffer);
+            }
+        } finally {
+            // Closing the body of the plain GET early drops its connection, which is cheaper than reading on
+            if (response != null) {
+                response.close();
+            }
+            if (call != null) {
+                calls.remove(call);
+            }
+        }
+    }
+
+    private void readRange(BufferedSource source, byte[] buffer, List<long[]> ranges, int index,
+                           AtomicLongArray reached, FileChannel channel, AtomicLong downloaded, long total,
+                           Listener listener) throws IOException {
+        long start = ranges.get(index)[0];
+        long end = ranges.get(index)[1];
+        long position = start;
+        long remaining = end - start + 1;
+        while (remaining > 0) {
+            if (listener.isCancelled() || Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Download cancelled by user");
+            }
+            int read = source.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("Range " + start + "-" + end + " ended " + remaining + " bytes early");
+            }
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+            while (chunk.hasRemaining()) {
+                position += channel.write(chunk, position);
+            }
+            remaining -= read;
+            reached.set(index, position);
+
+            long now = downloaded.addAndGet(read);
+            if (now / PROGRESS_STEP_BYTES != (now - read) / PROGRESS_STEP_BYTES || now == total) {
+                synchronized (this) {
+                    // Re-read under the lock so reports never go backwards
+                    listener.onProgress(downloaded.get(), total);
+                }
+            }
+            if (now / CHECKPOINT_STEP_BYTES != (now - read) / CHECKPOINT_STEP_BYTES) {
+                listener.onCheckpoint(missingRanges(ranges, reached));
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.neoruaa.xhsdn;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Resolves xhslink.com short links to note URLs.
+ * Redirects are not followed automatically: only the {@code Location} chain is read, and the chain stops at
+ * the first xiaohongshu.com note URL, so the note page itself is not downloaded here. A chain that ends
+ * anywhere else is not a resolution. Results are kept in a bounded LRU persisted in SharedPreferences,
+ * since the same share link is often pasted more than once.
+ */
+final class ShortLinkResolver {
+    private static final String TAG = "ShortLinkResolver";
+    private static final String PREFS_NAME = "short_link_cache";
+    private static final String KEY_ENTRIES = "entries";
+    private static final int MAX_ENTRIES = 200;
+    // Canonical URLs carry an xsec_token that eventually stops working
+    private static final long TTL_MS = 12 * 60 * 60 * 1000L;
+    private static final int MAX_REDIRECTS = 8;
+    // Links of one paste resolved at a time; each is a couple of tiny redirect requests
+    private static final int MAX_PARALLEL_RESOLVES = 6;
+
+    private static ShortLinkResolver instance;
+
+    private final SharedPreferences prefs;
+    private final OkHttpClient client;
+    private final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static final class CacheEntry {
+        final String url;
+        final long resolvedAt;
+
+        CacheEntry(String url, long resolvedAt) {
+            this.url = url;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+
+    private ShortLinkResolver(Context context) {
+        this.prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        // Same connection pool and dispatcher as every other request
+        this.client = FileDownloader.getSharedHttpClient().newBuilder()
+                .followRedirects(false)
+                .followSslRedirects(false)
+                .build();
+        load();
+    }
+
+    static synchronized ShortLinkResolver get(Context context) {
+        if (instance == null) {
+            instance = new ShortLinkResolver(context);
+        }
+        return instance;
+    }
+
+    /**
+     * @param shortUrl  The short link, with or without scheme
+     * @param userAgent User-Agent of the redirect requests
+     * @param callSink  Receives every call made, so the caller can cancel it; may be null
+     * @return The note URL the link points to, or null if it could not be resolved to a note
+     */
+    String resolve(String shortUrl, String userAgent, Consumer<Call> callSink) {
+        CompletableFuture<String> resolved = new CompletableFuture<>();
+        List<Call> calls = Collections.synchronizedList(new ArrayList<>());
+        resolveAsync(shortUrl, userAgent, sink(calls, callSink), resolved::complete);
+        try {
+            return resolved.get();
+        } catch (InterruptedException e) {
+            cancelAll(calls);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error resolving short URL: " + e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Resolve several short links concurrently. The redirect requests are enqueued on the shared client's
+     * dispatcher, at most {@link #MAX_PARALLEL_RESOLVES} links at a time, so no thread waits on a hop.
+     * Duplicates are resolved once.
+     * @return The resolved URLs in input order, with null for links that could not be resolved
+     */
+    List<String> resolveAll(List<String> shortUrls, String userAgent, Consumer<Call> callSink)
+            throws InterruptedException {
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(shortUrls));
+        Map<String, String> resolved = Collections.synchronizedMap(new HashMap<>());
+        List<Call> calls = Collections.synchronizedList(new ArrayList<>());
+        Semaphore slots = new Semaphore(MAX_PARALLEL_RESOLVES);
+        CountDownLatch remaining = new CountDownLatch(distinct.size());
+        try {
+            for (String shortUrl : distinct) {
+                slots.acquire();
+                resolveAsync(shortUrl, userAgent, sink(calls, callSink), url -> {
+                    if (url != null) {
+                        resolved.put(shortUrl, url);
+                    }
+                    slots.release();
+                    remaining.countDown();
+                });
+            }
+            remaining.await();
+        } finally {
+            if (remaining.getCount() > 0) {
+                // Interrupted while waiting: stop the resolutions still running
+                cancelAll(calls);
+            }
+        }
+
+        List<String> results = new ArrayList<>(shortUrls.size());
+        for (String shortUrl : shortUrls) {
+            results.add(resolved.get(shortUrl));
+        }
+        return results;
+    }
+
+    /**
+     * Resolve a short link without blocking: {@code done} receives the note URL, or null, from the
+     * dispatcher thread that handled the last hop (or from the calling thread for a cache hit).
+     */
+    private void resolveAsync(String shortUrl, String userAgent, Consumer<Call> callSink, Consumer<String> done) {
+        String key = normalize(shortUrl);
+        if (key == null) {
+            done.accept(null);
+            return;
+        }
+        String cached = getCached(key);
+        if (cached != null) {
+            Log.d(TAG, "Short link cache hit: " + key);
+            done.accept(cached);
+            return;
+        }
+        followRedirects(HttpUrl.parse(key), 0, userAgent, callSink, resolved -> {
+            if (resolved != null) {
+                putCached(key, resolved);
+            }
+            done.accept(resolved);
+        });
+    }
+
+    /**
+     * Enqueue the request for one hop of the chain; the next hop is enqueued from its callback.
+     */
+    private void followRedirects(HttpUrl url, int hop, String userAgent, Consumer<Call> callSink,
+                                 Consumer<String> done) {
+        if (url == null || hop > MAX_REDIRECTS) {
+            done.accept(null);
+            return;
+        }
+        if (isNoteUrl(url)) {
+            done.accept(url.toString());
+            return;
+        }
+        Request request = new Request.Builder()
+                .url(url)
+                .addHeader("User-Agent", userAgent)
+                .build();
+        Call call = client.newCall(request);
+        callSink.accept(call);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                Log.e(TAG, "Error resolving short URL: " + e.getMessage());
+                done.accept(null);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                HttpUrl next = null;
+                // The body is never read: closing the response is all we need
+                try (Response r = response) {
+                    if (r.isRedirect()) {
+                        String location = r.header("Location");
+                        next = location != null ? r.request().url().resolve(location) : null;
+                    } else if (r.isSuccessful()) {
+                        // The chain ended somewhere other than a note (landing, login or captcha page); that
+                        // is not a resolution and must not be cached
+                        Log.e(TAG, "Short link did not lead to a note: " + url);
+                    } else {
+                        Log.e(TAG, "Short link resolution failed with code " + r.code() + ": " + url);
+                    }
+                }
+                if (next != null) {
+                    followRedirects(next, hop + 1, userAgent, callSink, done);
+                } else {
+                    done.accept(null);
+                }
+            }
+        });
+    }
+
+    private static Consumer<Call> sink(List<Call> calls, Consumer<Call> callSink) {
+        return call -> {
+            calls.add(call);
+            if (callSink != null) {
+                callSink.accept(call);
+            }
+        };
+    }
+
+    private static void cancelAll(List<Call> calls) {
+        synchronized (calls) {
+            for (Call call : calls) {
+                call.cancel();
+            }
+        }
+    }
+
+    private static boolean isNoteUrl(HttpUrl url) {
+        String host = url.host();
+        if (!host.equals("xiaohongshu.com") && !host.endsWith(".xiaohongshu.com")) {
+            return false;
+        }
+        String path = url.encodedPath();
+        return path.contains("/explore/") || path.contains("/discovery/item/") || path.contains("/user/profile/");
+    }
+
+    private static String normalize(String shortUrl) {
+        if (shortUrl == null) {
+            return null;
+        }
+        String trimmed = shortUrl.trim();
+        if (trimmed.isEmpty()) {
+            return null;
+        }
+        if (!trimmed.startsWith("http://") && !trimmed.startsWith("https://")) {
+            trimmed = "https://" + trimmed;
+        }
+        return HttpUrl.parse(trimmed) != null ? trimmed : null;
+    }
+
+    private synchronized String getCached(String key) {
+        CacheEntry entry = cache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.resolvedAt > TTL_MS) {
+            cache.remove(key);
+            save();
+            return null;
+        }
+        return entry.url;
+    }
+
+    private synchronized void putCached(String key, String url) {
+        cache.put(key, new CacheEntry(url, System.currentTimeMillis()));
+        trim();
+        save();
+    }
+
+    private void trim() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, CacheEntry>> iterator = cache.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, CacheEntry> e = iterator.next();
+            // Access order: the eldest entries come first
+            if (cache.size() > MAX_ENTRIES || now - e.getValue().resolvedAt > TTL_MS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void load() {
+        String raw = prefs.getString(KEY_ENTRIES, null);
+        if (raw == null) {
+            return;
+        }
+        try {
+            // Stored eldest first, so re-inserting keeps the LRU order
+            JSONArray array = new JSONArray(raw);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject item = array.optJSONObject(i);
+                if (item == null) {
+                    continue;
+                }
+                String key = item.optString("short", null);
+                String url = item.optString("url", null);
+                if (key != null && url != null) {
+                    cache.put(key, new CacheEntry(url, item.optLong("at", 0L)));
+                }
+            }
+            trim();
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to load short link cache: " + e.getMessage());
+        }
+    }
+
+    private void save() {
+        try {
+            JSONArray array = new JSONArray();
+            for (Map.Entry<String, CacheEntry> e : cache.entrySet()) {
+                JSONObject item = new JSONObject();
+                item.put("short", e.getKey());
+                item.put("url", e.getValue().url);
+                item.put("at", e.getValue().resolvedAt);
+                array.put(item);
+            }
+            prefs.edit().putString(KEY_ENTRIES, array.toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to save short link cache: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.neoruaa.xhsdn;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The files of one note with their sizes, probed before any transfer starts. Files are started largest
+ * first (longest processing time first), so a big video at the end of the list does not start last and
+ * stretch the whole note; progress is reported in bytes over the note instead of per file.
+ * Sizes that could not be probed are estimated as the average of the known ones. Progress is reported
+ * for every chunk, so it is kept in atomics with running totals instead of behind a lock.
+ */
+final class TransferPlan {
+    // Assumed size of each file when nothing could be probed; only the ratios matter then
+    private static final long DEFAULT_ESTIMATE = 1024 * 1024;
+
+    private final AtomicLongArray expected;
+    private final AtomicLongArray transferred;
+    private final AtomicIntegerArray finished;
+    private final AtomicLong expectedTotal = new AtomicLong();
+    private final AtomicLong transferredTotal = new AtomicLong();
+
+    /**
+     * @param probedSizes Size of each file in list order, -1 where unknown
+     */
+    TransferPlan(long[] probedSizes) {
+        long knownTotal = 0;
+        int known = 0;
+        for (long size : probedSizes) {
+            if (size > 0) {
+                knownTotal += size;
+                known++;
+            }
+        }
+        long estimate = known > 0 ? knownTotal / known : DEFAULT_ESTIMATE;
+        expected = new AtomicLongArray(probedSizes.length);
+        for (int i = 0; i < probedSizes.length; i++) {
+            expected.set(i, probedSizes[i] > 0 ? probedSizes[i] : estimate);
+            expectedTotal.addAndGet(expected.get(i));
+        }
+        transferred = new AtomicLongArray(probedSizes.length);
+        finished = new AtomicIntegerArray(probedSizes.length);
+    }
+
+    /**
+     * Read the full size of a file from the answer to a request for its first byte.
+     * @param contentRange  The Content-Range header of a 206, e.g. {@code bytes 0-0/52428800}
+     * @param contentLength The body length of a 200 from a server that ignored the range
+     * @return The size, or -1 if the response does not tell
+     */
+    static long sizeFromRangeProbe(int code, String contentRange, long contentLength) {
+        if (code == 206 && contentRange != null) {
+            int slash = contentRange.lastIndexOf('/');
+            if (slash >= 0) {
+                try {
+                    return Long.parseLong(contentRange.substring(slash + 1).trim());
+                } catch (NumberFormatException ignored) {
+                    // "*": the server does not know the length either
+                }
+            }
+            return -1;
+        }
+        return code == 200 && contentLength > 0 ? contentLength : -1;
+    }
+
+    int size() {
+        return expected.length();
+    }
+
+    /**
+     * @return File indices, largest expected size first; equal sizes keep list order
+     */
+    int[] order() {
+        Integer[] indices = new Integer[expected.length()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+        Arrays.sort(indices, (a, b) -> Long.compare(expected.get(b), expected.get(a)));
+        int[] order = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            order[i] = indices[i];
+        }
+        return order;
+    }
+
+    /**
+     * Progress of one file's transfer. A total reported by the transfer replaces the probed size.
+     */
+    void onProgress(int index, long downloaded, long total) {
+        if (finished.get(index) != 0) {
+            return;
+        }
+        if (total > 0) {
+            expectedTotal.addAndGet(total - expected.getAndSet(index, total));
+        }
+        setTransferred(index, Math.max(0, Math.min(downloaded, expected.get(index))));
+    }
+
+    /**
+     * The file is done, successfully or not; either way none of its bytes are still to come.
+     */
+    void onFinished(int index) {
+        finished.set(index, 1);
+        setTransferred(index, expected.get(index));
+    }
+
+    /**
+     * A callback for the transfer of file {@code index}: it passes everything on to {@code delegate} and also
+     * records the file's progress here before running {@code onChange}. The index travels with the callback,
+     * so progress counts whichever thread reports it; segmented downloads report from their segments' threads.
+     */
+    DownloadCallback callbackFor(int index, DownloadCallback delegate, Runnable onChange) {
+        return new DownloadCallback() {
+            @Override
+            public void onFileDownloaded(String filePath) {
+                delegate.onFileDownloaded(filePath);
+            }
+
+            @Override
+            public void onDownloadProgress(String status) {
+                delegate.onDownloadProgress(status);
+            }
+
+            @Override
+            public void onDownloadProgressUpdate(long downloaded, long total) {
+                delegate.onDownloadProgressUpdate(downloaded, total);
+                onProgress(index, downloaded, total);
+                onChange.run();
+            }
+
+            @Override
+            public void onDownloadError(String status, String originalUrl) {
+                delegate.onDownloadError(status, originalUrl);
+            }
+
+            @Override
+            public void onVideoDetected() {
+                delegate.onVideoDetected();
+            }
+
+            @Override
+            public void onBatchProgress(long downloadedBytes, long totalBytes) {
+                delegate.onBatchProgress(downloadedBytes, totalBytes);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return delegate.isCancelled();
+            }
+        };
+    }
+
+    long transferredBytes() {
+        return transferredTotal.get();
+    }
+
+    long totalBytes() {
+        return expectedTotal.get();
+    }
+
+    private void setTransferred(int index, long bytes) {
+        transferredTotal.addAndGet(bytes - transferred.getAndSet(index, bytes));
+    }
+}
@@ -38,6 +38,7 @@ import androidx.compose.runtime.DisposableEffect
 import androidx.compose.runtime.getValue
 import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.remember
+import androidx.compose.runtime.rememberCoroutineScope
 import androidx.compose.runtime.setValue
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
@@ -66,6 +67,8 @@ import top.yukonga.miuix.kmp.theme.ThemeController
 import androidx.compose.ui.res.stringResource
 import androidx.compose.ui.unit.max
 import com.kyant.capsule.ContinuousRoundedRectangle
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.launch
 
 class WebViewActivity : ComponentActivity() {
     @SuppressLint("SetJavaScriptEnabled")
@@ -130,6 +133,7 @@ private fun WebViewScreen(
     onResult: (List<String>, String, Long?) -> Unit
 ) {
     val context = LocalContext.current
+    val scope = rememberCoroutineScope()
     var urlText by remember { mutableStateOf(TextFieldValue(initialUrl ?: "")) }
     var loading by remember { mutableStateOf(false) }
     var progress by remember { mutableStateOf(0) }
@@ -224,7 +228,7 @@ private fun WebViewScreen(
                     }
                     Button(
                         onClick = {
-                            extractImages(context, webView, sniffedVideoUrls, onResult)
+                            extractImages(context, scope, webView, sniffedVideoUrls, onResult)
                         },
                         modifier = Modifier.weight(1f),
                         enabled = !loading,
@@ -377,6 +381,7 @@ private fun applyDefaultZoom(webView: WebView) {
 
 private fun extractImages(
     context: android.content.Context,
+    scope: CoroutineScope,
     webView: WebView,
     sniffedUrls: Set<String>,
     onResult: (List<String>, String, Long?) -> Unit
@@ -421,21 +426,23 @@ private fun extractImages(
                 allUrls.addAll(sniffedUrls)
 
                 if (allUrls.isNotEmpty()) {
-                    // Create a task for the web crawl
-                    val taskId = com.neoruaa.xhsdn.data.TaskManager.createTask(
-                        noteUrl = webView.url ?: "",
-                        noteTitle = webView.title ?: "",
-                        noteType = com.neoruaa.xhsdn.data.NoteType.UNKNOWN,
-                        totalFiles = allUrls.size,
-                        noteContent = contentText // Include the content that was copied to clipboard
-                    )
+                    // Create a task for the web crawl; createTask suspends until the task history is loaded
+                    scope.launch {
+                        val taskId = com.neoruaa.xhsdn.data.TaskManager.createTask(
+                            noteUrl = webView.url ?: "",
+                            noteTitle = webView.title ?: "",
+                            noteType = com.neoruaa.xhsdn.data.NoteType.UNKNOWN,
+                            totalFiles = allUrls.size,
+                            noteContent = contentText // Include the content that was copied to clipboard
+                        )
 
-                    // Update the task status to DOWNLOADING immediately
-                    com.neoruaa.xhsdn.data.TaskManager.updateTaskStatus(taskId, com.neoruaa.xhsdn.data.TaskStatus.DOWNLOADING)
+                        // Update the task status to DOWNLOADING immediately
+                        com.neoruaa.xhsdn.data.TaskManager.updateTaskStatus(taskId, com.neoruaa.xhsdn.data.TaskStatus.DOWNLOADING)
 
-                    // Debug: Show that URLs were found and task was created
-//                    Toast.makeText(context, "找到${allUrls.size}个URL, 任务ID: $taskId", Toast.LENGTH_SHORT).show()
-                    onResult(allUrls, contentText, taskId)
+                        // Debug: Show that URLs were found and task was created
+//                        Toast.makeText(context, "找到${allUrls.size}个URL, 任务ID: $taskId", Toast.LENGTH_SHORT).show()
+                        onResult(allUrls, contentText, taskId)
+                    }
                 } else {
                     Toast.makeText(context, context.getString(R.string.no_accessible_urls_found), Toast.LENGTH_SHORT).show()
                 }
@@ -11,18 +11,22 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Deque;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -35,7 +39,10 @@ public class XHSDownloader {
     private static final String TAG = "XHSDownloader";
     private static final String USER_AGENT_XHS_ANDROID = "Mozilla/5.0 (Linux; Android 10; K) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/141.0.0.0 Mobile Safari/537.36 xiaohongshu";
     private static final int MAX_DOWNLOAD_ATTEMPTS = 3;
-    private static final long DOWNLOAD_RETRY_BACKOFF_MS = 350L;
+    private static final long DOWNLOAD_RETRY_BASE_MS = 350L;
+    private static final long DOWNLOAD_RETRY_MAX_MS = 4000L;
+    // A longer Retry-After is better spent on the next candidate URL
+    private static final long DOWNLOAD_MAX_RETRY_AFTER_MS = 15000L;
     private Context context;
     private OkHttpClient httpClient;
     private FileDownloader fileDownloader;
@@ -49,6 +56,15 @@ public class XHSDownloader {
     private static final Pattern XHS_LINK_PATTERN = Pattern.compile("(?:https?://)?www\\.xiaohongshu\\.com/explore/\\S+");
     private static final Pattern XHS_USER_PATTERN = Pattern.compile("(?:https?://)?www\\.xiaohongshu\\.com/user/profile/[a-z0-9]+/\\S+");
     private static final Pattern XHS_SHARE_PATTERN = Pattern.compile("(?:https?://)?www\\.xiaohongshu\\.com/discovery/item/\\S+");
+    // Fetch/parse stage of downloadContent: how many note pages may load ahead of the note being downloaded
+    private static final int NOTE_PREFETCH_WINDOW = 2;
+    private static final int NOTE_FETCH_THREADS = 2;
+    // Publish stage of downloadContent: how many notes of one download may wait to be muxed and published
+    private static final int NOTE_PUBLISH_BACKLOG = 2;
+    private static final int NOTE_PUBLISH_THREADS = 2;
+    // Shared by every download, like the media scheduler, so each stage is bounded for the whole app
+    private static final ExecutorService NOTE_FETCH_EXECUTOR = newStageExecutor(NOTE_FETCH_THREADS);
+    private static final ExecutorService NOTE_PUBLISH_EXECUTOR = newStageExecutor(NOTE_PUBLISH_THREADS);
     private static final Pattern XHS_SHORT_PATTERN = Pattern.compile("(?:https?://)?xhslink\\.com/[^\\s\\\"<>\\\\\\^`{|}，。；！？、【】《》]+");
     
     private DownloadCallback downloadCallback;
@@ -77,7 +93,26 @@ public class XHSDownloader {
     private volatile boolean shouldStopOnVideo = false;
     // Flag to indicate if download should be stopped
     private volatile boolean shouldStopDownload = false;
+    // Refetch the note page instead of using ParsedNoteCache
+    private boolean bypassNoteCache = false;
     private volatile okhttp3.Call activeCall;
+    // Short link resolutions and note page fetches run concurrently, so they are tracked separately from activeCall
+    private final Set<okhttp3.Call> backgroundCalls = ConcurrentHashMap.newKeySet();
+    private final MediaDownloadScheduler scheduler = MediaDownloadScheduler.get();
+    // Bytes of the notes of this download session that are already done, so progress spans all of them
+    private volatile long finishedPlanBytes;
+    private RetryPolicy retryPolicy = new RetryPolicy.ExponentialBackoff(MAX_DOWNLOAD_ATTEMPTS,
+            DOWNLOAD_RETRY_BASE_MS, DOWNLOAD_RETRY_MAX_MS, DOWNLOAD_MAX_RETRY_AFTER_MS);
+    // This downloader's queue in the shared scheduler; background priority unless told otherwise
+    private final MediaDownloadScheduler.Task mediaTask =
+            scheduler.newTask(TAG + "@" + Integer.toHexString(System.identityHashCode(this)), false);
+
+    private static ExecutorService newStageExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     public XHSDownloader(Context context) {
         this(context, null);
@@ -111,6 +146,11 @@ public class XHSDownloader {
                     callback.onDownloadProgressUpdate(downloaded, total);
                 }
 
+                @Override
+                public void onBatchProgress(long downloadedBytes, long totalBytes) {
+                    callback.onBatchProgress(downloadedBytes, totalBytes);
+                }
+
                 @Override
                 public void onVideoDetected() {
                     callback.onVideoDetected();
@@ -125,6 +165,7 @@ public class XHSDownloader {
             this.downloadCallback = callback;
         }
         this.fileDownloader = new FileDownloader(this.context, this.downloadCallback);
+        this.fileDownloader.setSchedulerTask(mediaTask);
     }
 
     public static class CachedMediaFile {
@@ -161,8 +202,11 @@ public class XHSDownloader {
     public boolean downloadContent(String inputUrl) {
         // Reset successful downloads counter for this download session
         this.successfulDownloads.set(0);
+        this.finishedPlanBytes = 0;
         boolean hasErrors = false; // Track if any errors occurred
         boolean hasContent = false; // Track if we found any content to download
+        PrefetchQueue<ParsedNote> notePages = null;
+        PublishStage publishStage = new PublishStage(NOTE_PUBLISH_EXECUTOR, NOTE_PUBLISH_BACKLOG);
         try {
             // Check if download should stop
             if (shouldStop()) {
@@ -187,6 +231,12 @@ public class XHSDownloader {
             this.customNamingEnabled = shouldUseCustomNamingFormat();
             this.customFormatTemplate = getCustomNamingTemplate();
 
+            // Pages are fetched and parsed ahead of this thread, so the next notes are ready by the time the
+            // current note's media is downloaded. Live photos are muxed and the gallery entries published on
+            // the publish stage, so the next note's transfers start meanwhile. Transfers stay in note order.
+            notePages = new PrefetchQueue<>(urls.size(), NOTE_PREFETCH_WINDOW, NOTE_FETCH_EXECUTOR,
+                    index -> prefetchNote(urls.get(index)));
+
             for (String url : urls) {
                 // Check if download should stop
                 try {
@@ -199,42 +249,24 @@ public class XHSDownloader {
                 // Get the post ID from the URL
                 String postId = extractPostId(url);
 
+                // Fetch and parse the post details (shared with getMediaCount/getNoteDescription)
+                ParsedNote parsedNote;
+                try {
+                    parsedNote = notePages.take();
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Download stopped by user request while waiting for post details");
+                    return false;
+                } catch (java.util.concurrent.ExecutionException e) {
+                    Log.e(TAG, "Error loading post details: " + e.getCause());
+                    parsedNote = null;
+                }
+
                 if (postId != null) {
                     this.currentNoteMetadata = null;
-                    // Fetch the post details
-                    String postDetails = fetchPostDetails(url);
-
-
-                    // 将postDetails保存到download目录下的postId.txt文件中
-//                    if (postDetails != null && !postDetails.isEmpty()) {
-//                        // 获取应用的外部存储目录
-//                        File externalStorageDir = context.getExternalFilesDir(null);
-//                        if (externalStorageDir != null) {
-//                            // 构建目标目录路径
-//                            File downloadDir = new File(externalStorageDir.getParentFile(), "Download");
-//                            // 创建目录（如果不存在）
-//                            if (!downloadDir.exists()) {
-//                                downloadDir.mkdirs();
-//                            }
-//
-//                            // 创建文件对象
-//                            File postDetailsFile = new File(downloadDir, postId + ".txt");
-//
-//                            // 写入文件
-//                            try {
-//                                java.io.FileWriter writer = new java.io.FileWriter(postDetailsFile);
-//                                writer.write(postDetails);
-//                                writer.close();
-//                                Log.d(TAG, "Saved post details to: " + postDetailsFile.getAbsolutePath());
-//                            } catch (java.io.IOException e) {
-//                                Log.e(TAG, "Failed to save post details to file: " + e.getMessage());
-//                            }
-//                        }
-//                    }
-                    
-                    if (postDetails != null) {
-                        // Parse the post details to extract media URLs
-                        List<String> mediaUrls = parsePostDetails(postDetails);
+
+                    if (parsedNote != null) {
+                        applyParsedNote(parsedNote);
+                        List<String> mediaUrls = new ArrayList<>(parsedNote.mediaUrls);
                         
                         if (!mediaUrls.isEmpty()) {
                             hasContent = true; // We found media to download
@@ -272,7 +304,13 @@ public class XHSDownloader {
                                 // Create live photos for image-video pairs using the original mediaUrls list
                                 // which has the correct order from parsePostDetails
                                 Log.d(TAG, "Creating live photos for post: " + postId);
-                                postHasErrors = createLivePhotos(postId, mediaUrls, sessionTimestamp);
+                                try {
+                                    postHasErrors = createLivePhotos(postId, mediaUrls, sessionTimestamp, publishStage);
+                                } catch (InterruptedException e) {
+                                    Log.d(TAG, "Download stopped by user request during live photo download");
+                                    scheduler.cancel(mediaTask);
+                                    return false;
+                                }
                                 if (postHasErrors) {
                                     hasErrors = true;
                                 }
@@ -282,30 +320,45 @@ public class XHSDownloader {
                                 allMediaUrls.addAll(imageUrls);
                                 allMediaUrls.addAll(videoUrls);
                                 
-                                // Download each media file with unique names using concurrent threads for better performance
-                                
-                                // Use executor service for concurrent downloads if multiple files exist
-                                if (allMediaUrls.size() > 1) {
-                                    // For posts with multiple files, use concurrent downloads
-                                    ExecutorService executor = Executors.newFixedThreadPool(Math.min(allMediaUrls.size(), 4)); // Max 4 concurrent downloads
-                                    List<Future<Boolean>> futures = new ArrayList<>();
-                                    
-                                    for (int i = 0; i < allMediaUrls.size(); i++) {
-                                        final int index = i;
-                                        final String mediaUrl = allMediaUrls.get(i);
-                                        Future<Boolean> future = executor.submit(() -> {
-                                            String baseFileName = buildFileBaseName(postId, index + 1);
-
-                                            // Determine file extension based on URL content
-                                            String fileExtension = determineFileExtension(mediaUrl);
-                                            String fileNameWithExtension = baseFileName + "." + fileExtension;
-
-                                            // Use the session timestamp to maintain consistency across the download session
-                                            return downloadFile(mediaUrl, fileNameWithExtension, sessionTimestamp);
+                                // Downloads are queued on the shared scheduler, which bounds them across all tasks.
+                                // They are queued largest first, so the longest transfer does not start last.
+                                TransferPlan plan = planTransfers(allMediaUrls);
+                                List<Future<Boolean>> futures = new ArrayList<>(Collections.nCopies(allMediaUrls.size(), null));
+
+                                List<String> fileNames = new ArrayList<>(allMediaUrls.size());
+                                for (int index = 0; index < allMediaUrls.size(); index++) {
+                                    // Determine file extension based on URL content
+                                    fileNames.add(buildFileBaseName(postId, index + 1) + "."
+                                            + determineFileExtension(allMediaUrls.get(index)));
+                                }
+                                // The note's gallery entries are reserved together; each transfer publishes its own
+                                MediaStoreBatch mediaStoreBatch = cacheDestinationMode
+                                        ? null : fileDownloader.reserveInMediaStore(fileNames);
+
+                                try {
+                                    for (int index : plan.order()) {
+                                        final String mediaUrl = allMediaUrls.get(index);
+                                        Future<Boolean> future = scheduler.submit(mediaTask, mediaUrl, () -> {
+                                            // Progress of this file is counted in the plan through its own callback
+                                            FileDownloader transferDownloader = downloadCallback != null
+                                                    ? fileDownloader.withCallback(plan.callbackFor(index, downloadCallback,
+                                                            () -> reportBatchProgress(plan)))
+                                                    : fileDownloader;
+                                            if (mediaStoreBatch != null) {
+                                                transferDownloader = transferDownloader.inMediaStoreBatch(mediaStoreBatch);
+                                            }
+                                            try {
+                                                // Use the session timestamp to maintain consistency across the download session
+                                                return downloadFileWithRetries(transferDownloader, mediaUrl,
+                                                        fileNames.get(index), sessionTimestamp);
+                                            } finally {
+                                                plan.onFinished(index);
+                                                reportBatchProgress(plan);
+                                            }
                                         });
-                                        futures.add(future);
+                                        futures.set(index, future);
                                     }
-                                    
+
                                     // Wait for all downloads to complete and collect results
                                     for (int i = 0; i < futures.size(); i++) {
                                         // Check if download should stop
@@ -313,7 +366,7 @@ public class XHSDownloader {
                                             checkForStop();
                                         } catch (InterruptedException e) {
                                             Log.d(TAG, "Download stopped by user request during concurrent download");
-                                            executor.shutdownNow(); // Stop all running tasks
+                                            scheduler.cancel(mediaTask); // Drop the downloads not started yet
                                             return false;
                                         }
 
@@ -327,7 +380,17 @@ public class XHSDownloader {
                                             } else {
                                                 Log.d(TAG, "Successfully downloaded: " + mediaUrl);
                                             }
-                                        } catch (Exception e) {
+                                        } catch (InterruptedException | CancellationException e) {
+                                            Log.d(TAG, "Download stopped while waiting for concurrent downloads");
+                                            scheduler.cancel(mediaTask);
+                                            return false;
+                                        } catch (ExecutionException e) {
+                                            if (e.getCause() instanceof CancellationException) {
+                                                // Stopped in the middle of a transfer; that is not a download error
+                                                Log.d(TAG, "Download stopped during concurrent download");
+                                                scheduler.cancel(mediaTask);
+                                                return false;
+                                            }
                                             String mediaUrl = allMediaUrls.get(i);
                                             Log.e(TAG, "Exception during concurrent download: " + e.getMessage());
                                             if (downloadCallback != null) {
@@ -342,36 +405,13 @@ public class XHSDownloader {
                                             hasErrors = true;
                                         }
                                     }
-                                    
-                                    executor.shutdown();
-                                } else {
-                                    // Single file download - keep existing behavior
-                                    for (int i = 0; i < allMediaUrls.size(); i++) {
-                                        // Check if download should stop
-                                        try {
-                                            checkForStop();
-                                        } catch (InterruptedException e) {
-                                            Log.d(TAG, "Download stopped by user request during single file download");
-                                            return false;
-                                        }
-
-                                        String mediaUrl = allMediaUrls.get(i);
-                                        String baseFileName = buildFileBaseName(postId, i + 1);
-
-                                        // Determine file extension based on URL content
-                                        String fileExtension = determineFileExtension(mediaUrl);
-                                        String fileNameWithExtension = baseFileName + "." + fileExtension;
-
-                                        boolean success = downloadFile(mediaUrl, fileNameWithExtension, sessionTimestamp);
-                                        if (!success) {
-                                            Log.e(TAG, "Failed to download: " + mediaUrl);
-                                            postHasErrors = true;
-                                            hasErrors = true;
-                                        } else {
-                                            Log.d(TAG, "Successfully downloaded: " + mediaUrl);
-                                        }
+                                } finally {
+                                    // Delete the entries no transfer used, also when stopped
+                                    if (mediaStoreBatch != null) {
+                                        mediaStoreBatch.finish();
                                     }
                                 }
+                                finishedPlanBytes += plan.totalBytes();
                             }
                             
                             // If the post had download errors, consider it a partial failure
@@ -416,6 +456,16 @@ public class XHSDownloader {
                 }
             }
             
+            // The last notes may still be muxing or publishing
+            try {
+                if (publishStage.await()) {
+                    hasErrors = true;
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Download stopped by user request while publishing");
+                return false;
+            }
+
             // Clear state variables to prevent issues in subsequent downloads
             downloadUrls.clear();
             urlMapping.clear();
@@ -439,6 +489,16 @@ public class XHSDownloader {
             downloadUrls.clear();
             urlMapping.clear();
             return false;
+        } finally {
+            if (notePages != null) {
+                notePages.close();
+            }
+            // Also when stopped: what was written gets published, and muxing skips what is left
+            try {
+                publishStage.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
@@ -458,16 +518,49 @@ public class XHSDownloader {
         }
     }
 
+    /**
+     * Replace the policy deciding how failed media downloads are retried.
+     */
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
     private boolean downloadFileWithRetries(String mediaUrl, String filename, String timestamp) {
+        return downloadFileWithRetries(fileDownloader, mediaUrl, filename, timestamp);
+    }
+
+    /**
+     * @param fileDownloader This downloader's {@link FileDownloader}, or a view of it with a per-file callback
+     */
+    private boolean downloadFileWithRetries(FileDownloader fileDownloader, String mediaUrl, String filename,
+                                            String timestamp) {
         String originalUrl = urlMapping.get(mediaUrl);
         if (TextUtils.isEmpty(originalUrl)) {
             originalUrl = mediaUrl;
         }
 
-        List<String> candidateUrls = buildDownloadCandidateUrls(mediaUrl, originalUrl);
+        List<String> builtUrls = buildDownloadCandidateUrls(mediaUrl, originalUrl);
+        // Hosts that have been doing well go first; hosts with an open circuit breaker are skipped
+        List<String> candidateUrls = HostScoreboard.get(context).rank(builtUrls);
+        if (candidateUrls.size() < builtUrls.size()) {
+            Log.d(TAG, "Skipping " + (builtUrls.size() - candidateUrls.size()) + " candidate(s) on failing hosts");
+        }
+        // Start with the candidate an earlier attempt (or an earlier run of the app) already has bytes for
+        for (int i = 1; i < candidateUrls.size(); i++) {
+            if (fileDownloader.hasPartialDownload(candidateUrls.get(i))) {
+                candidateUrls.add(0, candidateUrls.remove(i));
+                break;
+            }
+        }
 
-        for (String candidateUrl : candidateUrls) {
-            for (int attempt = 1; attempt <= MAX_DOWNLOAD_ATTEMPTS; attempt++) {
+        // Race the candidates unless the first one has a partial body to resume, which only a plain download does
+        boolean hedged = candidateUrls.size() > 1 && !fileDownloader.hasPartialDownload(candidateUrls.get(0));
+        HostScoreboard scoreboard = HostScoreboard.get(context);
+        int attempts = 0;
+        // Hedged downloads try every candidate in each attempt, so there is a single pass
+        int passes = hedged ? 1 : candidateUrls.size();
+        for (int pass = 0; pass < passes; pass++) {
+            for (int attempt = 1; ; attempt++) {
                 try {
                     checkForStop();
                 } catch (InterruptedException e) {
@@ -475,44 +568,120 @@ public class XHSDownloader {
                     return false;
                 }
 
-                boolean success;
-                if (cacheDestinationMode) {
-                    File cachedFile = fileDownloader.downloadFileToDirectory(candidateUrl, filename, timestamp, cacheDestinationDir);
-                    success = cachedFile != null && cachedFile.exists();
-                    if (success) {
-                        cachedMediaFiles.add(new CachedMediaFile(cachedFile.getAbsolutePath(), cachedFile.getName()));
+                String candidateUrl = hedged ? null : candidateUrls.get(pass);
+                if (hedged && attempt > 1) {
+                    // A failed attempt may have left a partial body behind; resume it instead of racing again
+                    for (String url : candidateUrls) {
+                        if (fileDownloader.hasPartialDownload(url)) {
+                            candidateUrl = url;
+                            break;
+                        }
                     }
-                } else {
-                    success = fileDownloader.downloadFile(candidateUrl, filename, timestamp, false);
                 }
-                if (success) {
-                    if (!candidateUrl.equals(mediaUrl)) {
-                        Log.d(TAG, "Download succeeded via fallback URL: " + candidateUrl);
+                String servedBy = candidateUrl != null
+                        ? downloadFrom(fileDownloader, candidateUrl, filename, timestamp)
+                        : downloadHedged(fileDownloader, candidateUrls, filename);
+                if (servedBy != null) {
+                    if (!servedBy.equals(mediaUrl)) {
+                        Log.d(TAG, "Download succeeded via fallback URL: " + servedBy);
                     }
                     return true;
                 }
+                attempts++;
 
-                Log.w(TAG, "Download attempt " + attempt + "/" + MAX_DOWNLOAD_ATTEMPTS + " failed for " + candidateUrl);
-                if (attempt < MAX_DOWNLOAD_ATTEMPTS) {
-                    try {
-                        Thread.sleep(DOWNLOAD_RETRY_BACKOFF_MS * attempt);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        return false;
-                    }
+                RetryPolicy.Failure failure = fileDownloader.takeLastFailure();
+                long delay = retryPolicy.retryDelayMs(failure, attempt);
+                if (delay >= 0 && !hedged && scoreboard.isOpen(candidateUrl)) {
+                    Log.d(TAG, "Circuit open for the host of " + candidateUrl + ", moving on");
+                    delay = -1;
+                }
+                Log.w(TAG, "Download attempt " + attempt + " failed for "
+                        + (candidateUrl != null ? candidateUrl : candidateUrls.size() + " hedged candidates")
+                        + ": " + failure + (delay >= 0 ? ", retrying in " + delay + "ms" : ""));
+                if (delay < 0) {
+                    break;
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
                 }
             }
         }
 
         if (downloadCallback != null) {
             downloadCallback.onDownloadError(
-                    "Failed to download after " + (candidateUrls.size() * MAX_DOWNLOAD_ATTEMPTS) + " attempts",
+                    "Failed to download after " + attempts + " attempts",
                     originalUrl
             );
         }
         return false;
     }
 
+    /**
+     * One download attempt from a single URL.
+     * @return The URL on success, otherwise null
+     */
+    private String downloadFrom(FileDownloader fileDownloader, String candidateUrl, String filename, String timestamp) {
+        if (cacheDestinationMode) {
+            File cachedFile = fileDownloader.downloadFileToDirectory(candidateUrl, filename, timestamp, cacheDestinationDir);
+            if (cachedFile == null || !cachedFile.exists()) {
+                return null;
+            }
+            cachedMediaFiles.add(new CachedMediaFile(cachedFile.getAbsolutePath(), cachedFile.getName()));
+        } else if (!fileDownloader.downloadFile(candidateUrl, filename, timestamp, false)) {
+            return null;
+        }
+        return candidateUrl;
+    }
+
+    /**
+     * One download attempt racing all candidate URLs (see {@link FileDownloader#downloadFileHedged}).
+     * @return The URL that served the file, otherwise null
+     */
+    private String downloadHedged(FileDownloader fileDownloader, List<String> candidateUrls, String filename) {
+        FileDownloader.HedgedResult result = fileDownloader.downloadFileHedged(candidateUrls, filename,
+                cacheDestinationMode ? cacheDestinationDir : null);
+        if (result == null || result.file == null || !result.file.exists()) {
+            return null;
+        }
+        if (cacheDestinationMode) {
+            cachedMediaFiles.add(new CachedMediaFile(result.file.getAbsolutePath(), result.file.getName()));
+        }
+        return result.url;
+    }
+
+    private void reportBatchProgress(TransferPlan plan) {
+        if (downloadCallback != null) {
+            downloadCallback.onBatchProgress(finishedPlanBytes + plan.transferredBytes(),
+                    finishedPlanBytes + plan.totalBytes());
+        }
+    }
+
+    /**
+     * Probe the size of every file of a note, through the candidate URL that will be tried first.
+     */
+    private TransferPlan planTransfers(List<String> mediaUrls) {
+        if (mediaUrls.size() < 2) {
+            // Nothing to reorder; progress still comes out in bytes
+            long[] unknown = new long[mediaUrls.size()];
+            java.util.Arrays.fill(unknown, -1);
+            return new TransferPlan(unknown);
+        }
+        List<String> probeUrls = new ArrayList<>(mediaUrls.size());
+        HostScoreboard scoreboard = HostScoreboard.get(context);
+        for (String mediaUrl : mediaUrls) {
+            String originalUrl = urlMapping.get(mediaUrl);
+            List<String> candidates = scoreboard.rank(buildDownloadCandidateUrls(mediaUrl,
+                    TextUtils.isEmpty(originalUrl) ? mediaUrl : originalUrl));
+            probeUrls.add(candidates.isEmpty() ? mediaUrl : candidates.get(0));
+        }
+        long[] sizes = fileDownloader.probeSizes(probeUrls, FileDownloader.SIZE_PROBE_TIMEOUT_MS);
+        Log.d(TAG, "Probed sizes: " + java.util.Arrays.toString(sizes));
+        return new TransferPlan(sizes);
+    }
+
     private List<String> buildDownloadCandidateUrls(String mediaUrl, String originalUrl) {
         Set<String> candidateUrls = new LinkedHashSet<>();
         String transformedMediaUrl = transformXhsCdnUrl(mediaUrl);
@@ -604,6 +773,9 @@ public class XHSDownloader {
 
         // 按空格分割输入，模仿原Python项目的逻辑
         String[] parts = input.split("\\s+");
+        // 短链接先收集起来并发解析，解析后放回原来的位置
+        List<String> shortUrls = new ArrayList<>();
+        List<Integer> shortUrlSlots = new ArrayList<>();
         
         for (String part : parts) {
             // 确保部分不为空
@@ -611,46 +783,74 @@ public class XHSDownloader {
                 continue;
             }
             
-            String processedPart = part;
-            
             // 检查短链接格式 (xhslink.com)
             Matcher shortMatcher = XHS_SHORT_PATTERN.matcher(part);
             if (shortMatcher.find()) {
-                String shortUrl = part.substring(shortMatcher.start(), shortMatcher.end());
-                
                 // 原Python代码会对短链接进行重定向获取真实URL
-                // 实现类似功能，发起请求以获取重定向后的真实URL
-                String resolvedUrl = resolveShortUrl(shortUrl);
-                processedPart = resolvedUrl != null ? resolvedUrl : shortUrl;
-                
-                // 将处理后的URL添加到列表
-                urls.add(processedPart);
+                shortUrls.add(part.substring(shortMatcher.start(), shortMatcher.end()));
+                shortUrlSlots.add(urls.size());
+                urls.add(null);
                 continue;  // 找到匹配后跳过其他检查
             }
             
             // 如果不是短链接，则检查其他格式
             // 检查分享格式
-            Matcher shareMatcher = XHS_SHARE_PATTERN.matcher(processedPart);
+            Matcher shareMatcher = XHS_SHARE_PATTERN.matcher(part);
             if (shareMatcher.find()) {
-                urls.add(processedPart.substring(shareMatcher.start(), shareMatcher.end()));
+                urls.add(part.substring(shareMatcher.start(), shareMatcher.end()));
                 continue;
             }
             
             // 检查常规链接格式
-            Matcher linkMatcher = XHS_LINK_PATTERN.matcher(processedPart);
+            Matcher linkMatcher = XHS_LINK_PATTERN.matcher(part);
             if (linkMatcher.find()) {
-                urls.add(processedPart.substring(linkMatcher.start(), linkMatcher.end()));
+                urls.add(part.substring(linkMatcher.start(), linkMatcher.end()));
                 continue;
             }
             
             // 检查用户资料格式
-            Matcher userMatcher = XHS_USER_PATTERN.matcher(processedPart);
+            Matcher userMatcher = XHS_USER_PATTERN.matcher(part);
             if (userMatcher.find()) {
-                urls.add(processedPart.substring(userMatcher.start(), userMatcher.end()));
+                urls.add(part.substring(userMatcher.start(), userMatcher.end()));
+            }
+        }
+
+        if (!shortUrls.isEmpty()) {
+            List<String> resolvedUrls;
+            try {
+                resolvedUrls = ShortLinkResolver.get(context)
+                        .resolveAll(shortUrls, USER_AGENT_XHS_ANDROID, backgroundCalls::add);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.d(TAG, "Short link resolution interrupted");
+                return new ArrayList<>();
+            } finally {
+                backgroundCalls.clear();
+            }
+            for (int i = 0; i < shortUrls.size(); i++) {
+                String resolvedUrl = resolvedUrls.get(i);
+                urls.set(shortUrlSlots.get(i), resolvedUrl != null ? resolvedUrl : shortUrls.get(i));
             }
         }
         
-        return urls;
+        return dedupeByPostId(urls);
+    }
+
+    /**
+     * Drop links that point to a note already in the list (e.g. a short link and its full URL).
+     */
+    private List<String> dedupeByPostId(List<String> urls) {
+        List<String> unique = new ArrayList<>(urls.size());
+        Set<String> seen = new HashSet<>();
+        for (String url : urls) {
+            String postId = extractPostId(url);
+            if (seen.add(postId != null ? postId : url)) {
+                unique.add(url);
+            } else {
+                Log.d(TAG, "Skipping duplicate link: " + url);
+            }
+        }
+        return unique;
     }
     
     public String extractPostId(String url) {
@@ -708,14 +908,19 @@ public class XHSDownloader {
                     .addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=1.0,image/avif,image/webp,image/apng,*/*;q=1.0")
                     .build();
             
-            activeCall = httpClient.newCall(request);
-            Response response = activeCall.execute();
-            
-            if (response.isSuccessful() && response.body() != null) {
-                return response.body().string();
-            } else {
-                Log.e(TAG, "Failed to fetch post details. Response code: " + response.code());
-                return null;
+            okhttp3.Call call = httpClient.newCall(request);
+            backgroundCalls.add(call);
+            try {
+                Response response = HttpCalls.awaitResponse(call);
+
+                if (response.isSuccessful() && response.body() != null) {
+                    return response.body().string();
+                } else {
+                    Log.e(TAG, "Failed to fetch post details. Response code: " + response.code());
+                    return null;
+                }
+            } finally {
+                backgroundCalls.remove(call);
             }
         } catch (IOException e) {
             Log.e(TAG, "Error fetching post details: " + e.getMessage());
@@ -724,360 +929,121 @@ public class XHSDownloader {
         }
     }
 
-    private static boolean isJsIdentifierChar(char c) {
-        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
-    }
-
     /**
-     * Extract the first JS object literal (starting with '{') from a larger JS snippet.
-     * This helps when the script contains extra JS after the state object.
+     * Fetch a note page and stream its __INITIAL_STATE__ out of the response body.
+     * The call is cancelled as soon as the state object has been read, so the rest of the page
+     * is neither downloaded nor buffered.
+     * @return The extracted state (or the full page if it has no state), or null if the fetch failed
      */
-    private static String extractFirstJsObjectLiteral(String jsSnippet) {
-        if (jsSnippet == null) return null;
-
-        boolean inString = false;
-        char quote = 0;
-        boolean escape = false;
-        int depth = 0;
-        int start = -1;
-
-        for (int i = 0; i < jsSnippet.length(); i++) {
-            char c = jsSnippet.charAt(i);
-
-            if (inString) {
-                if (escape) {
-                    escape = false;
-                    continue;
-                }
-                if (c == '\\') {
-                    escape = true;
-                    continue;
-                }
-                if (c == quote) {
-                    inString = false;
-                    quote = 0;
-                }
-                continue;
-            }
-
-            if (c == '"' || c == '\'') {
-                inString = true;
-                quote = c;
-                continue;
-            }
-
-            if (c == '{') {
-                if (depth == 0) start = i;
-                depth++;
-            } else if (c == '}') {
-                if (depth > 0) {
-                    depth--;
-                    if (depth == 0 && start != -1) {
-                        return jsSnippet.substring(start, i + 1);
-                    }
-                }
-            }
-        }
-
-        return null;
-    }
-
-    /**
-     * Convert a JS-ish object literal to strict JSON by replacing bare `undefined` tokens with `null`.
-     * Only replaces tokens outside of quoted strings.
-     */
-    private static String replaceJsUndefinedWithNull(String input) {
-        if (input == null || !input.contains("undefined")) return input;
-
-        StringBuilder out = new StringBuilder(input.length());
-        boolean inString = false;
-        char quote = 0;
-        boolean escape = false;
-
-        for (int i = 0; i < input.length(); ) {
-            char c = input.charAt(i);
-
-            if (inString) {
-                out.append(c);
-                if (escape) {
-                    escape = false;
-                    i++;
-                    continue;
-                }
-                if (c == '\\') {
-                    escape = true;
-                } else if (c == quote) {
-                    inString = false;
-                    quote = 0;
-                }
-                i++;
-                continue;
-            }
-
-            if (c == '"' || c == '\'') {
-                inString = true;
-                quote = c;
-                out.append(c);
-                i++;
-                continue;
+    private InitialStateExtractor.Result fetchNotePage(String url) {
+        Request request = new Request.Builder()
+                .url(url)
+                .addHeader("User-Agent", USER_AGENT_XHS_ANDROID)
+                .addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=1.0,image/avif,image/webp,image/apng,*/*;q=1.0")
+                .build();
+
+        okhttp3.Call call = httpClient.newCall(request);
+        // May run on a prefetch thread while another page is in flight
+        backgroundCalls.add(call);
+        try (Response response = HttpCalls.awaitResponse(call)) {
+            if (!response.isSuccessful() || response.body() == null) {
+                Log.e(TAG, "Failed to fetch post details. Response code: " + response.code());
+                return null;
             }
-
-            if (i + "undefined".length() <= input.length() && input.startsWith("undefined", i)) {
-                char prev = (i > 0) ? input.charAt(i - 1) : '\0';
-                char next = (i + "undefined".length() < input.length()) ? input.charAt(i + "undefined".length()) : '\0';
-                boolean prevOk = (i == 0) || !isJsIdentifierChar(prev);
-                boolean nextOk = (i + "undefined".length() == input.length()) || !isJsIdentifierChar(next);
-                if (prevOk && nextOk) {
-                    out.append("null");
-                    i += "undefined".length();
-                    continue;
-                }
+            InitialStateExtractor.Result result = InitialStateExtractor.read(response.body().source());
+            if (result.stateJson != null) {
+                // Everything we need has been read; drop the remainder of the page
+                call.cancel();
             }
-
-            out.append(c);
-            i++;
+            return result;
+        } catch (IOException e) {
+            Log.e(TAG, "Error fetching post details: " + e.getMessage());
+            return null;
+        } finally {
+            backgroundCalls.remove(call);
         }
-
-        return out.toString();
     }
 
-    private JSONObject parseInitialStateRootFromHtml(String html) {
-        if (html == null) return null;
-
-        int startIndex = html.indexOf("window.__INITIAL_STATE__");
-        if (startIndex == -1) return null;
-
-        int endIndex = html.indexOf("</script>", startIndex);
-        if (endIndex == -1) return null;
-
-        String scriptContent = html.substring(startIndex, endIndex);
-        int equalsIndex = scriptContent.indexOf("=");
-        if (equalsIndex == -1) return null;
-
-        String afterEquals = scriptContent.substring(equalsIndex + 1).trim();
-
-        // The script may contain extra JS after the object. Extract the first balanced object literal.
-        String jsObject = extractFirstJsObjectLiteral(afterEquals);
-        if (jsObject == null) {
-            // Fallback: try parsing whatever remains (might already be pure JSON).
-            jsObject = afterEquals;
-        }
-
-        jsObject = jsObject.trim();
-        if (jsObject.endsWith(";")) {
-            jsObject = jsObject.substring(0, jsObject.length() - 1).trim();
-        }
-
-        jsObject = replaceJsUndefinedWithNull(jsObject);
+    private JSONObject parseInitialState(String stateJson) {
+        if (stateJson == null) return null;
 
         try {
-            return new JSONObject(jsObject);
+            return new JSONObject(stateJson);
         } catch (JSONException e) {
             Log.e(TAG, "Error parsing __INITIAL_STATE__ JSON: " + e.getMessage());
-            try {
-                Log.d(TAG, "__INITIAL_STATE__ (first 500 chars): " + jsObject.substring(0, Math.min(500, jsObject.length())));
-            } catch (Exception ignored) {
-            }
+            Log.d(TAG, "__INITIAL_STATE__ (first 500 chars): " + stateJson.substring(0, Math.min(500, stateJson.length())));
             return null;
         }
     }
 
-    private static boolean isLikelyNoteObject(JSONObject obj) {
-        if (obj == null) return false;
-
-        try {
-            if (obj.has("imageList") && obj.get("imageList") instanceof JSONArray) {
-                JSONArray list = obj.getJSONArray("imageList");
-                if (list.length() > 0 && list.get(0) instanceof JSONObject) {
-                    JSONObject first = list.getJSONObject(0);
-                    return first.has("urlDefault") || first.has("url") || first.has("traceId") || first.has("infoList");
-                }
-            }
-
-            if (obj.has("images") && obj.get("images") instanceof JSONArray) {
-                JSONArray list = obj.getJSONArray("images");
-                if (list.length() > 0 && list.get(0) instanceof JSONObject) {
-                    JSONObject first = list.getJSONObject(0);
-                    return first.has("urlDefault") || first.has("url") || first.has("traceId") || first.has("infoList");
-                }
-            }
+    /**
+     * Find the note objects in the __INITIAL_STATE__ text.
+     * @return The notes found, or null if the text is not usable JSON
+     */
+    private List<JSONObject> findNotes(String stateJson) {
+        if (stateJson == null) return null;
 
-            if (obj.has("video") && obj.get("video") instanceof JSONObject) {
-                JSONObject video = obj.getJSONObject("video");
-                return video.has("consumer") || video.has("media");
-            }
-        } catch (Exception ignored) {
+        NoteLayoutIndex layoutIndex = NoteLayoutIndex.get(context);
+        String learnedPath = layoutIndex.preferredPath();
+        NoteStateReader.Result result = NoteStateReader.read(stateJson, learnedPath);
+        if (result == null) {
+            // Text the pull reader rejects may still be lenient JSON, use the full tree
+            JSONObject root = parseInitialState(stateJson);
+            if (root == null) return null;
+            return NoteStateReader.findNoteObjects(root);
         }
-
-        return false;
+        layoutIndex.record(learnedPath, result.notePath);
+        Log.d(TAG, "Found " + result.notes.size() + " note candidate(s) at " + result.notePath
+                + (result.usedLearnedPath ? " (learned path)" : ""));
+        return result.notes;
     }
 
-    private static void addNoteCandidate(JSONObject note, List<JSONObject> notes, Set<String> seenNoteIds) {
-        if (note == null) return;
-
-        // Avoid empty placeholder objects (these break extraction and block better candidates).
-        JSONArray names = note.names();
-        if (names == null || names.length() == 0) return;
-
-        String noteId = note.optString("noteId", "");
-        if (!TextUtils.isEmpty(noteId)) {
-            if (!seenNoteIds.add(noteId)) return;
-        }
-        notes.add(note);
+    public List<String> parsePostDetails(String html) {
+        ParsedNote parsedNote = parseNote(null, html);
+        applyParsedNote(parsedNote);
+        return new ArrayList<>(parsedNote.mediaUrls);
     }
 
-    private List<JSONObject> findNoteObjects(JSONObject root) {
-        List<JSONObject> notes = new ArrayList<>();
-        Set<String> seenNoteIds = new HashSet<>();
-
-        try {
-            // 1) Legacy: root.note.noteDetailMap[*].note
-            if (root.has("note") && root.get("note") instanceof JSONObject) {
-                JSONObject noteRoot = root.getJSONObject("note");
-
-                if (noteRoot.has("noteDetailMap") && noteRoot.get("noteDetailMap") instanceof JSONObject) {
-                    JSONObject noteDetailMap = noteRoot.getJSONObject("noteDetailMap");
-                    JSONArray keys = noteDetailMap.names();
-                    if (keys != null) {
-                        for (int i = 0; i < keys.length(); i++) {
-                            String key = keys.getString(i);
-                            JSONObject noteData = noteDetailMap.optJSONObject(key);
-                            if (noteData != null) {
-                                JSONObject note = noteData.optJSONObject("note");
-                                addNoteCandidate(note, notes, seenNoteIds);
-                            }
-                        }
-                    }
-                } else if (noteRoot.has("note") && noteRoot.get("note") instanceof JSONObject) {
-                    addNoteCandidate(noteRoot.getJSONObject("note"), notes, seenNoteIds);
-                } else if (noteRoot.has("feed") && noteRoot.get("feed") instanceof JSONObject) {
-                    JSONObject feed = noteRoot.getJSONObject("feed");
-                    JSONArray items = feed.optJSONArray("items");
-                    if (items != null) {
-                        for (int i = 0; i < items.length(); i++) {
-                            JSONObject note = items.optJSONObject(i);
-                            addNoteCandidate(note, notes, seenNoteIds);
-                        }
-                    }
-                } else {
-                    // Some pages embed the note directly under root.note
-                    addNoteCandidate(noteRoot, notes, seenNoteIds);
-                }
-            }
-
-            // 2) Legacy: root.feed.items[*]
-            if (root.has("feed") && root.get("feed") instanceof JSONObject) {
-                JSONObject feed = root.getJSONObject("feed");
-                JSONArray items = feed.optJSONArray("items");
-                if (items != null) {
-                    for (int i = 0; i < items.length(); i++) {
-                        JSONObject note = items.optJSONObject(i);
-                        addNoteCandidate(note, notes, seenNoteIds);
-                    }
-                }
-            }
-
-            // 3) Newer: root.noteData.data.noteData
-            if (root.has("noteData") && root.get("noteData") instanceof JSONObject) {
-                JSONObject noteDataRoot = root.getJSONObject("noteData");
-                JSONObject data = noteDataRoot.optJSONObject("data");
-                if (data != null) {
-                    JSONObject note = data.optJSONObject("noteData");
-                    if (note == null) {
-                        // Some variants may use a different key under data.
-                        note = data.optJSONObject("note");
-                    }
-                    addNoteCandidate(note, notes, seenNoteIds);
-                }
-            }
-
-            // 4) Last resort: deep scan for a note-like object anywhere.
-            boolean hasLikely = false;
-            for (JSONObject n : notes) {
-                if (isLikelyNoteObject(n) || n.has("imageList") || n.has("images") || n.has("video")) {
-                    hasLikely = true;
-                    break;
-                }
-            }
-
-            if (notes.isEmpty() || !hasLikely) {
-                Deque<Object> stack = new ArrayDeque<>();
-                stack.push(root);
-                int visited = 0;
-                int maxVisited = 50000;
-                int maxNotes = 5;
-
-                while (!stack.isEmpty() && visited < maxVisited && notes.size() < maxNotes) {
-                    Object current = stack.pop();
-                    visited++;
-
-                    if (current instanceof JSONObject) {
-                        JSONObject obj = (JSONObject) current;
-
-                        // Prefer unwrapping { note: {...} } when present.
-                        JSONObject innerNote = obj.optJSONObject("note");
-                        if (innerNote != null) {
-                            stack.push(innerNote);
-                        }
-
-                        if (isLikelyNoteObject(obj)) {
-                            addNoteCandidate(obj, notes, seenNoteIds);
-                            if (notes.size() >= maxNotes) break;
-                        }
-
-                        JSONArray names = obj.names();
-                        if (names != null) {
-                            for (int i = 0; i < names.length(); i++) {
-                                Object v = obj.opt(names.getString(i));
-                                if (v instanceof JSONObject || v instanceof JSONArray) {
-                                    stack.push(v);
-                                }
-                            }
-                        }
-                    } else if (current instanceof JSONArray) {
-                        JSONArray arr = (JSONArray) current;
-                        for (int i = 0; i < arr.length(); i++) {
-                            Object v = arr.opt(i);
-                            if (v instanceof JSONObject || v instanceof JSONArray) {
-                                stack.push(v);
-                            }
-                        }
-                    }
-                }
-
-                if (!notes.isEmpty()) {
-                    Log.d(TAG, "Deep scan found " + notes.size() + " note candidate(s)");
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error finding note objects: " + e.getMessage());
-        }
-
-        return notes;
+    /**
+     * Parse a note page into a {@link ParsedNote} without touching per-download state,
+     * so the result can be cached and shared between tasks.
+     */
+    private ParsedNote parseNote(String postId, String html) {
+        return parseNote(postId, findNotes(InitialStateExtractor.extractStateJson(html)), html);
     }
-    
-    public List<String> parsePostDetails(String html) {
+
+    /**
+     * @param notes The note objects from __INITIAL_STATE__, or null if the page has no usable state
+     * @param html The raw page, only scanned when there is no structured state
+     */
+    private ParsedNote parseNote(String postId, List<JSONObject> notes, String html) {
         List<String> mediaUrls = new ArrayList<>();
         // Create pairs of images and their corresponding live photo videos
         List<MediaPair> mediaPairs = new ArrayList<>();
-
-        // Look for JSON data in the HTML that contains media information
-        // This is a simplified approach - in a real implementation, you'd need to parse the actual structure
+        NoteParseFlags flags = new NoteParseFlags();
+        NoteMetadata metadata = null;
+        String description = null;
 
         // Look for JSON data containing media URLs
-        JSONObject root = parseInitialStateRootFromHtml(html);
-        if (root != null) {
-            List<JSONObject> notes = findNoteObjects(root);
+        if (notes != null) {
             for (JSONObject note : notes) {
-                mediaUrls.addAll(extractMediaUrlsFromNote(note, mediaPairs));
+                if (metadata == null) {
+                    metadata = buildNoteMetadata(note);
+                    if (metadata != null && !metadata.hasRequiredFields()) {
+                        metadata = null;
+                    }
+                }
+                if (TextUtils.isEmpty(description)) {
+                    description = extractNoteDescription(note);
+                }
+                mediaUrls.addAll(extractMediaUrlsFromNote(note, mediaPairs, flags));
             }
-        } else {
+        } else if (html != null) {
             // If structured JSON isn't available, try to extract URLs directly from HTML
-            mediaUrls.addAll(extractUrlsFromHtml(html));
+            mediaUrls.addAll(extractUrlsFromHtml(html, flags));
         }
 
-        // Clear the URL mapping before processing new URLs
-        urlMapping.clear();
+        java.util.Map<String, String> noteUrlMapping = new java.util.HashMap<>();
 
         // If we have media pairs, process them and add to main mediaUrls
         // But preserve any existing mediaUrls (like videos from note.video section)
@@ -1088,13 +1054,13 @@ public class XHSDownloader {
             if (pair.originalImageUrl != null) {
                 pair.imageUrl = transformXhsCdnUrl(pair.originalImageUrl);
                 // Store mapping for original to transformed URL
-                urlMapping.put(pair.imageUrl, pair.originalImageUrl);
+                noteUrlMapping.put(pair.imageUrl, pair.originalImageUrl);
                 Log.d(TAG, "Transformed image URL: " + pair.originalImageUrl + " -> " + pair.imageUrl);
             }
             if (pair.originalVideoUrl != null) {
                 pair.videoUrl = transformXhsCdnUrl(pair.originalVideoUrl);
                 // Store mapping for original to transformed URL
-                urlMapping.put(pair.videoUrl, pair.originalVideoUrl);
+                noteUrlMapping.put(pair.videoUrl, pair.originalVideoUrl);
                 Log.d(TAG, "Transformed video URL: " + pair.originalVideoUrl + " -> " + pair.videoUrl);
             }
         }
@@ -1126,30 +1092,111 @@ public class XHSDownloader {
             }
         }
 
-        // Store live photo pairs for use in createLivePhotos method
-        this.livePhotoPairs = livePhotoPairs;
-        mediaUrls = newMediaUrls; // Replace the list
-
         // Log the final media URLs for debugging
-        for (String url : mediaUrls) {
+        for (String url : newMediaUrls) {
             Log.d(TAG, "Original URL: " + url);
         }
 
-        Log.d(TAG, "Found " + mediaUrls.size() + " media URLs: " + mediaUrls);
-        return mediaUrls;
+        Log.d(TAG, "Found " + newMediaUrls.size() + " media URLs: " + newMediaUrls);
+        return new ParsedNote(postId, newMediaUrls, livePhotoPairs, noteUrlMapping, metadata, description,
+                flags.videoDetected, flags.livePhotoDetected);
     }
-    
+
+    /**
+     * Make a parsed note the current one for this downloader: live photo pairs, URL fallbacks,
+     * naming metadata and video detection.
+     */
+    private void applyParsedNote(ParsedNote parsedNote) {
+        // Clear the URL mapping before processing new URLs
+        urlMapping.clear();
+        urlMapping.putAll(parsedNote.urlMapping);
+
+        // Store live photo pairs for use in createLivePhotos method
+        this.livePhotoPairs = new ArrayList<>(parsedNote.livePhotoPairs);
+
+        if (customNamingEnabled && parsedNote.metadata != null) {
+            currentNoteMetadata = parsedNote.metadata;
+        }
+
+        if (parsedNote.containsVideo || parsedNote.containsLivePhoto) {
+            // Mark that videos have been detected
+            videosDetected = true;
+        }
+        if (parsedNote.containsVideo) {
+            notifyVideoDetected();
+        }
+    }
+
+    private void notifyVideoDetected() {
+        if (shouldStopOnVideo && downloadCallback != null && !videoWarningShown) {
+            videoWarningShown = true;
+            downloadCallback.onVideoDetected();
+        }
+    }
+
+    /**
+     * Return the parsed note for a canonical post URL, fetching the page only when it is not cached.
+     * @return The parsed note, or null if the page could not be fetched
+     */
+    private ParsedNote loadParsedNote(String url, String postId) {
+        if (!bypassNoteCache) {
+            ParsedNote cached = ParsedNoteCache.get(postId);
+            if (cached != null) {
+                Log.d(TAG, "Using cached note for post: " + postId);
+                return cached;
+            }
+        }
+
+        InitialStateExtractor.Result page = fetchNotePage(url);
+        if (page == null) {
+            return null;
+        }
+
+        List<JSONObject> notes = findNotes(page.stateJson);
+        String html = page.html;
+        if (notes == null && html == null) {
+            // The state object was there but unusable: scan the full page like before
+            html = fetchPostDetails(url);
+            if (html == null) {
+                return null;
+            }
+        }
+
+        ParsedNote parsedNote = parseNote(postId, notes, html);
+        ParsedNoteCache.put(parsedNote);
+        return parsedNote;
+    }
+
+    /**
+     * Fetch/parse stage of downloadContent; runs on the prefetch pool and has no effect on the current note.
+     */
+    private ParsedNote prefetchNote(String url) {
+        String postId = extractPostId(url);
+        if (postId == null || shouldStop()) {
+            return null;
+        }
+        return loadParsedNote(url, postId);
+    }
+
+    /**
+     * Skip the parsed-note cache and refetch the page, e.g. when the user retries a failed task.
+     * The fresh result still replaces the cached entry.
+     */
+    public void setBypassNoteCache(boolean bypass) {
+        this.bypassNoteCache = bypass;
+    }
+
     /**
      * Extract media URLs from a note object
      * @param note The note JSON object to extract media from
      * @param mediaPairs List to store image-video pairs for live photos
+     * @param flags Collects what kinds of media the note contains
      * @return A list of media URLs found in the note
      */
-    private List<String> extractMediaUrlsFromNote(JSONObject note, List<MediaPair> mediaPairs) {
+    private List<String> extractMediaUrlsFromNote(JSONObject note, List<MediaPair> mediaPairs, NoteParseFlags flags) {
         List<String> mediaUrls = new ArrayList<>();
         
         try {
-            captureNoteMetadata(note);
             // Debug logging to trace execution path
             Log.d(TAG, "Processing note object");
             Log.d(TAG, "Note object keys: " + note.names());
@@ -1168,11 +1215,7 @@ public class XHSDownloader {
                     Log.d(TAG, "Extracted video URL: " + videoUrl);
                     mediaUrls.add(videoUrl);
                     // Mark that videos have been detected
-                    videosDetected = true;
-                    if (shouldStopOnVideo && downloadCallback != null && !videoWarningShown) {
-                        videoWarningShown = true;
-                        downloadCallback.onVideoDetected();
-                    }
+                    flags.videoDetected = true;
                 }
                 // 备用方案：检查media.stream.h265
                 else if (video.has("media")) {
@@ -1192,11 +1235,7 @@ public class XHSDownloader {
                                         Log.d(TAG, "Extracted video URL from h265 string: " + url);
                                         mediaUrls.add(url);
                                         // Mark that videos have been detected
-                                        videosDetected = true;
-                                        if (shouldStopOnVideo && downloadCallback != null && !videoWarningShown) {
-                                            videoWarningShown = true;
-                                            downloadCallback.onVideoDetected();
-                                        }
+                                        flags.videoDetected = true;
                                     }
                                 } else if (h265Obj instanceof JSONObject) {
                                     JSONObject h265Json = (JSONObject) h265Obj;
@@ -1205,20 +1244,12 @@ public class XHSDownloader {
                                         Log.d(TAG, "Extracted video URL from h265.url: " + h265Json.getString("url"));
                                         mediaUrls.add(h265Json.getString("url"));
                                         // Mark that videos have been detected
-                                        videosDetected = true;
-                                        if (shouldStopOnVideo && downloadCallback != null && !videoWarningShown) {
-                                            videoWarningShown = true;
-                                            downloadCallback.onVideoDetected();
-                                        }
+                                        flags.videoDetected = true;
                                     } else if (h265Json.has("masterUrl")) {
                                         Log.d(TAG, "Extracted video URL from h265.masterUrl: " + h265Json.getString("masterUrl"));
                                         mediaUrls.add(h265Json.getString("masterUrl"));
                                         // Mark that videos have been detected
-                                        videosDetected = true;
-                                        if (shouldStopOnVideo && downloadCallback != null && !videoWarningShown) {
-                                            videoWarningShown = true;
-                                            downloadCallback.onVideoDetected();
-                                        }
+                                        flags.videoDetected = true;
                                     }
                                 }
                             }
@@ -1300,7 +1331,7 @@ public class XHSDownloader {
                             // Has stream field = Live Photo
                             Log.d(TAG, "Live Photo detected: image=" + imageUrl + ", video=" + livePhotoVideoUrl);
                             mediaPairs.add(new MediaPair(imageUrl, livePhotoVideoUrl, true));
-                            videosDetected = true;
+                            flags.livePhotoDetected = true;
                         } else {
                             mediaPairs.add(new MediaPair(imageUrl, null, false)); // single image
                         }
@@ -1437,7 +1468,7 @@ public class XHSDownloader {
     /**
      * Class to hold confirmed live photo pairs
      */
-    private static class LivePhotoPair {
+    static class LivePhotoPair {
         String imageUrl;
         String videoUrl;
 
@@ -1456,7 +1487,7 @@ public class XHSDownloader {
         }
     }
 
-    private static class NoteMetadata {
+    static class NoteMetadata {
         final String userName;
         final String userId;
         final String title;
@@ -1473,8 +1504,16 @@ public class XHSDownloader {
             return !TextUtils.isEmpty(userName) && !TextUtils.isEmpty(userId);
         }
     }
+
+    /**
+     * Media kinds seen while parsing a note
+     */
+    private static class NoteParseFlags {
+        boolean videoDetected;
+        boolean livePhotoDetected;
+    }
     
-    private List<String> extractUrlsFromHtml(String html) {
+    private List<String> extractUrlsFromHtml(String html, NoteParseFlags flags) {
         List<String> urls = new ArrayList<>();
         
         // Look for image URLs in the HTML
@@ -1496,11 +1535,7 @@ public class XHSDownloader {
                 urls.add(url);
                 // Check if this is a video URL and mark it if so
                 if (isVideoUrl(url)) {
-                    videosDetected = true;
-                    if (shouldStopOnVideo && downloadCallback != null && !videoWarningShown) {
-                        videoWarningShown = true;
-                        downloadCallback.onVideoDetected();
-                    }
+                    flags.videoDetected = true;
                 }
             }
         }
@@ -1544,19 +1579,6 @@ public class XHSDownloader {
         return template;
     }
 
-    private void captureNoteMetadata(JSONObject note) {
-        if (!customNamingEnabled || note == null) {
-            return;
-        }
-        if (currentNoteMetadata != null && currentNoteMetadata.hasRequiredFields()) {
-            return;
-        }
-        NoteMetadata metadata = buildNoteMetadata(note);
-        if (metadata != null && metadata.hasRequiredFields()) {
-            currentNoteMetadata = metadata;
-        }
-    }
-
     private NoteMetadata buildNoteMetadata(JSONObject note) {
         try {
             if (note == null) {
@@ -1971,97 +1993,212 @@ public class XHSDownloader {
 
     
     /**
-     * Creates live photos by combining images and videos
+     * A live photo pair of a note: its file names are fixed while the note is current, so it can be muxed
+     * on the publish stage after the note loop has moved on.
+     */
+    private static final class LivePhotoJob {
+        final int index;
+        final String imageUrl;
+        final String videoUrl;
+        final String baseName;
+        final String imageFileName;
+        final String videoFileName;
+        final File tempImageFile;
+        final File tempVideoFile;
+        Future<Boolean> image;
+        Future<Boolean> video;
+
+        LivePhotoJob(int index, LivePhotoPair pair, String baseName, String imageFileName, String videoFileName,
+                     File tempImageFile, File tempVideoFile) {
+            this.index = index;
+            this.imageUrl = pair.imageUrl;
+            this.videoUrl = pair.videoUrl;
+            this.baseName = baseName;
+            this.imageFileName = imageFileName;
+            this.videoFileName = videoFileName;
+            this.tempImageFile = tempImageFile;
+            this.tempVideoFile = tempVideoFile;
+        }
+
+        void deleteTempFiles() {
+            if (tempImageFile.exists()) {
+                tempImageFile.delete();
+            }
+            if (tempVideoFile.exists()) {
+                tempVideoFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Downloads the media of a note with live photos: the image and video of each pair to temporary files,
+     * and the media that is not part of a pair as usual, all queued on the shared scheduler together. The
+     * pairs are then muxed into live photos on the publish stage, so this returns once the transfers are done.
      * @param postId The post ID for naming
      * @param mediaUrls List of media URLs where live photos are properly paired as [image, video, image, video, ...]
      * @param timestamp The timestamp to use in file names for this download session
-     * @return true if there were errors, false otherwise
+     * @return true if there were errors, false otherwise; errors while muxing are reported by the stage
+     * @throws InterruptedException If the download was stopped while transferring
      */
-    private boolean createLivePhotos(String postId, List<String> mediaUrls, String timestamp) {
+    private boolean createLivePhotos(String postId, List<String> mediaUrls, String timestamp,
+                                     PublishStage publishStage) throws InterruptedException {
         boolean hasErrors = false;
 
-        // Process media URLs in pairs: [image, video, image, video, ...] for live photos
-        // Regular images/videos that are not part of live photos are handled separately
+        // A temporary downloader that downloads to the app's internal storage
+        FileDownloader tempDownloader = new FileDownloader(context, null); // No callback to avoid premature notification
+        List<LivePhotoJob> jobs = new ArrayList<>();
         int livePhotoIndex = 0; // Track the live photo number separately to ensure correct pairing
 
         // Process only confirmed live photo pairs that were identified during parsing
         for (LivePhotoPair livePhotoPair : this.livePhotoPairs) {
             livePhotoIndex++; // Increment the live photo index for this pair
+            String baseName = buildFileBaseName(postId, livePhotoIndex);
+            String imageFileName = baseName + "_img." + determineFileExtension(livePhotoPair.imageUrl);
+            String videoFileName = baseName + "_vid." + determineFileExtension(livePhotoPair.videoUrl);
+            // The files are downloaded to internal storage with "xhs_" prefix
+            LivePhotoJob job = new LivePhotoJob(livePhotoIndex, livePhotoPair, baseName, imageFileName, videoFileName,
+                    new File(context.getExternalFilesDir(null), "xhs_" + timestamp + "_" + imageFileName),
+                    new File(context.getExternalFilesDir(null), "xhs_" + timestamp + "_" + videoFileName));
+            Log.d(TAG, "Downloading live photo " + livePhotoIndex + " for post: " + postId);
+            job.image = scheduler.submit(mediaTask, job.imageUrl,
+                    () -> tempDownloader.downloadFileToInternalStorage(job.imageUrl, imageFileName, timestamp));
+            job.video = scheduler.submit(mediaTask, job.videoUrl,
+                    () -> tempDownloader.downloadFileToInternalStorage(job.videoUrl, videoFileName, timestamp));
+            jobs.add(job);
+        }
+
+        // Now queue the remaining media that are not part of live photo pairs
+        // These include standalone images and standalone videos (like post videos)
+        List<String> standaloneUrls = new ArrayList<>();
+        List<Future<Boolean>> standalone = new ArrayList<>();
+        int mediaIndex = livePhotoIndex; // Continue numbering after live photo pairs
+        for (String mediaUrl : mediaUrls) {
+            boolean isPartOfLivePhoto = false;
+            // Check if this URL is part of any live photo pair
+            for (LivePhotoPair pair : this.livePhotoPairs) {
+                if (mediaUrl.equals(pair.imageUrl) || mediaUrl.equals(pair.videoUrl)) {
+                    isPartOfLivePhoto = true;
+                    break;
+                }
+            }
 
-            try {
-                String imageUrl = livePhotoPair.imageUrl;
-                String videoUrl = livePhotoPair.videoUrl;
-
-                Log.d(TAG, "Creating live photo " + livePhotoIndex + " for post: " + postId);
-                Log.d(TAG, "Image URL: " + imageUrl);
-                Log.d(TAG, "Video URL: " + videoUrl);
-
-                // Create a temporary downloader that downloads to the app's internal storage
-                FileDownloader tempDownloader = new FileDownloader(context, null); // No callback to avoid premature notification
-
-                // Download the image to a temporary location (app's internal storage)
-                String baseName = buildFileBaseName(postId, livePhotoIndex);
-                String imageFileName = baseName + "_img." + determineFileExtension(imageUrl);
-                boolean imageDownloaded = tempDownloader.downloadFileToInternalStorage(imageUrl, imageFileName, timestamp);
-                if (!imageDownloaded) {
-                    Log.e(TAG, "Failed to download image for live photo: " + imageUrl);
+            if (!isPartOfLivePhoto) {
+                // This media is not part of a live photo pair, download separately
+                mediaIndex++; // Increment for each standalone media to avoid overwriting files
+                String baseFileName = buildFileBaseName(postId, mediaIndex);
+                String uniqueFileName = baseFileName + "_" + (isVideoUrl(mediaUrl) ? "video" : "image");
+                String fileNameWithExtension = uniqueFileName + "." + determineFileExtension(mediaUrl);
+                standaloneUrls.add(mediaUrl);
+                standalone.add(scheduler.submit(mediaTask, mediaUrl,
+                        () -> downloadFile(mediaUrl, fileNameWithExtension, timestamp)));
+            }
+        }
+
+        List<LivePhotoJob> downloaded = new ArrayList<>();
+        try {
+            for (LivePhotoJob job : jobs) {
+                boolean imageDownloaded = transferSucceeded(job.image, job.imageUrl);
+                boolean videoDownloaded = transferSucceeded(job.video, job.videoUrl);
+                if (!imageDownloaded || !videoDownloaded) {
+                    Log.e(TAG, "Failed to download live photo " + job.index + ", image: " + imageDownloaded
+                            + ", video: " + videoDownloaded);
                     hasErrors = true;
+                    job.deleteTempFiles();
                     continue; // Skip to next live photo pair
                 }
-
-                // Download the video to a temporary location (app's internal storage)
-                String videoFileName = baseName + "_vid." + determineFileExtension(videoUrl);
-                boolean videoDownloaded = tempDownloader.downloadFileToInternalStorage(videoUrl, videoFileName, timestamp);
-                if (!videoDownloaded) {
-                    Log.e(TAG, "Failed to download video for live photo: " + videoUrl);
+                if (!job.tempImageFile.exists() || !job.tempVideoFile.exists()) {
+                    Log.e(TAG, "Downloaded temporary files do not exist. Image: " + job.tempImageFile.exists() + ", Video: " + job.tempVideoFile.exists());
                     hasErrors = true;
-                    // Clean up the already downloaded image file
-                    File alreadyDownloadedImage = new File(context.getExternalFilesDir(null), "xhs_" + timestamp + "_" + imageFileName);
-                    if (alreadyDownloadedImage.exists()) {
-                        alreadyDownloadedImage.delete();
-                    }
+                    job.deleteTempFiles();
                     continue; // Skip to next live photo pair
                 }
+                downloaded.add(job);
+            }
+        } catch (InterruptedException e) {
+            // Stopped: none of the pairs will be muxed
+            for (LivePhotoJob job : jobs) {
+                job.deleteTempFiles();
+            }
+            throw e;
+        }
+        for (int i = 0; i < standalone.size(); i++) {
+            if (!transferSucceeded(standalone.get(i), standaloneUrls.get(i))) {
+                Log.e(TAG, "Failed to download media separately: " + standaloneUrls.get(i));
+                hasErrors = true;
+            } else {
+                Log.d(TAG, "Successfully downloaded media separately: " + standaloneUrls.get(i));
+            }
+        }
 
-                // The files are downloaded to internal storage with "xhs_" prefix
-                File actualTempImageFile = new File(context.getExternalFilesDir(null), "xhs_" + timestamp + "_" + imageFileName);
-                File actualTempVideoFile = new File(context.getExternalFilesDir(null), "xhs_" + timestamp + "_" + videoFileName);
-
-                Log.d(TAG, "Image file downloaded to: " + actualTempImageFile.getAbsolutePath());
-                Log.d(TAG, "Video file downloaded to: " + actualTempVideoFile.getAbsolutePath());
+        if (!downloaded.isEmpty()) {
+            File destinationDir = livePhotoDestinationDir();
+            publishLater(publishStage, () -> muxLivePhotos(postId, downloaded, destinationDir, timestamp));
+        }
+        return hasErrors;
+    }
 
-                if (!actualTempImageFile.exists() || !actualTempVideoFile.exists()) {
-                    Log.e(TAG, "Downloaded temporary files do not exist. Image: " + actualTempImageFile.exists() + ", Video: " + actualTempVideoFile.exists());
-                    hasErrors = true;
-                    continue; // Skip to next live photo pair
-                }
+    /**
+     * Wait for a queued transfer.
+     * @throws InterruptedException If the download was stopped, also when the transfer was cancelled
+     */
+    private boolean transferSucceeded(Future<Boolean> future, String url) throws InterruptedException {
+        checkForStop();
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            throw new InterruptedException("Transfer cancelled: " + url);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                throw new InterruptedException("Transfer cancelled: " + url);
+            }
+            Log.e(TAG, "Exception downloading " + url + ": " + e.getMessage());
+            return false;
+        }
+    }
 
-                File destinationDir;
-                if (cacheDestinationMode && cacheDestinationDir != null) {
-                    destinationDir = cacheDestinationDir;
-                } else {
-                    // Always use MediaStore directory with "xhsdn" subfolder for consistent location
-                    File publicPicturesDir = android.os.Environment.getExternalStoragePublicDirectory(android.os.Environment.DIRECTORY_PICTURES);
-                    if (publicPicturesDir != null) {
-                        destinationDir = new File(publicPicturesDir, "xhsdn");
-                    } else {
-                        destinationDir = context.getExternalFilesDir(android.os.Environment.DIRECTORY_PICTURES);
-                    }
-                }
+    private File livePhotoDestinationDir() {
+        File destinationDir;
+        if (cacheDestinationMode && cacheDestinationDir != null) {
+            destinationDir = cacheDestinationDir;
+        } else {
+            // Always use MediaStore directory with "xhsdn" subfolder for consistent location
+            File publicPicturesDir = android.os.Environment.getExternalStoragePublicDirectory(android.os.Environment.DIRECTORY_PICTURES);
+            if (publicPicturesDir != null) {
+                destinationDir = new File(publicPicturesDir, "xhsdn");
+            } else {
+                destinationDir = context.getExternalFilesDir(android.os.Environment.DIRECTORY_PICTURES);
+            }
+        }
 
-                if (!destinationDir.exists()) {
-                    destinationDir.mkdirs();
-                }
+        if (!destinationDir.exists()) {
+            destinationDir.mkdirs();
+        }
+        return destinationDir;
+    }
 
+    /**
+     * Publish stage of a note with live photos: combine each downloaded pair into a live photo, falling back
+     * to the separate files when that fails. Pairs left when the download is stopped are dropped.
+     * @return true if there were errors, false otherwise
+     */
+    private boolean muxLivePhotos(String postId, List<LivePhotoJob> jobs, File destinationDir, String timestamp) {
+        boolean hasErrors = false;
+        for (LivePhotoJob job : jobs) {
+            if (shouldStop()) {
+                job.deleteTempFiles();
+                continue;
+            }
+            try {
+                Log.d(TAG, "Creating live photo " + job.index + " for post: " + postId);
                 // Create the live photo in the final destination
-                String livePhotoFileName = baseName + "_live.jpg";
+                String livePhotoFileName = job.baseName + "_live.jpg";
                 File livePhotoFile = new File(destinationDir, "xhs_" + livePhotoFileName);
 
-                Log.d(TAG, "Creating live photo with image: " + actualTempImageFile.getAbsolutePath() +
-                       " and video: " + actualTempVideoFile.getAbsolutePath() +
+                Log.d(TAG, "Creating live photo with image: " + job.tempImageFile.getAbsolutePath() +
+                       " and video: " + job.tempVideoFile.getAbsolutePath() +
                        " -> output: " + livePhotoFile.getAbsolutePath());
 
-                boolean livePhotoCreated = LivePhotoCreator.createLivePhoto(actualTempImageFile, actualTempVideoFile, livePhotoFile, context);
+                boolean livePhotoCreated = LivePhotoCreator.createLivePhoto(job.tempImageFile, job.tempVideoFile, livePhotoFile, context);
 
                 if (livePhotoCreated) {
                     // Additional check: verify if the created live photo file can be opened by checking if it was created properly
@@ -2076,12 +2213,7 @@ public class XHSDownloader {
                         Log.d(TAG, "Successfully created live photo: " + livePhotoFile.getAbsolutePath());
 
                         // Clean up temporary files
-                        if (actualTempImageFile.exists()) {
-                            actualTempImageFile.delete();
-                        }
-                        if (actualTempVideoFile.exists()) {
-                            actualTempVideoFile.delete();
-                        }
+                        job.deleteTempFiles();
                     } else {
                         // Live photo file is invalid, treat as failure
                         Log.e(TAG, "Live photo file was created but is invalid (zero size or doesn't exist)");
@@ -2107,22 +2239,22 @@ public class XHSDownloader {
                 }
 
                 if (!livePhotoCreated) {
-                    Log.e(TAG, "Failed to create live photo from image: " + actualTempImageFile.getAbsolutePath() +
-                           " and video: " + actualTempVideoFile.getAbsolutePath() +
+                    Log.e(TAG, "Failed to create live photo from image: " + job.tempImageFile.getAbsolutePath() +
+                           " and video: " + job.tempVideoFile.getAbsolutePath() +
                            " -> output: " + livePhotoFile.getAbsolutePath() +
                            ". Falling back to separate files.");
                     hasErrors = true;
 
                     // Notify the callback about live photo creation failure with i18n message
                     if (downloadCallback != null) {
-                        String fallbackMessage = "Live photo creation failed for post " + postId + ", index " + livePhotoIndex +
+                        String fallbackMessage = "Live photo creation failed for post " + postId + ", index " + job.index +
                             ". Falling back to downloading separate image and video files.";
                         downloadCallback.onDownloadProgress(fallbackMessage);
                     }
 
                     // Only download separately if the downloadFile calls were successful
-                    boolean imageDownloadedFallback = downloadFile(imageUrl, imageFileName, timestamp);
-                    boolean videoDownloadedFallback = downloadFile(videoUrl, videoFileName, timestamp);
+                    boolean imageDownloadedFallback = downloadFile(job.imageUrl, job.imageFileName, timestamp);
+                    boolean videoDownloadedFallback = downloadFile(job.videoUrl, job.videoFileName, timestamp);
 
                     Log.d(TAG, "Fallback download - Image: " + (imageDownloadedFallback ? "Success" : "Failed") +
                            ", Video: " + (videoDownloadedFallback ? "Success" : "Failed"));
@@ -2132,60 +2264,39 @@ public class XHSDownloader {
                         // If neither separate file downloaded successfully, notify about the failure
                         downloadCallback.onDownloadError(
                             "Both image and video failed to download separately after live photo creation failure",
-                            "Post " + postId + ", item " + livePhotoIndex
+                            "Post " + postId + ", item " + job.index
                         );
                     }
 
                     // Clean up temporary files
-                    if (actualTempImageFile.exists()) {
-                        actualTempImageFile.delete();
-                    }
-                    if (actualTempVideoFile.exists()) {
-                        actualTempVideoFile.delete();
-                    }
+                    job.deleteTempFiles();
                 }
-
             } catch (Exception e) {
                 Log.e(TAG, "Error creating live photo: " + e.getMessage());
                 e.printStackTrace();
                 hasErrors = true;
             }
         }
+        return hasErrors;
+    }
 
-        // Now handle the remaining media that are not part of live photo pairs
-        // These include standalone images and standalone videos (like post videos)
-        int mediaIndex = livePhotoIndex; // Continue numbering after live photo pairs
-        for (String mediaUrl : mediaUrls) {
-            boolean isPartOfLivePhoto = false;
-            // Check if this URL is part of any live photo pair
-            for (LivePhotoPair pair : this.livePhotoPairs) {
-                if (mediaUrl.equals(pair.imageUrl) || mediaUrl.equals(pair.videoUrl)) {
-                    isPartOfLivePhoto = true;
-                    break;
-                }
-            }
-
-            if (!isPartOfLivePhoto) {
-                // This media is not part of a live photo pair, download separately
-                mediaIndex++; // Increment for each standalone media to avoid overwriting files
-                String baseFileName = buildFileBaseName(postId, mediaIndex);
-                String uniqueFileName = baseFileName + "_" + (isVideoUrl(mediaUrl) ? "video" : "image");
-                String fileExtension = determineFileExtension(mediaUrl);
-                String fileNameWithExtension = uniqueFileName + "." + fileExtension;
-
-                boolean success = downloadFile(mediaUrl, fileNameWithExtension, timestamp);
-                if (!success) {
-                    Log.e(TAG, "Failed to download media separately: " + mediaUrl);
-                    hasErrors = true;
-                } else {
-                    Log.d(TAG, "Successfully downloaded media separately: " + mediaUrl);
-                }
+    /**
+     * Hand a note's finishing work to the publish stage. If the download is stopped while the stage is full
+     * the work is done right here, so what was written is not left unpublished.
+     */
+    private void publishLater(PublishStage publishStage, Callable<Boolean> work) {
+        try {
+            publishStage.submit(work);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            try {
+                work.call();
+            } catch (Exception ex) {
+                Log.e(TAG, "Error finishing a note: " + ex.getMessage());
             }
         }
-
-        return hasErrors;
     }
-    
+
     /**
      * Checks if a URL is a video URL
      * @param url The URL to check
@@ -2208,35 +2319,12 @@ public class XHSDownloader {
     }
     
     /**
-     * 解析短链接，获取重定向后的真实URL
+     * 解析短链接，获取重定向后的真实URL（只读取重定向链，结果会被缓存）
      * @param shortUrl 短链接
      * @return 重定向后的完整URL，如果失败则返回null
      */
     private String resolveShortUrl(String shortUrl) {
-        try {
-            // 创建一个GET请求来获取重定向的URL（GET请求通常会自动跟踪重定向）
-            okhttp3.Request request = new okhttp3.Request.Builder()
-                    .url(shortUrl)
-                    .addHeader("User-Agent", USER_AGENT_XHS_ANDROID)
-                    .build();
-            
-            // 同步执行请求
-            activeCall = httpClient.newCall(request);
-            okhttp3.Response response = activeCall.execute();
-            
-            if (response.isSuccessful()) {
-                // 获取重定向后的最终URL
-                String finalUrl = response.request().url().toString();
-                response.close();
-                return finalUrl;
-            } else {
-                response.close();
-                return null;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error resolving short URL: " + e.getMessage());
-            return null;
-        }
+        return ShortLinkResolver.get(context).resolve(shortUrl, USER_AGENT_XHS_ANDROID, call -> activeCall = call);
     }
     
     /**
@@ -2298,16 +2386,15 @@ public class XHSDownloader {
                 String postId = extractPostId(url);
 
                 if (postId != null) {
-                    // Fetch the post details
-                    String postDetails = fetchPostDetails(url);
+                    // Fetch the post details (cached for the following download)
+                    ParsedNote parsedNote = loadParsedNote(url, postId);
 
-                    if (postDetails != null) {
-                        // Parse the post details to extract media URLs
-                        List<String> mediaUrls = parsePostDetails(postDetails);
-                        int count = mediaUrls.size();
+                    if (parsedNote != null) {
+                        applyParsedNote(parsedNote);
+                        int count = parsedNote.mediaUrls.size();
                         // 如果启用了 Live Photo 合成，则每对图+视频最终只生成一个文件，进度应按合成后的数量计算
-                        if (shouldCreateLivePhotos() && this.livePhotoPairs != null && !this.livePhotoPairs.isEmpty()) {
-                            count -= this.livePhotoPairs.size(); // 每对减少一次计数
+                        if (shouldCreateLivePhotos() && !parsedNote.livePhotoPairs.isEmpty()) {
+                            count -= parsedNote.livePhotoPairs.size(); // 每对减少一次计数
                             if (count < 0) count = 0;
                         }
                         return count; // Return number of resulting media items
@@ -2348,21 +2435,12 @@ public class XHSDownloader {
                 String postId = extractPostId(url);
                 
                 if (postId != null) {
-                    // Fetch the post details
-                    String postDetails = fetchPostDetails(url);
+                    // Fetch the post details (usually already cached by getMediaCount)
+                    ParsedNote parsedNote = loadParsedNote(url, postId);
                     
-                    if (postDetails != null) {
-                        JSONObject root = parseInitialStateRootFromHtml(postDetails);
-                        if (root != null) {
-                            List<JSONObject> notes = findNoteObjects(root);
-                            for (JSONObject note : notes) {
-                                String desc = extractNoteDescription(note);
-                                if (desc != null && !desc.isEmpty()) {
-                                    Log.d(TAG, "Found description: " + desc);
-                                    return desc;
-                                }
-                            }
-                        }
+                    if (parsedNote != null && !TextUtils.isEmpty(parsedNote.description)) {
+                        Log.d(TAG, "Found description: " + parsedNote.description);
+                        return parsedNote.description;
                     }
                 }
             }
@@ -2388,11 +2466,23 @@ public class XHSDownloader {
         this.shouldStopOnVideo = shouldStop;
     }
 
+    /**
+     * Let this downloader's files go ahead of background tasks in the shared scheduler,
+     * e.g. for downloads the user started from the main screen.
+     */
+    public void setForegroundPriority(boolean foreground) {
+        mediaTask.setForeground(foreground);
+    }
+
     public void stopDownload() {
         this.shouldStopDownload = true;
+        scheduler.cancel(mediaTask);
         if (activeCall != null) {
             activeCall.cancel();
         }
+        for (okhttp3.Call call : backgroundCalls) {
+            call.cancel();
+        }
         if (fileDownloader != null) {
             fileDownloader.cancel();
         }
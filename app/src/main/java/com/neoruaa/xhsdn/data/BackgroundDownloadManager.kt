@@ -34,8 +34,6 @@ object BackgroundDownloadManager {
     private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
     private val activeJobs = ConcurrentHashMap<Long, Job>()
     private val activeUrls = ConcurrentHashMap.newKeySet<String>()
-    // Track current file progress for each task
-    private val taskCurrentFileProgress = ConcurrentHashMap<Long, Float>()
     private const val CHANNEL_ID = "xhs_download_channel_v2"
     private const val BASE_NOTIFICATION_ID = 1000
 
@@ -116,12 +114,23 @@ object BackgroundDownloadManager {
                 val completedFiles = java.util.concurrent.atomic.AtomicInteger(0)
                 val failedFiles = java.util.concurrent.atomic.AtomicInteger(0)
 
+                // 进度由下载线程写入计数器，按固定间隔同步到任务列表
+                val progress = TransferProgress()
+                progress.launchSampler(scope, coroutineContext[Job]) { sample ->
+                    if (TaskManager.getTaskById(taskId)?.status == TaskStatus.DOWNLOADING) {
+                        TaskManager.updateProgress(taskId, completedFiles.get(), failedFiles.get(), sample.fileFraction)
+                        if (sample.batchTotal > 0) {
+                            TaskManager.updateByteProgress(taskId, sample.batchDownloaded, sample.batchTotal)
+                        }
+                    }
+                }
+
                 // 3. Setup Downloader
                 val downloader = XHSDownloader(appContext, object : DownloadCallback {
                     override fun onFileDownloaded(filePath: String) {
                          val completed = completedFiles.incrementAndGet()
                          // Reset current file progress when file completes
-                         taskCurrentFileProgress[taskId] = 0f
+                         progress.onFileFinished()
                          TaskManager.updateProgress(taskId, completed, failedFiles.get(), 0f)
                          TaskManager.addFilePath(taskId, filePath)
                          // Update notification if needed
@@ -130,7 +139,7 @@ object BackgroundDownloadManager {
                     override fun onDownloadError(status: String, originalUrl: String) {
                         if (isTerminalDownloadError(status)) {
                             val failed = failedFiles.incrementAndGet()
-                            taskCurrentFileProgress[taskId] = 0f
+                            progress.onFileFinished()
                             TaskManager.updateProgress(taskId, completedFiles.get(), failed, 0f)
                         }
                         Log.w(TAG, "Download error for task $taskId: $status ($originalUrl)")
@@ -138,26 +147,15 @@ object BackgroundDownloadManager {
 
                     override fun onDownloadProgress(status: String) {}
                     override fun onDownloadProgressUpdate(downloaded: Long, total: Long) {
-                        // Calculate individual file progress (0.0 to 1.0)
-                        val currentFileProgress = if (total > 0 && downloaded >= 0) {
-                            if (downloaded <= total) {
-                                // Normal case: downloaded is less than or equal to total
-                                downloaded.toFloat() / total.toFloat()
-                            } else {
-                                // Edge case: downloaded exceeds total (could happen with dynamic content)
-                                // Cap at 1.0 to prevent progress > 100%
-                                1.0f
-                            }
-                        } else {
-                            0f
-                        }
-
-                        // Store the current file progress for this task
-                        taskCurrentFileProgress[taskId] = currentFileProgress
+                        // Called for every chunk; the sampler publishes (fraction is capped at 1.0)
+                        progress.onFileProgress(downloaded, total)
+                    }
 
-                        // Update task progress with current file progress
-                        // Use cached completed/failed counts to avoid database query
-                        TaskManager.updateProgress(taskId, completedFiles.get(), failedFiles.get(), currentFileProgress)
+                    override fun onBatchProgress(downloadedBytes: Long, totalBytes: Long) {
+                        progress.onBatchProgress(downloadedBytes, totalBytes)
+                        if (downloadedBytes >= totalBytes) {
+                            TaskManager.updateByteProgress(taskId, downloadedBytes, totalBytes)
+                        }
                     }
                     override fun onVideoDetected() {
                          // Update task type to VIDEO as we found real video content
@@ -212,8 +210,6 @@ object BackgroundDownloadManager {
                // Remove job from activeJobs map regardless of success or failure
                 if (taskId != -1L) {
                     activeJobs.remove(taskId)
-                    // Clean up current file progress tracking
-                    taskCurrentFileProgress.remove(taskId)
                 }
                 activeUrls.remove(url)
             }
@@ -226,8 +222,6 @@ object BackgroundDownloadManager {
         if (job != null) {
             job.cancel()
             TaskManager.completeTask(taskId, false, "用户手动停止")
-            // Clean up current file progress tracking
-            taskCurrentFileProgress.remove(taskId)
             Log.d(TAG, "Task $taskId stopped by user")
         }
     }
@@ -2,11 +2,24 @@ package com.neoruaa.xhsdn.data
 
 import android.content.Context
 import android.content.SharedPreferences
+import android.util.Log
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.update
 import org.json.JSONArray
+import org.json.JSONException
 import org.json.JSONObject
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
  * 下载任务状态
@@ -40,6 +53,8 @@ data class DownloadTask(
     val completedFiles: Int = 0,   // 已完成文件数
     val failedFiles: Int = 0,      // 失败文件数
     val currentFileProgress: Float = 0f, // 当前文件下载进度 (0.0 to 1.0)
+    val downloadedBytes: Long = 0L, // 全部文件已下载字节数
+    val totalBytes: Long = 0L,      // 全部文件总字节数 (下载前探测，0 表示未知)
     val status: TaskStatus,        // 任务状态
     val createdAt: Long,           // 创建时间
     val completedAt: Long? = null, // 完成时间
@@ -48,7 +63,10 @@ data class DownloadTask(
     val noteContent: String? = null // 笔记内容
 ) {
     val progress: Float
-        get() = if (totalFiles > 0) {
+        get() = if (totalBytes > 0) {
+            // Weighted by bytes, so a large video counts for more than a thumbnail
+            (downloadedBytes.toFloat() / totalBytes).coerceIn(0f, 1f)
+        } else if (totalFiles > 0) {
             val calculatedProgress = (completedFiles + currentFileProgress) / totalFiles.toFloat()
             // Ensure progress is between 0.0 and 1.0
             calculatedProgress.coerceIn(0f, 1f)
@@ -70,6 +88,8 @@ data class DownloadTask(
             put("completedFiles", completedFiles)
             put("failedFiles", failedFiles)
             put("currentFileProgress", currentFileProgress)
+            put("downloadedBytes", downloadedBytes)
+            put("totalBytes", totalBytes)
             put("status", status.name)
             put("createdAt", createdAt)
             put("completedAt", completedAt ?: 0L)
@@ -90,6 +110,8 @@ data class DownloadTask(
                 completedFiles = json.optInt("completedFiles", 0),
                 failedFiles = json.optInt("failedFiles", 0),
                 currentFileProgress = json.optDouble("currentFileProgress", 0.0).toFloat(),
+                downloadedBytes = json.optLong("downloadedBytes", 0L),
+                totalBytes = json.optLong("totalBytes", 0L),
                 status = try { TaskStatus.valueOf(json.getString("status")) } catch (e: Exception) { TaskStatus.COMPLETED },
                 createdAt = json.getLong("createdAt"),
                 completedAt = json.optLong("completedAt", 0L).takeIf { it > 0 },
@@ -100,103 +122,293 @@ data class DownloadTask(
                 noteContent = json.optString("noteContent").takeIf { it.isNotEmpty() }
             )
         }
+
+        /**
+         * 读取旧版本保存的整个任务历史（一个 JSON 数组），跳过无法读取的任务
+         * @throws org.json.JSONException 字符串不是 JSON 数组时
+         */
+        @JvmStatic
+        fun listFromJson(json: String): List<DownloadTask> {
+            val jsonArray = JSONArray(json)
+            val tasks = ArrayList<DownloadTask>(jsonArray.length())
+            for (i in 0 until jsonArray.length()) {
+                try {
+                    tasks.add(fromJson(jsonArray.getJSONObject(i)))
+                } catch (e: Exception) {
+                    // Skip invalid task
+                }
+            }
+            return tasks
+        }
     }
 }
 
 /**
- * 任务管理器 - SharedPreferences 持久化版本
+ * 任务管理器 - 内存中的任务索引（[TaskIndex]），按行持久化到 [TaskStore]
+ *
+ * 状态、文件数等变化立即写入该任务的一行；只有进度变化时留在内存中，
+ * 延迟 [PROGRESS_FLUSH_DELAY_MS] 后合并写入。
+ * 列表查询只在任务增删或状态变化时重新发射；单个任务的进度通过 [observeTask] 观察。
+ * 启动时在后台按创建时间倒序分批载入任务摘要，文件列表、笔记内容和错误信息在
+ * [getTaskById] 时才读取（[hydrate]）。
  */
 object TaskManager {
+    private const val TAG = "TaskManager"
     private const val PREFS_NAME = "task_history"
+    // 旧版本把整个历史存成一个 JSON 字符串，首次启动时迁移到 TaskStore
     private const val KEY_TASKS = "tasks"
     private const val KEY_NEXT_ID = "next_id"
+    private const val PROGRESS_FLUSH_DELAY_MS = 2000L
+    private const val SUMMARY_BATCH_SIZE = 500
     
+    @Volatile
     private var prefs: SharedPreferences? = null
+    @Volatile
+    private var store: TaskStore? = null
     private var nextId = 1L
-    private val _tasks = MutableStateFlow<List<DownloadTask>>(emptyList())
+    // 迁移完成、nextId 已读取；[createTask] 挂起等待它，不阻塞调用线程
+    private val idsReady = CompletableDeferred<Unit>()
+    // 全部摘要已载入
+    private val summariesLoaded = CountDownLatch(1)
+    private val index = TaskIndex()
+    // 列表结构（任务增删、状态变化）的版本号，进度变化不改变它
+    private val listVersion = MutableStateFlow(0L)
+
+    // 所有数据库写入按提交顺序在这个线程上执行
+    private val writer = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "task-store").apply { isDaemon = true }
+    }
+    // 只有进度变化、尚未写入的任务
+    private val dirtyTaskIds = ConcurrentHashMap.newKeySet<Long>()
+    private val flushScheduled = AtomicBoolean(false)
     
     /**
-     * 初始化 TaskManager（在 Application 或 Activity 的 onCreate 中调用）
+     * 初始化 TaskManager（在 Application 或 Activity 的 onCreate 中调用）。
+     * 不等待历史载入：载入在写线程上进行，列表在每批摘要载入后更新
      */
+    @Synchronized
     fun init(context: Context) {
         if (prefs == null) {
-            prefs = context.applicationContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-            loadTasks()
+            val p = context.applicationContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+            val s = TaskStore(context)
+            prefs = p
+            store = s
+            // 在写线程上载入，之后提交的写入一定在迁移之后执行
+            writer.execute { loadTasks(p, s) }
         }
     }
     
-    private fun loadTasks() {
-        prefs?.let { p ->
+    private fun loadTasks(p: SharedPreferences, s: TaskStore) {
+        try {
+            migrateLegacyTasks(p, s)
             nextId = p.getLong(KEY_NEXT_ID, 1L)
-            val tasksJson = p.getString(KEY_TASKS, "[]") ?: "[]"
-            try {
-                val jsonArray = JSONArray(tasksJson)
-                val tasks = mutableListOf<DownloadTask>()
-                for (i in 0 until jsonArray.length()) {
-                    try {
-                        tasks.add(DownloadTask.fromJson(jsonArray.getJSONObject(i)))
-                    } catch (e: Exception) {
-                        // Skip invalid task
-                    }
-                }
-                _tasks.value = tasks
-            } catch (e: Exception) {
-                _tasks.value = emptyList()
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to migrate task history", e)
+        } finally {
+            idsReady.complete(Unit)
+        }
+
+        try {
+            var offset = 0
+            while (true) {
+                val batch = s.loadSummaries(offset, SUMMARY_BATCH_SIZE)
+                synchronized(index) { batch.forEach { index.putSummary(it) } }
+                notifyListChanged()
+                if (batch.size < SUMMARY_BATCH_SIZE) break
+                offset += batch.size
             }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to load task history", e)
+        } finally {
+            summariesLoaded.countDown()
         }
     }
-    
-    private fun saveTasks() {
-        prefs?.edit()?.apply {
-            val jsonArray = JSONArray()
-            _tasks.value.forEach { task ->
-                jsonArray.put(task.toJson())
+
+    /**
+     * 等待后台载入到 [latch]；未初始化时不等待
+     */
+    private fun awaitLoad(latch: CountDownLatch) {
+        if (store == null) return
+        try {
+            latch.await()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+    }
+
+    /**
+     * 补全只有摘要的任务（读取数据库中的一行）
+     * @return 完整的任务；不存在时为 null
+     */
+    fun hydrate(taskId: Long): DownloadTask? {
+        synchronized(index) {
+            if (index.isHydrated(taskId)) return index[taskId]
+        }
+        val full = try {
+            store?.load(taskId)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to load task $taskId", e)
+            null
+        }
+        val (task, listChanged) = synchronized(index) {
+            // 读取期间可能已被更新或删除
+            if (index.isHydrated(taskId)) return index[taskId]
+            val summary = index[taskId]
+            val task = when {
+                full == null -> return summary
+                // 内存中的摘要可能有更新的进度，只取重字段
+                summary != null -> summary.copy(
+                    errorMessage = full.errorMessage,
+                    filePaths = full.filePaths,
+                    noteContent = full.noteContent
+                )
+                // 已删除
+                summariesLoaded.count == 0L -> return null
+                // 摘要还没载入到这一批
+                else -> full
             }
-            putString(KEY_TASKS, jsonArray.toString())
-            putLong(KEY_NEXT_ID, nextId)
-            apply()
+            task to index.put(task)
+        }
+        if (listChanged) notifyListChanged()
+        return task
+    }
+
+    private fun migrateLegacyTasks(p: SharedPreferences, s: TaskStore) {
+        val migrated = importLegacyTasks(p) { s.upsertAll(it) } ?: return
+        Log.d(TAG, "Migrated $migrated tasks to TaskStore")
+    }
+
+    /**
+     * 把旧版本的 JSON 历史交给 [write]（写入 [TaskStore]），然后删除它；无法读取的历史直接丢弃
+     * @return 导入的任务数；没有旧历史时为 null
+     */
+    @JvmStatic
+    fun importLegacyTasks(p: SharedPreferences, write: (List<DownloadTask>) -> Unit): Int? {
+        val tasksJson = p.getString(KEY_TASKS, null) ?: return null
+        val tasks = try {
+            DownloadTask.listFromJson(tasksJson)
+        } catch (e: JSONException) {
+            emptyList()
+        }
+        write(tasks)
+        // 写入失败时抛出异常，保留旧历史下次再试
+        p.edit().remove(KEY_TASKS).apply()
+        return tasks.size
+    }
+
+    /**
+     * 立即写入一个任务（在写线程上），并取消它待刷新的进度
+     */
+    private fun persist(task: DownloadTask) {
+        val s = store ?: return
+        dirtyTaskIds.remove(task.id)
+        writer.execute { runStoreWrite { s.upsert(task) } }
+    }
+
+    /**
+     * 进度变化只标记任务，延迟后与其他任务的进度一起写入
+     */
+    private fun persistProgressLater(taskId: Long) {
+        dirtyTaskIds.add(taskId)
+        if (flushScheduled.compareAndSet(false, true)) {
+            writer.schedule(Runnable {
+                flushScheduled.set(false)
+                flushProgress()
+            }, PROGRESS_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS)
         }
     }
+
+    private fun flushProgress() {
+        val s = store ?: return
+        val tasks = dirtyTaskIds.toList().mapNotNull { taskId ->
+            dirtyTaskIds.remove(taskId)
+            getTaskById(taskId)
+        }
+        runStoreWrite { s.upsertAll(tasks) }
+    }
+
+    private fun runStoreWrite(write: () -> Unit) {
+        try {
+            write()
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to write task history", e)
+        }
+    }
+
+    private fun saveNextId() {
+        prefs?.edit()?.putLong(KEY_NEXT_ID, nextId)?.apply()
+    }
+
+    private fun notifyListChanged() {
+        listVersion.update { it + 1 }
+    }
     
     /**
      * 获取所有任务（按创建时间降序）
      */
-    fun getAllTasks(): Flow<List<DownloadTask>> = _tasks.map { 
-        it.sortedByDescending { task -> task.createdAt }
+    fun getAllTasks(): Flow<List<DownloadTask>> = getTaskPage(null, Int.MAX_VALUE)
+
+    /**
+     * 按创建时间降序的前 [limit] 个任务，任务增删或状态变化时重新发射。
+     * 查询在 [Dispatchers.Default] 上执行，不占用收集者（通常是主线程）
+     * @param statuses 只包含这些状态的任务，null 表示全部
+     */
+    fun getTaskPage(statuses: Set<TaskStatus>?, limit: Int): Flow<List<DownloadTask>> = listVersion.map {
+        getTasks(statuses, 0, limit)
+    }.flowOn(Dispatchers.Default)
+
+    /**
+     * 按创建时间降序的一页任务
+     */
+    fun getTasks(statuses: Set<TaskStatus>?, offset: Int, limit: Int): List<DownloadTask> {
+        return synchronized(index) { index.page(statuses, offset, limit) }
     }
+
+    /**
+     * 某状态的任务数量
+     */
+    fun getTaskCount(status: TaskStatus): Flow<Int> = listVersion.map {
+        synchronized(index) { index.count(status) }
+    }.distinctUntilChanged()
     
     /**
      * 根据 ID 获取任务
      */
     fun getTaskById(taskId: Long): DownloadTask? {
-        return _tasks.value.find { it.id == taskId }
+        return hydrate(taskId)
+    }
+
+    /**
+     * 观察单个任务；任务不存在时返回 null。任务被删除后不再发射
+     */
+    fun observeTask(taskId: Long): StateFlow<DownloadTask>? {
+        return synchronized(index) { index.flow(taskId) }
     }
     
     /**
      * 获取进行中的任务
      */
-    fun getActiveTasks(): Flow<List<DownloadTask>> = _tasks.map {
-        it.filter { task -> task.isActive }.sortedByDescending { task -> task.createdAt }
-    }
+    fun getActiveTasks(): Flow<List<DownloadTask>> =
+        getTaskPage(setOf(TaskStatus.QUEUED, TaskStatus.DOWNLOADING, TaskStatus.WAITING_FOR_USER), Int.MAX_VALUE)
     
     /**
      * 获取已完成的任务
      */
-    fun getCompletedTasks(): Flow<List<DownloadTask>> = _tasks.map {
-        it.filter { task -> task.isCompleted }.sortedByDescending { task -> task.createdAt }
-    }
+    fun getCompletedTasks(): Flow<List<DownloadTask>> =
+        getTaskPage(setOf(TaskStatus.COMPLETED, TaskStatus.FAILED), Int.MAX_VALUE)
     
     /**
-     * 创建新任务
+     * 创建新任务。启动后第一次调用时挂起到历史迁移完成（任务 ID 要接在旧任务之后）
      */
-    fun createTask(
+    suspend fun createTask(
         noteUrl: String,
         noteTitle: String?,
         noteType: NoteType,
         totalFiles: Int,
         noteContent: String? = null
     ): Long {
-        val taskId = nextId++
+        if (store != null) idsReady.await()
+        val taskId = synchronized(index) { nextId++ }
         val task = DownloadTask(
             id = taskId,
             noteUrl = noteUrl,
@@ -207,8 +419,10 @@ object TaskManager {
             createdAt = System.currentTimeMillis(),
             noteContent = noteContent
         )
-        _tasks.value = _tasks.value + task
-        saveTasks()
+        synchronized(index) { index.put(task) }
+        saveNextId()
+        persist(task)
+        notifyListChanged()
         return taskId
     }
     
@@ -266,6 +480,16 @@ object TaskManager {
         }
     }
 
+    /**
+     * 更新按字节计算的进度；总字节数不变时已下载字节数只增不减 (回调可能乱序到达)
+     */
+    fun updateByteProgress(taskId: Long, downloadedBytes: Long, totalBytes: Long) {
+        updateTask(taskId) { task ->
+            val downloaded = if (totalBytes == task.totalBytes) maxOf(downloadedBytes, task.downloadedBytes) else downloadedBytes
+            task.copy(downloadedBytes = downloaded.coerceIn(0L, totalBytes), totalBytes = totalBytes)
+        }
+    }
+
     /**
      * 添加文件路径到任务
      */
@@ -292,23 +516,37 @@ object TaskManager {
      * 删除任务
      */
     fun deleteTask(taskId: Long) {
-        _tasks.value = _tasks.value.filter { it.id != taskId }
-        saveTasks()
+        synchronized(index) { index.remove(taskId) }
+        dirtyTaskIds.remove(taskId)
+        notifyListChanged()
+        val s = store ?: return
+        writer.execute {
+            runStoreWrite { s.delete(taskId) }
+            // 启动载入期间删除时，载入可能又放回了摘要
+            if (synchronized(index) { index.remove(taskId) } != null) notifyListChanged()
+        }
     }
     
     /**
      * 清空所有任务
      */
     fun clearAllTasks() {
-        _tasks.value = emptyList()
-        saveTasks()
+        synchronized(index) { index.clear() }
+        dirtyTaskIds.clear()
+        notifyListChanged()
+        val s = store ?: return
+        writer.execute {
+            runStoreWrite { s.deleteAll() }
+            val hadTasks = synchronized(index) { (index.size > 0).also { index.clear() } }
+            if (hadTasks) notifyListChanged()
+        }
     }
     
     /**
      * 获取当前进行中的任务
      */
     fun getCurrentActiveTask(): DownloadTask? {
-        return _tasks.value.firstOrNull { it.status == TaskStatus.DOWNLOADING }
+        return synchronized(index) { index.oldestWithStatus(TaskStatus.DOWNLOADING) }
     }
 
     /**
@@ -317,10 +555,12 @@ object TaskManager {
      * @param durationMillis 时间阈值 (默认 1 小时)，在此时间内已创建的任务如果在进行中或已完成，则视为存在
      */
     fun hasRecentTask(url: String, durationMillis: Long = 3600_000): Boolean {
+        awaitLoad(summariesLoaded)
         val threshold = System.currentTimeMillis() - durationMillis
-        return _tasks.value.any { task ->
-            // URL 相同 且 (任务活跃 或 是最近创建的)
-            task.noteUrl == url && (task.isActive || task.createdAt > threshold)
+        val sameNote = synchronized(index) { index.tasksForNote(url) }
+        return sameNote.any { task ->
+            // 同一篇笔记 且 (任务活跃 或 是最近创建的)
+            task.isActive || task.createdAt > threshold
         }
     }
     
@@ -340,6 +580,8 @@ object TaskManager {
                 status = TaskStatus.DOWNLOADING,
                 completedFiles = 0,
                 failedFiles = 0,
+                downloadedBytes = 0L,
+                totalBytes = 0L,
                 filePaths = emptyList(),
                 errorMessage = null,
                 completedAt = null
@@ -358,9 +600,23 @@ object TaskManager {
      * 通用任务更新函数
      */
     fun updateTask(taskId: Long, update: (DownloadTask) -> DownloadTask) {
-        _tasks.value = _tasks.value.map { task ->
-            if (task.id == taskId) update(task) else task
+        // 先补全，避免用摘要覆盖数据库中的文件列表等字段
+        hydrate(taskId) ?: return
+        val (old, new, listChanged) = synchronized(index) {
+            val old = index[taskId] ?: return
+            val new = update(old)
+            if (new == old) return
+            Triple(old, new, index.put(new))
         }
-        saveTasks()
+        if (isProgressOnly(old, new)) persistProgressLater(taskId) else persist(new)
+        if (listChanged) notifyListChanged()
+    }
+
+    private fun isProgressOnly(old: DownloadTask, new: DownloadTask): Boolean {
+        return old.copy(
+            currentFileProgress = new.currentFileProgress,
+            downloadedBytes = new.downloadedBytes,
+            totalBytes = new.totalBytes
+        ) == new
     }
 }
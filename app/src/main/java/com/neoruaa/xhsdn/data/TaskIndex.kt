@@ -0,0 +1,131 @@
+package com.neoruaa.xhsdn.data
+
+import com.neoruaa.xhsdn.utils.UrlUtils
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import java.util.EnumMap
+import java.util.TreeSet
+
+/**
+ * 任务的内存索引：按 ID、规范化笔记 ID（[UrlUtils.canonicalNoteKey]）和状态查找，
+ * 并按创建时间倒序排列以便分页。每个任务有自己的 StateFlow，
+ * 进度变化只通知观察这个任务的界面，不会让整个列表重新发射。
+ * 启动时载入的任务只有摘要（见 [putSummary]），完整内容由 [TaskManager] 按需补全。
+ *
+ * 非线程安全，由 [TaskManager] 加锁访问。
+ */
+internal class TaskIndex {
+    private data class OrderKey(val createdAt: Long, val id: Long)
+
+    private val newestFirst = compareByDescending<OrderKey> { it.createdAt }.thenByDescending { it.id }
+
+    private val flows = HashMap<Long, MutableStateFlow<DownloadTask>>()
+    private val ordered = TreeSet(newestFirst)
+    private val byStatus = EnumMap<TaskStatus, TreeSet<OrderKey>>(TaskStatus::class.java)
+    private val byNoteKey = HashMap<String, MutableSet<Long>>()
+    // 只有摘要、尚未读取文件列表等字段的任务
+    private val summaryOnly = HashSet<Long>()
+
+    val size: Int
+        get() = flows.size
+
+    operator fun get(taskId: Long): DownloadTask? = flows[taskId]?.value
+
+    fun flow(taskId: Long): StateFlow<DownloadTask>? = flows[taskId]
+
+    fun isHydrated(taskId: Long): Boolean = taskId in flows && taskId !in summaryOnly
+
+    /**
+     * 添加启动时读取的任务摘要；已有的任务（例如载入期间新建的）不会被覆盖
+     * @return 是否添加了
+     */
+    fun putSummary(task: DownloadTask): Boolean {
+        if (task.id in flows) return false
+        put(task)
+        summaryOnly.add(task.id)
+        return true
+    }
+
+    /**
+     * 添加或替换完整的任务
+     * @return 是否改变了列表的结构（新任务或状态变化），只有进度等字段变化时为 false
+     */
+    fun put(task: DownloadTask): Boolean {
+        summaryOnly.remove(task.id)
+        val existing = flows[task.id]
+        if (existing == null) {
+            flows[task.id] = MutableStateFlow(task)
+            val key = OrderKey(task.createdAt, task.id)
+            ordered.add(key)
+            statusSet(task.status).add(key)
+            UrlUtils.canonicalNoteKey(task.noteUrl)?.let { byNoteKey.getOrPut(it) { HashSet() }.add(task.id) }
+            return true
+        }
+        val old = existing.value
+        existing.value = task
+        if (old.status != task.status) {
+            // createdAt 和 noteUrl 创建后不会改变
+            val key = OrderKey(old.createdAt, old.id)
+            statusSet(old.status).remove(key)
+            statusSet(task.status).add(key)
+            return true
+        }
+        return false
+    }
+
+    fun remove(taskId: Long): DownloadTask? {
+        summaryOnly.remove(taskId)
+        val task = flows.remove(taskId)?.value ?: return null
+        val key = OrderKey(task.createdAt, task.id)
+        ordered.remove(key)
+        statusSet(task.status).remove(key)
+        UrlUtils.canonicalNoteKey(task.noteUrl)?.let { noteKey ->
+            byNoteKey[noteKey]?.let { ids ->
+                ids.remove(taskId)
+                if (ids.isEmpty()) byNoteKey.remove(noteKey)
+            }
+        }
+        return task
+    }
+
+    fun clear() {
+        flows.clear()
+        ordered.clear()
+        byStatus.clear()
+        byNoteKey.clear()
+        summaryOnly.clear()
+    }
+
+    fun count(status: TaskStatus): Int = byStatus[status]?.size ?: 0
+
+    /**
+     * 同一篇笔记的任务（链接无法识别时按原文匹配）
+     */
+    fun tasksForNote(noteUrl: String): List<DownloadTask> {
+        val noteKey = UrlUtils.canonicalNoteKey(noteUrl)
+            ?: return flows.values.map { it.value }.filter { it.noteUrl == noteUrl }
+        return byNoteKey[noteKey].orEmpty().mapNotNull { this[it] }
+    }
+
+    /**
+     * 按创建时间倒序的一页任务
+     * @param statuses 只包含这些状态的任务，null 表示全部
+     */
+    fun page(statuses: Set<TaskStatus>?, offset: Int, limit: Int): List<DownloadTask> {
+        val keys: Sequence<OrderKey> = when {
+            statuses == null -> ordered.asSequence()
+            statuses.size == 1 -> byStatus[statuses.first()]?.asSequence() ?: emptySequence()
+            else -> ordered.asSequence().filter { key -> this[key.id]?.status in statuses }
+        }
+        return keys.drop(offset).take(limit).mapNotNull { this[it.id] }.toList()
+    }
+
+    /**
+     * 某状态中最早创建的任务
+     */
+    fun oldestWithStatus(status: TaskStatus): DownloadTask? =
+        byStatus[status]?.takeIf { it.isNotEmpty() }?.last()?.let { this[it.id] }
+
+    private fun statusSet(status: TaskStatus): TreeSet<OrderKey> =
+        byStatus.getOrPut(status) { TreeSet(newestFirst) }
+}
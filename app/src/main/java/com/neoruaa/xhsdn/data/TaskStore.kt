@@ -0,0 +1,194 @@
+package com.neoruaa.xhsdn.data
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import org.json.JSONArray
+
+/**
+ * 任务历史的 SQLite 存储：每个任务一行，更新只写入变化的那一行，
+ * 而不是把整个历史序列化成一个 SharedPreferences 字符串。
+ * 启动时只读取摘要列（[loadSummaries]），文件列表、笔记内容和错误信息按需用 [load] 读取。
+ * 所有写入都由 [TaskManager] 的写线程执行。
+ */
+class TaskStore(context: Context) : SQLiteOpenHelper(context.applicationContext, DB_NAME, null, DB_VERSION) {
+
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL(
+            """
+            CREATE TABLE $TABLE (
+                $COL_ID INTEGER PRIMARY KEY,
+                $COL_NOTE_URL TEXT NOT NULL,
+                $COL_NOTE_TITLE TEXT,
+                $COL_NOTE_TYPE TEXT NOT NULL,
+                $COL_TOTAL_FILES INTEGER NOT NULL,
+                $COL_COMPLETED_FILES INTEGER NOT NULL DEFAULT 0,
+                $COL_FAILED_FILES INTEGER NOT NULL DEFAULT 0,
+                $COL_CURRENT_FILE_PROGRESS REAL NOT NULL DEFAULT 0,
+                $COL_DOWNLOADED_BYTES INTEGER NOT NULL DEFAULT 0,
+                $COL_TOTAL_BYTES INTEGER NOT NULL DEFAULT 0,
+                $COL_STATUS TEXT NOT NULL,
+                $COL_CREATED_AT INTEGER NOT NULL,
+                $COL_COMPLETED_AT INTEGER,
+                $COL_ERROR_MESSAGE TEXT,
+                $COL_FILE_PATHS TEXT,
+                $COL_NOTE_CONTENT TEXT
+            )
+            """.trimIndent()
+        )
+        db.execSQL("CREATE INDEX $INDEX_CREATED_AT ON $TABLE ($COL_CREATED_AT)")
+    }
+
+    /**
+     * 目前没有可以逐步迁移的旧版本：结构未知的表直接删除重建（任务历史可以丢失，已下载的文件不受影响）。
+     * 以后修改表结构时，在这里按 [oldVersion] 逐步 ALTER，只有无法迁移的版本才重建
+     */
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        recreate(db)
+    }
+
+    /**
+     * 从更新的版本降级安装时，旧代码读不懂新的结构，同样重建（默认实现会抛出异常，导致无法打开数据库）
+     */
+    override fun onDowngrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        recreate(db)
+    }
+
+    private fun recreate(db: SQLiteDatabase) {
+        db.execSQL("DROP INDEX IF EXISTS $INDEX_CREATED_AT")
+        db.execSQL("DROP TABLE IF EXISTS $TABLE")
+        onCreate(db)
+    }
+
+    /**
+     * 按创建时间倒序读取一批任务摘要，不含错误信息、文件列表和笔记内容（这些字段为空）
+     */
+    fun loadSummaries(offset: Int, limit: Int): List<DownloadTask> {
+        val tasks = mutableListOf<DownloadTask>()
+        readableDatabase.query(
+            TABLE, SUMMARY_COLUMNS, null, null, null, null,
+            "$COL_CREATED_AT DESC, $COL_ID DESC", "$offset,$limit"
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                tasks.add(fromCursor(cursor))
+            }
+        }
+        return tasks
+    }
+
+    /**
+     * 读取完整的任务
+     */
+    fun load(taskId: Long): DownloadTask? {
+        readableDatabase.query(TABLE, null, "$COL_ID = ?", arrayOf(taskId.toString()), null, null, null).use { cursor ->
+            return if (cursor.moveToFirst()) fromCursor(cursor) else null
+        }
+    }
+
+    fun upsert(task: DownloadTask) {
+        writableDatabase.insertWithOnConflict(TABLE, null, toValues(task), SQLiteDatabase.CONFLICT_REPLACE)
+    }
+
+    /**
+     * 在一个事务中写入多个任务（迁移、批量刷新进度）
+     */
+    fun upsertAll(tasks: Collection<DownloadTask>) {
+        if (tasks.isEmpty()) return
+        val db = writableDatabase
+        db.beginTransaction()
+        try {
+            tasks.forEach { db.insertWithOnConflict(TABLE, null, toValues(it), SQLiteDatabase.CONFLICT_REPLACE) }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    fun delete(taskId: Long) {
+        writableDatabase.delete(TABLE, "$COL_ID = ?", arrayOf(taskId.toString()))
+    }
+
+    fun deleteAll() {
+        writableDatabase.delete(TABLE, null, null)
+    }
+
+    private fun toValues(task: DownloadTask) = ContentValues().apply {
+        put(COL_ID, task.id)
+        put(COL_NOTE_URL, task.noteUrl)
+        put(COL_NOTE_TITLE, task.noteTitle)
+        put(COL_NOTE_TYPE, task.noteType.name)
+        put(COL_TOTAL_FILES, task.totalFiles)
+        put(COL_COMPLETED_FILES, task.completedFiles)
+        put(COL_FAILED_FILES, task.failedFiles)
+        put(COL_CURRENT_FILE_PROGRESS, task.currentFileProgress)
+        put(COL_DOWNLOADED_BYTES, task.downloadedBytes)
+        put(COL_TOTAL_BYTES, task.totalBytes)
+        put(COL_STATUS, task.status.name)
+        put(COL_CREATED_AT, task.createdAt)
+        put(COL_COMPLETED_AT, task.completedAt)
+        put(COL_ERROR_MESSAGE, task.errorMessage)
+        put(COL_FILE_PATHS, JSONArray(task.filePaths).toString())
+        put(COL_NOTE_CONTENT, task.noteContent)
+    }
+
+    private fun fromCursor(cursor: Cursor): DownloadTask {
+        // 摘要查询中没有的列视为空
+        fun string(column: String): String? =
+            cursor.getColumnIndex(column).let { if (it < 0 || cursor.isNull(it)) null else cursor.getString(it) }
+        fun long(column: String): Long = cursor.getLong(cursor.getColumnIndexOrThrow(column))
+
+        return DownloadTask(
+            id = long(COL_ID),
+            noteUrl = string(COL_NOTE_URL) ?: "",
+            noteTitle = string(COL_NOTE_TITLE),
+            noteType = try { NoteType.valueOf(string(COL_NOTE_TYPE) ?: "") } catch (e: Exception) { NoteType.UNKNOWN },
+            totalFiles = long(COL_TOTAL_FILES).toInt(),
+            completedFiles = long(COL_COMPLETED_FILES).toInt(),
+            failedFiles = long(COL_FAILED_FILES).toInt(),
+            currentFileProgress = cursor.getFloat(cursor.getColumnIndexOrThrow(COL_CURRENT_FILE_PROGRESS)),
+            downloadedBytes = long(COL_DOWNLOADED_BYTES),
+            totalBytes = long(COL_TOTAL_BYTES),
+            status = try { TaskStatus.valueOf(string(COL_STATUS) ?: "") } catch (e: Exception) { TaskStatus.COMPLETED },
+            createdAt = long(COL_CREATED_AT),
+            completedAt = string(COL_COMPLETED_AT)?.toLongOrNull()?.takeIf { it > 0 },
+            errorMessage = string(COL_ERROR_MESSAGE)?.takeIf { it.isNotEmpty() },
+            filePaths = string(COL_FILE_PATHS)?.let { json ->
+                val array = JSONArray(json)
+                (0 until array.length()).map { array.getString(it) }
+            } ?: emptyList(),
+            noteContent = string(COL_NOTE_CONTENT)?.takeIf { it.isNotEmpty() }
+        )
+    }
+
+    companion object {
+        private const val DB_NAME = "task_history.db"
+        private const val DB_VERSION = 1
+        private const val TABLE = "tasks"
+        private const val INDEX_CREATED_AT = "idx_tasks_created_at"
+
+        private const val COL_ID = "id"
+        private const val COL_NOTE_URL = "note_url"
+        private const val COL_NOTE_TITLE = "note_title"
+        private const val COL_NOTE_TYPE = "note_type"
+        private const val COL_TOTAL_FILES = "total_files"
+        private const val COL_COMPLETED_FILES = "completed_files"
+        private const val COL_FAILED_FILES = "failed_files"
+        private const val COL_CURRENT_FILE_PROGRESS = "current_file_progress"
+        private const val COL_DOWNLOADED_BYTES = "downloaded_bytes"
+        private const val COL_TOTAL_BYTES = "total_bytes"
+        private const val COL_STATUS = "status"
+        private const val COL_CREATED_AT = "created_at"
+        private const val COL_COMPLETED_AT = "completed_at"
+        private const val COL_ERROR_MESSAGE = "error_message"
+        private const val COL_FILE_PATHS = "file_paths"
+        private const val COL_NOTE_CONTENT = "note_content"
+
+        private val SUMMARY_COLUMNS = arrayOf(
+            COL_ID, COL_NOTE_URL, COL_NOTE_TITLE, COL_NOTE_TYPE, COL_TOTAL_FILES, COL_COMPLETED_FILES,
+            COL_FAILED_FILES, COL_CURRENT_FILE_PROGRESS, COL_DOWNLOADED_BYTES, COL_TOTAL_BYTES, COL_STATUS,
+            COL_CREATED_AT, COL_COMPLETED_AT
+        )
+    }
+}
@@ -0,0 +1,95 @@
+package com.neoruaa.xhsdn.data
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 单个下载任务的字节进度。
+ *
+ * 下载线程每写入一个数据块只更新原子计数器（无锁，不启动协程）；
+ * 界面和任务列表通过 [sample] 按显示帧率读取最新值，中间值被合并丢弃。
+ */
+class TransferProgress {
+    /**
+     * 某一时刻的进度：当前文件和整个笔记（字节数，总数未知时为 0）
+     */
+    data class Snapshot(
+        val fileDownloaded: Long = 0L,
+        val fileTotal: Long = 0L,
+        val batchDownloaded: Long = 0L,
+        val batchTotal: Long = 0L
+    ) {
+        val fileFraction: Float
+            get() = if (fileTotal > 0) (fileDownloaded.toFloat() / fileTotal).coerceIn(0f, 1f) else 0f
+
+        /** 按字节计算的整体进度，大小未知时为 -1 */
+        val batchFraction: Float
+            get() = if (batchTotal > 0) (batchDownloaded.toFloat() / batchTotal).coerceIn(0f, 1f) else -1f
+
+        val hasData: Boolean
+            get() = fileTotal > 0 || batchTotal > 0
+    }
+
+    private val fileDownloaded = AtomicLong(0L)
+    private val fileTotal = AtomicLong(0L)
+    private val batchDownloaded = AtomicLong(0L)
+    private val batchTotal = AtomicLong(0L)
+
+    fun onFileProgress(downloaded: Long, total: Long) {
+        fileTotal.set(total)
+        fileDownloaded.set(downloaded)
+    }
+
+    fun onFileFinished() {
+        fileTotal.set(0L)
+        fileDownloaded.set(0L)
+    }
+
+    fun onBatchProgress(downloaded: Long, total: Long) {
+        batchTotal.set(total)
+        batchDownloaded.set(downloaded)
+    }
+
+    fun snapshot(): Snapshot = Snapshot(
+        fileDownloaded = fileDownloaded.get(),
+        fileTotal = fileTotal.get(),
+        batchDownloaded = batchDownloaded.get(),
+        batchTotal = batchTotal.get()
+    )
+
+    /**
+     * 每 [intervalMs] 采样一次，值没有变化时不发射
+     */
+    fun sample(intervalMs: Long = SAMPLE_INTERVAL_MS): Flow<Snapshot> = flow {
+        while (true) {
+            emit(snapshot())
+            delay(intervalMs)
+        }
+    }.distinctUntilChanged()
+
+    /**
+     * 在 [scope] 中采样并交给 [onSample]，[owner]（下载协程）结束时停止
+     */
+    fun launchSampler(scope: CoroutineScope, owner: Job?, onSample: suspend (Snapshot) -> Unit): Job {
+        val sampler = scope.launch {
+            sample().collect { snapshot ->
+                if (snapshot.hasData) {
+                    onSample(snapshot)
+                }
+            }
+        }
+        owner?.invokeOnCompletion { sampler.cancel() }
+        return sampler
+    }
+
+    companion object {
+        /** 约为显示刷新所需的频率，更快的更新用户也看不出来 */
+        const val SAMPLE_INTERVAL_MS = 100L
+    }
+}
@@ -16,4 +16,25 @@ object UrlUtils {
         if (url == null) return false
         return url.contains("xhslink.com") || url.contains("xiaohongshu.com")
     }
+
+    private val noteIdRegex = Regex("(?:explore|item)/([a-zA-Z0-9]+)")
+    private val profileNoteIdRegex = Regex("user/profile/[a-z0-9]+/([a-zA-Z0-9]+)")
+
+    /**
+     * 笔记的规范化标识，同一篇笔记的不同分享文本和链接格式得到相同的值：
+     * 完整链接取笔记 ID，短链接取短码（未解析短链接时无法和完整链接对应）。
+     * 文本中没有小红书链接时返回 null
+     */
+    fun canonicalNoteKey(text: String?): String? {
+        val url = text?.let { extractFirstUrl(it) }?.takeIf { isXhsLink(it) } ?: return null
+        val path = url.substringBefore('?').substringBefore('#')
+        (noteIdRegex.find(path) ?: profileNoteIdRegex.find(path))?.let {
+            return "note:" + it.groupValues[1]
+        }
+        if (path.contains("xhslink.com/")) {
+            val code = path.substringAfter("xhslink.com/").trimEnd('/').substringAfterLast('/')
+            if (code.isNotEmpty()) return "short:$code"
+        }
+        return "url:$path"
+    }
 }
@@ -21,6 +21,9 @@ import kotlinx.coroutines.Job
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.runInterruptible
 import com.neoruaa.xhsdn.data.TaskManager
 import com.neoruaa.xhsdn.data.TaskStatus
 import com.neoruaa.xhsdn.data.NoteType
@@ -31,6 +34,7 @@ import com.neoruaa.xhsdn.FileDownloader
 import com.neoruaa.xhsdn.R
 import com.neoruaa.xhsdn.XHSDownloader
 import com.neoruaa.xhsdn.data.DownloadTask
+import com.neoruaa.xhsdn.data.TransferProgress
 import com.neoruaa.xhsdn.utils.NotificationHelper
 import java.io.File
 import java.io.IOException
@@ -120,6 +124,7 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
     private val fileProgressMap = mutableMapOf<String, Float>() // Maps file path to progress (0.0 to 1.0)
     private var currentFileProgress = 0f // Progress of the currently downloading file (0.0 to 1.0)
     private var lastOverallProgress = 0f // Track the last overall progress to prevent regression
+    private var batchProgress = -1f // Byte-weighted progress over all files of the task, -1 until sizes are known
 
     // Fields to track download progress and speed for the first callback
     private var currentDownloadStartTime: Long = 0
@@ -189,6 +194,7 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
         lastSpeedCalculationTime = 0
         lastCalculatedSpeed = "0KB/s"
         lastOverallProgress = 0f // Reset the last overall progress when starting a new download
+        batchProgress = -1f
 
         // Update UI to show initial state
         _uiState.update { currentState ->
@@ -279,6 +285,9 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
             append(line("previousAttempt", previous))
             appendLine()
             append(line("currentAttempt", current))
+            appendLine()
+            appendLine("[network]")
+            append(FileDownloader.describeNetworkState())
         }
     }
 
@@ -389,6 +398,8 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
                 createSelectiveCacheCallback(this)
             )
             currentDownloader = downloader
+            // 前台任务优先于后台剪贴板任务获得下载名额
+            downloader.setForegroundPriority(true)
             downloader.setShouldStopOnVideo(false)
             downloader.resetStopDownload()
 
@@ -526,31 +537,39 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
             val savedPaths = mutableListOf<String>()
             var failedCount = 0
 
-            selectedItems.forEachIndexed { index, item ->
-                val savedFile = runCatching {
-                    saver.copyCachedFileToMediaStore(File(item.path))
-                }.getOrNull()
-                if (savedFile != null && savedFile.exists()) {
-                    savedPaths.add(savedFile.absolutePath)
-                    TaskManager.addFilePath(taskId, savedFile.absolutePath)
-                } else {
-                    failedCount++
-                }
-
-                val completed = savedPaths.size
-                TaskManager.updateProgress(taskId, completed, failedCount, 0f)
-                withContext(Dispatchers.Main) {
-                    val progress = (index + 1) / selectedItems.size.toFloat()
+            // 一次批量发布到相册，文件逐个写入；每写完一个文件就更新进度
+            val handled = java.util.concurrent.atomic.AtomicInteger(0)
+            val savedFiles = runCatching {
+                saver.copyCachedFilesToMediaStore(selectedItems.map { File(it.path) }) { _ ->
+                    val done = handled.incrementAndGet()
+                    // 按“前 done - 1 个已完成、当前文件写完”记录，发布前任务不会被判定为完成
+                    TaskManager.updateProgress(taskId, done - 1, 0, 1f)
+                    val progress = done / selectedItems.size.toFloat()
                     _uiState.update { state ->
                         state.copy(
                             selectiveDownload = state.selectiveDownload.copy(
                                 progress = progress,
-                                progressLabel = "${index + 1}/${selectedItems.size}",
+                                progressLabel = "$done/${selectedItems.size}",
                                 progressText = "${String.format("%.1f", progress * 100)}%｜0KB/s"
                             )
                         )
                     }
                 }
+            }.getOrNull()
+
+            // 文件发布后才记录路径和成败
+            selectedItems.forEachIndexed { index, _ ->
+                val savedFile = savedFiles?.getOrNull(index)
+                if (savedFile != null && savedFile.exists()) {
+                    savedPaths.add(savedFile.absolutePath)
+                    TaskManager.addFilePath(taskId, savedFile.absolutePath)
+                } else {
+                    failedCount++
+                }
+            }
+            // 写入进度已经到 100%，updateProgress 不会让进度回退，所以直接写入最终的计数
+            TaskManager.updateTask(taskId) {
+                it.copy(completedFiles = savedPaths.size, failedFiles = failedCount, currentFileProgress = 0f)
             }
 
             val success = savedPaths.isNotEmpty() && failedCount == 0
@@ -598,21 +617,21 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
             )
         }
 
-        // 在协程外部立即创建新任务并设置currentTaskId，以便外部可以立即访问
-        val initialTaskId = TaskManager.createTask(
-            noteUrl = targetUrl,
-            noteTitle = extractTitleFromUrl(targetUrl),
-            noteType = NoteType.IMAGE,
-            totalFiles = 1 // We'll update this later after getting the count
-        )
-        TaskManager.startTask(initialTaskId)
-
-        currentTaskId = initialTaskId
         // 重置任务跟踪计数器
         taskCompletedFiles = 0
         taskFailedFiles = 0
 
         downloadJob = viewModelScope.launch(Dispatchers.IO) {
+            // createTask 在历史载入前会挂起，所以在协程里创建；在此之前取消不会留下任务
+            val initialTaskId = TaskManager.createTask(
+                noteUrl = targetUrl,
+                noteTitle = extractTitleFromUrl(targetUrl),
+                noteType = NoteType.IMAGE,
+                totalFiles = 1 // We'll update this later after getting the count
+            )
+            TaskManager.startTask(initialTaskId)
+            currentTaskId = initialTaskId
+
             totalMediaCount = runCatching { XHSDownloader(getApplication()).getMediaCount(targetUrl) }
                 .getOrElse { 0 }
             updateProgress()
@@ -638,6 +657,7 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
 
             // Store reference so cancelCurrentDownload() can signal this downloader
             currentDownloader = downloader
+            downloader.setForegroundPriority(true)
 
             // If user has continued after video warning, don't stop on video detection
             if (hasUserContinuedAfterVideoWarning) {
@@ -649,7 +669,7 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
             downloader.resetStopDownload()
 
             try {
-                val success = runDownloadWithCancellationCheck(downloader, targetUrl, coroutineContext[Job])
+                val success = runDownloadWithCancellationCheck(downloader, targetUrl)
                 finalizeTaskCompletion(myTaskId, success, localCompletedFiles.get(), localFailedFiles.get())
             } catch (e: Exception) {
                 if (e is CancellationException) {
@@ -717,8 +737,10 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
         }
 
         downloadJob = viewModelScope.launch(Dispatchers.IO) {
-            totalMediaCount = runCatching { XHSDownloader(getApplication()).getMediaCount(targetUrl) }
-                .getOrElse { 0 }
+            // 重试时重新抓取笔记页面，结果会刷新缓存供随后的下载使用
+            totalMediaCount = runCatching {
+                XHSDownloader(getApplication()).apply { setBypassNoteCache(true) }.getMediaCount(targetUrl)
+            }.getOrElse { 0 }
             updateProgress()
             recordParseAttemptAndDetect(targetUrl, totalMediaCount, "retry")
 
@@ -733,12 +755,13 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
             
             // Store reference so cancelCurrentDownload() can signal this downloader
             currentDownloader = downloader
+            downloader.setForegroundPriority(true)
 
             downloader.setShouldStopOnVideo(true)
             downloader.resetStopDownload()
 
             try {
-                val success = runDownloadWithCancellationCheck(downloader, targetUrl, coroutineContext[Job])
+                val success = runDownloadWithCancellationCheck(downloader, targetUrl)
                 finalizeTaskCompletion(myTaskId, success, localCompletedFiles.get(), localFailedFiles.get())
             } catch (e: CancellationException) {
                 withContext(NonCancellable + Dispatchers.Main) {
@@ -890,6 +913,7 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
 
             // Store reference so cancelCurrentDownload() can signal this downloader
             currentDownloader = downloader
+            downloader.setForegroundPriority(true)
 
             // If user has continued after video warning, don't stop on video detection
             if (hasUserContinuedAfterVideoWarning) {
@@ -998,8 +1022,13 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
     }
 
     private fun createSelectiveCacheCallback(scope: kotlinx.coroutines.CoroutineScope): DownloadCallback {
+        val progress = TransferProgress()
+        progress.launchSampler(viewModelScope, scope.coroutineContext[Job]) { sample ->
+            applySelectiveProgressSample(sample)
+        }
         return object : DownloadCallback {
             override fun onFileDownloaded(filePath: String) {
+                progress.onFileFinished()
                 // onFileDownloaded is invoked concurrently from the download thread pool
                 // (up to 4 threads). displayedFiles / downloadedCount are not thread-safe,
                 // so all shared-state mutations are serialized on the main dispatcher to
@@ -1037,32 +1066,7 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
             }
 
             override fun onDownloadProgressUpdate(downloaded: Long, total: Long) {
-                val fileProgress = if (total > 0) downloaded.toFloat() / total else 0f
-                val progressPercent = if (total > 0) (downloaded.toFloat() / total * 100) else 0f
-                val currentTime = System.currentTimeMillis()
-
-                scope.launch(Dispatchers.Main) {
-                    currentFileProgress = fileProgress
-
-                    if (currentTime - lastSpeedCalculationTime >= 500) {
-                        val deltaBytes = if (downloaded >= currentDownloadedBytes) downloaded - currentDownloadedBytes else downloaded
-                        val deltaTimeSec = (currentTime - lastSpeedCalculationTime).toDouble() / 1000.0
-                        val speedBps = if (deltaTimeSec > 0) deltaBytes / deltaTimeSec else 0.0
-                        lastCalculatedSpeed = formatSpeed(speedBps)
-                        lastSpeedCalculationTime = currentTime
-                    }
-                    currentDownloadedBytes = downloaded
-                    currentDownloadTotalBytes = total
-                    updateSelectiveProgress()
-
-                    _uiState.update { state ->
-                        state.copy(
-                            selectiveDownload = state.selectiveDownload.copy(
-                                progressText = "${String.format("%.1f", progressPercent)}%｜$lastCalculatedSpeed"
-                            )
-                        )
-                    }
-                }
+                progress.onFileProgress(downloaded, total)
             }
 
             override fun onDownloadError(status: String, originalUrl: String) {
@@ -1152,42 +1156,33 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
         }
     }
 
-    private fun runDownloadWithCancellationCheck(downloader: XHSDownloader, targetUrl: String, job: Job?): Boolean {
-        // Create a thread to run the download
-        var result = false
-        val thread = Thread {
-            result = downloader.downloadContent(targetUrl)
-        }
-        thread.start()
-
-        // Periodically check if the SPECIFIC job was cancelled
-        while (thread.isAlive) {
-            if (job?.isActive == false) {
+    /**
+     * Run the download without parking the caller. Cancelling the calling coroutine stops the downloader at
+     * once, which cancels its in-flight calls, and interrupts the thread running downloadContent; the scope
+     * then waits for it to return.
+     *
+     * downloadContent only coordinates the note: it waits for its transfers on an IO thread. Every request
+     * waits for its headers through Call.await (HttpCalls.awaitResponse), and the transfers read their
+     * bodies on HttpCalls.bodyReads. The coordination must not run there itself, as it waits for the
+     * transfers that need those threads.
+     */
+    private suspend fun runDownloadWithCancellationCheck(downloader: XHSDownloader, targetUrl: String): Boolean =
+        coroutineScope {
+            val download = async(Dispatchers.IO) {
+                runInterruptible { downloader.downloadContent(targetUrl) }
+            }
+            val success = try {
+                download.await()
+            } catch (e: CancellationException) {
                 downloader.stopDownload()
-                // Interrupt the thread
-                thread.interrupt()
-                // Wait a bit for the thread to respond to interruption
-                Thread.sleep(100)
-                break
+                throw e
             }
-            Thread.sleep(100) // Check every 100ms
-        }
-
-        // Wait for thread to finish gracefully
-        try {
-            thread.join(1000) // Wait up to 1 second for graceful shutdown
-        } catch (e: InterruptedException) {
-            Thread.currentThread().interrupt()
+            // A cancellation that raced with the end of the download still counts as one, so the caller
+            // does not mark the task as failed with a generic message
+            ensureActive()
+            success
         }
 
-        // If the job was cancelled, throw a CancellationException to jump to the catch block.
-        // This prevents the caller from incorrectly marking the task as "FAILED" with a generic error message.
-        // Using ensureActive() is the standard way to check for cancellation and throw the exception.
-        job?.ensureActive()
-
-        return result
-    }
-
     private fun detectMediaType(filePath: String): MediaType {
         val lower = filePath.lowercase(Locale.getDefault())
         return when {
@@ -1217,13 +1212,76 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
         }
     }
 
+    /**
+     * Publishes one progress sample of a task: to the task list always, to the screen only while it is
+     * the current task.
+     */
+    private fun applyTaskProgressSample(
+        taskId: Long,
+        completedFiles: Int,
+        failedFiles: Int,
+        sample: TransferProgress.Snapshot
+    ) {
+        // A late sample must not reopen a task that has finished or is waiting for the user
+        if (TaskManager.getTaskById(taskId)?.status != TaskStatus.DOWNLOADING) {
+            return
+        }
+        TaskManager.updateProgress(taskId, completedFiles, failedFiles, sample.fileFraction)
+        if (sample.batchTotal > 0) {
+            TaskManager.updateByteProgress(taskId, sample.batchDownloaded, sample.batchTotal)
+        }
+
+        if (taskId == currentTaskId) {
+            currentFileProgress = sample.fileFraction
+            taskCurrentFileProgress = sample.fileFraction
+            if (sample.batchTotal > 0) {
+                batchProgress = sample.batchFraction
+            }
+            val progressText = trackFileProgress(sample)
+            updateProgress()
+            _uiState.update { it.copy(downloadProgressText = progressText) }
+        }
+    }
+
+    private fun applySelectiveProgressSample(sample: TransferProgress.Snapshot) {
+        currentFileProgress = sample.fileFraction
+        val progressText = trackFileProgress(sample)
+        updateSelectiveProgress()
+        _uiState.update { state ->
+            state.copy(
+                selectiveDownload = state.selectiveDownload.copy(progressText = progressText)
+            )
+        }
+    }
+
+    /**
+     * Updates the speed estimate from the current file's bytes.
+     * @return The progress text of the current file, e.g. "42.0%｜1.20MB/s"
+     */
+    private fun trackFileProgress(sample: TransferProgress.Snapshot): String {
+        val downloaded = sample.fileDownloaded
+        val currentTime = System.currentTimeMillis()
+        if (currentTime - lastSpeedCalculationTime >= 500) {
+            val deltaBytes = if (downloaded >= currentDownloadedBytes) downloaded - currentDownloadedBytes else downloaded
+            val deltaTimeSec = (currentTime - lastSpeedCalculationTime).toDouble() / 1000.0
+            val speedBps = if (deltaTimeSec > 0) deltaBytes / deltaTimeSec else 0.0
+            lastCalculatedSpeed = formatSpeed(speedBps)
+            lastSpeedCalculationTime = currentTime
+        }
+        currentDownloadedBytes = downloaded
+        currentDownloadTotalBytes = sample.fileTotal
+        return "${String.format("%.1f", sample.fileFraction * 100)}%｜$lastCalculatedSpeed"
+    }
+
     private fun updateProgress() {
         val label = if (totalMediaCount > 0) {
             "$downloadedCount/$totalMediaCount"
         } else {
             "$downloadedCount/?"
         }
-        val calculatedProgress = if (totalMediaCount > 0) {
+        val calculatedProgress = if (batchProgress >= 0f) {
+            batchProgress
+        } else if (totalMediaCount > 0) {
             // Calculate progress as (completed files + current file progress) / total files
             (downloadedCount + currentFileProgress) / totalMediaCount.toFloat()
         } else {
@@ -1309,9 +1367,14 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
         scope: kotlinx.coroutines.CoroutineScope,
         isWebCrawl: Boolean = false
     ): DownloadCallback {
+        val progress = TransferProgress()
+        progress.launchSampler(viewModelScope, scope.coroutineContext[Job]) { sample ->
+            applyTaskProgressSample(taskId, completedFiles.get(), failedFiles.get(), sample)
+        }
         return object : DownloadCallback {
             override fun onFileDownloaded(filePath: String) {
                 val completed = completedFiles.incrementAndGet()
+                progress.onFileFinished()
                 TaskManager.updateProgress(taskId, completed, failedFiles.get(), 0f)
                 TaskManager.addFilePath(taskId, filePath)
 
@@ -1337,35 +1400,16 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
                 }
             }
 
+            // Called for every chunk from the download threads: only record, the sampler publishes
             override fun onDownloadProgressUpdate(downloaded: Long, total: Long) {
-                val progressPercent = if (total > 0) (downloaded.toFloat() / total * 100) else 0f
-                val fileProgress = if (total > 0) downloaded.toFloat() / total else 0f
-
-                val currentTime = System.currentTimeMillis()
-                if (currentTime - lastTaskProgressUpdateTime >= TASK_PROGRESS_UPDATE_INTERVAL) {
-                    TaskManager.updateProgress(taskId, completedFiles.get(), failedFiles.get(), fileProgress)
-                    lastTaskProgressUpdateTime = currentTime
-                }
-
-                if (taskId == currentTaskId) {
-                    scope.launch(Dispatchers.Main) {
-                        currentFileProgress = fileProgress
-                        taskCurrentFileProgress = fileProgress
-                        
-                        if (currentTime - lastSpeedCalculationTime >= 500) {
-                            val deltaBytes = if (downloaded >= currentDownloadedBytes) downloaded - currentDownloadedBytes else downloaded
-                            val deltaTimeSec = (currentTime - lastSpeedCalculationTime).toDouble() / 1000.0
-                            val speedBps = if (deltaTimeSec > 0) deltaBytes / deltaTimeSec else 0.0
-                            lastCalculatedSpeed = formatSpeed(speedBps)
-                            lastSpeedCalculationTime = currentTime
-                        }
-                        currentDownloadedBytes = downloaded
-                        currentDownloadTotalBytes = total
-                        updateProgress()
+                progress.onFileProgress(downloaded, total)
+            }
 
-                        val progressText = "${String.format("%.1f", progressPercent)}%｜$lastCalculatedSpeed"
-                        _uiState.update { it.copy(downloadProgressText = progressText) }
-                    }
+            override fun onBatchProgress(downloadedBytes: Long, totalBytes: Long) {
+                progress.onBatchProgress(downloadedBytes, totalBytes)
+                if (downloadedBytes >= totalBytes) {
+                    // The sampler stops with the download and may miss the final value
+                    TaskManager.updateByteProgress(taskId, downloadedBytes, totalBytes)
                 }
             }
 
@@ -0,0 +1,107 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CachingDnsTest {
+    private static InetAddress v4(int last) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) last});
+    }
+
+    private static InetAddress v6(int last) throws UnknownHostException {
+        byte[] bytes = new byte[16];
+        bytes[0] = 0x20;
+        bytes[1] = 0x01;
+        bytes[15] = (byte) last;
+        return InetAddress.getByAddress(bytes);
+    }
+
+    @Test
+    public void freshAnswerIsServedFromCache() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        List<InetAddress> answer = Collections.singletonList(v4(1));
+        AtomicLong now = new AtomicLong(0);
+        CachingDns dns = new CachingDns(host -> {
+            lookups.incrementAndGet();
+            now.addAndGet(30);
+            return answer;
+        }, Runnable::run, now::get);
+
+        assertEquals(answer, dns.lookup("sns-webpic-qc.xhscdn.com"));
+        assertEquals(answer, dns.lookup("sns-webpic-qc.xhscdn.com"));
+        assertEquals(1, lookups.get());
+        assertEquals(30, dns.resolutionTimeMs("sns-webpic-qc.xhscdn.com"));
+        assertEquals(-1, dns.resolutionTimeMs("xhslink.com"));
+    }
+
+    @Test
+    public void staleAnswerIsServedWhileRefreshing() throws Exception {
+        List<InetAddress> first = Collections.singletonList(v4(1));
+        List<InetAddress> second = Collections.singletonList(v4(2));
+        List<List<InetAddress>> answers = new ArrayList<>(Arrays.asList(first, second));
+        List<Runnable> refreshes = new ArrayList<>();
+        AtomicLong now = new AtomicLong(0);
+        CachingDns dns = new CachingDns(host -> answers.remove(0), refreshes::add, now::get);
+
+        dns.lookup("a");
+        now.set(CachingDns.FRESH_MS + 1);
+        assertEquals(first, dns.lookup("a"));
+        // Only one refresh is queued for the host
+        dns.lookup("a");
+        assertEquals(1, refreshes.size());
+
+        refreshes.get(0).run();
+        assertEquals(second, dns.lookup("a"));
+    }
+
+    @Test
+    public void lastKnownAnswerSurvivesFailedLookup() throws Exception {
+        List<InetAddress> answer = Collections.singletonList(v4(1));
+        AtomicInteger lookups = new AtomicInteger();
+        AtomicLong now = new AtomicLong(0);
+        CachingDns dns = new CachingDns(host -> {
+            if (lookups.getAndIncrement() > 0) {
+                throw new UnknownHostException(host);
+            }
+            return answer;
+        }, Runnable::run, now::get);
+
+        dns.lookup("a");
+        now.set(CachingDns.STALE_MS + 1);
+        assertEquals(answer, dns.lookup("a"));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void unknownHostFails() {
+        CachingDns dns = new CachingDns(host -> {
+            throw new UnknownHostException(host);
+        }, Runnable::run, System::currentTimeMillis);
+        try {
+            dns.lookup("nowhere.invalid");
+            fail("expected UnknownHostException");
+        } catch (UnknownHostException expected) {
+            assertEquals(-1, dns.resolutionTimeMs("nowhere.invalid"));
+        }
+    }
+
+    @Test
+    public void addressFamiliesAlternate() throws Exception {
+        List<InetAddress> ordered = CachingDns.interleaveFamilies(
+                Arrays.asList(v6(1), v6(2), v6(3), v4(1), v4(2)));
+        assertEquals(Arrays.asList(v6(1), v4(1), v6(2), v4(2), v6(3)), ordered);
+        assertTrue(CachingDns.interleaveFamilies(Collections.emptyList()).isEmpty());
+    }
+}
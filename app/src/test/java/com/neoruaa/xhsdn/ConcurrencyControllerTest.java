@@ -0,0 +1,102 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ConcurrencyControllerTest {
+    private static final class FakeTarget implements ConcurrencyController.Target {
+        final List<Integer> applied = new ArrayList<>();
+        boolean saturated = true;
+
+        @Override
+        public void applyWindow(int window) {
+            applied.add(window);
+        }
+
+        @Override
+        public boolean isSaturated() {
+            return saturated;
+        }
+    }
+
+    /**
+     * Feed one interval of transfers, each {@code bytes} long with the given latency.
+     */
+    private static long runInterval(ConcurrencyController controller, long start, int transfers, long bytes,
+                                    long ttfbMs) {
+        long step = ConcurrencyController.INTERVAL_MS / transfers;
+        for (int i = 1; i <= transfers; i++) {
+            controller.onTransferComplete(bytes, ttfbMs, start + i * step);
+        }
+        return start + transfers * step;
+    }
+
+    @Test
+    public void growsByOneWhileThroughputKeepsUp() {
+        FakeTarget target = new FakeTarget();
+        ConcurrencyController controller = new ConcurrencyController(target);
+        long now = 0;
+        controller.onTransferComplete(1_000_000, 200, now);
+        // The first intervals only set the baselines
+        now = runInterval(controller, now, 4, 1_000_000, 200);
+        now = runInterval(controller, now, 4, 1_000_000, 200);
+        int window = controller.currentWindow();
+        for (int i = 0; i < 3; i++) {
+            now = runInterval(controller, now, 4, 1_000_000, 200);
+        }
+        assertEquals(window + 3, controller.currentWindow());
+        assertEquals(ConcurrencyController.INITIAL_WINDOW + 1, (int) target.applied.get(0));
+    }
+
+    @Test
+    public void doesNotGrowWhenThereIsNoWaitingWork() {
+        FakeTarget target = new FakeTarget();
+        target.saturated = false;
+        ConcurrencyController controller = new ConcurrencyController(target);
+        long now = 0;
+        controller.onTransferComplete(1_000_000, 200, now);
+        for (int i = 0; i < 3; i++) {
+            now = runInterval(controller, now, 4, 1_000_000, 200);
+        }
+        assertEquals(ConcurrencyController.INITIAL_WINDOW, controller.currentWindow());
+        assertTrue(target.applied.isEmpty());
+    }
+
+    @Test
+    public void shrinksWhenLatencyClimbs() {
+        FakeTarget target = new FakeTarget();
+        target.saturated = false;
+        ConcurrencyController controller = new ConcurrencyController(target);
+        long now = 0;
+        controller.onTransferComplete(1_000_000, 200, now);
+        now = runInterval(controller, now, 4, 1_000_000, 200);
+        runInterval(controller, now, 4, 1_000_000, 2000);
+        assertEquals((int) (ConcurrencyController.INITIAL_WINDOW * 0.75), controller.currentWindow());
+    }
+
+    @Test
+    public void shrinksOnFailuresButNotBelowTheMinimum() {
+        FakeTarget target = new FakeTarget();
+        ConcurrencyController controller = new ConcurrencyController(target);
+        long now = 0;
+        controller.onTransferFailed(now);
+        for (int i = 0; i < 10; i++) {
+            now += ConcurrencyController.INTERVAL_MS;
+            controller.onTransferFailed(now);
+            controller.onTransferFailed(now);
+        }
+        assertEquals(ConcurrencyController.MIN_WINDOW, controller.currentWindow());
+    }
+
+    @Test
+    public void perHostLimitFollowsTheWindow() {
+        assertEquals(4, ConcurrencyController.perHostLimit(6));
+        assertEquals(ConcurrencyController.MIN_WINDOW, ConcurrencyController.perHostLimit(2));
+        assertEquals(8, ConcurrencyController.perHostLimit(12));
+    }
+}
@@ -0,0 +1,112 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class HostScoreboardTest {
+    private static final String CI = "https://ci.xiaohongshu.com/abc";
+    private static final String EDGE = "https://sns-webpic-qc.xhscdn.com/abc";
+    private static final String ORIGINAL = "https://sns-img-bd.xhscdn.com/abc";
+    private static final List<String> CANDIDATES = Arrays.asList(CI, EDGE, ORIGINAL);
+
+    @Test
+    public void unknownHosts_keepTheirOrder() {
+        HostScoreboard scoreboard = new HostScoreboard(null);
+        assertEquals(CANDIDATES, scoreboard.rank(CANDIDATES, 1000L));
+    }
+
+    @Test
+    public void fastReliableHost_movesAhead() {
+        HostScoreboard scoreboard = new HostScoreboard(null);
+        long now = 1000L;
+        for (int i = 0; i < 5; i++) {
+            scoreboard.recordSuccess(ORIGINAL, 80, 2 * 1024 * 1024, 400, now);
+        }
+        scoreboard.recordFailure(CI, now);
+
+        assertEquals(Arrays.asList(ORIGINAL, EDGE, CI), scoreboard.rank(CANDIDATES, now));
+    }
+
+    @Test
+    public void openCircuit_skipsHostUntilCooldownEnds() {
+        HostScoreboard scoreboard = new HostScoreboard(null);
+        long now = 1000L;
+        for (int i = 0; i < HostScoreboard.FAILURES_TO_OPEN; i++) {
+            scoreboard.recordFailure(CI, now);
+        }
+
+        assertTrue(scoreboard.isOpen(CI, now));
+        assertEquals(Arrays.asList(EDGE, ORIGINAL), scoreboard.rank(CANDIDATES, now));
+
+        long later = now + 60 * 60 * 1000L;
+        assertFalse(scoreboard.isOpen(CI, later));
+        assertTrue(scoreboard.rank(CANDIDATES, later).contains(CI));
+        // The probe after the cooldown fails, so the breaker reopens at once
+        scoreboard.recordFailure(CI, later);
+        assertTrue(scoreboard.isOpen(CI, later + 1));
+    }
+
+    @Test
+    public void missingFiles_leaveTheBreakerClosed() {
+        HostScoreboard scoreboard = new HostScoreboard(null);
+        long now = 1000L;
+        for (int i = 0; i < HostScoreboard.FAILURES_TO_OPEN * 3; i++) {
+            scoreboard.recordUrlFailure("https://ci.xiaohongshu.com/missing" + i, now);
+        }
+
+        assertFalse(scoreboard.isOpen(CI, now));
+        assertEquals(CANDIDATES, scoreboard.rank(CANDIDATES, now));
+    }
+
+    @Test
+    public void urlWithPermanentFailure_goesLast() {
+        HostScoreboard scoreboard = new HostScoreboard(null);
+        scoreboard.recordUrlFailure(CI, 1000L);
+
+        assertEquals(Arrays.asList(EDGE, ORIGINAL, CI), scoreboard.rank(CANDIDATES, 2000L));
+        assertEquals(CANDIDATES, scoreboard.rank(CANDIDATES, 1000L + HostScoreboard.HALF_LIFE_MS));
+    }
+
+    @Test
+    public void allHostsOpen_stillReturnsEveryCandidate() {
+        HostScoreboard scoreboard = new HostScoreboard(null);
+        for (String url : CANDIDATES) {
+            for (int i = 0; i < HostScoreboard.FAILURES_TO_OPEN; i++) {
+                scoreboard.recordFailure(url, 1000L);
+            }
+        }
+        assertEquals(CANDIDATES, scoreboard.rank(CANDIDATES, 1000L));
+    }
+
+    @Test
+    public void oldFailuresDecay() {
+        HostScoreboard scoreboard = new HostScoreboard(null);
+        scoreboard.recordFailure(CI, 1000L);
+        scoreboard.recordFailure(CI, 1000L);
+        assertEquals(Arrays.asList(EDGE, ORIGINAL, CI), scoreboard.rank(CANDIDATES, 2000L));
+
+        long muchLater = 1000L + 10 * HostScoreboard.HALF_LIFE_MS;
+        assertEquals(CANDIDATES, scoreboard.rank(CANDIDATES, muchLater));
+    }
+
+    @Test
+    public void statisticsSurviveJsonRoundTrip() throws Exception {
+        HostScoreboard scoreboard = new HostScoreboard(null);
+        for (int i = 0; i < HostScoreboard.FAILURES_TO_OPEN; i++) {
+            scoreboard.recordFailure(CI, 1000L);
+        }
+        scoreboard.recordSuccess(ORIGINAL, 50, 1024 * 1024, 200, 1000L);
+
+        HostScoreboard restored = new HostScoreboard(null);
+        restored.fromJson(scoreboard.toJson());
+
+        assertTrue(restored.isOpen(CI, 1000L));
+        assertEquals(scoreboard.rank(CANDIDATES, 1000L), restored.rank(CANDIDATES, 1000L));
+    }
+}
@@ -0,0 +1,101 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+
+public class InitialStateExtractorTest {
+    @Test
+    public void extractsFirstObject_andRewritesBareUndefined() {
+        String html = "<html><script>window.__INITIAL_STATE__ = {\"a\":undefined,\"b\":\"undefined\","
+                + "\"c\":[1,undefined],\"undefinedKey\":{\"d\":\"x}y\"}};window.foo = {};</script></html>";
+
+        assertEquals("{\"a\":null,\"b\":\"undefined\",\"c\":[1,null],\"undefinedKey\":{\"d\":\"x}y\"}}",
+                InitialStateExtractor.extractStateJson(html));
+    }
+
+    @Test
+    public void keepsUndefinedInsideIdentifiersAndStrings() {
+        String html = "<script>window.__INITIAL_STATE__={\"a\":undefinedValue,\"b\":'it\\'s undefined {',"
+                + "\"c\":\"say \\\"}\\\"\",\"d\":undefined}</script>";
+
+        assertEquals("{\"a\":undefinedValue,\"b\":'it\\'s undefined {',\"c\":\"say \\\"}\\\"\",\"d\":null}",
+                InitialStateExtractor.extractStateJson(html));
+    }
+
+    @Test
+    public void handlesMultiByteText() {
+        String html = "<script>window.__INITIAL_STATE__={\"title\":\"小红书 undefined\",\"x\":undefined,\"名\":undefined}</script>";
+
+        assertEquals("{\"title\":\"小红书 undefined\",\"x\":null,\"名\":null}",
+                InitialStateExtractor.extractStateJson(html));
+    }
+
+    @Test
+    public void pageWithoutMarker_isReturnedAsHtml() throws IOException {
+        String html = "<html><img src=\"https://sns-img-qc.xhscdn.com/abc.jpg\"></html>";
+
+        InitialStateExtractor.Result result = InitialStateExtractor.read(new Buffer().writeUtf8(html));
+
+        assertNull(result.stateJson);
+        assertEquals(html, result.html);
+    }
+
+    @Test
+    public void unterminatedObject_yieldsNoState() throws IOException {
+        String html = "<script>window.__INITIAL_STATE__={\"a\":{\"b\":1}";
+
+        InitialStateExtractor.Result result = InitialStateExtractor.read(new Buffer().writeUtf8(html));
+
+        assertNull(result.stateJson);
+        assertNull(result.html);
+    }
+
+    @Test
+    public void stopsReadingOnceTheObjectCloses() throws IOException {
+        StringBuilder page = new StringBuilder("<script>window.__INITIAL_STATE__={\"note\":{\"id\":\"1\"}}</script>");
+        int headLength = page.length();
+        while (page.length() < headLength + 200_000) {
+            page.append("<div class=\"filler\">undefined</div>");
+        }
+        Buffer remaining = new Buffer().writeUtf8(page.toString());
+
+        InitialStateExtractor.Result result = InitialStateExtractor.read(trickle(remaining, 512));
+
+        assertEquals("{\"note\":{\"id\":\"1\"}}", result.stateJson);
+        assertTrue("read too far: " + remaining.size(), remaining.size() > 190_000);
+    }
+
+    private static BufferedSource trickle(final Buffer data, final int chunkSize) {
+        return Okio.buffer(new Source() {
+            @Override
+            public long read(Buffer sink, long byteCount) {
+                if (data.size() == 0) {
+                    return -1;
+                }
+                long count = Math.min(Math.min(chunkSize, byteCount), data.size());
+                sink.write(data, count);
+                return count;
+            }
+
+            @Override
+            public Timeout timeout() {
+                return Timeout.NONE;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+}
@@ -0,0 +1,137 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class MediaBlobStoreTest {
+    private static File newDir() throws Exception {
+        return Files.createTempDirectory("blobs").toFile();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static File fileWith(File dir, byte[] data) throws Exception {
+        File file = File.createTempFile("media", ".bin", dir);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static byte[] bytes(int size, int fill) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) fill);
+        return data;
+    }
+
+    @Test
+    public void assetKey_ignoresSignedPrefixAndHost() {
+        String key = MediaBlobStore.assetKey("https://ci.xiaohongshu.com/1040g008abc");
+        assertNotNull(key);
+        assertEquals(key, MediaBlobStore.assetKey("https://sns-img-qc.xhscdn.com/1040g008abc"));
+        assertEquals(MediaBlobStore.assetKey("http://sns-webpic-qc.xhscdn.com/202404121854/a7e6fa93/1040g008abc!nd_dft_wlteh_webp_3"),
+                MediaBlobStore.assetKey("http://sns-webpic-qc.xhscdn.com/202501010000/ffff0000/1040g008abc!nd_dft_wlteh_webp_3"));
+        // Another style is another encoding of the image
+        assertNotEquals(key, MediaBlobStore.assetKey("https://ci.xiaohongshu.com/1040g008abc?imageView2/format/png"));
+    }
+
+    @Test
+    public void assetKey_videosByPath() {
+        assertEquals(MediaBlobStore.assetKey("https://sns-video-bd.xhscdn.com/stream/110/258/01e6_258.mp4"),
+                MediaBlobStore.assetKey("https://sns-video-al.xhscdn.com/stream/110/258/01e6_258.mp4"));
+        assertNull(MediaBlobStore.assetKey("https://www.xiaohongshu.com/explore/abc"));
+        assertNull(MediaBlobStore.assetKey("not a url"));
+    }
+
+    @Test
+    public void storedFileIsFoundAgain() throws Exception {
+        File dir = newDir();
+        try {
+            MediaBlobStore store = new MediaBlobStore(new File(dir, "store"), 1024 * 1024);
+            byte[] data = bytes(1000, 7);
+            File blob = store.put("image:a", fileWith(dir, data), null, "jpg", false);
+
+            File found = store.find("image:a");
+            assertEquals(blob, found);
+            assertEquals("jpg", found.getName().substring(found.getName().lastIndexOf('.') + 1));
+            assertArrayEquals(data, Files.readAllBytes(found.toPath()));
+            assertNull(store.find("image:b"));
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void identicalBytesAreStoredOnce() throws Exception {
+        File dir = newDir();
+        try {
+            MediaBlobStore store = new MediaBlobStore(new File(dir, "store"), 1024 * 1024);
+            File source = fileWith(dir, bytes(500, 3));
+            File first = store.put("image:a", fileWith(dir, bytes(500, 3)), null, "jpg", false);
+            File second = store.put("video:b", source, null, "jpg", false);
+
+            assertEquals(first, second);
+            assertFalse(source.exists());
+            assertEquals(first, store.find("video:b"));
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void assetIsWorthStoringOnceSeenAgain() throws Exception {
+        File dir = newDir();
+        try {
+            File storeDir = new File(dir, "store");
+            MediaBlobStore store = new MediaBlobStore(storeDir, 1024 * 1024);
+
+            assertFalse(store.noteSeen("image:a"));
+            assertTrue(store.noteSeen("image:a"));
+            assertFalse(store.noteSeen("image:b"));
+            assertTrue(new MediaBlobStore(storeDir, 1024 * 1024).noteSeen("image:a"));
+
+            // Once stored, the asset is found rather than seen; after eviction it starts over
+            store.put("image:a", fileWith(dir, bytes(100, 1)), null, "jpg", false);
+            assertFalse(store.noteSeen("image:a"));
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedBlobIsEvicted() throws Exception {
+        File dir = newDir();
+        try {
+            MediaBlobStore store = new MediaBlobStore(new File(dir, "store"), 250);
+            File a = store.put("image:a", fileWith(dir, bytes(100, 1)), null, "jpg", false);
+            File b = store.put("image:b", fileWith(dir, bytes(100, 2)), null, "jpg", false);
+            a.setLastModified(1000L);
+            b.setLastModified(2000L);
+
+            store.put("image:c", fileWith(dir, bytes(100, 3)), null, "jpg", false);
+
+            assertNull(store.find("image:a"));
+            assertNotNull(store.find("image:b"));
+            assertNotNull(store.find("image:c"));
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+}
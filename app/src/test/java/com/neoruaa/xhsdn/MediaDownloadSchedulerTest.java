@@ -0,0 +1,178 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MediaDownloadSchedulerTest {
+    private final MediaDownloadScheduler scheduler = MediaDownloadScheduler.get();
+
+    @Test
+    public void boundsTransfersPerHostAndOverall() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger runningOnHostA = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger maxOnHostA = new AtomicInteger();
+        List<Future<Boolean>> futures = new ArrayList<>();
+
+        for (int t = 0; t < 3; t++) {
+            MediaDownloadScheduler.Task task = scheduler.newTask("task" + t, false);
+            for (int i = 0; i < 8; i++) {
+                boolean hostA = i % 2 == 0;
+                String url = hostA ? "https://sns-webpic-qc.xhscdn.com/" + i : "https://sns-video-bd.xhscdn.com/" + i;
+                futures.add(scheduler.submit(task, url, () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    if (hostA) {
+                        maxOnHostA.accumulateAndGet(runningOnHostA.incrementAndGet(), Math::max);
+                    }
+                    Thread.sleep(10);
+                    if (hostA) {
+                        runningOnHostA.decrementAndGet();
+                    }
+                    running.decrementAndGet();
+                    return true;
+                }));
+            }
+        }
+        for (Future<Boolean> future : futures) {
+            assertTrue(future.get(5, TimeUnit.SECONDS));
+        }
+
+        assertTrue("overall " + maxRunning.get(), maxRunning.get() <= 6);
+        assertTrue("per host " + maxOnHostA.get(), maxOnHostA.get() <= 4);
+    }
+
+    @Test
+    public void foregroundTask_goesAheadOfQueuedBackgroundWork() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>();
+        MediaDownloadScheduler.Task background = scheduler.newTask("background", false);
+        MediaDownloadScheduler.Task foreground = scheduler.newTask("foreground", true);
+
+        // Fill every slot, then queue background work before the foreground job
+        for (int i = 0; i < 6; i++) {
+            futures.add(scheduler.submit(background, "https://host" + i + ".example/blocker", () -> {
+                release.await();
+                return null;
+            }));
+        }
+        for (int i = 0; i < 3; i++) {
+            int index = i;
+            futures.add(scheduler.submit(background, "https://bg.example/" + i, () -> order.add("bg" + index)));
+        }
+        futures.add(scheduler.submit(foreground, "https://fg.example/1", () -> order.add("fg")));
+
+        release.countDown();
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals("fg", order.get(0));
+    }
+
+    @Test
+    public void tasksAreServedRoundRobin() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>();
+        MediaDownloadScheduler.Task blocker = scheduler.newTask("blocker", true);
+        // Five slots stay busy, so the queued jobs below start one at a time
+        for (int i = 0; i < 5; i++) {
+            futures.add(scheduler.submit(blocker, "https://block" + i + ".example/", () -> {
+                release.await();
+                return null;
+            }));
+        }
+        MediaDownloadScheduler.Task first = scheduler.newTask("first", false);
+        MediaDownloadScheduler.Task second = scheduler.newTask("second", false);
+        CountDownLatch gate = new CountDownLatch(1);
+        // Holds the last slot until both tasks have queued their work
+        futures.add(scheduler.submit(blocker, "https://gate.example/", () -> {
+            gate.await();
+            return null;
+        }));
+        for (int i = 0; i < 3; i++) {
+            int index = i;
+            futures.add(scheduler.submit(first, "https://a.example/" + i, () -> order.add("a" + index)));
+        }
+        for (int i = 0; i < 3; i++) {
+            int index = i;
+            futures.add(scheduler.submit(second, "https://b.example/" + i, () -> order.add("b" + index)));
+        }
+
+        gate.countDown();
+        // Let the single free slot drain the queue before releasing the rest
+        for (int i = 6; i < futures.size(); i++) {
+            futures.get(i).get(5, TimeUnit.SECONDS);
+        }
+        release.countDown();
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals("[a0, b0, a1, b1, a2, b2]", order.toString());
+    }
+
+    @Test
+    public void parts_finishWhenEverySlotIsHeldByTheirCaller() throws Exception {
+        String url = "https://sns-video-bd.xhscdn.com/stream/video.mp4";
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger partsRun = new AtomicInteger();
+        List<Future<Void>> futures = new ArrayList<>();
+        // More segmented transfers than slots, each splitting into more parts than there are free slots
+        for (int t = 0; t < 8; t++) {
+            MediaDownloadScheduler.Task task = scheduler.newTask("segmented" + t, false);
+            futures.add(scheduler.submit(task, url, () -> {
+                List<Callable<Void>> parts = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    parts.add(() -> {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        Thread.sleep(5);
+                        running.decrementAndGet();
+                        partsRun.incrementAndGet();
+                        return null;
+                    });
+                }
+                scheduler.runParts(task, url, parts);
+                return null;
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(32, partsRun.get());
+        // Parts run inline in their caller's slot or in a slot of their own, never beyond the host limit
+        assertTrue("parts on one host " + maxRunning.get(), maxRunning.get() <= 4);
+    }
+
+    @Test
+    public void parts_failureIsReported() throws Exception {
+        MediaDownloadScheduler.Task task = scheduler.newTask("failing", false);
+        List<Callable<Void>> parts = new ArrayList<>();
+        parts.add(() -> null);
+        parts.add(() -> {
+            throw new java.io.IOException("connection reset");
+        });
+        try {
+            scheduler.runParts(task, "https://sns-video-bd.xhscdn.com/a.mp4", parts);
+            fail("expected ExecutionException");
+        } catch (ExecutionException expected) {
+            assertEquals("connection reset", expected.getCause().getMessage());
+        }
+    }
+}
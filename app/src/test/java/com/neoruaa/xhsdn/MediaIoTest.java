@@ -0,0 +1,96 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+
+public class MediaIoTest {
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void copiesFileToFile() throws Exception {
+        byte[] data = randomBytes(300 * 1024);
+        File source = File.createTempFile("mediaio", ".src");
+        File target = File.createTempFile("mediaio", ".dst");
+        try {
+            Files.write(source.toPath(), data);
+            long written = MediaIo.copy(source, target, progress -> { });
+            assertEquals(data.length, written);
+            assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    @Test
+    public void copiesStreamAndReportsEveryChunk() throws Exception {
+        byte[] data = randomBytes(3 * MediaIo.CHUNK_SIZE + 100);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long[] last = {0};
+        long written = MediaIo.copy(new ByteArrayInputStream(data), out, progress -> last[0] = progress);
+        assertEquals(data.length, written);
+        assertEquals(data.length, last[0]);
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void transferAppendsARangeAfterWhatIsAlreadyWritten() throws Exception {
+        byte[] data = randomBytes(10000);
+        File source = File.createTempFile("mediaio", ".src");
+        File target = File.createTempFile("mediaio", ".dst");
+        try {
+            Files.write(source.toPath(), data);
+            try (FileInputStream in = new FileInputStream(source);
+                 FileOutputStream out = new FileOutputStream(target)) {
+                out.write(new byte[]{1, 2, 3});
+                long transferred = MediaIo.transfer(in.getChannel(), 2, data.length - 2, out.getChannel(), p -> { });
+                assertEquals(data.length - 2, transferred);
+            }
+            byte[] result = Files.readAllBytes(target.toPath());
+            assertEquals(3 + data.length - 2, result.length);
+            assertEquals(data[2], result[3]);
+            assertEquals(data[data.length - 1], result[result.length - 1]);
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    @Test
+    public void listenerCanStopTheCopy() throws Exception {
+        byte[] data = randomBytes(5 * MediaIo.CHUNK_SIZE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            MediaIo.copy(new ByteArrayInputStream(data), out, progress -> {
+                throw new CancellationException("stop");
+            });
+            fail("Expected the copy to stop");
+        } catch (CancellationException expected) {
+            assertEquals(MediaIo.CHUNK_SIZE, out.size());
+        }
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+        byte[] buffer = MediaIo.acquireBuffer();
+        MediaIo.releaseBuffer(buffer);
+        assertSame(buffer, MediaIo.acquireBuffer());
+    }
+}
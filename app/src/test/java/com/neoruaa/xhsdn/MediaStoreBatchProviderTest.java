@@ -0,0 +1,229 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the MediaStore calls of saving a 20-file note that is already in the gallery, the old way and
+ * through {@link MediaStoreBatch}. The content writes are one per file either way and are left out.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class MediaStoreBatchProviderTest {
+    private static final String PICTURES = "Pictures/xhsdn";
+    private static final int FILES = 20;
+
+    /**
+     * A gallery in memory that counts the calls it gets; a batch is one call.
+     */
+    public static final class CountingProvider extends ContentProvider {
+        final Map<Long, ContentValues> rows = new LinkedHashMap<>();
+        int calls;
+        private long nextId = 1;
+        private boolean inBatch;
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            calls++;
+            inBatch = true;
+            try {
+                return super.applyBatch(operations);
+            } finally {
+                inBatch = false;
+            }
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder) {
+            count();
+            MatrixCursor cursor = new MatrixCursor(new String[]{MediaStore.MediaColumns._ID});
+            for (Map.Entry<Long, ContentValues> row : rows.entrySet()) {
+                if (matches(row.getValue(), selectionArgs)) {
+                    cursor.addRow(new Object[]{row.getKey()});
+                }
+            }
+            return cursor;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            count();
+            long id = nextId++;
+            rows.put(id, new ContentValues(values));
+            return ContentUris.withAppendedId(uri, id);
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            count();
+            ContentValues row = rows.get(ContentUris.parseId(uri));
+            if (row == null) {
+                return 0;
+            }
+            row.putAll(values);
+            return 1;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            count();
+            if (selection == null) {
+                return rows.remove(ContentUris.parseId(uri)) != null ? 1 : 0;
+            }
+            int deleted = 0;
+            for (Iterator<ContentValues> it = rows.values().iterator(); it.hasNext(); ) {
+                if (matches(it.next(), selectionArgs)) {
+                    it.remove();
+                    deleted++;
+                }
+            }
+            return deleted;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        int pendingRows() {
+            int pending = 0;
+            for (ContentValues row : rows.values()) {
+                Integer flag = row.getAsInteger(MediaStore.MediaColumns.IS_PENDING);
+                if (flag != null && flag == 1) {
+                    pending++;
+                }
+            }
+            return pending;
+        }
+
+        private void count() {
+            if (!inBatch) {
+                calls++;
+            }
+        }
+
+        // Selections are by display name and relative path, see MediaStorePublisher#reserve
+        private static boolean matches(ContentValues row, String[] selectionArgs) {
+            return selectionArgs[0].equals(row.getAsString(MediaStore.MediaColumns.DISPLAY_NAME))
+                    && selectionArgs[1].equals(row.getAsString(MediaStore.MediaColumns.RELATIVE_PATH)
+                    + File.separator);
+        }
+    }
+
+    private CountingProvider provider;
+    private ContentResolver resolver;
+
+    @Before
+    public void setUp() {
+        provider = Robolectric.setupContentProvider(CountingProvider.class, MediaStore.AUTHORITY);
+        resolver = RuntimeEnvironment.getApplication().getContentResolver();
+        // The note was saved before, so every file replaces an entry
+        for (int i = 1; i <= FILES; i++) {
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName(i));
+            values.put(MediaStore.MediaColumns.RELATIVE_PATH, PICTURES);
+            provider.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+        }
+        provider.calls = 0;
+    }
+
+    @Test
+    public void oldPath_takesFourCallsPerFile() {
+        for (int i = 1; i <= FILES; i++) {
+            saveTheOldWay(fileName(i));
+        }
+
+        assertEquals(4 * FILES, provider.calls);
+        assertEquals(FILES, provider.rows.size());
+    }
+
+    @Test
+    public void batch_takesOneCallPerFileAndTwoForTheNote() {
+        List<MediaStorePublisher.Item> items = new ArrayList<>(FILES + 1);
+        for (int i = 1; i <= FILES + 1; i++) {
+            items.add(new MediaStorePublisher.Item(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, PICTURES,
+                    fileName(i), "image/jpeg"));
+        }
+        MediaStoreBatch batch = new MediaStoreBatch(new MediaStorePublisher(resolver),
+                item -> new File("/storage/emulated/0/" + item.relativePath, item.displayName));
+        // One more file is planned than is downloaded, e.g. its Content-Type gives it another name
+        batch.reserve(items);
+        assertEquals(1, provider.calls);
+
+        for (int i = 1; i <= FILES; i++) {
+            assertNotNull(batch.written(batch.claim(PICTURES, fileName(i))));
+            // Each file is visible as soon as it is written, not when the note is done
+            assertEquals(FILES + 1 - i, provider.pendingRows());
+            assertEquals(1 + i, provider.calls);
+        }
+        batch.finish();
+
+        assertEquals(FILES + 2, provider.calls);
+        assertEquals(FILES, provider.rows.size());
+        assertEquals(0, provider.pendingRows());
+    }
+
+    /**
+     * How a file used to be saved: look up the same-named entries and delete them one by one, insert a
+     * pending entry, write it and clear the pending flag.
+     */
+    private void saveTheOldWay(String fileName) {
+        Uri collection = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+        try (Cursor cursor = resolver.query(collection, new String[]{MediaStore.MediaColumns._ID},
+                MediaStore.MediaColumns.DISPLAY_NAME + "=? AND " + MediaStore.MediaColumns.RELATIVE_PATH + "=?",
+                new String[]{fileName, PICTURES + File.separator}, null)) {
+            while (cursor.moveToNext()) {
+                resolver.delete(ContentUris.withAppendedId(collection, cursor.getLong(0)), null, null);
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName);
+        values.put(MediaStore.MediaColumns.MIME_TYPE, "image/jpeg");
+        values.put(MediaStore.MediaColumns.RELATIVE_PATH, PICTURES);
+        values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+        Uri uri = resolver.insert(collection, values);
+
+        ContentValues finalizeValues = new ContentValues();
+        finalizeValues.put(MediaStore.MediaColumns.IS_PENDING, 0);
+        resolver.update(uri, finalizeValues, null, null);
+    }
+
+    private static String fileName(int index) {
+        return "xhs_note_" + index + ".jpg";
+    }
+}
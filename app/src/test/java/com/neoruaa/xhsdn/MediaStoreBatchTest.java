@@ -0,0 +1,164 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MediaStoreBatchTest {
+    private static final String PICTURES = "Pictures/xhsdn";
+    private static final String MOVIES = "Movies/xhsdn";
+
+    /**
+     * Records the batches instead of applying them.
+     */
+    private static final class FakeStore implements MediaStoreBatch.Store {
+        final List<List<MediaStorePublisher.Item>> reserved = new ArrayList<>();
+        final List<List<MediaStorePublisher.Item>> finishedWritten = new ArrayList<>();
+        final List<List<MediaStorePublisher.Item>> finishedFailed = new ArrayList<>();
+        final List<List<MediaStorePublisher.Item>> discarded = new ArrayList<>();
+        boolean refuseReserve;
+        boolean refuseFinish;
+
+        @Override
+        public void reserve(List<MediaStorePublisher.Item> items) throws IOException {
+            if (refuseReserve) {
+                throw new IOException("refused");
+            }
+            reserved.add(new ArrayList<>(items));
+        }
+
+        @Override
+        public OutputStream openOutputStream(MediaStorePublisher.Item item) {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public boolean finish(List<MediaStorePublisher.Item> written, List<MediaStorePublisher.Item> failed) {
+            finishedWritten.add(new ArrayList<>(written));
+            finishedFailed.add(new ArrayList<>(failed));
+            return !refuseFinish;
+        }
+
+        @Override
+        public void discard(List<MediaStorePublisher.Item> items) {
+            discarded.add(new ArrayList<>(items));
+        }
+    }
+
+    private static MediaStorePublisher.Item item(String relativePath, String displayName) {
+        return new MediaStorePublisher.Item(null, relativePath, displayName, "image/jpeg");
+    }
+
+    private static MediaStoreBatch newBatch(FakeStore store) {
+        return new MediaStoreBatch(store, item -> new File("/storage/" + item.relativePath, item.displayName));
+    }
+
+    private static List<MediaStorePublisher.Item> note() {
+        return Arrays.asList(item(PICTURES, "xhs_a_1.jpg"), item(PICTURES, "xhs_a_2.jpg"),
+                item(MOVIES, "xhs_a_3.mp4"));
+    }
+
+    @Test
+    public void noteIsReservedInOneBatchAndEachFilePublishedAsItIsWritten() throws Exception {
+        FakeStore store = new FakeStore();
+        MediaStoreBatch batch = newBatch(store);
+        List<MediaStorePublisher.Item> items = note();
+        assertTrue(batch.reserve(items));
+
+        MediaStorePublisher.Item second = batch.claim(PICTURES, "xhs_a_2.jpg");
+        assertSame(items.get(1), second);
+        assertNull(batch.claim(PICTURES, "xhs_a_2.jpg"));
+        try (OutputStream outputStream = batch.openOutputStream(second)) {
+            outputStream.write(1);
+        }
+        File secondFile = batch.written(second);
+
+        // Published before any other transfer is done, so it can be reported right away
+        assertEquals(new File("/storage/" + PICTURES, "xhs_a_2.jpg"), secondFile);
+        assertEquals(Arrays.asList(Arrays.asList(second)), store.finishedWritten);
+
+        MediaStorePublisher.Item first = batch.claim(PICTURES, "xhs_a_1.jpg");
+        assertNotNull(batch.written(first));
+        assertEquals(Arrays.asList(Arrays.asList(second), Arrays.asList(first)), store.finishedWritten);
+
+        batch.finish();
+        batch.finish();
+
+        assertEquals(1, store.reserved.size());
+        // The entry no transfer claimed is deleted in one batch
+        assertEquals(Arrays.asList(Arrays.asList(items.get(2))), store.discarded);
+        assertEquals(2, store.finishedWritten.size());
+    }
+
+    @Test
+    public void failedWriteIsDeletedRightAway() {
+        FakeStore store = new FakeStore();
+        MediaStoreBatch batch = newBatch(store);
+        batch.reserve(note());
+
+        MediaStorePublisher.Item item = batch.claim(PICTURES, "xhs_a_1.jpg");
+        batch.failed(item);
+
+        assertEquals(Arrays.asList(Arrays.asList(item)), store.discarded);
+        // The retry publishes the file on its own
+        assertNull(batch.claim(PICTURES, "xhs_a_1.jpg"));
+        batch.finish();
+        assertTrue(store.finishedWritten.isEmpty());
+        assertEquals(2, store.discarded.get(1).size());
+    }
+
+    @Test
+    public void transferFinishingAfterTheBatchIsStillPublished() {
+        FakeStore store = new FakeStore();
+        MediaStoreBatch batch = newBatch(store);
+        batch.reserve(note());
+        MediaStorePublisher.Item late = batch.claim(MOVIES, "xhs_a_3.mp4");
+
+        batch.finish();
+        assertNull(batch.claim(PICTURES, "xhs_a_1.jpg"));
+        File file = batch.written(late);
+
+        assertNotNull(file);
+        assertEquals(Arrays.asList(Arrays.asList(late)), store.finishedWritten);
+        assertFalse(store.discarded.get(0).contains(late));
+    }
+
+    @Test
+    public void failedPublishLosesOnlyThatFile() {
+        FakeStore store = new FakeStore();
+        MediaStoreBatch batch = newBatch(store);
+        List<MediaStorePublisher.Item> items = note();
+        batch.reserve(items);
+
+        store.refuseFinish = true;
+        assertNull(batch.written(batch.claim(PICTURES, "xhs_a_1.jpg")));
+        store.refuseFinish = false;
+        assertNotNull(batch.written(batch.claim(PICTURES, "xhs_a_2.jpg")));
+
+        assertEquals(Arrays.asList(Arrays.asList(items.get(0))), store.discarded);
+        assertEquals(Arrays.asList(items.get(1)), store.finishedWritten.get(1));
+    }
+
+    @Test
+    public void refusedReservationLeavesEveryFileToItself() {
+        FakeStore store = new FakeStore();
+        store.refuseReserve = true;
+        MediaStoreBatch batch = newBatch(store);
+
+        assertFalse(batch.reserve(note()));
+        assertNull(batch.claim(PICTURES, "xhs_a_1.jpg"));
+    }
+}
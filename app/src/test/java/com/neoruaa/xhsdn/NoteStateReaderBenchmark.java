@@ -0,0 +1,45 @@
+package com.neoruaa.xhsdn;
+
+import org.json.JSONObject;
+
+/**
+ * Times {@link NoteStateReader} against the tree walk on a large page and prints the results. It is not a
+ * test: timings depend on the machine, so run it by hand when working on the reader. Each path is timed
+ * by its best round, which is less noisy than the total.
+ */
+public final class NoteStateReaderBenchmark {
+    private NoteStateReaderBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String page = NoteStateReaderTest.noteDetailMapPage(4000);
+        int rounds = 15;
+
+        for (int i = 0; i < 3; i++) {
+            NoteStateReader.findNoteObjects(new JSONObject(page));
+            NoteStateReader.readNotes(page);
+        }
+
+        long treeNanos = Long.MAX_VALUE;
+        long readerNanos = Long.MAX_VALUE;
+        long learnedNanos = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            NoteStateReader.findNoteObjects(new JSONObject(page));
+            treeNanos = Math.min(treeNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            NoteStateReader.readNotes(page);
+            readerNanos = Math.min(readerNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            NoteStateReader.read(page, "note.noteDetailMap.*.note");
+            learnedNanos = Math.min(learnedNanos, System.nanoTime() - start);
+        }
+
+        System.out.println("page: " + page.length() + " chars");
+        System.out.println("tree walk: " + treeNanos / 1000 + " us");
+        System.out.println("reader: " + readerNanos / 1000 + " us");
+        System.out.println("learned path: " + learnedNanos / 1000 + " us");
+    }
+}
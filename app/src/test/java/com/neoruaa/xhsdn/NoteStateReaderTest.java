@@ -0,0 +1,186 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.List;
+
+public class NoteStateReaderTest {
+    // The docs/ folder only holds share links, so the pages below mirror the real layouts synthetically
+
+    static String imageNote(String noteId, String title) {
+        return "{\"noteId\":\"" + noteId + "\",\"type\":\"normal\",\"title\":\"" + title + "\",\"desc\":\"描述 #tag\","
+                + "\"time\":1718000000000,\"interactInfo\":{\"likedCount\":\"10\",\"liked\":false},"
+                + "\"user\":{\"nickname\":\"小明\",\"userId\":\"5f0000000000000000000001\",\"avatar\":\"https://sns-avatar-qc.xhscdn.com/a\"},"
+                + "\"imageList\":[{\"urlDefault\":\"https://sns-webpic-qc.xhscdn.com/1/abc!nd_dft\",\"width\":1080,"
+                + "\"stream\":{\"h264\":[{\"masterUrl\":\"https://sns-video-bd.xhscdn.com/live1.mp4\"}]}},"
+                + "{\"urlDefault\":\"https://sns-webpic-qc.xhscdn.com/1/def!nd_dft\",\"stream\":{}}],"
+                + "\"tagList\":[{\"id\":\"1\",\"name\":\"tag\"}]}";
+    }
+
+    private static String videoNote(String noteId) {
+        return "{\"noteId\":\"" + noteId + "\",\"type\":\"video\",\"title\":\"video\",\"user\":{\"nickname\":\"n\",\"userId\":\"u\"},"
+                + "\"video\":{\"consumer\":{\"originVideoKey\":\"pre_post/abc\"},\"media\":{\"stream\":{\"h265\":[{\"masterUrl\":\"https://sns-video-bd.xhscdn.com/v.mp4\"}]}}}}";
+    }
+
+    private static String filler(int items) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < items; i++) {
+            if (i > 0) builder.append(',');
+            builder.append("{\"id\":\"").append(i).append("\",\"name\":\"item ").append(i)
+                    .append("\",\"tags\":[\"a\",\"b\",null,true,1.5e3],\"nested\":{\"deep\":{\"x\":[1,2,3],\"s\":\"\\\"quoted\\\" }\"}}}");
+        }
+        return builder.append(']').toString();
+    }
+
+    static String noteDetailMapPage(int fillerItems) {
+        return "{\"global\":{\"appSettings\":{\"notificationInterval\":30}},\"user\":{\"loggedIn\":false},"
+                + "\"search\":{\"feeds\":" + filler(fillerItems) + "},"
+                + "\"note\":{\"currentNoteId\":\"66aa00000000000000000001\",\"noteDetailMap\":{"
+                + "\"66aa00000000000000000001\":{\"comments\":{\"list\":" + filler(fillerItems) + "},"
+                + "\"note\":" + imageNote("66aa00000000000000000001", "第一篇") + "}}},"
+                + "\"feed\":{\"items\":[]},\"comments\":" + filler(fillerItems) + "}";
+    }
+
+    @Test
+    public void noteDetailMap_keepsOnlyExtractorFields() {
+        List<JSONObject> notes = NoteStateReader.readNotes(noteDetailMapPage(3));
+
+        assertNotNull(notes);
+        assertEquals(1, notes.size());
+        JSONObject note = notes.get(0);
+        assertEquals("66aa00000000000000000001", note.optString("noteId"));
+        assertEquals("第一篇", note.optString("title"));
+        assertEquals(2, note.optJSONArray("imageList").length());
+        assertEquals("小明", note.optJSONObject("user").optString("nickname"));
+        assertEquals(1718000000000L, note.optLong("time", 0));
+        assertFalse(note.has("interactInfo"));
+        assertFalse(note.has("tagList"));
+        assertFalse(note.has("type"));
+    }
+
+    @Test
+    public void matchesTreeWalk_forKnownLayouts() throws Exception {
+        String[] pages = {
+                noteDetailMapPage(5),
+                "{\"note\":{\"note\":" + videoNote("n2") + "}}",
+                "{\"note\":{\"feed\":{\"items\":[" + imageNote("n3", "a") + "," + videoNote("n4") + "]}}}",
+                "{\"note\":" + imageNote("n5", "root note") + "}",
+                "{\"feed\":{\"items\":[" + imageNote("n6", "a") + ",{},\"x\"," + imageNote("n6", "dup") + "]}}",
+                "{\"noteData\":{\"data\":{\"noteData\":" + videoNote("n7") + ",\"note\":" + imageNote("n8", "ignored") + "}}}",
+                "{\"noteData\":{\"data\":{\"note\":" + imageNote("n9", "fallback key") + "}}}",
+        };
+
+        for (String page : pages) {
+            List<JSONObject> expected = NoteStateReader.findNoteObjects(new JSONObject(page));
+            List<JSONObject> actual = NoteStateReader.readNotes(page);
+            assertSameNotes(page, expected, actual);
+        }
+    }
+
+    @Test
+    public void deepScan_findsNotesOutsideKnownLayouts() throws Exception {
+        String page = "{\"feed\":{\"items\":[{\"noteId\":\"placeholder\"}]},\"somewhere\":{\"else\":[{\"wrapper\":{\"note\":"
+                + imageNote("deep1", "deep") + "}}]}}";
+
+        List<JSONObject> notes = NoteStateReader.readNotes(page);
+
+        assertNotNull(notes);
+        assertEquals(2, notes.size());
+        assertEquals("placeholder", notes.get(0).optString("noteId"));
+        assertEquals("deep1", notes.get(1).optString("noteId"));
+        assertSameNotes(page, NoteStateReader.findNoteObjects(new JSONObject(page)), notes);
+    }
+
+    @Test
+    public void keepsMediaLikeStringFields_forNotesWithoutImageList() {
+        String page = "{\"note\":{\"noteId\":\"n1\",\"cover\":\"https://sns-img-qc.xhscdn.com/cover\","
+                + "\"other\":\"not media\",\"video\":{\"consumer\":{\"originVideoKey\":\"k\"}}}}";
+
+        JSONObject note = NoteStateReader.readNotes(page).get(0);
+
+        assertEquals("https://sns-img-qc.xhscdn.com/cover", note.optString("cover"));
+        assertFalse(note.has("other"));
+    }
+
+    @Test
+    public void rejectsTextItCannotRead() {
+        assertNull(NoteStateReader.readNotes("{note:{}}"));
+        assertNull(NoteStateReader.readNotes("{\"note\":{\"a\":1}"));
+        assertNull(NoteStateReader.readNotes("[]"));
+    }
+
+    @Test
+    public void notePath_isNormalized() {
+        assertEquals("note.noteDetailMap.*.note", NoteStateReader.read(noteDetailMapPage(1), null).notePath);
+        assertEquals("feed.items[]", NoteStateReader.read("{\"feed\":{\"items\":[" + imageNote("a", "a") + "]}}", null).notePath);
+        assertEquals("somewhere.else[].wrapper.note", NoteStateReader.read(
+                "{\"somewhere\":{\"else\":[{\"wrapper\":{\"note\":" + videoNote("v") + "}}]}}", null).notePath);
+    }
+
+    @Test
+    public void learnedPath_stopsReadingOnceItsCollectionCloses() {
+        // Everything after noteDetailMap is unreadable, so only an early stop can succeed
+        String page = "{\"note\":{\"noteDetailMap\":{\"66aa00000000000000000001\":{\"note\":"
+                + imageNote("66aa00000000000000000001", "a") + "}},\"tail\": <not json";
+
+        assertNull(NoteStateReader.readNotes(page));
+        NoteStateReader.Result result = NoteStateReader.read(page, "note.noteDetailMap.*.note");
+
+        assertNotNull(result);
+        assertTrue(result.usedLearnedPath);
+        assertEquals(1, result.notes.size());
+        assertEquals("66aa00000000000000000001", result.notes.get(0).optString("noteId"));
+    }
+
+    @Test
+    public void learnedPathMiss_fallsBackToFullRead() throws Exception {
+        String page = "{\"note\":{\"noteDetailMap\":{}},\"noteData\":{\"data\":{\"noteData\":" + videoNote("n7") + "}}}";
+
+        NoteStateReader.Result result = NoteStateReader.read(page, "note.noteDetailMap.*.note");
+
+        assertNotNull(result);
+        assertFalse(result.usedLearnedPath);
+        assertEquals("noteData.data.noteData", result.notePath);
+        assertSameNotes(page, NoteStateReader.findNoteObjects(new JSONObject(page)), result.notes);
+    }
+
+    /**
+     * On a large page the reader must find the same notes as the tree walk while materializing only the
+     * note fields; everything else is skipped as text. Timings are in {@link NoteStateReaderBenchmark}.
+     */
+    @Test
+    public void largePage_materializesOnlyTheNote() throws Exception {
+        String page = noteDetailMapPage(4000);
+
+        List<JSONObject> expected = NoteStateReader.findNoteObjects(new JSONObject(page));
+        List<JSONObject> actual = NoteStateReader.readNotes(page);
+        NoteStateReader.Result learned = NoteStateReader.read(page, "note.noteDetailMap.*.note");
+
+        assertSameNotes(page, expected, actual);
+        assertSameNotes(page, expected, learned.notes);
+        assertTrue(learned.usedLearnedPath);
+        String note = imageNote("66aa00000000000000000001", "第一篇");
+        assertTrue(actual.get(0).toString().length() <= note.length());
+        assertTrue(learned.notes.get(0).toString().length() <= note.length());
+    }
+
+    private static void assertSameNotes(String page, List<JSONObject> expected, List<JSONObject> actual) {
+        assertNotNull(page, actual);
+        assertEquals(page, expected.size(), actual.size());
+        String[] fields = {"noteId", "title", "desc", "time", "imageList", "images", "video", "user"};
+        for (int i = 0; i < expected.size(); i++) {
+            for (String field : fields) {
+                Object want = expected.get(i).opt(field);
+                Object got = actual.get(i).opt(field);
+                assertEquals(page + " / " + field, String.valueOf(want), String.valueOf(got));
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class PartialDownloadStoreTest {
+    private static final String URL = "https://sns-video-bd.xhscdn.com/stream/110/258/01e6_258.mp4";
+    private static final long LENGTH = 4 * PartialDownloadStore.MIN_RESUMABLE_BYTES;
+
+    private static File newDir() throws Exception {
+        return Files.createTempDirectory("partials").toFile();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(PartialDownloadStore.Entry entry, int size) throws Exception {
+        Files.write(entry.dataFile.toPath(), new byte[size]);
+    }
+
+    private static List<long[]> ranges() {
+        long quarter = LENGTH / 4;
+        return Arrays.asList(new long[]{0, quarter - 1}, new long[]{quarter, 2 * quarter - 1},
+                new long[]{2 * quarter, 3 * quarter - 1}, new long[]{3 * quarter, LENGTH - 1});
+    }
+
+    @Test
+    public void begin_isRefusedWhileTheUrlIsStaged() throws Exception {
+        File dir = newDir();
+        try {
+            PartialDownloadStore store = new PartialDownloadStore(dir);
+            PartialDownloadStore.Entry first = store.begin(URL, "\"etag\"", null, LENGTH);
+            assertNotNull(first);
+            write(first, 1000);
+
+            assertNull(store.begin(URL, "\"etag\"", null, LENGTH));
+            assertNull(store.acquire(URL));
+            assertNull(store.find(URL));
+            // The second attempt must not have truncated the first one's bytes
+            assertEquals(1000, first.bytesWritten());
+
+            assertNotNull(store.begin("https://sns-video-bd.xhscdn.com/other.mp4", "\"etag\"", null, LENGTH));
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void release_keepsTheEntryForTheNextAttempt() throws Exception {
+        File dir = newDir();
+        try {
+            PartialDownloadStore store = new PartialDownloadStore(dir);
+            PartialDownloadStore.Entry first = store.begin(URL, null, "Wed, 01 May 2024 00:00:00 GMT", LENGTH);
+            write(first, 1000);
+            store.release(first);
+
+            PartialDownloadStore.Entry resumed = store.acquire(URL);
+            assertNotNull(resumed);
+            assertEquals(1000, resumed.bytesWritten());
+            assertEquals("Wed, 01 May 2024 00:00:00 GMT", resumed.ifRangeValidator());
+            assertNull(store.acquire(URL));
+
+            // A late release of an entry that is no longer active leaves the current holder alone
+            store.release(first);
+            assertNull(store.acquire(URL));
+            store.release(resumed);
+            assertNotNull(new PartialDownloadStore(dir).find(URL));
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void complete_handsOverTheBodyAndFreesTheUrl() throws Exception {
+        File dir = newDir();
+        try {
+            PartialDownloadStore store = new PartialDownloadStore(dir);
+            PartialDownloadStore.Entry entry = store.begin(URL, "\"etag\"", null, LENGTH);
+            write(entry, 1000);
+
+            File body = store.complete(entry);
+
+            assertSame(entry.dataFile, body);
+            assertTrue(body.exists());
+            assertFalse(entry.metaFile.exists());
+            assertNull(store.find(URL));
+            assertNotNull(store.begin(URL, "\"etag\"", null, LENGTH));
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void find_dropsEntriesThatCannotBeResumed() throws Exception {
+        File dir = newDir();
+        try {
+            PartialDownloadStore store = new PartialDownloadStore(dir);
+            PartialDownloadStore.Entry empty = store.begin(URL, "\"etag\"", null, LENGTH);
+            store.release(empty);
+
+            assertNull(store.find(URL));
+            assertFalse(empty.metaFile.exists());
+
+            PartialDownloadStore.Entry weak = store.begin(URL, "W/\"etag\"", null, LENGTH);
+            write(weak, 1000);
+            store.release(weak);
+
+            assertNull(store.find(URL));
+            assertFalse(weak.dataFile.exists());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void rangedEntry_keepsTheRangesStillMissing() throws Exception {
+        File dir = newDir();
+        try {
+            PartialDownloadStore store = new PartialDownloadStore(dir);
+            List<long[]> ranges = ranges();
+            PartialDownloadStore.Entry entry = store.beginRanged(URL, "\"etag\"", null, LENGTH, "mp4", ranges);
+            try (RandomAccessFile file = new RandomAccessFile(entry.dataFile, "rw")) {
+                file.setLength(LENGTH);
+            }
+            store.saveRanges(entry, Arrays.asList(new long[]{1000, ranges.get(0)[1]}, ranges.get(2)));
+            store.release(entry);
+
+            PartialDownloadStore.Entry resumed = new PartialDownloadStore(dir).acquire(URL);
+
+            assertNotNull(resumed);
+            assertTrue(resumed.isRanged());
+            assertEquals("mp4", resumed.extension);
+            assertEquals(LENGTH, resumed.contentLength);
+            assertEquals(2, resumed.missingRanges.size());
+            assertArrayEquals(new long[]{1000, ranges.get(0)[1]}, resumed.missingRanges.get(0));
+            assertArrayEquals(ranges.get(2), resumed.missingRanges.get(1));
+
+            // Ranges reported after the entry was handed back are not recorded
+            store.saveRanges(entry, ranges);
+            assertEquals(2, new PartialDownloadStore(dir).find(URL).missingRanges.size());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void rangedEntry_isDroppedWithoutItsFullLength() throws Exception {
+        File dir = newDir();
+        try {
+            PartialDownloadStore store = new PartialDownloadStore(dir);
+            PartialDownloadStore.Entry entry = store.beginRanged(URL, "\"etag\"", null, LENGTH, "mp4", ranges());
+            store.release(entry);
+
+            assertNull(store.find(URL));
+            assertFalse(entry.metaFile.exists());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void isResumable_needsSizeAndValidator() {
+        assertTrue(PartialDownloadStore.isResumable(LENGTH, "\"etag\"", null));
+        assertTrue(PartialDownloadStore.isResumable(LENGTH, null, "Wed, 01 May 2024 00:00:00 GMT"));
+        assertFalse(PartialDownloadStore.isResumable(LENGTH, "W/\"etag\"", null));
+        assertFalse(PartialDownloadStore.isResumable(LENGTH, null, null));
+        assertFalse(PartialDownloadStore.isResumable(1000, "\"etag\"", null));
+    }
+}
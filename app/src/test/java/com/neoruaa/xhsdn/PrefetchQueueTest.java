@@ -0,0 +1,98 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PrefetchQueueTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void returnsItemsInOrder() throws Exception {
+        try (PrefetchQueue<String> queue = new PrefetchQueue<>(6, 2, executor, index -> {
+            // Later items finish first
+            Thread.sleep((6 - index) * 5L);
+            return "item" + index;
+        })) {
+            for (int i = 0; i < 6; i++) {
+                assertEquals("item" + i, queue.take());
+            }
+        }
+    }
+
+    @Test
+    public void loadsAtMostWindowAheadOfTheConsumer() throws Exception {
+        AtomicInteger started = new AtomicInteger();
+        try (PrefetchQueue<Integer> queue = new PrefetchQueue<>(10, 2, executor, index -> {
+            started.incrementAndGet();
+            return index;
+        })) {
+            for (int i = 0; i < 10; i++) {
+                int taken = queue.take();
+                // Give the loaders time to run ahead if they could
+                Thread.sleep(20);
+                assertTrue("started " + started.get() + " after taking " + taken,
+                        started.get() <= Math.min(10, taken + 1 + 2));
+            }
+            assertEquals(10, started.get());
+        }
+    }
+
+    @Test
+    public void failedItem_doesNotStopTheRest() throws Exception {
+        try (PrefetchQueue<Integer> queue = new PrefetchQueue<>(3, 1, executor, index -> {
+            if (index == 1) {
+                throw new IllegalStateException("boom");
+            }
+            return index;
+        })) {
+            assertEquals(0, (int) queue.take());
+            try {
+                queue.take();
+                fail("expected the loader's exception");
+            } catch (ExecutionException e) {
+                assertEquals("boom", e.getCause().getMessage());
+            }
+            assertEquals(2, (int) queue.take());
+        }
+    }
+
+    @Test
+    public void close_stopsItsLoadsButNotTheSharedExecutor() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch interrupted = new CountDownLatch(2);
+        PrefetchQueue<Integer> queue = new PrefetchQueue<>(2, 1, executor, index -> {
+            started.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return index;
+        });
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        queue.close();
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        try (PrefetchQueue<Integer> next = new PrefetchQueue<>(1, 0, executor, index -> index)) {
+            assertEquals(0, (int) next.take());
+        }
+    }
+}
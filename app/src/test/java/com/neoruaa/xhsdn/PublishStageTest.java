@@ -0,0 +1,98 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class PublishStageTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void submit_returnsWhileTheWorkRuns() throws Exception {
+        PublishStage stage = new PublishStage(executor, 2);
+        CountDownLatch release = new CountDownLatch(1);
+
+        stage.submit(() -> {
+            release.await();
+            return false;
+        });
+        // The note loop got here while the first note is still being muxed
+        release.countDown();
+
+        assertFalse(stage.await());
+    }
+
+    @Test
+    public void fullBacklog_waitsForTheOldest() throws Exception {
+        PublishStage stage = new PublishStage(executor, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> finished = Collections.synchronizedList(new ArrayList<>());
+        stage.submit(() -> {
+            release.await();
+            finished.add(1);
+            return false;
+        });
+
+        Thread loop = new Thread(() -> {
+            try {
+                stage.submit(() -> {
+                    finished.add(2);
+                    return false;
+                });
+            } catch (InterruptedException ignored) {
+            }
+        });
+        loop.start();
+        loop.join(200);
+        assertTrue("second submit should wait for the first", loop.isAlive());
+
+        release.countDown();
+        loop.join(5000);
+        assertFalse(loop.isAlive());
+        assertEquals(1, (int) finished.get(0));
+    }
+
+    @Test
+    public void errorsOfAnyWork_areReported() throws Exception {
+        PublishStage stage = new PublishStage(executor, 2);
+        stage.submit(() -> false);
+        stage.submit(() -> true);
+        stage.submit(() -> false);
+
+        assertTrue(stage.await());
+    }
+
+    @Test
+    public void interruptedWait_keepsTheWorkPending() throws Exception {
+        PublishStage stage = new PublishStage(executor, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        stage.submit(() -> {
+            release.await();
+            return true;
+        });
+
+        Thread.currentThread().interrupt();
+        try {
+            stage.await();
+        } catch (InterruptedException expected) {
+        }
+        release.countDown();
+
+        assertTrue(stage.await());
+    }
+}
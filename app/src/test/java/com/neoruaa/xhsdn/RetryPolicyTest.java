@@ -0,0 +1,70 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+public class RetryPolicyTest {
+    private final RetryPolicy policy = new RetryPolicy.ExponentialBackoff(3, 350, 4000, 15000);
+
+    @Test
+    public void classifiesResponses() {
+        assertEquals(RetryPolicy.Kind.PERMANENT, RetryPolicy.Failure.ofResponse(404, null, 0).kind);
+        assertEquals(RetryPolicy.Kind.PERMANENT, RetryPolicy.Failure.ofResponse(403, null, 0).kind);
+        assertEquals(RetryPolicy.Kind.THROTTLED, RetryPolicy.Failure.ofResponse(429, null, 0).kind);
+        assertEquals(RetryPolicy.Kind.THROTTLED, RetryPolicy.Failure.ofResponse(503, "2", 0).kind);
+        assertEquals(RetryPolicy.Kind.TRANSIENT, RetryPolicy.Failure.ofResponse(503, null, 0).kind);
+        assertEquals(RetryPolicy.Kind.TRANSIENT, RetryPolicy.Failure.ofResponse(502, null, 0).kind);
+        assertEquals(RetryPolicy.Kind.TRANSIENT, RetryPolicy.Failure.ofResponse(408, null, 0).kind);
+        assertEquals(RetryPolicy.Kind.TRANSIENT,
+                RetryPolicy.Failure.ofException(new SocketTimeoutException("timeout")).kind);
+        assertEquals(RetryPolicy.Kind.PERMANENT, RetryPolicy.Failure.nonMedia("text/html").kind);
+    }
+
+    @Test
+    public void parsesRetryAfter() {
+        assertEquals(2000, RetryPolicy.Failure.parseRetryAfter(" 2 ", 0));
+        // Wed, 21 Oct 2015 07:28:00 GMT
+        long date = 1445412480000L;
+        assertEquals(5000, RetryPolicy.Failure.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", date - 5000));
+        assertEquals(-1, RetryPolicy.Failure.parseRetryAfter("soon", 0));
+        assertEquals(-1, RetryPolicy.Failure.parseRetryAfter(null, 0));
+    }
+
+    @Test
+    public void permanentFailure_movesOnAtOnce() {
+        assertEquals(-1, policy.retryDelayMs(RetryPolicy.Failure.ofResponse(404, null, 0), 1));
+    }
+
+    @Test
+    public void transientFailure_backsOffWithJitterUpToTheAttemptLimit() {
+        RetryPolicy.Failure failure = RetryPolicy.Failure.ofException(new IOException("reset"));
+        for (int i = 0; i < 50; i++) {
+            long first = policy.retryDelayMs(failure, 1);
+            long second = policy.retryDelayMs(failure, 2);
+            assertTrue(first >= 0 && first <= 350);
+            assertTrue(second >= 0 && second <= 700);
+        }
+        assertEquals(-1, policy.retryDelayMs(failure, 3));
+    }
+
+    @Test
+    public void throttledFailure_waitsForRetryAfter() {
+        assertTrue(policy.retryDelayMs(RetryPolicy.Failure.ofResponse(429, "3", 0), 1) >= 3000);
+        // Too long to wait for: try the next candidate instead
+        assertEquals(-1, policy.retryDelayMs(RetryPolicy.Failure.ofResponse(429, "60", 0), 1));
+    }
+
+    @Test
+    public void mostRetryable_prefersTransientOverPermanent() {
+        RetryPolicy.Failure permanent = RetryPolicy.Failure.ofResponse(404, null, 0);
+        RetryPolicy.Failure transientFailure = RetryPolicy.Failure.ofResponse(500, null, 0);
+        assertEquals(transientFailure, RetryPolicy.Failure.mostRetryable(permanent, transientFailure));
+        assertEquals(transientFailure, RetryPolicy.Failure.mostRetryable(transientFailure, permanent));
+        assertEquals(permanent, RetryPolicy.Failure.mostRetryable(null, permanent));
+    }
+}
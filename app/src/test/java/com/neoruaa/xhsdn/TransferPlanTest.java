@@ -0,0 +1,95 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TransferPlanTest {
+    @Test
+    public void largestFilesStartFirst() {
+        TransferPlan plan = new TransferPlan(new long[]{200, 150_000_000, 300, 200});
+        assertArrayEquals(new int[]{1, 2, 0, 3}, plan.order());
+    }
+
+    @Test
+    public void unknownSizesAreEstimatedFromKnownOnes() {
+        TransferPlan plan = new TransferPlan(new long[]{100, -1, 300});
+        assertEquals(600, plan.totalBytes());
+        // The estimate (200) sits between the known sizes
+        assertArrayEquals(new int[]{2, 1, 0}, plan.order());
+    }
+
+    @Test
+    public void progressIsWeightedByBytes() {
+        TransferPlan plan = new TransferPlan(new long[]{1000, 9000});
+        plan.onFinished(0);
+        assertEquals(1000, plan.transferredBytes());
+
+        plan.onProgress(1, 4500, 9000);
+        assertEquals(5500, plan.transferredBytes());
+        assertEquals(10000, plan.totalBytes());
+
+        // A failed file counts as done, so the note still reaches 100%
+        plan.onFinished(1);
+        assertEquals(plan.totalBytes(), plan.transferredBytes());
+    }
+
+    @Test
+    public void sizeReportedByTransferReplacesProbe() {
+        TransferPlan plan = new TransferPlan(new long[]{-1, -1});
+        plan.onProgress(0, 10, 4000);
+        assertEquals(4000 + 1024 * 1024, plan.totalBytes());
+        assertEquals(10, plan.transferredBytes());
+    }
+
+    @Test
+    public void callbackCountsProgressFromOtherThreads() throws Exception {
+        TransferPlan plan = new TransferPlan(new long[]{1000, 9000});
+        AtomicLong reported = new AtomicLong();
+        AtomicInteger changes = new AtomicInteger();
+        DownloadCallback delegate = new DownloadCallback() {
+            @Override
+            public void onFileDownloaded(String filePath) {
+            }
+
+            @Override
+            public void onDownloadProgress(String status) {
+            }
+
+            @Override
+            public void onDownloadProgressUpdate(long downloaded, long total) {
+                reported.set(downloaded);
+            }
+
+            @Override
+            public void onDownloadError(String status, String originalUrl) {
+            }
+
+            @Override
+            public void onVideoDetected() {
+            }
+        };
+        DownloadCallback callback = plan.callbackFor(1, delegate, changes::incrementAndGet);
+
+        // Like a segmented download, whose segments report from threads the file's job knows nothing about
+        Thread segment = new Thread(() -> callback.onDownloadProgressUpdate(4500, 9000));
+        segment.start();
+        segment.join();
+
+        assertEquals(4500, reported.get());
+        assertEquals(4500, plan.transferredBytes());
+        assertEquals(1, changes.get());
+    }
+
+    @Test
+    public void readsSizeFromRangeProbe() {
+        assertEquals(52428800, TransferPlan.sizeFromRangeProbe(206, "bytes 0-0/52428800", 1));
+        assertEquals(-1, TransferPlan.sizeFromRangeProbe(206, "bytes 0-0/*", 1));
+        assertEquals(12345, TransferPlan.sizeFromRangeProbe(200, null, 12345));
+        assertEquals(-1, TransferPlan.sizeFromRangeProbe(404, null, 120));
+    }
+}
@@ -0,0 +1,271 @@
+package com.neoruaa.xhsdn.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.SharedPreferences;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import kotlin.Unit;
+
+public class TaskHistoryImportTest {
+    private static final String KEY_TASKS = "tasks";
+
+    private static String legacyTask(long id, String status) {
+        return "{\"id\":" + id + ",\"noteUrl\":\"https://www.xiaohongshu.com/explore/" + id + "\",\"noteTitle\":\"标题 " + id + "\","
+                + "\"noteType\":\"IMAGE\",\"totalFiles\":3,\"completedFiles\":2,\"failedFiles\":1,\"status\":\"" + status + "\","
+                + "\"createdAt\":" + (1718000000000L + id) + ",\"completedAt\":1718000009000,\"errorMessage\":\"\","
+                + "\"filePaths\":[\"/a/" + id + "_1.jpg\",\"/a/" + id + "_2.jpg\"],\"noteContent\":\"内容\"}";
+    }
+
+    @Test
+    public void importsEveryReadableTaskAndDropsTheJson() {
+        // Written by an old version: the oldest fields only, an unknown status and an entry that cannot be read
+        String minimal = "{\"id\":3,\"noteUrl\":\"https://xhslink.com/a\",\"noteTitle\":\"\",\"noteType\":\"LIVE\","
+                + "\"totalFiles\":1,\"status\":\"PAUSED\",\"createdAt\":1718000000003}";
+        FakePreferences prefs = new FakePreferences();
+        prefs.values.put(KEY_TASKS, "[" + legacyTask(1, "COMPLETED") + "," + legacyTask(2, "FAILED") + ","
+                + "{\"id\":\"broken\"}," + minimal + "]");
+        prefs.values.put("next_id", 4L);
+        List<DownloadTask> written = new ArrayList<>();
+
+        Integer imported = TaskManager.importLegacyTasks(prefs, tasks -> {
+            written.addAll(tasks);
+            return Unit.INSTANCE;
+        });
+
+        assertEquals(Integer.valueOf(3), imported);
+        assertEquals(3, written.size());
+        assertFalse(prefs.values.containsKey(KEY_TASKS));
+        assertEquals(4L, prefs.values.get("next_id"));
+
+        DownloadTask first = written.get(0);
+        assertEquals(1L, first.getId());
+        assertEquals("标题 1", first.getNoteTitle());
+        assertEquals(NoteType.IMAGE, first.getNoteType());
+        assertEquals(TaskStatus.COMPLETED, first.getStatus());
+        assertEquals(2, first.getCompletedFiles());
+        assertEquals(1, first.getFailedFiles());
+        assertEquals(Long.valueOf(1718000009000L), first.getCompletedAt());
+        assertNull(first.getErrorMessage());
+        assertEquals(Arrays.asList("/a/1_1.jpg", "/a/1_2.jpg"), first.getFilePaths());
+        assertEquals("内容", first.getNoteContent());
+        assertEquals(TaskStatus.FAILED, written.get(1).getStatus());
+
+        DownloadTask oldest = written.get(2);
+        assertEquals(3L, oldest.getId());
+        assertNull(oldest.getNoteTitle());
+        assertEquals(NoteType.UNKNOWN, oldest.getNoteType());
+        assertEquals(TaskStatus.COMPLETED, oldest.getStatus());
+        assertNull(oldest.getCompletedAt());
+        assertTrue(oldest.getFilePaths().isEmpty());
+        assertNull(oldest.getNoteContent());
+    }
+
+    @Test
+    public void importedTasksRoundTripThroughJson() throws Exception {
+        List<DownloadTask> tasks = DownloadTask.listFromJson("[" + legacyTask(7, "DOWNLOADING") + "]");
+
+        JSONArray saved = new JSONArray();
+        saved.put(tasks.get(0).toJson());
+
+        assertEquals(tasks, DownloadTask.listFromJson(saved.toString()));
+    }
+
+    @Test
+    public void unreadableHistoryIsDropped() {
+        FakePreferences prefs = new FakePreferences();
+        prefs.values.put(KEY_TASKS, "{not json");
+        List<List<DownloadTask>> writes = new ArrayList<>();
+
+        Integer imported = TaskManager.importLegacyTasks(prefs, tasks -> {
+            writes.add(tasks);
+            return Unit.INSTANCE;
+        });
+
+        assertEquals(Integer.valueOf(0), imported);
+        assertEquals(1, writes.size());
+        assertTrue(writes.get(0).isEmpty());
+        assertFalse(prefs.values.containsKey(KEY_TASKS));
+    }
+
+    @Test
+    public void failedWriteKeepsTheJsonForTheNextStart() {
+        FakePreferences prefs = new FakePreferences();
+        String history = "[" + legacyTask(1, "COMPLETED") + "]";
+        prefs.values.put(KEY_TASKS, history);
+
+        try {
+            TaskManager.importLegacyTasks(prefs, tasks -> {
+                throw new IllegalStateException("disk full");
+            });
+        } catch (IllegalStateException expected) {
+            // Reported by the caller
+        }
+
+        assertEquals(history, prefs.values.get(KEY_TASKS));
+    }
+
+    @Test
+    public void nothingToImportWithoutLegacyHistory() {
+        FakePreferences prefs = new FakePreferences();
+        List<List<DownloadTask>> writes = new ArrayList<>();
+
+        Integer imported = TaskManager.importLegacyTasks(prefs, tasks -> {
+            writes.add(tasks);
+            return Unit.INSTANCE;
+        });
+
+        assertNull(imported);
+        assertTrue(writes.isEmpty());
+    }
+
+    /**
+     * In-memory preferences; edits are applied as soon as they are committed.
+     */
+    private static final class FakePreferences implements SharedPreferences {
+        final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            Object value = values.get(key);
+            return value != null ? (String) value : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            Object value = values.get(key);
+            return value != null ? (Set<String>) value : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            Object value = values.get(key);
+            return value != null ? (Integer) value : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            Object value = values.get(key);
+            return value != null ? (Long) value : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            Object value = values.get(key);
+            return value != null ? (Float) value : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            Object value = values.get(key);
+            return value != null ? (Boolean) value : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new FakeEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        private final class FakeEditor implements Editor {
+            private final Map<String, Object> changes = new HashMap<>();
+            private boolean clear;
+
+            private Editor set(String key, Object value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putString(String key, String value) {
+                return set(key, value);
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                return set(key, values);
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                return set(key, value);
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                return set(key, value);
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                return set(key, value);
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                return set(key, value);
+            }
+
+            @Override
+            public Editor remove(String key) {
+                return set(key, null);
+            }
+
+            @Override
+            public Editor clear() {
+                clear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                if (clear) {
+                    values.clear();
+                }
+                for (Map.Entry<String, Object> change : changes.entrySet()) {
+                    if (change.getValue() == null) {
+                        values.remove(change.getKey());
+                    } else {
+                        values.put(change.getKey(), change.getValue());
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}